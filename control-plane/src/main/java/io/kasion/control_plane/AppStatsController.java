@@ -0,0 +1,49 @@
+package io.kasion.control_plane;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Serves live app stats from {@link AppStatsScraper}'s cache. Nothing here calls the apps.
+ */
+@RestController
+@RequestMapping("/api/v1/stats")
+public class AppStatsController {
+
+    private final AppStatsScraper appStatsScraper;
+
+    public AppStatsController(AppStatsScraper appStatsScraper) {
+        this.appStatsScraper = appStatsScraper;
+    }
+
+    /**
+     * Stats of every running app in one call.
+     */
+    @GetMapping
+    public Collection<AppStatsScraper.AppStats> getAll() {
+        return appStatsScraper.snapshot();
+    }
+
+    /**
+     * Pushes the same list as {@link #getAll()} after every scrape, as {@code stats} events.
+     */
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stream() {
+        return appStatsScraper.subscribe();
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<?> getAppStats(@PathVariable String id) {
+        AppStatsScraper.AppStats stats = appStatsScraper.get(id);
+        if (stats == null) {
+            // Not scraped yet, or an older deployment whose container has been replaced.
+            return ResponseEntity.ok(Map.of("status", "UNKNOWN", "memory", "0 MB"));
+        }
+        return ResponseEntity.ok(stats);
+    }
+}
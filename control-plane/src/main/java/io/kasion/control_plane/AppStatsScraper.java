@@ -0,0 +1,239 @@
+package io.kasion.control_plane;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Polls the actuator of every live app once per interval and keeps the latest result in memory.
+ *
+ * The dashboard used to ask for stats per row every few seconds, and each request opened a new
+ * client and called the app. Now the scrape cost depends only on the number of live apps: readers
+ * get the cached snapshot from {@link #snapshot()}, and SSE subscribers get it pushed after each scrape.
+ *
+ * Only the newest LIVE deployment of a project has a running container; older LIVE rows are not scraped.
+ */
+@Component
+public class AppStatsScraper {
+
+    public enum AddressMode {
+        /** {@code http://localhost:<activePort>}, the published port of the first replica. */
+        HOST,
+        /** {@code http://<project>-app-<color>:8080}, when the control plane runs on kasion-net. */
+        CONTAINER
+    }
+
+    public record AppStats(String deploymentId, String projectId, String project, String status,
+                           String memory, long memoryBytes, long scrapedAt, long latencyMillis) {}
+
+    private final DeploymentRepository deploymentRepository;
+    private final BuildExecutors buildExecutors;
+    private final ControlPlaneMetrics metrics;
+    private final RestClient restClient;
+    private final AddressMode addressMode;
+    private final long timeoutMillis;
+
+    private final ConcurrentHashMap<String, AppStats> snapshot = new ConcurrentHashMap<>();
+    private final List<SseEmitter> subscribers = new CopyOnWriteArrayList<>();
+
+    public AppStatsScraper(DeploymentRepository deploymentRepository,
+                           BuildExecutors buildExecutors,
+                           ControlPlaneMetrics metrics,
+                           @Value("${kasion.stats.timeout-millis:2000}") long timeoutMillis,
+                           @Value("${kasion.stats.address-mode:HOST}") AddressMode addressMode) {
+        this.deploymentRepository = deploymentRepository;
+        this.buildExecutors = buildExecutors;
+        this.metrics = metrics;
+        this.timeoutMillis = timeoutMillis;
+        this.addressMode = addressMode;
+
+        // One client for every scrape; a hung app must not hold a scrape past the timeout.
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(Duration.ofMillis(timeoutMillis));
+        requestFactory.setReadTimeout(Duration.ofMillis(timeoutMillis));
+        this.restClient = RestClient.builder().requestFactory(requestFactory).build();
+    }
+
+    /**
+     * Latest stats per deployment, for the deployments that currently have a running container.
+     */
+    public Collection<AppStats> snapshot() {
+        return snapshot.values();
+    }
+
+    public AppStats get(String deploymentId) {
+        return snapshot.get(deploymentId);
+    }
+
+    /**
+     * Opens a push stream that receives the whole snapshot right away and again after every scrape.
+     */
+    public SseEmitter subscribe() {
+        SseEmitter emitter = new SseEmitter(0L); // no timeout; the browser closes it
+        emitter.onCompletion(() -> subscribers.remove(emitter));
+        emitter.onTimeout(() -> subscribers.remove(emitter));
+        emitter.onError(e -> subscribers.remove(emitter));
+        subscribers.add(emitter);
+        push(emitter, List.copyOf(snapshot.values()));
+        return emitter;
+    }
+
+    @Scheduled(fixedDelayString = "${kasion.stats.scrape-interval-millis:5000}",
+            initialDelayString = "${kasion.stats.scrape-interval-millis:5000}")
+    public void scrape() {
+        Map<String, Deployment> current = currentDeployments();
+
+        // All apps are probed at once, so one slow app delays the round by at most the timeout.
+        Map<String, Future<AppStats>> probes = new LinkedHashMap<>();
+        current.forEach((id, deployment) -> probes.put(id, buildExecutors.io().submit(() -> probe(deployment))));
+
+        for (Map.Entry<String, Future<AppStats>> entry : probes.entrySet()) {
+            Future<AppStats> probe = entry.getValue();
+            try {
+                snapshot.put(entry.getKey(), probe.get(timeoutMillis * 3, TimeUnit.MILLISECONDS));
+            } catch (Exception e) {
+                probe.cancel(true);
+                snapshot.put(entry.getKey(), unreachable(current.get(entry.getKey()), 0));
+            }
+        }
+        snapshot.keySet().retainAll(current.keySet());
+
+        List<AppStats> stats = List.copyOf(snapshot.values());
+        for (SseEmitter emitter : subscribers) {
+            // A stalled browser must not hold up the next scrape.
+            buildExecutors.io().execute(() -> push(emitter, stats));
+        }
+    }
+
+    private Map<String, Deployment> currentDeployments() {
+        return deploymentRepository.findCurrentLive().stream()
+                .collect(Collectors.toMap(Deployment::getId, d -> d, (a, b) -> a));
+    }
+
+    private AppStats probe(Deployment deployment) {
+        String baseUrl = baseUrl(deployment.getProject()) + "/actuator";
+        long start = System.currentTimeMillis();
+        try {
+            String health = fetch(baseUrl + "/health");
+            String status = health != null && health.contains("\"status\":\"UP\"") ? "UP" : "DOWN";
+
+            // BuildEngine exposes health and prometheus only, so memory comes from the Prometheus text.
+            long memoryBytes = 0;
+            try {
+                String prometheus = fetch(baseUrl + "/prometheus");
+                memoryBytes = Math.round(sumSamples(prometheus, "jvm_memory_used_bytes"));
+            } catch (RuntimeException e) {
+                // Health without metrics is still worth showing.
+            }
+            return stats(deployment, status, memoryBytes, System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            return unreachable(deployment, System.currentTimeMillis() - start);
+        }
+    }
+
+    private String fetch(String url) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            String body = restClient.get().uri(url).retrieve().body(String.class);
+            success = true;
+            return body;
+        } finally {
+            metrics.outboundRequest("stats", success, System.nanoTime() - start);
+        }
+    }
+
+    String baseUrl(Project project) {
+        return switch (addressMode) {
+            case HOST -> "http://localhost:" + project.getActivePort();
+            case CONTAINER -> "http://" + project.getName().toLowerCase() + "-app-" + project.getCurrentColor() + ":8080";
+        };
+    }
+
+    private static AppStats unreachable(Deployment deployment, long latencyMillis) {
+        return stats(deployment, "UNREACHABLE", 0, latencyMillis);
+    }
+
+    private static AppStats stats(Deployment deployment, String status, long memoryBytes, long latencyMillis) {
+        Project project = deployment.getProject();
+        return new AppStats(deployment.getId(), project.getId(), project.getName(), status,
+                Math.round(memoryBytes / 1024.0 / 1024.0) + " MB", memoryBytes,
+                System.currentTimeMillis(), latencyMillis);
+    }
+
+    private void push(SseEmitter emitter, List<AppStats> stats) {
+        try {
+            synchronized (emitter) {
+                emitter.send(SseEmitter.event().name("stats").data(stats));
+            }
+        } catch (IOException | IllegalStateException e) {
+            subscribers.remove(emitter);
+            emitter.completeWithError(e);
+        }
+    }
+
+    /**
+     * Sums every sample of {@code metric} in Prometheus text format, across all label sets.
+     */
+    static double sumSamples(String text, String metric) {
+        return samples(text, metric, null).stream().mapToDouble(Double::doubleValue).sum();
+    }
+
+    /**
+     * Values of every sample of {@code metric} whose labels contain {@code label} (e.g. {@code area="heap"}),
+     * or of every sample when {@code label} is null.
+     */
+    static List<Double> samples(String text, String metric, String label) {
+        if (text == null) {
+            return List.of();
+        }
+        List<Double> values = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            int nameEnd = metric.length();
+            if (!line.startsWith(metric) || line.length() <= nameEnd) {
+                continue;
+            }
+            int valueStart;
+            if (line.charAt(nameEnd) == '{') {
+                int labelsEnd = line.indexOf('}', nameEnd);
+                if (labelsEnd < 0) {
+                    continue;
+                }
+                if (label != null && !line.substring(nameEnd, labelsEnd).contains(label)) {
+                    continue;
+                }
+                valueStart = labelsEnd + 1;
+            } else if (line.charAt(nameEnd) == ' ') {
+                if (label != null) {
+                    continue;
+                }
+                valueStart = nameEnd;
+            } else {
+                continue; // a longer metric name with the same prefix
+            }
+            String[] fields = line.substring(valueStart).trim().split(" ");
+            try {
+                values.add(Double.parseDouble(fields[0]));
+            } catch (NumberFormatException ignored) {
+                // Malformed sample; skip it.
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,64 @@
+package io.kasion.control_plane;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/v1")
+public class AutoscaleController {
+
+    private final ProjectRepository projectRepository;
+    private final ScalingEventRepository scalingEventRepository;
+    private final Autoscaler autoscaler;
+
+    /** Null bounds and targets fall back to the kasion.autoscale.* defaults. */
+    public record AutoscaleRequest(boolean enabled, Integer minReplicas, Integer maxReplicas,
+                                   Double targetRequestsPerSecond, Double targetCpu, Double targetHeap) {}
+
+    public AutoscaleController(ProjectRepository projectRepository,
+                               ScalingEventRepository scalingEventRepository,
+                               Autoscaler autoscaler) {
+        this.projectRepository = projectRepository;
+        this.scalingEventRepository = scalingEventRepository;
+        this.autoscaler = autoscaler;
+    }
+
+    @PutMapping("/projects/{id}/autoscale")
+    public ResponseEntity<?> setAutoscale(@PathVariable String id, @RequestBody AutoscaleRequest payload) {
+        if (payload.minReplicas() != null && payload.minReplicas() < 1) {
+            return ResponseEntity.badRequest().body(Map.of("error", "minReplicas must be at least 1"));
+        }
+        if (payload.minReplicas() != null && payload.maxReplicas() != null && payload.maxReplicas() < payload.minReplicas()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "maxReplicas must not be below minReplicas"));
+        }
+        return projectRepository.findById(id)
+                .map(project -> {
+                    project.setAutoscale(payload.enabled());
+                    project.setMinReplicas(payload.minReplicas());
+                    project.setMaxReplicas(payload.maxReplicas());
+                    project.setTargetRequestsPerSecond(payload.targetRequestsPerSecond());
+                    project.setTargetCpu(payload.targetCpu());
+                    project.setTargetHeap(payload.targetHeap());
+                    projectRepository.save(project);
+                    return ResponseEntity.ok(Map.of("projectId", id, "enabled", payload.enabled(),
+                            "policy", autoscaler.policyFor(project)));
+                })
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * The audit log of scaling decisions, newest first; all projects unless {@code projectId} is given.
+     */
+    @GetMapping("/autoscale/events")
+    public List<ScalingEvent> events(@RequestParam(required = false) String projectId,
+                                     @RequestParam(defaultValue = "50") int limit) {
+        PageRequest page = PageRequest.of(0, Math.max(1, Math.min(limit, 500)));
+        return projectId != null
+                ? scalingEventRepository.findByProjectIdOrderByCreatedAtDesc(projectId, page)
+                : scalingEventRepository.findByOrderByCreatedAtDesc(page);
+    }
+}
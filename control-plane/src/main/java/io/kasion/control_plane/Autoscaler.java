@@ -0,0 +1,326 @@
+package io.kasion.control_plane;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes the replica count of projects that have autoscaling on, based on what their replicas report
+ * on {@code /actuator/prometheus}: request rate ({@code http_server_requests_seconds_count}), CPU
+ * ({@code process_cpu_usage}) and heap ({@code jvm_memory_used_bytes / jvm_memory_max_bytes}, area=heap).
+ *
+ * Each metric asks for {@code ceil(replicas * observed / target)} replicas; the largest answer wins,
+ * clamped to the project's min/max. To keep from flapping:
+ * - a metric within {@code tolerance} of its target asks for no change;
+ * - scaling up waits {@code scale-up-cooldown} after the last change, scaling down waits the longer
+ *   {@code scale-down-cooldown};
+ * - scaling down only goes as low as the highest recommendation of the last
+ *   {@code scale-down-stabilization-samples} rounds, so one quiet sample can't remove a replica.
+ *
+ * Every change it attempts is written to {@code scaling_events}, with the load it saw and the outcome.
+ */
+@Component
+public class Autoscaler {
+
+    public record Policy(int minReplicas, int maxReplicas, double targetRequestsPerSecond, double targetCpu, double targetHeap) {}
+
+    /**
+     * What a project's replicas reported in one round; NaN when no replica reported the metric.
+     */
+    public record Load(int replicas, double requestsPerSecond, double cpu, double heap) {}
+
+    /**
+     * {@code replicas} equal to the current count means hold.
+     */
+    public record Decision(int replicas, String reason) {}
+
+    private final DeploymentRepository deploymentRepository;
+    private final PortAllocator portAllocator;
+    private final ScalingEventRepository scalingEventRepository;
+    private final BuildEngine buildEngine;
+    private final BuildExecutors buildExecutors;
+    private final ControlPlaneMetrics metrics;
+    private final HttpClient httpClient;
+    private final AppStatsScraper.AddressMode addressMode;
+    private final long timeoutMillis;
+    private final Policy defaults;
+    private final double tolerance;
+    private final long scaleUpCooldownMillis;
+    private final long scaleDownCooldownMillis;
+    private final int scaleDownStabilizationSamples;
+
+    private final ConcurrentHashMap<String, History> histories = new ConcurrentHashMap<>();
+    private final Set<String> scaling = ConcurrentHashMap.newKeySet();
+
+    public Autoscaler(DeploymentRepository deploymentRepository,
+                      PortAllocator portAllocator,
+                      ScalingEventRepository scalingEventRepository,
+                      BuildEngine buildEngine,
+                      BuildExecutors buildExecutors,
+                      ControlPlaneMetrics metrics,
+                      @Value("${kasion.stats.address-mode:HOST}") AppStatsScraper.AddressMode addressMode,
+                      @Value("${kasion.stats.timeout-millis:2000}") long timeoutMillis,
+                      @Value("${kasion.autoscale.min-replicas:1}") int minReplicas,
+                      @Value("${kasion.autoscale.max-replicas:5}") int maxReplicas,
+                      @Value("${kasion.autoscale.target-requests-per-second:50}") double targetRequestsPerSecond,
+                      @Value("${kasion.autoscale.target-cpu:0.7}") double targetCpu,
+                      @Value("${kasion.autoscale.target-heap:0.8}") double targetHeap,
+                      @Value("${kasion.autoscale.tolerance:0.1}") double tolerance,
+                      @Value("${kasion.autoscale.scale-up-cooldown-seconds:60}") long scaleUpCooldownSeconds,
+                      @Value("${kasion.autoscale.scale-down-cooldown-seconds:300}") long scaleDownCooldownSeconds,
+                      @Value("${kasion.autoscale.scale-down-stabilization-samples:8}") int scaleDownStabilizationSamples) {
+        this.deploymentRepository = deploymentRepository;
+        this.portAllocator = portAllocator;
+        this.scalingEventRepository = scalingEventRepository;
+        this.buildEngine = buildEngine;
+        this.buildExecutors = buildExecutors;
+        this.metrics = metrics;
+        this.addressMode = addressMode;
+        this.timeoutMillis = timeoutMillis;
+        this.defaults = new Policy(minReplicas, maxReplicas, targetRequestsPerSecond, targetCpu, targetHeap);
+        this.tolerance = tolerance;
+        this.scaleUpCooldownMillis = TimeUnit.SECONDS.toMillis(scaleUpCooldownSeconds);
+        this.scaleDownCooldownMillis = TimeUnit.SECONDS.toMillis(scaleDownCooldownSeconds);
+        this.scaleDownStabilizationSamples = Math.max(1, scaleDownStabilizationSamples);
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(timeoutMillis))
+                .executor(buildExecutors.io())
+                .build();
+    }
+
+    /**
+     * The project's bounds and targets, falling back to the {@code kasion.autoscale.*} defaults.
+     */
+    public Policy policyFor(Project project) {
+        int min = project.getMinReplicas() != null ? Math.max(1, project.getMinReplicas()) : defaults.minReplicas();
+        int max = project.getMaxReplicas() != null ? project.getMaxReplicas() : defaults.maxReplicas();
+        return new Policy(min, Math.max(min, max),
+                project.getTargetRequestsPerSecond() != null ? project.getTargetRequestsPerSecond() : defaults.targetRequestsPerSecond(),
+                project.getTargetCpu() != null ? project.getTargetCpu() : defaults.targetCpu(),
+                project.getTargetHeap() != null ? project.getTargetHeap() : defaults.targetHeap());
+    }
+
+    @Scheduled(fixedDelayString = "${kasion.autoscale.interval-millis:15000}",
+            initialDelayString = "${kasion.autoscale.interval-millis:15000}")
+    public void evaluate() {
+        List<Deployment> live = deploymentRepository.findCurrentLive();
+        for (Deployment deployment : live) {
+            Project project = deployment.getProject();
+            if (!project.isAutoscale() || scaling.contains(project.getId())) {
+                continue;
+            }
+            List<PortLease> replicas = portAllocator.leases(project.getId(), project.getCurrentColor());
+            if (replicas.isEmpty()) {
+                continue; // deployed before port leases; redeploy to make it scalable
+            }
+            History history = histories.computeIfAbsent(project.getId(), id -> new History());
+            Load load = sample(replicas, history);
+            if (load == null) {
+                continue; // no replica answered; don't act on nothing
+            }
+            Decision decision = decide(policyFor(project), load, history, System.currentTimeMillis());
+            if (decision.replicas() != load.replicas()) {
+                apply(project, load, decision, history);
+            }
+        }
+        histories.keySet().retainAll(live.stream().map(d -> d.getProject().getId()).toList());
+    }
+
+    /**
+     * Scrapes every replica at once and combines the results: request rate is the total across
+     * replicas, CPU and heap the average. Replicas without a previous sample (just started, or restarted)
+     * are counted at the average rate of the others, so a scale-up doesn't look like a drop in traffic.
+     */
+    Load sample(List<PortLease> replicas, History history) {
+        Map<PortLease, Future<String>> scrapes = new LinkedHashMap<>();
+        for (PortLease replica : replicas) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl(replica) + "/actuator/prometheus"))
+                    .timeout(Duration.ofMillis(timeoutMillis))
+                    .GET()
+                    .build();
+            scrapes.put(replica, buildExecutors.io().submit(() -> {
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                    if (response.statusCode() != 200) {
+                        throw new IllegalStateException("HTTP " + response.statusCode());
+                    }
+                    success = true;
+                    return response.body();
+                } finally {
+                    metrics.outboundRequest("autoscale", success, System.nanoTime() - start);
+                }
+            }));
+        }
+
+        long now = System.nanoTime();
+        double requestsPerSecond = 0;
+        int rates = 0;
+        double cpu = 0;
+        int cpus = 0;
+        double heap = 0;
+        int heaps = 0;
+        int answered = 0;
+        Map<String, double[]> counters = new HashMap<>();
+        for (Map.Entry<PortLease, Future<String>> scrape : scrapes.entrySet()) {
+            String text;
+            try {
+                text = scrape.getValue().get(timeoutMillis * 3, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                scrape.getValue().cancel(true);
+                continue;
+            }
+            answered++;
+            String container = scrape.getKey().getContainerName();
+
+            List<Double> requestCounts = AppStatsScraper.samples(text, "http_server_requests_seconds_count", null);
+            if (!requestCounts.isEmpty()) {
+                double count = requestCounts.stream().mapToDouble(Double::doubleValue).sum();
+                counters.put(container, new double[]{count, now});
+                double[] previous = history.counters.get(container);
+                if (previous != null && count >= previous[0] && now > previous[1]) { // a restart resets the counter
+                    requestsPerSecond += (count - previous[0]) / ((now - previous[1]) / 1e9);
+                    rates++;
+                }
+            }
+
+            List<Double> cpuSamples = AppStatsScraper.samples(text, "process_cpu_usage", null);
+            if (!cpuSamples.isEmpty()) {
+                cpu += cpuSamples.get(0);
+                cpus++;
+            }
+
+            double heapUsed = AppStatsScraper.samples(text, "jvm_memory_used_bytes", "area=\"heap\"").stream()
+                    .mapToDouble(Double::doubleValue).sum();
+            // Pools without a limit report -1.
+            double heapMax = AppStatsScraper.samples(text, "jvm_memory_max_bytes", "area=\"heap\"").stream()
+                    .mapToDouble(Double::doubleValue).filter(v -> v > 0).sum();
+            if (heapMax > 0) {
+                heap += heapUsed / heapMax;
+                heaps++;
+            }
+        }
+        history.counters = counters;
+        if (answered == 0) {
+            return null;
+        }
+        return new Load(replicas.size(),
+                rates > 0 ? requestsPerSecond / rates * replicas.size() : Double.NaN,
+                cpus > 0 ? cpu / cpus : Double.NaN,
+                heaps > 0 ? heap / heaps : Double.NaN);
+    }
+
+    Decision decide(Policy policy, Load load, History history, long nowMillis) {
+        int current = load.replicas();
+        // Each metric votes; one within tolerance of its target votes for the current count.
+        int wanted = -1;
+        String reason = "no metrics";
+        double[][] metrics = {
+                {load.requestsPerSecond() / current, policy.targetRequestsPerSecond()},
+                {load.cpu(), policy.targetCpu()},
+                {load.heap(), policy.targetHeap()}};
+        String[] names = {"requests/s per replica", "cpu", "heap"};
+        for (int i = 0; i < metrics.length; i++) {
+            double observed = metrics[i][0];
+            double target = metrics[i][1];
+            if (Double.isNaN(observed) || target <= 0) {
+                continue;
+            }
+            double ratio = observed / target;
+            int vote = Math.abs(ratio - 1) <= tolerance ? current : (int) Math.ceil(current * ratio);
+            if (vote > wanted) {
+                wanted = vote;
+                reason = String.format(Locale.ROOT, "%s %.2f vs target %.2f", names[i], observed, target);
+            }
+        }
+        if (wanted < 0) {
+            wanted = current;
+        }
+        int recommended = Math.max(policy.minReplicas(), Math.min(policy.maxReplicas(), wanted));
+        if (recommended != wanted) {
+            reason += " (clamped to " + policy.minReplicas() + ".." + policy.maxReplicas() + ")";
+        }
+
+        history.recommendations.addLast(recommended);
+        while (history.recommendations.size() > scaleDownStabilizationSamples) {
+            history.recommendations.removeFirst();
+        }
+        long sinceLastChange = nowMillis - history.lastScaledAtMillis;
+
+        if (recommended > current) {
+            if (sinceLastChange < scaleUpCooldownMillis) {
+                return new Decision(current, "scale-up cooldown");
+            }
+            return new Decision(recommended, reason);
+        }
+        if (recommended < current) {
+            int stabilized = Collections.max(history.recommendations);
+            if (history.recommendations.size() < scaleDownStabilizationSamples || stabilized >= current) {
+                return new Decision(current, "waiting for a steady lower load");
+            }
+            if (sinceLastChange < scaleDownCooldownMillis) {
+                return new Decision(current, "scale-down cooldown");
+            }
+            return new Decision(stabilized, reason);
+        }
+        return new Decision(current, reason);
+    }
+
+    private void apply(Project project, Load load, Decision decision, History history) {
+        ScalingEvent event = new ScalingEvent(project, load.replicas(), decision.replicas(), decision.reason(),
+                load.requestsPerSecond(), load.cpu(), load.heap());
+        history.lastScaledAtMillis = System.currentTimeMillis();
+        history.recommendations.clear();
+        scaling.add(project.getId());
+        System.out.println("📏 [Autoscale] " + project.getName() + ": " + load.replicas() + " -> " + decision.replicas()
+                + " replicas (" + decision.reason() + ")");
+
+        // Starting replicas waits for readiness; don't hold up the other projects' round.
+        buildExecutors.io().execute(() -> {
+            try {
+                event.setOutcome(buildEngine.scale(project.getId(), decision.replicas()) ? "APPLIED" : "SKIPPED");
+            } catch (Exception e) {
+                System.err.println("❌ [Autoscale] Scaling " + project.getName() + " failed: " + e.getMessage());
+                event.setOutcome("FAILED");
+            } finally {
+                scaling.remove(project.getId());
+                scalingEventRepository.save(event);
+            }
+        });
+    }
+
+    private String baseUrl(PortLease replica) {
+        return switch (addressMode) {
+            case HOST -> "http://localhost:" + replica.getPort();
+            case CONTAINER -> "http://" + replica.getContainerName() + ":8080";
+        };
+    }
+
+    /**
+     * What the autoscaler remembers about one project between rounds.
+     */
+    static final class History {
+        final Deque<Integer> recommendations = new ArrayDeque<>();
+        long lastScaledAtMillis;
+        Map<String, double[]> counters = Map.of(); // container -> {request count, nanoTime}
+    }
+}
@@ -1,17 +1,27 @@
 package io.kasion.control_plane;
 
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
-import java.io.BufferedReader;
+import org.springframework.util.FileSystemUtils;
+
 import java.io.File;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 public class BuildEngine {
@@ -19,230 +29,766 @@ public class BuildEngine {
     private final ProjectRepository projectRepository;
     private final DeploymentRepository deploymentRepository;
     private final DockerfileGenerator dockerfileGenerator;
-    private final LogBroadcaster logBroadcaster;
-
-    public BuildEngine(ProjectRepository projectRepository, DeploymentRepository deploymentRepository, DockerfileGenerator dockerfileGenerator, LogBroadcaster logBroadcaster) {
+    private final BuildExecutors buildExecutors;
+    private final GitMirrorCache gitMirrorCache;
+    private final LogPipelines logPipelines;
+    private final ReadinessProbe readinessProbe;
+    private final Environment environment;
+    private final EdgeRouter edgeRouter;
+    private final PortAllocator portAllocator;
+    private final ControlPlaneMetrics metrics;
+    private final DockerEngine dockerEngine;
+    private final String docker;
+    private final String dockerCompose;
+    private final ConcurrentHashMap<String, Job> running = new ConcurrentHashMap<>();
+    // Held by a deployment or a scale operation, so the two never change a project's containers at once.
+    private final ConcurrentHashMap<String, ReentrantLock> projectLocks = new ConcurrentHashMap<>();
+
+    public BuildEngine(ProjectRepository projectRepository, DeploymentRepository deploymentRepository, DockerfileGenerator dockerfileGenerator, BuildExecutors buildExecutors, GitMirrorCache gitMirrorCache, LogPipelines logPipelines, ReadinessProbe readinessProbe, Environment environment, EdgeRouter edgeRouter, PortAllocator portAllocator, ControlPlaneMetrics metrics, DockerEngine dockerEngine,
+                       @Value("${kasion.docker.command:docker}") String docker,
+                       @Value("${kasion.docker.compose-command:docker-compose}") String dockerCompose) {
         this.projectRepository = projectRepository;
         this.deploymentRepository = deploymentRepository;
         this.dockerfileGenerator = dockerfileGenerator;
-        this.logBroadcaster = logBroadcaster;
+        this.buildExecutors = buildExecutors;
+        this.gitMirrorCache = gitMirrorCache;
+        this.logPipelines = logPipelines;
+        this.readinessProbe = readinessProbe;
+        this.environment = environment;
+        this.edgeRouter = edgeRouter;
+        this.portAllocator = portAllocator;
+        this.metrics = metrics;
+        this.dockerEngine = dockerEngine;
+        this.docker = docker;
+        this.dockerCompose = dockerCompose;
     }
 
-    private enum BuildTool { MAVEN, GRADLE, UNKNOWN }
+    public enum BuildTool { MAVEN, GRADLE, UNKNOWN }
+
+    private static final String CMD_LINE_PREFIX = "   [Cmd] ";
+    private static final byte[] CMD_PREFIX = CMD_LINE_PREFIX.getBytes(StandardCharsets.UTF_8);
 
-    // 🆕 Helper to log to BOTH Console and WebSocket
+    // 🆕 Helper to log to Console, the durable log store and WebSocket (batched by the deployment's LogPipeline)
     private void log(String deploymentId, String message) {
-        System.out.println(message);
-        logBroadcaster.broadcast(deploymentId, message);
+        logPipelines.publish(deploymentId, message);
     }
-    @Async
+
+    /**
+     * Runs the full pipeline for one deployment on the calling thread.
+     * Invoked by {@link BuildScheduler}, which decides when and how many of these run at once.
+     *
+     * The pipeline is a {@link StageGraph}: the database is provisioned while the image is fetched and built,
+     * and the container starts once both are done.
+     *
+     *   resolve ──▶ image ──┐
+     *                       ├──▶ container ──▶ ready ──▶ route ──▶ retire
+     *   database ───────────┘
+     */
     public void startBuild(String deploymentId) {
         // 1. Fetch Deployment
         Deployment deployment = deploymentRepository.findById(deploymentId)
                 .orElseThrow(() -> new RuntimeException("Deployment not found: " + deploymentId));
+        ReentrantLock lock = projectLock(deployment.getProject().getId());
+        lock.lock(); // waits for a scale operation that is starting or stopping replicas
+        try {
+            runPipeline(deploymentId, deployment);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runPipeline(String deploymentId, Deployment deployment) {
+        long startedAt = System.nanoTime();
+        deployment.setStatus("BUILDING");
+        deploymentRepository.save(deployment);
 
         Project project = deployment.getProject();
-        String jobId = UUID.randomUUID().toString().substring(0, 8);
+        Job job = new Job(deploymentId, UUID.randomUUID().toString().substring(0, 8), deployment, project);
+
+        logPipelines.open(deploymentId);
+        log(deploymentId, "🚀 [Job " + job.jobId + "] Engine started for: " + project.getName());
+
+        StageGraph pipeline = new StageGraph()
+                .stage("resolve", stageTimeout("resolve", 300), () -> resolve(job))
+                .stage("image", stageTimeout("image", 1800), () -> buildImage(job), "resolve");
+        if (project.isHasDatabase()) {
+            pipeline.stage("database", stageTimeout("database", 300), () -> provisionDatabase(job))
+                    .stage("container", stageTimeout("container", 120), () -> startContainer(job), "image", "database");
+        } else {
+            pipeline.stage("container", stageTimeout("container", 120), () -> startContainer(job), "image");
+        }
+        // The readiness probe has its own per-project timeout; the stage only guards against it hanging.
+        Duration readyTimeout = readinessProbe.criteriaFor(project).timeout().plusSeconds(30);
+        pipeline.stage("ready", readyTimeout, () -> recordFootprint(job, awaitReady(job)), "container")
+                .stage("route", stageTimeout("route", 60), () -> route(job), "ready")
+                .stage("retire", stageTimeout("retire", 120), () -> retire(job), "route");
+
+        job.pipeline = pipeline;
+        running.put(deploymentId, job);
+        try {
+            pipeline.run(buildExecutors.io(), timing -> {
+                metrics.stageFinished(timing.stage(), timing.durationMillis());
+                log(deploymentId, "⏱️ [Pipeline] " + timing.stage() + " done in " + timing.durationMillis() + "ms (started at +" + timing.startedAtMillis() + "ms)");
+            });
+
+            markLive(deploymentId, startedAt);
+
+        } catch (Exception e) {
+            if (job.live) {
+                // The route already sends traffic to the new containers: finish the handover, whatever stopped it.
+                log(deploymentId, "⚠️ [Job " + job.jobId + "] " + e.getMessage() + " after the route switched. Finishing the handover.");
+                finishRetire(job);
+                markLive(deploymentId, startedAt);
+                return;
+            }
+            boolean cancelled = e instanceof StageGraph.StageFailedException && job.cancelled;
+            System.err.println("❌ [Job " + job.jobId + "] Build " + (cancelled ? "Cancelled" : "Failed") + "!");
+            e.printStackTrace();
+            log(deploymentId, "❌ [Job " + job.jobId + "] Build " + (cancelled ? "Cancelled" : "Failed") + ": " + e.getMessage());
+            // Never took traffic; don't leave them holding ports and names for the next attempt.
+            removeContainers(deploymentId, job.leases);
+            deployment.setStatus(cancelled ? "CANCELLED" : "FAILED");
+            deployment.setTimeToFailMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            deploymentRepository.save(deployment);
+            metrics.buildFinished(deployment.getStatus(), deployment.getTimeToFailMillis());
+        } finally {
+            running.remove(deploymentId);
+            if (job.workspace != null) {
+                FileSystemUtils.deleteRecursively(job.workspace);
+            }
+            logPipelines.close(deploymentId);
+        }
+    }
 
-        log(deploymentId, "🚀 [Job " + jobId + "] Engine started for: " + project.getName());
+    private void markLive(String deploymentId, long startedAt) {
+        Deployment freshDeployment = deploymentRepository.findById(deploymentId)
+                .orElseThrow(() -> new RuntimeException("Deployment vanished!"));
 
-        File workspace = null;
+        freshDeployment.setStatus("LIVE");
+        freshDeployment.setTimeToLiveMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        deploymentRepository.save(freshDeployment);
+        metrics.buildFinished("LIVE", freshDeployment.getTimeToLiveMillis());
+    }
+
+    /**
+     * Stops a running deployment: every running stage is interrupted and the deployment ends up CANCELLED.
+     * Returns false if the deployment isn't running (queued builds are handled by {@link BuildScheduler})
+     * or is already taking traffic, when only the old containers are left to stop.
+     */
+    public boolean cancel(String deploymentId) {
+        Job job = running.get(deploymentId);
+        if (job == null) {
+            return false;
+        }
+        if (job.live) {
+            log(deploymentId, "🛑 [Pipeline] Cancellation ignored: the new version is already live");
+            return false;
+        }
+        log(deploymentId, "🛑 [Pipeline] Cancellation requested");
+        job.cancelled = true;
+        job.pipeline.cancel();
+        return true;
+    }
+
+    /**
+     * Changes how many replicas of the project's live deployment run, without rebuilding it. New replicas
+     * start from the live image and join the route once ready; removed ones leave the route, drain and
+     * are stopped. The count is kept as the project's replicas for its next deployments.
+     *
+     * Returns false if nothing was changed: the project has no live deployment, is being deployed right
+     * now, or was deployed before port leases existed.
+     */
+    public boolean scale(String projectId, int replicas) throws Exception {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("Replicas must be at least 1");
+        }
+        ReentrantLock lock = projectLock(projectId);
+        if (!lock.tryLock()) {
+            return false; // a deployment is running; it starts the project's replica count anyway
+        }
         try {
-            Path workspacePath = Files.createTempDirectory("kasion-build-" + jobId);
-            workspace = workspacePath.toFile();
-
-            log(deploymentId, "📂 [Job " + jobId + "] Workspace created: " + workspace.getAbsolutePath());
-
-            String repoUrl = project.getGithubRepoUrl();
-            log(deploymentId, "⬇️ [Job " + jobId + "] Cloning: " + repoUrl);
-            runCommand(workspace, deploymentId,"git", "clone", repoUrl, ".");
-            log(deploymentId, "✅ [Job " + jobId + "] Code cloned.");
-
-            // Detect Build Tool
-            BuildTool buildTool = BuildTool.UNKNOWN;
-            boolean hasMavenWrapper = new File(workspace, "mvnw").exists();
-            boolean hasGradleWrapper = new File(workspace, "gradlew").exists();
-
-            if (hasMavenWrapper) {
-                buildTool = BuildTool.MAVEN;
-                log(deploymentId, "🧠 [Job " + jobId + "] Found 'mvnw'. Using Maven Wrapper.");
-            } else if (hasGradleWrapper) {
-                buildTool = BuildTool.GRADLE;
-                log(deploymentId, "🧠 [Job " + jobId + "] Found 'gradlew'. Using Gradle Wrapper.");
-            } else {
-                // Fallback or error
-                log(deploymentId, "❌ [Job " + jobId + "] No 'mvnw' or 'gradlew' found. Cannot determine build tool.");
-                throw new RuntimeException("Could not determine build tool for project.");
+            Deployment live = deploymentRepository.findCurrentLive().stream()
+                    .filter(d -> d.getProject().getId().equals(projectId))
+                    .findFirst()
+                    .orElse(null);
+            if (live == null || live.getImageName() == null) {
+                return false;
+            }
+            Project project = live.getProject();
+            List<PortLease> current = portAllocator.leases(projectId, project.getCurrentColor());
+            if (current.isEmpty()) {
+                return false;
             }
+            String deploymentId = live.getId();
+            Job job = new Job(deploymentId, "scale", live, project);
+            job.imageName = live.getImageName();
+            job.startupMode = live.getStartupMode() != null ? live.getStartupMode() : project.getStartupMode();
 
-            String dockerfileContent = dockerfileGenerator.generateStandardBuild(project.getJavaVersion(), buildTool);
-            File dockerfile = new File(workspace, "Dockerfile");
-            Files.writeString(dockerfile.toPath(), dockerfileContent);
-            log(deploymentId, "📝 [Job " + jobId + "] Dockerfile written to disk.");
-
-            String imageName = "kasion/" + project.getName().toLowerCase() + ":" + deployment.getId();
-            log(deploymentId, "🐳 [Job " + jobId + "] Building Image: " + imageName);
-            runCommand(workspace, deploymentId, "docker", "build", "-t", imageName, ".");
-
-            // NEW: Database Provisioning Logic
-            if (project.isHasDatabase()) {
-                log(deploymentId, "🔑 [Database] Provisioning requested for " + project.getName());
-                String dbContainerName = project.getName().toLowerCase() + "-db";
-
-                // Check if a DB container already exists for this project
-                // A simple check is to inspect for a container with the name
-                try {
-                    runCommand(new File("."), deploymentId, "docker", "inspect", dbContainerName);
-                    log(deploymentId, "💡 [Database] Container '" + dbContainerName + "' already exists. Skipping creation.");
-                } catch (Exception e) {
-                    // This is expected if the container doesn't exist
-                    log(deploymentId, "🔎 [Database] No existing container found. Creating new Postgres database...");
-
-                    String dbUser = "kasion_user";
-                    String dbPassword = UUID.randomUUID().toString();
-
-                    project.setDbUser(dbUser);
-                    project.setDbPassword(dbPassword);
-                    projectRepository.save(project);
-                    log(deploymentId, "🔐 [Database] Credentials generated and saved.");
-
-                    runCommand(new File("."), deploymentId,
-                            "docker", "run", "-d",
-                            "--name", dbContainerName,
-                            "--network", "kasion-net",
-                            "-e", "POSTGRES_USER=" + dbUser,
-                            "-e", "POSTGRES_PASSWORD=" + dbPassword,
-                            "-e", "POSTGRES_DB=" + project.getName().toLowerCase(),
-                            "--restart", "always",
-                            "-m", "256m",
-                            "postgres:15-alpine"
-                    );
-                    log(deploymentId, "✅ [Database] Postgres container started successfully!");
+            // Lines go to the live deployment's log, through its own pipeline like a build's.
+            logPipelines.open(deploymentId);
+            try {
+                if (replicas > current.size()) {
+                    int firstReplica = current.get(current.size() - 1).getReplica() + 1;
+                    List<PortLease> added = portAllocator.lease(project, deploymentId, project.getCurrentColor(),
+                            firstReplica, replicas - current.size());
+                    log(deploymentId, "📈 [Scale] " + project.getName() + ": " + current.size() + " -> " + replicas + " replicas");
+                    job.leases = added;
+                    try {
+                        for (PortLease lease : added) {
+                            log(deploymentId, "🚀 [Scale] Starting new container: " + lease.getContainerName());
+                            runContainer(deploymentId, containerSpec(job, lease));
+                        }
+                        awaitReady(job);
+                    } catch (Exception e) {
+                        removeContainers(deploymentId, added);
+                        throw e;
+                    }
+                    List<PortLease> all = new ArrayList<>(current);
+                    all.addAll(added);
+                    job.leases = all;
+                    route(job);
+                } else if (replicas < current.size()) {
+                    log(deploymentId, "📉 [Scale] " + project.getName() + ": " + current.size() + " -> " + replicas + " replicas");
+                    job.leases = current.subList(0, replicas);
+                    route(job); // returns once the removed replicas have drained
+                    removeContainers(deploymentId, current.subList(replicas, current.size()));
                 }
+            } finally {
+                logPipelines.close(deploymentId);
+            }
+
+            project.setReplicas(replicas);
+            projectRepository.save(project);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock projectLock(String projectId) {
+        return projectLocks.computeIfAbsent(projectId, id -> new ReentrantLock());
+    }
+
+    private Duration stageTimeout(String stage, long defaultSeconds) {
+        return Duration.ofSeconds(environment.getProperty("kasion.pipeline.timeout-seconds." + stage, Long.class, defaultSeconds));
+    }
+
+    /**
+     * What the stages of one deployment hand to each other. Fields are written by one stage and read by
+     * the stages that depend on it; StageGraph's completion handoff orders those accesses.
+     */
+    private static final class Job {
+        final String deploymentId;
+        final String jobId;
+        final Deployment deployment;
+        final Project project;
+        volatile StageGraph pipeline;
+        volatile boolean cancelled;
+
+        String repoUrl;
+        String commitSha;
+        BuildTool buildTool;
+        DockerfileGenerator.StartupMode startupMode;
+        String dockerfileContent;
+        String imageName;
+        File workspace;
+        String currentColor;
+        String nextColor;
+        volatile List<PortLease> leases = List.of(); // one per replica of the new color
+        volatile boolean live; // set once the route points at the new containers; read by cancel()
+
+        Job(String deploymentId, String jobId, Deployment deployment, Project project) {
+            this.deploymentId = deploymentId;
+            this.jobId = jobId;
+            this.deployment = deployment;
+            this.project = project;
+        }
+    }
+
+    private void resolve(Job job) throws Exception {
+        String deploymentId = job.deploymentId;
+        String jobId = job.jobId;
+        Project project = job.project;
+        Deployment deployment = job.deployment;
+
+        String repoUrl = project.getGithubRepoUrl();
+        job.repoUrl = repoUrl;
+        log(deploymentId, "⬇️ [Job " + jobId + "] Fetching: " + repoUrl);
+        String commitSha = gitMirrorCache.fetch(repoUrl, "HEAD");
+        job.commitSha = commitSha;
+        deployment.setCommitHash(commitSha);
+        deploymentRepository.save(deployment);
+        log(deploymentId, "✅ [Job " + jobId + "] Resolved HEAD to " + commitSha.substring(0, 12) + ".");
+
+        // Detect Build Tool (straight from the mirror, nothing is checked out yet)
+        BuildTool buildTool = BuildTool.UNKNOWN;
+        boolean hasMavenWrapper = gitMirrorCache.hasPath(repoUrl, commitSha, "mvnw");
+        boolean hasGradleWrapper = gitMirrorCache.hasPath(repoUrl, commitSha, "gradlew");
+
+        if (hasMavenWrapper) {
+            buildTool = BuildTool.MAVEN;
+            log(deploymentId, "🧠 [Job " + jobId + "] Found 'mvnw'. Using Maven Wrapper.");
+        } else if (hasGradleWrapper) {
+            buildTool = BuildTool.GRADLE;
+            log(deploymentId, "🧠 [Job " + jobId + "] Found 'gradlew'. Using Gradle Wrapper.");
+        } else {
+            // Fallback or error
+            log(deploymentId, "❌ [Job " + jobId + "] No 'mvnw' or 'gradlew' found. Cannot determine build tool.");
+            throw new RuntimeException("Could not determine build tool for project.");
+        }
+
+        job.buildTool = buildTool;
+
+        DockerfileGenerator.StartupMode startupMode = project.getStartupMode();
+        if (startupMode != DockerfileGenerator.StartupMode.JVM) {
+            log(deploymentId, "⚡ [Job " + jobId + "] Startup mode: " + startupMode);
+        }
+        if (startupMode == DockerfileGenerator.StartupMode.NATIVE) {
+            String nativeDockerfile = nativeDockerfile(job);
+            if (nativeDockerfile != null) {
+                useDockerfile(job, DockerfileGenerator.StartupMode.NATIVE, nativeDockerfile);
+                return;
             }
+            startupMode = DockerfileGenerator.StartupMode.JVM;
+        }
+        useDockerfile(job, startupMode, dockerfileGenerator.generateStandardBuild(project.getJavaVersion(), buildTool, startupMode));
+    }
+
+    /**
+     * The native Dockerfile, or null (with the reason logged) when this project can't be built natively.
+     */
+    private String nativeDockerfile(Job job) throws IOException {
+        String javaVersion = job.project.getJavaVersion();
+        int featureVersion;
+        try {
+            featureVersion = DockerfileGenerator.javaFeatureVersion(javaVersion);
+        } catch (NumberFormatException e) {
+            log(job.deploymentId, "⚠️ [Job " + job.jobId + "] Can't tell which Java release '" + javaVersion + "' is. Building for the JVM.");
+            return null;
+        }
+        if (featureVersion < 17) {
+            log(job.deploymentId, "⚠️ [Job " + job.jobId + "] GraalVM native images need Java 17 or later, not " + javaVersion + ". Building for the JVM.");
+            return null;
+        }
+        String buildFile = job.buildTool == BuildTool.MAVEN
+                ? gitMirrorCache.readFile(job.repoUrl, job.commitSha, "pom.xml")
+                : Optional.ofNullable(gitMirrorCache.readFile(job.repoUrl, job.commitSha, "settings.gradle"))
+                        .orElse(gitMirrorCache.readFile(job.repoUrl, job.commitSha, "settings.gradle.kts"));
+        String artifactName = DockerfileGenerator.nativeArtifactName(job.buildTool, buildFile);
+        if (artifactName == null) {
+            String missing = job.buildTool == BuildTool.MAVEN
+                    ? "No artifactId found in pom.xml"
+                    : "No rootProject.name found in settings.gradle(.kts)";
+            log(job.deploymentId, "⚠️ [Job " + job.jobId + "] " + missing + ". Building for the JVM.");
+            return null;
+        }
+        log(job.deploymentId, "💎 [Job " + job.jobId + "] Native executable: " + artifactName);
+        return dockerfileGenerator.generateNativeBuild(javaVersion, job.buildTool, artifactName);
+    }
 
+    private void useDockerfile(Job job, DockerfileGenerator.StartupMode startupMode, String dockerfileContent) {
+        Deployment deployment = job.deployment;
+        job.startupMode = startupMode;
+        job.dockerfileContent = dockerfileContent;
+
+        // Same commit + same build inputs = same image. Tag by that key so redeploys can reuse it.
+        BuildKey buildKey = BuildKey.of(job.commitSha, job.project.getJavaVersion(), job.buildTool, dockerfileContent);
+        String imageName = buildKey.imageName(job.project.getName());
+        job.imageName = imageName;
+        deployment.setStartupMode(startupMode);
+        deployment.setBuildKey(buildKey.value());
+        deployment.setImageName(imageName);
+        deploymentRepository.save(deployment);
+    }
+
+    private void buildImage(Job job) throws Exception {
+        String deploymentId = job.deploymentId;
+        String jobId = job.jobId;
 
-            // Blue-Green Deployment Logic
-            String currentColor = project.getCurrentColor();
-            String nextColor = "blue".equals(currentColor) ? "green" : "blue";
-            int nextPort = project.getActivePort() == 8081 ? 8082 : 8081;
-
-            log(deploymentId, "🎨 [Deploy] Current color: " + currentColor + ". Deploying to " + nextColor + " on port " + nextPort);
-
-            // Start the new container
-            String newContainerName = project.getName().toLowerCase() + "-app-" + nextColor;
-            log(deploymentId, "🚀 [Deploy] Starting new container: " + newContainerName);
-            List<String> runCmd = new ArrayList<>();
-            runCmd.add("docker");
-            runCmd.add("run");
-            runCmd.add("-d");
-            runCmd.add("--name");
-            runCmd.add(newContainerName);
-            runCmd.add("--network");
-            runCmd.add("kasion-net");
-            runCmd.add("-p");
-            runCmd.add(nextPort + ":8080");
-            runCmd.add("--label");
-            runCmd.add("kasion.scrape=true");
-
-            // Always expose actuator endpoints for health checks and metrics
-            runCmd.add("-e");
-            runCmd.add("MANAGEMENT_ENDPOINTS_WEB_EXPOSURE_INCLUDE=health,prometheus");
-
-            if (project.isHasDatabase()) {
-                String dbHost = project.getName().toLowerCase() + "-db";
-                String dbUrl = "jdbc:postgresql://" + dbHost + ":5432/" + project.getName().toLowerCase();
-
-                runCmd.add("-e");
-                runCmd.add("SPRING_DATASOURCE_URL=" + dbUrl);
-                runCmd.add("-e");
-                runCmd.add("SPRING_DATASOURCE_USERNAME=" + project.getDbUser());
-                runCmd.add("-e");
-                runCmd.add("SPRING_DATASOURCE_PASSWORD=" + project.getDbPassword());
-                runCmd.add("-e");
-                runCmd.add("SPRING_JPA_HIBERNATE_DDL_AUTO=update");
+        if (imageExists(deploymentId, job.imageName)) {
+            log(deploymentId, "♻️ [Job " + jobId + "] Image " + job.imageName + " already built from these inputs. Skipping build.");
+            return;
+        }
+        Path workspacePath = Files.createTempDirectory("kasion-build-" + jobId);
+        File workspace = workspacePath.toFile();
+        job.workspace = workspace;
+        log(deploymentId, "📂 [Job " + jobId + "] Workspace created: " + workspace.getAbsolutePath());
+
+        gitMirrorCache.export(job.repoUrl, job.commitSha, workspacePath);
+        log(deploymentId, "✅ [Job " + jobId + "] Code checked out.");
+
+        try {
+            dockerBuild(job);
+        } catch (RuntimeException e) {
+            if (job.startupMode != DockerfileGenerator.StartupMode.NATIVE) {
+                throw e;
             }
+            // Reflection, resources or a library native-image can't handle; the app still runs on a JVM.
+            log(deploymentId, "⚠️ [Job " + jobId + "] Native build failed (" + e.getMessage() + "). Falling back to the JVM build.");
+            useDockerfile(job, DockerfileGenerator.StartupMode.JVM,
+                    dockerfileGenerator.generateStandardBuild(job.project.getJavaVersion(), job.buildTool, DockerfileGenerator.StartupMode.JVM));
+            if (imageExists(deploymentId, job.imageName)) {
+                log(deploymentId, "♻️ [Job " + jobId + "] Image " + job.imageName + " already built from these inputs. Skipping build.");
+                return;
+            }
+            dockerBuild(job);
+        }
+    }
 
-            runCmd.add(imageName);
-            runCommand(workspace, deploymentId, runCmd.toArray(new String[0]));
-
-            log(deploymentId, "🔬 [Deploy] Health check on new container...");
-            boolean isHealthy = false;
-            Instant deadline = Instant.now().plusSeconds(120); // 2 minute timeout
-            RestClient restClient = RestClient.create();
-
-            while (Instant.now().isBefore(deadline)) {
-                try {
-                    String healthUrl = "http://localhost:" + nextPort + "/actuator/health";
-                    log(deploymentId, "   [Health] Pinging " + healthUrl);
-                    String response = restClient.get().uri(healthUrl).retrieve().body(String.class);
-                    if (response != null && response.contains("\"status\":\"UP\"")) {
-                        isHealthy = true;
-                        log(deploymentId, "✅ [Health] Container is UP and healthy!");
-                        break;
-                    }
-                } catch (Exception e) {
-                    log(deploymentId, "   [Health] Retrying... container not ready yet.");
+    private void dockerBuild(Job job) throws Exception {
+        String deploymentId = job.deploymentId;
+        String jobId = job.jobId;
+        String imageName = job.imageName;
+        File workspace = job.workspace;
+
+        File dockerfile = new File(workspace, "Dockerfile");
+        Files.writeString(dockerfile.toPath(), job.dockerfileContent);
+        log(deploymentId, "📝 [Job " + jobId + "] Dockerfile written to disk.");
+
+        log(deploymentId, "🐳 [Job " + jobId + "] Building Image: " + imageName);
+        if (job.startupMode == DockerfileGenerator.StartupMode.CRAC) {
+            // The checkpoint step needs RUN --security=insecure, which only buildx can be allowed to run.
+            runCommand(workspace, deploymentId, docker, "buildx", "build", "--allow", "security.insecure", "--load", "-t", imageName, ".");
+            return;
+        }
+        if (dockerEngine.enabled()) {
+            // Builds with BuildKit, the workspace streamed to the daemon as the context
+            dockerEngine.build(workspace.toPath(), imageName, line -> log(deploymentId, CMD_LINE_PREFIX + line));
+            return;
+        }
+        // BuildKit is required for the dependency cache mounts in the generated Dockerfile
+        runCommand(workspace, deploymentId, Map.of("DOCKER_BUILDKIT", "1"), docker, "build", "-t", imageName, ".");
+    }
+
+    private void provisionDatabase(Job job) throws Exception {
+        String deploymentId = job.deploymentId;
+        Project project = job.project;
+
+        log(deploymentId, "🔑 [Database] Provisioning requested for " + project.getName());
+        String dbContainerName = project.getName().toLowerCase() + "-db";
+
+        // Check if a DB container already exists for this project
+        if (containerExists(deploymentId, dbContainerName)) {
+            log(deploymentId, "💡 [Database] Container '" + dbContainerName + "' already exists. Skipping creation.");
+            return;
+        }
+        log(deploymentId, "🔎 [Database] No existing container found. Creating new Postgres database...");
+
+        String dbUser = "kasion_user";
+        String dbPassword = UUID.randomUUID().toString();
+
+        project.setDbUser(dbUser);
+        project.setDbPassword(dbPassword);
+        projectRepository.save(project);
+        log(deploymentId, "🔐 [Database] Credentials generated and saved.");
+
+        runContainer(deploymentId, new DockerEngine.ContainerSpec(dbContainerName, "postgres:15-alpine", "kasion-net", Map.of(),
+                List.of("POSTGRES_USER=" + dbUser,
+                        "POSTGRES_PASSWORD=" + dbPassword,
+                        "POSTGRES_DB=" + project.getName().toLowerCase()),
+                Map.of(), List.of(), "always", 256L * 1024 * 1024));
+        log(deploymentId, "✅ [Database] Postgres container started successfully!");
+    }
+
+    private boolean containerExists(String deploymentId, String containerName) throws Exception {
+        if (dockerEngine.enabled()) {
+            return dockerEngine.inspectContainer(containerName) != null;
+        }
+        try {
+            runCommand(new File("."), deploymentId, docker, "inspect", containerName);
+            return true;
+        } catch (Exception e) {
+            // This is expected if the container doesn't exist
+            return false;
+        }
+    }
+
+    private void startContainer(Job job) throws Exception {
+        String deploymentId = job.deploymentId;
+        Project project = job.project;
+
+        // Blue-Green Deployment Logic
+        String currentColor = project.getCurrentColor();
+        String nextColor = "blue".equals(currentColor) ? "green" : "blue";
+        int replicas = project.getReplicas() != null ? Math.max(1, project.getReplicas()) : 1;
+
+        job.currentColor = currentColor;
+        job.nextColor = nextColor;
+
+        // Leftovers of an attempt that died before cleaning up (e.g. the control plane was restarted).
+        removeContainers(deploymentId, portAllocator.leases(project.getId(), nextColor));
+
+        List<PortLease> leases = portAllocator.lease(project, deploymentId, nextColor, replicas);
+        job.leases = leases; // from here on a failure removes the containers and releases the ports
+        log(deploymentId, "🎨 [Deploy] Current color: " + currentColor + ". Deploying " + replicas + " replica(s) as "
+                + nextColor + " on port(s) " + leases.stream().map(l -> String.valueOf(l.getPort())).toList());
+
+        for (PortLease lease : leases) {
+            log(deploymentId, "🚀 [Deploy] Starting new container: " + lease.getContainerName());
+            runContainer(deploymentId, containerSpec(job, lease));
+        }
+    }
+
+    /**
+     * Starts a container through the Engine API, or {@code docker run} when it isn't available.
+     */
+    private void runContainer(String deploymentId, DockerEngine.ContainerSpec spec) throws Exception {
+        if (dockerEngine.enabled()) {
+            dockerEngine.run(spec, line -> log(deploymentId, CMD_LINE_PREFIX + line));
+        } else {
+            runCommand(new File("."), deploymentId, spec.runCommand(docker).toArray(new String[0]));
+        }
+    }
+
+    private DockerEngine.ContainerSpec containerSpec(Job job, PortLease lease) {
+        Project project = job.project;
+        List<String> capAdd = job.startupMode == DockerfileGenerator.StartupMode.CRAC
+                ? List.of("CHECKPOINT_RESTORE", "SYS_PTRACE") // criu restores the checkpointed process
+                : List.of();
+
+        // Always expose actuator endpoints for health checks and metrics
+        List<String> env = new ArrayList<>();
+        env.add("MANAGEMENT_ENDPOINTS_WEB_EXPOSURE_INCLUDE=health,prometheus");
+
+        if (project.isHasDatabase()) {
+            String dbHost = project.getName().toLowerCase() + "-db";
+            String dbUrl = "jdbc:postgresql://" + dbHost + ":5432/" + project.getName().toLowerCase();
+
+            env.add("SPRING_DATASOURCE_URL=" + dbUrl);
+            env.add("SPRING_DATASOURCE_USERNAME=" + project.getDbUser());
+            env.add("SPRING_DATASOURCE_PASSWORD=" + project.getDbPassword());
+            env.add("SPRING_JPA_HIBERNATE_DDL_AUTO=update");
+        }
+
+        return new DockerEngine.ContainerSpec(lease.getContainerName(), job.imageName, "kasion-net",
+                Map.of(lease.getPort(), 8080), env, Map.of("kasion.scrape", "true"), capAdd, null, null);
+    }
+
+    /**
+     * Every replica is probed at once; the stage fails as soon as one of them isn't ready.
+     * Returns how long the slowest one took.
+     */
+    private long awaitReady(Job job) throws Exception {
+        String deploymentId = job.deploymentId;
+        ReadinessProbe.Criteria criteria = readinessProbe.criteriaFor(job.project);
+
+        log(deploymentId, "🔬 [Deploy] Waiting for " + job.leases.size() + " new container(s) to become ready...");
+        Map<PortLease, Future<ReadinessProbe.Verdict>> probes = new LinkedHashMap<>();
+        long slowestMillis = 0;
+        for (PortLease lease : job.leases) {
+            probes.put(lease, buildExecutors.io().submit(() -> readinessProbe.await(lease.getContainerName(),
+                    "http://localhost:" + lease.getPort(), criteria, message -> log(deploymentId, message))));
+        }
+        try {
+            for (Map.Entry<PortLease, Future<ReadinessProbe.Verdict>> probe : probes.entrySet()) {
+                String containerName = probe.getKey().getContainerName();
+                ReadinessProbe.Verdict verdict = probe.getValue().get();
+                if (!verdict.ready()) {
+                    log(deploymentId, "❌ [Health] " + containerName + ": " + verdict.reason() + " after " + verdict.elapsedMillis() + "ms. Last container output:");
+                    try {
+                        if (dockerEngine.enabled()) {
+                            dockerEngine.logs(containerName, 50).lines().forEach(line -> log(deploymentId, CMD_LINE_PREFIX + line));
+                        } else {
+                            runCommand(new File("."), deploymentId, docker, "logs", "--tail", "50", containerName);
+                        }
+                    } catch (Exception ignored) {}
+                    throw new RuntimeException("Health check failed for " + containerName + ": " + verdict.reason());
                 }
-                try { Thread.sleep(5000); } catch (InterruptedException ignored) {}
+                log(deploymentId, "✅ [Health] " + containerName + " is ready after " + verdict.elapsedMillis() + "ms (" + verdict.probes() + " probes)");
+                slowestMillis = Math.max(slowestMillis, verdict.elapsedMillis());
             }
+        } finally {
+            probes.values().forEach(future -> future.cancel(true));
+        }
+        return slowestMillis;
+    }
+
+    /**
+     * Keeps image size, startup time and the ready app's resident memory on the deployment, so a
+     * NATIVE deployment can be compared with the JVM one before it. Best effort: a value Docker
+     * can't report is left empty.
+     */
+    private void recordFootprint(Job job, long startupMillis) {
+        Deployment deployment = job.deployment;
+        deployment.setStartupMillis(startupMillis);
+        try {
+            deployment.setImageSizeBytes(dockerEngine.enabled()
+                    ? dockerEngine.inspectImage(job.imageName).sizeBytes()
+                    : Long.parseLong(commandOutput(docker, "image", "inspect", "--format", "{{.Size}}", job.imageName)));
+        } catch (Exception ignored) {}
+        try {
+            String containerName = job.leases.get(0).getContainerName();
+            deployment.setRssBytes(parseVmRssBytes(dockerEngine.enabled()
+                    ? dockerEngine.exec(containerName, "cat", "/proc/1/status")
+                    : commandOutput(docker, "exec", containerName, "cat", "/proc/1/status")));
+        } catch (Exception ignored) {}
+        deploymentRepository.save(deployment);
+        log(job.deploymentId, "📐 [Deploy] " + job.startupMode + ": ready in " + startupMillis + "ms"
+                + (deployment.getRssBytes() != null ? ", RSS " + deployment.getRssBytes() / (1024 * 1024) + " MiB" : "")
+                + (deployment.getImageSizeBytes() != null ? ", image " + deployment.getImageSizeBytes() / (1024 * 1024) + " MiB" : ""));
+    }
 
-            if (!isHealthy) {
-                throw new RuntimeException("Health check failed: Container did not become healthy within 2 minutes.");
+    /**
+     * The {@code VmRSS} line of a {@code /proc/<pid>/status} dump, in bytes.
+     */
+    static Long parseVmRssBytes(String status) {
+        for (String line : status.split("\n")) {
+            if (line.startsWith("VmRSS:")) {
+                String[] fields = line.substring("VmRSS:".length()).trim().split("\\s+");
+                return Long.parseLong(fields[0]) * 1024; // always reported in kB
             }
+        }
+        return null;
+    }
 
-            log(deploymentId, "🔄 [Deploy] Updating Nginx configuration to point to port " + nextPort);
-            String nginxConfig = "server { listen 80; location / { proxy_pass http://host.docker.internal:" + nextPort + "; } }";
-            Files.writeString(Path.of("control-plane/nginx/default.conf"), nginxConfig);
+    private void route(Job job) throws Exception {
+        String deploymentId = job.deploymentId;
+        List<Integer> ports = job.leases.stream().map(PortLease::getPort).toList();
+
+        if (edgeRouter.mode() == EdgeRouter.Mode.EMBEDDED) {
+            log(deploymentId, "🔄 [Deploy] Switching edge route for " + job.project.getName() + " to port(s) " + ports);
+            boolean drained = edgeRouter.swap(job.project.getName(),
+                    ports.stream().map(port -> "http://localhost:" + port).toList());
+            job.live = true;
+            log(deploymentId, drained
+                    ? "✅ [Deploy] Requests on the old containers have drained"
+                    : "⚠️ [Deploy] Old containers still had requests in flight after the drain timeout");
+        } else {
+            log(deploymentId, "🔄 [Deploy] Updating Nginx configuration to point to port(s) " + ports);
+            edgeRouter.writeNginxConfig(ports);
 
             log(deploymentId, "🔃 [Deploy] Reloading Nginx...");
-            runCommand(new File("."), deploymentId, "docker-compose", "exec", "nginx", "nginx", "-s", "reload");
+            runCommand(new File("."), deploymentId, dockerCompose, "exec", "nginx", "nginx", "-s", "reload");
+            job.live = true;
+        }
+
+        log(deploymentId, "✅ [Deploy] LIVE at http://localhost");
+    }
 
-            log(deploymentId, "✅ [Deploy] LIVE at http://localhost");
+    private void retire(Job job) throws Exception {
+        String deploymentId = job.deploymentId;
+        Project project = job.project;
+        promote(job); // first, so a failure below never leaves the live color marked as the spare
 
-            String oldContainerName = project.getName().toLowerCase() + "-app-" + currentColor;
+        List<PortLease> oldLeases = portAllocator.leases(project.getId(), job.currentColor);
+        if (oldLeases.isEmpty()) {
+            // Deployed before port leases existed: one container on 8081/8082 under the plain name.
+            String oldContainerName = PortAllocator.containerName(project, job.currentColor, 1);
             log(deploymentId, "🛑 [Deploy] Stopping old container: " + oldContainerName);
-            try {
-                runCommand(workspace, deploymentId,"docker", "rm", "-f", oldContainerName);
-            } catch (Exception ignored) {}
+            removeContainer(deploymentId, oldContainerName);
+        } else {
+            removeContainers(deploymentId, oldLeases);
+        }
+    }
 
-            project.setCurrentColor(nextColor);
-            project.setActivePort(nextPort);
-            projectRepository.save(project);
+    /**
+     * Retires the old color after the pipeline stopped past the route switch. The new color becomes the
+     * project's current one even if its old containers can't be stopped: otherwise the next deployment
+     * would pick the live color and remove the containers serving traffic.
+     */
+    private void finishRetire(Job job) {
+        try {
+            retire(job);
+        } catch (Exception e) {
+            promote(job);
+            log(job.deploymentId, "⚠️ [Deploy] Could not stop the old containers: " + e.getMessage());
+        }
+    }
 
-            Deployment freshDeployment = deploymentRepository.findById(deploymentId)
-                    .orElseThrow(() -> new RuntimeException("Deployment vanished!"));
+    private void promote(Job job) {
+        Project project = job.project;
+        project.setCurrentColor(job.nextColor);
+        project.setActivePort(job.leases.get(0).getPort());
+        projectRepository.save(project);
+    }
 
-            freshDeployment.setStatus("LIVE");
-            deploymentRepository.save(freshDeployment);
+    /**
+     * Force-removes the containers holding {@code leases} and gives their ports back.
+     */
+    private void removeContainers(String deploymentId, List<PortLease> leases) {
+        for (PortLease lease : leases) {
+            log(deploymentId, "🛑 [Deploy] Stopping container: " + lease.getContainerName());
+            removeContainer(deploymentId, lease.getContainerName());
+        }
+        if (!leases.isEmpty()) {
+            portAllocator.release(leases);
+        }
+    }
 
+    /**
+     * {@code docker rm -f}; a container that is already gone is fine.
+     */
+    private void removeContainer(String deploymentId, String containerName) {
+        try {
+            if (dockerEngine.enabled()) {
+                dockerEngine.remove(containerName, true);
+            } else {
+                runCommand(new File("."), deploymentId, docker, "rm", "-f", containerName);
+            }
+        } catch (Exception ignored) {}
+    }
+
+    private boolean imageExists(String deploymentId, String imageName) {
+        try {
+            if (dockerEngine.enabled()) {
+                return dockerEngine.inspectImage(imageName) != null;
+            }
+            runCommand(new File("."), deploymentId, docker, "image", "inspect", "--format", "{{.Id}}", imageName);
+            return true;
         } catch (Exception e) {
-            System.err.println("❌ [Job " + jobId + "] Build Failed!");
-            e.printStackTrace();
-            deployment.setStatus("FAILED");
-            deploymentRepository.save(deployment);
+            return false;
         }
     }
 
+    /**
+     * Runs a short Docker query and returns what it printed, without logging it.
+     */
+    private String commandOutput(String... command) throws Exception {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        // Read on another thread, so a command that never closes its output still hits the timeout.
+        Future<byte[]> output = buildExecutors.io().submit(() -> process.getInputStream().readAllBytes());
+        if (!process.waitFor(10, TimeUnit.SECONDS) || process.exitValue() != 0) {
+            process.destroyForcibly();
+            output.cancel(true);
+            throw new RuntimeException("Command failed: " + String.join(" ", command));
+        }
+        return new String(output.get(10, TimeUnit.SECONDS), StandardCharsets.UTF_8).trim();
+    }
+
     /**
      * Helper method to run shell commands in a specific directory.
      * Takes a File object as the directory.
      */
     // ⚠️ UPDATED SIGNATURE: Added 'String deploymentId' as the second parameter
-    private void runCommand(File workingDir, String deploymentId, String... command) throws Exception {
+    // Package-private for HotPathBenchmark.
+    void runCommand(File workingDir, String deploymentId, String... command) throws Exception {
+        runCommand(workingDir, deploymentId, Map.of(), command);
+    }
+
+    private void runCommand(File workingDir, String deploymentId, Map<String, String> environment, String... command) throws Exception {
         ProcessBuilder builder = new ProcessBuilder(command);
         builder.directory(workingDir);
+        builder.environment().putAll(environment);
         builder.redirectErrorStream(true);
         Process process = builder.start();
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                log(deploymentId, "   [Cmd] " + line);
+        // Output is pumped on a separate thread; the build thread only waits for the exit code.
+        Future<?> pump = buildExecutors.io().submit(() -> {
+            try (InputStream output = process.getInputStream()) {
+                logPipelines.pump(deploymentId, output, CMD_PREFIX);
             }
-        }
+            return null;
+        });
 
-        int exitCode = process.waitFor();
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+            pump.get();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            pump.cancel(true);
+            throw e;
+        }
         if (exitCode != 0) {
             throw new RuntimeException("Command failed with exit code: " + exitCode);
         }
@@ -0,0 +1,80 @@
+package io.kasion.control_plane;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the threads that builds run on.
+ *
+ * Builds spend nearly all their time blocked: reading process output, in {@code waitFor()},
+ * or sleeping between health probes. With {@code kasion.builds.virtual-threads=true} every build,
+ * output pump and health probe gets its own virtual thread, so blocked work only costs a small heap
+ * object instead of a platform thread and its stack. Otherwise builds use a fixed platform pool and
+ * pumps/probes a cached one, which is how the engine has always behaved.
+ */
+@Component
+public class BuildExecutors {
+
+    private final boolean virtualThreads;
+    private final ExecutorService io;
+
+    public BuildExecutors(@Value("${kasion.builds.virtual-threads:false}") boolean virtualThreads,
+                          @Value("${kasion.builds.carrier-threads:0}") int carrierThreads) {
+        this.virtualThreads = virtualThreads;
+
+        if (virtualThreads && carrierThreads > 0) {
+            // Read once, when the JDK creates its virtual thread scheduler. If something in this JVM
+            // already started a virtual thread, pass -Djdk.virtualThreadScheduler.parallelism instead.
+            System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(carrierThreads));
+            System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", String.valueOf(Math.max(carrierThreads, 256)));
+        }
+
+        this.io = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("kasion-io-", 1).factory())
+                : Executors.newCachedThreadPool(daemonThreads("kasion-io-"));
+
+        System.out.println("🧵 [Executors] Builds run on " + (virtualThreads ? "virtual" : "platform") + " threads"
+                + (virtualThreads && carrierThreads > 0 ? " (" + carrierThreads + " carriers)" : ""));
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Executor for whole builds. The caller still decides how many builds run at once;
+     * in platform mode that limit is also the pool size.
+     */
+    public ExecutorService newBuildExecutor(int maxConcurrent) {
+        return virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("kasion-build-", 1).factory())
+                : Executors.newFixedThreadPool(maxConcurrent, daemonThreads("kasion-build-"));
+    }
+
+    /**
+     * Shared executor for short blocking side tasks of a build: process output pumps and health probes.
+     */
+    public ExecutorService io() {
+        return io;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        io.shutdownNow();
+    }
+}
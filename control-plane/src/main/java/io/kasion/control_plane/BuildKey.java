@@ -0,0 +1,38 @@
+package io.kasion.control_plane;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Content address of a built image: everything that goes into {@code docker build}.
+ * If two deployments have the same key, the image of the first one can be reused as-is.
+ */
+public record BuildKey(String value) {
+
+    public static BuildKey of(String commitSha, String javaVersion, BuildEngine.BuildTool buildTool, String dockerfile) {
+        String inputs = String.join("\n",
+                "commit=" + commitSha,
+                "java=" + javaVersion,
+                "tool=" + buildTool,
+                "dockerfile=" + sha256(dockerfile));
+        return new BuildKey(sha256(inputs).substring(0, 24));
+    }
+
+    /**
+     * Docker image reference for this key, e.g. {@code kasion/petclinic:3f2a...}.
+     */
+    public String imageName(String projectName) {
+        return "kasion/" + projectName.toLowerCase() + ":" + value;
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
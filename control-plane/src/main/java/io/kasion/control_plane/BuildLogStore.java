@@ -0,0 +1,609 @@
+package io.kasion.control_plane;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only, on-disk history of every build's log, so {@code /logs/{id}} works after the fact.
+ *
+ * Layout: one directory per deployment, split into segments named by the offset of their first line.
+ * The active segment ({@code <base>.seg}) is a memory-mapped file of length-prefixed UTF-8 records,
+ * followed by an end marker (length -1) so an empty line can't be mistaken for the unwritten rest.
+ * When it fills up, or the build ends, it is sealed: gzipped to {@code <base>.seg.gz} and the raw file
+ * is removed. Offsets are line numbers within the deployment, starting at 0.
+ *
+ * Appends only record the offset and hand the bytes to a writer thread, so neither the build thread
+ * nor the {@link LogPipeline} flusher waits on disk. Readers wait until the writer has caught up with
+ * what they ask for. Finished deployments are read through a cached, read-only list of their segments.
+ * The oldest finished deployments are deleted when the store exceeds {@code kasion.logs.store.max-bytes}.
+ */
+@Component
+public class BuildLogStore implements LogBroadcaster.LogHistory, LogPipeline.Sink {
+
+    private static final String ACTIVE_SUFFIX = ".seg";
+    private static final String SEALED_SUFFIX = ".seg.gz";
+    private static final int END = -1;
+    private static final int FINISHED_CACHE = 256;
+
+    private final Path root;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final ConcurrentHashMap<String, LogFile> active = new ConcurrentHashMap<>();
+    // Read-only views of finished deployments, least recently read evicted first. They hold no open files.
+    private final Map<String, LogFile> finished = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LogFile> eldest) {
+            return size() > FINISHED_CACHE;
+        }
+    });
+    private final LinkedBlockingQueue<Runnable> writes = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    public BuildLogStore(@Value("${kasion.logs.store.dir:${user.home}/.kasion/build-logs}") Path root,
+                         @Value("${kasion.logs.store.segment-bytes:4194304}") int segmentBytes,
+                         @Value("${kasion.logs.store.max-bytes:2147483648}") long maxBytes) {
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.writer = Thread.ofPlatform().name("kasion-log-writer").daemon().start(this::writeLoop);
+    }
+
+    /**
+     * Assigns the next offset to {@code line} and queues it for writing. Never blocks on I/O.
+     */
+    public long append(String deploymentId, String line) {
+        LogFile file = activate(deploymentId);
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        synchronized (file) {
+            long offset = file.nextOffset.getAndIncrement();
+            writes.add(() -> file.write(offset, bytes, 0, bytes.length));
+            return offset;
+        }
+    }
+
+    /**
+     * Stores a pipeline batch under the offsets the pipeline assigned. The batch's bytes are copied
+     * into one array, since the ring they live in is reused after this returns.
+     */
+    @Override
+    public void accept(LogPipeline.Batch batch) {
+        int size = batch.size();
+        int[] lengths = new int[size];
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            lengths[i] = batch.length(i);
+            total += lengths[i];
+        }
+        byte[] packed = new byte[total];
+        byte[] ring = batch.buffer();
+        for (int i = 0, at = 0; i < size; at += lengths[i], i++) {
+            System.arraycopy(ring, batch.start(i), packed, at, lengths[i]);
+        }
+
+        LogFile file = activate(batch.deploymentId());
+        long first = batch.firstOffset();
+        synchronized (file) {
+            file.nextOffset.set(first + size);
+            writes.add(() -> {
+                for (int i = 0, at = 0; i < size; at += lengths[i], i++) {
+                    file.write(first + i, packed, at, lengths[i]);
+                }
+            });
+        }
+    }
+
+    /**
+     * Offset the next appended line will get; also the number of lines logged so far.
+     */
+    public long nextOffset(String deploymentId) {
+        return fileFor(deploymentId).nextOffset.get();
+    }
+
+    /**
+     * Seals the deployment's active segment once all queued lines are written.
+     */
+    public void seal(String deploymentId) {
+        LogFile file = active.get(deploymentId);
+        if (file != null) {
+            writes.add(() -> {
+                file.sealActive();
+                finished.put(deploymentId, file); // now complete, so it can serve reads as it is
+                active.remove(deploymentId, file);
+                enforceRetention();
+            });
+        }
+    }
+
+    /**
+     * Delivers lines from {@code fromOffset} up to everything logged so far, in order.
+     *
+     * @return the offset after the last delivered line
+     */
+    @Override
+    public long replay(String deploymentId, long fromOffset, LogBroadcaster.LineConsumer consumer) throws IOException {
+        LogFile file = fileFor(deploymentId);
+        long to = file.nextOffset.get();
+        try {
+            file.awaitPersisted(to, TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for log writer", e);
+        }
+        return file.read(fromOffset, to, null, consumer);
+    }
+
+    /**
+     * Lines {@code [from, to)} of a deployment's log, or fewer if it doesn't go that far.
+     */
+    public List<String> lines(String deploymentId, long from, long to) throws IOException {
+        LogFile file = fileFor(deploymentId);
+        long end = Math.min(to, file.nextOffset.get());
+        try {
+            file.awaitPersisted(end, TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for log writer", e);
+        }
+        List<String> lines = new ArrayList<>();
+        file.read(Math.max(0, from), end, null, (offset, line) -> lines.add(line));
+        return lines;
+    }
+
+    /**
+     * The lines at {@code offsets} (ascending) of a deployment's log, by offset, opening each segment at
+     * most once. Offsets the log doesn't have are left out.
+     */
+    public Map<Long, String> lines(String deploymentId, long[] offsets) throws IOException {
+        if (offsets.length == 0) {
+            return Map.of();
+        }
+        LogFile file = fileFor(deploymentId);
+        long end = Math.min(offsets[offsets.length - 1] + 1, file.nextOffset.get());
+        try {
+            file.awaitPersisted(end, TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for log writer", e);
+        }
+        Map<Long, String> lines = new HashMap<>();
+        file.read(Math.max(0, offsets[0]), end, offsets, lines::put);
+        return lines;
+    }
+
+    /**
+     * Every deployment with logs on disk.
+     */
+    public List<String> deploymentIds() throws IOException {
+        TreeSet<String> ids = new TreeSet<>(active.keySet()); // may not have reached the disk yet
+        if (Files.isDirectory(root)) {
+            try (Stream<Path> list = Files.list(root)) {
+                list.filter(Files::isDirectory).forEach(dir -> ids.add(dir.getFileName().toString()));
+            }
+        }
+        return List.copyOf(ids);
+    }
+
+    long sizeOnDisk() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private LogFile activate(String deploymentId) {
+        LogFile file = active.get(deploymentId);
+        if (file != null) {
+            return file;
+        }
+        return active.computeIfAbsent(deploymentId, id -> {
+            finished.remove(id); // about to change on disk
+            return new LogFile(root.resolve(id), true);
+        });
+    }
+
+    private LogFile fileFor(String deploymentId) {
+        LogFile file = active.get(deploymentId);
+        if (file != null) {
+            return file;
+        }
+        LogFile view = finished.get(deploymentId);
+        if (view == null) {
+            view = new LogFile(root.resolve(deploymentId), false);
+            LogFile raced = finished.putIfAbsent(deploymentId, view);
+            view = raced != null ? raced : view;
+        }
+        file = active.get(deploymentId);
+        if (file != null) {
+            finished.remove(deploymentId, view); // it went live again while we were loading it
+            return file;
+        }
+        return view;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Runnable write;
+            try {
+                write = writes.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                write.run();
+            } catch (Exception e) {
+                System.err.println("❌ [LogStore] Write failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest finished deployments until the store fits in {@code maxBytes}.
+     */
+    private void enforceRetention() {
+        try {
+            long total = sizeOnDisk();
+            if (total <= maxBytes) {
+                return;
+            }
+            List<Path> dirs;
+            try (Stream<Path> list = Files.list(root)) {
+                dirs = new ArrayList<>(list.filter(Files::isDirectory).toList());
+            }
+            dirs.sort(Comparator.comparingLong(dir -> dir.toFile().lastModified()));
+            for (Path dir : dirs) {
+                if (total <= maxBytes) {
+                    break;
+                }
+                if (active.containsKey(dir.getFileName().toString())) {
+                    continue;
+                }
+                finished.remove(dir.getFileName().toString());
+                long bytes;
+                try (Stream<Path> files = Files.walk(dir)) {
+                    bytes = files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+                }
+                FileSystemUtils.deleteRecursively(dir);
+                total -= bytes;
+                System.out.println("🧹 [LogStore] Retention removed logs of " + dir.getFileName());
+            }
+        } catch (IOException e) {
+            System.err.println("❌ [LogStore] Retention failed: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        // Seal what's open so nothing is left as a raw mapped segment.
+        active.keySet().forEach(this::seal);
+        writes.add(() -> Thread.currentThread().interrupt());
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * {@code compressed} is false for a raw segment a crash left behind, read in place.
+     */
+    private record Segment(long base, Path path, long count, boolean compressed) {}
+
+    /**
+     * One deployment's log. Writes happen on the writer thread only; reads from anywhere.
+     * A read-only one ({@code writable} false) never maps or keeps open any file.
+     */
+    private final class LogFile {
+        private final Path dir;
+        private final boolean writable;
+        private final List<Segment> sealed = new ArrayList<>();
+        private final AtomicLong nextOffset = new AtomicLong();
+        private long persisted;
+
+        private long activeBase;
+        private long activeCount;
+        private Path activePath;
+        private FileChannel activeChannel;
+        private MappedByteBuffer activeBuffer;
+
+        LogFile(Path dir, boolean writable) {
+            this.dir = dir;
+            this.writable = writable;
+            try {
+                recover();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open build log " + dir, e);
+            }
+        }
+
+        synchronized void write(long offset, byte[] bytes, int off, int len) {
+            try {
+                int length = Math.min(len, segmentBytes - 8);
+                if (activeBuffer == null) {
+                    openActive(offset);
+                } else if (activeBuffer.remaining() < 4 + length + 4) {
+                    sealActive();
+                    openActive(offset);
+                }
+                // Marker after, bytes, then the length: a crash leaves either the whole record or none.
+                int at = activeBuffer.position();
+                activeBuffer.putInt(at + 4 + length, END);
+                activeBuffer.put(at + 4, bytes, off, length);
+                activeBuffer.putInt(at, length);
+                activeBuffer.position(at + 4 + length);
+                activeCount++;
+            } catch (IOException e) {
+                System.err.println("❌ [LogStore] Dropped line " + offset + " of " + dir.getFileName() + ": " + e.getMessage());
+            }
+            persisted = offset + 1;
+            notifyAll();
+        }
+
+        synchronized void awaitPersisted(long offset, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (persisted < offset) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return;
+                }
+                wait(left);
+            }
+        }
+
+        long read(long from, long to, long[] only, LogBroadcaster.LineConsumer consumer) throws IOException {
+            List<Segment> segments;
+            List<String> activeLines;
+            long activeStart;
+            synchronized (this) {
+                segments = List.copyOf(sealed);
+                activeStart = activeBase;
+                activeLines = activeBuffer == null || from >= activeBase + activeCount
+                        ? List.of()
+                        : readActive();
+            }
+
+            long cursor = from;
+            for (Segment segment : segments) {
+                if (segment.base() + segment.count() <= cursor || segment.base() >= to
+                        || only != null && !anyWithin(only, Math.max(segment.base(), cursor), segment.base() + segment.count())) {
+                    continue;
+                }
+                try (DataInputStream in = open(segment)) {
+                    for (long offset = segment.base(); offset < segment.base() + segment.count() && offset < to; offset++) {
+                        if (offset < cursor || only != null && Arrays.binarySearch(only, offset) < 0) {
+                            if (!skipRecord(in)) {
+                                break;
+                            }
+                            continue;
+                        }
+                        String line = readRecordOrNull(in);
+                        if (line == null) {
+                            break; // shorter than its neighbours say: a line was lost writing it
+                        }
+                        consumer.accept(offset, line);
+                        cursor = offset + 1;
+                    }
+                }
+            }
+            for (int i = 0; i < activeLines.size(); i++) {
+                long offset = activeStart + i;
+                if (offset >= cursor && offset < to && (only == null || Arrays.binarySearch(only, offset) >= 0)) {
+                    consumer.accept(offset, activeLines.get(i));
+                    cursor = offset + 1;
+                }
+            }
+            return cursor;
+        }
+
+        private List<String> readActive() {
+            MappedByteBuffer view = (MappedByteBuffer) activeBuffer.duplicate().flip();
+            List<String> lines = new ArrayList<>((int) activeCount);
+            for (long i = 0; i < activeCount; i++) {
+                byte[] bytes = new byte[view.getInt()];
+                view.get(bytes);
+                lines.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return lines;
+        }
+
+        private void openActive(long base) throws IOException {
+            Files.createDirectories(dir);
+            activeBase = base;
+            activeCount = 0;
+            activePath = dir.resolve(segmentName(base) + ACTIVE_SUFFIX);
+            boolean resumed = Files.exists(activePath);
+            activeChannel = FileChannel.open(activePath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            activeBuffer = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            if (resumed) {
+                activeCount = countRecords(activeBuffer); // leaves the buffer after the last whole record
+            } else {
+                activeBuffer.putInt(0, END);
+            }
+        }
+
+        /**
+         * Compresses the active segment into its sealed form and drops the mapping.
+         */
+        synchronized void sealActive() {
+            if (activeBuffer == null) {
+                return;
+            }
+            try {
+                int used = activeBuffer.position();
+                Path sealedPath = dir.resolve(segmentName(activeBase) + SEALED_SUFFIX);
+                Path tmp = dir.resolve(sealedPath.getFileName() + ".tmp");
+                try (GZIPOutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    byte[] chunk = new byte[64 * 1024];
+                    MappedByteBuffer view = (MappedByteBuffer) activeBuffer.duplicate().position(0).limit(used);
+                    while (view.hasRemaining()) {
+                        int n = Math.min(chunk.length, view.remaining());
+                        view.get(chunk, 0, n);
+                        out.write(chunk, 0, n);
+                    }
+                }
+                Files.move(tmp, sealedPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                activeChannel.close();
+                Files.deleteIfExists(activePath);
+                sealed.add(new Segment(activeBase, sealedPath, activeCount, true));
+            } catch (IOException e) {
+                System.err.println("❌ [LogStore] Could not seal " + activePath + ": " + e.getMessage());
+            }
+            activeBuffer = null;
+            activeChannel = null;
+            activePath = null;
+        }
+
+        /**
+         * Rebuilds the segment list from the directory. A sealed segment's count follows from the base of
+         * the next one, so only the last is read to count it. A raw segment left by a crash is resumed
+         * when writable, and otherwise read in place without mapping it.
+         */
+        private void recover() throws IOException {
+            if (!Files.isDirectory(dir)) {
+                return;
+            }
+            List<Path> files;
+            try (Stream<Path> list = Files.list(dir)) {
+                files = list.filter(p -> p.toString().endsWith(SEALED_SUFFIX) || p.toString().endsWith(ACTIVE_SUFFIX))
+                        .sorted()
+                        .toList();
+            }
+            long next = 0;
+            for (int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                long base = baseOf(file);
+                boolean last = i == files.size() - 1;
+                if (file.toString().endsWith(SEALED_SUFFIX)) {
+                    long count;
+                    if (last) {
+                        try (DataInputStream in = open(new Segment(base, file, Long.MAX_VALUE, true))) {
+                            count = 0;
+                            while (skipRecord(in)) {
+                                count++;
+                            }
+                        }
+                    } else {
+                        count = baseOf(files.get(i + 1)) - base;
+                    }
+                    sealed.add(new Segment(base, file, count, true));
+                    next = base + count;
+                } else if (writable && last) {
+                    openActive(base);
+                    next = base + activeCount;
+                } else {
+                    long count;
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                        count = countRecords(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                    }
+                    sealed.add(new Segment(base, file, count, false));
+                    next = base + count;
+                }
+            }
+            nextOffset.set(next);
+            persisted = next;
+        }
+
+        private static DataInputStream open(Segment segment) throws IOException {
+            return segment.compressed()
+                    ? new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(segment.path()))))
+                    : new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path())));
+        }
+    }
+
+    private static long baseOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    /**
+     * Counts the whole records from the buffer's position and leaves it after the last one. Stops at the
+     * end marker, or at a length that doesn't fit (a record torn by a crash).
+     */
+    private static long countRecords(ByteBuffer buffer) {
+        long count = 0;
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length < 0 || length > buffer.remaining() - 4) {
+                break;
+            }
+            buffer.position(buffer.position() + 4 + length);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Whether sorted {@code offsets} has one in {@code [from, to)}.
+     */
+    private static boolean anyWithin(long[] offsets, long from, long to) {
+        int i = Arrays.binarySearch(offsets, from);
+        i = i < 0 ? -i - 1 : i;
+        return i < offsets.length && offsets[i] < to;
+    }
+
+    private static String segmentName(long base) {
+        return String.format("%020d", base);
+    }
+
+    /**
+     * Skips one record; false at the end of the stream or its end marker.
+     */
+    private static boolean skipRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 0) {
+                return false;
+            }
+            in.skipNBytes(length);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The next record, or null at the end of the stream or its end marker.
+     */
+    private static String readRecordOrNull(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+}
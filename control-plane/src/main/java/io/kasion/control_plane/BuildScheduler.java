@@ -0,0 +1,252 @@
+package io.kasion.control_plane;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Decides when queued deployments actually get built.
+ *
+ * - At most {@code kasion.builds.max-concurrent} builds run at once.
+ * - Owners take turns (round-robin on {@link Project#getOwnerId()}), so one busy team can't starve the rest.
+ * - A project has at most one build running and one waiting. A newer PENDING deployment replaces
+ *   the waiting one, which is marked SUPERSEDED instead of racing it for the blue/green ports.
+ */
+@Component
+public class BuildScheduler {
+
+    public record QueuedBuild(String deploymentId, String projectId, String ownerId, Instant enqueuedAt) {}
+
+    public record Ticket(String deploymentId, int position, int queueDepth, String supersededDeploymentId) {}
+
+    public record QueueStats(int queued, int running, int maxConcurrent,
+                             long startedBuilds, long averageWaitMillis, long longestWaitMillis,
+                             long oldestQueuedMillis) {}
+
+    private final BuildEngine buildEngine;
+    private final DeploymentRepository deploymentRepository;
+    private final ControlPlaneMetrics metrics;
+    private final int maxConcurrent;
+    private final ExecutorService workers;
+
+    // All queue state below is guarded by 'this'.
+    private final Map<String, Deque<String>> projectsByOwner = new LinkedHashMap<>();
+    private final Deque<String> ownerTurns = new ArrayDeque<>();
+    private final Map<String, QueuedBuild> waitingByProject = new HashMap<>();
+    private final Set<String> runningProjects = new HashSet<>();
+
+    private long startedBuilds;
+    private long totalWaitMillis;
+    private long longestWaitMillis;
+
+    public BuildScheduler(BuildEngine buildEngine,
+                          DeploymentRepository deploymentRepository,
+                          BuildExecutors buildExecutors,
+                          ControlPlaneMetrics metrics,
+                          @Value("${kasion.builds.max-concurrent:4}") int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("kasion.builds.max-concurrent must be at least 1");
+        }
+        this.buildEngine = buildEngine;
+        this.deploymentRepository = deploymentRepository;
+        this.metrics = metrics;
+        this.maxConcurrent = maxConcurrent;
+        this.workers = buildExecutors.newBuildExecutor(maxConcurrent);
+        metrics.bindBuildQueue(this::stats);
+    }
+
+    /**
+     * Queues a deployment. If the project already has a build waiting, that one is superseded.
+     */
+    public synchronized Ticket submit(String deploymentId, String projectId, String ownerId) {
+        QueuedBuild build = new QueuedBuild(deploymentId, projectId, ownerId, Instant.now());
+
+        QueuedBuild superseded = waitingByProject.put(projectId, build);
+        if (superseded == null) {
+            projectsByOwner.computeIfAbsent(ownerId, k -> new ArrayDeque<>()).addLast(projectId);
+            if (!ownerTurns.contains(ownerId)) {
+                ownerTurns.addLast(ownerId);
+            }
+        } else {
+            // Keep the project's place in line; only the payload changes.
+            markSuperseded(superseded.deploymentId(), deploymentId);
+        }
+
+        dispatch();
+
+        return new Ticket(deploymentId, positionOf(deploymentId), waitingByProject.size(),
+                superseded != null ? superseded.deploymentId() : null);
+    }
+
+    /**
+     * Cancels a deployment: a waiting one leaves the queue, a running one has its pipeline stopped.
+     * Returns false if it is neither (already finished, or unknown).
+     */
+    public boolean cancel(String deploymentId) {
+        synchronized (this) {
+            QueuedBuild waiting = waitingByProject.values().stream()
+                    .filter(b -> b.deploymentId().equals(deploymentId))
+                    .findFirst()
+                    .orElse(null);
+            if (waiting != null) {
+                waitingByProject.remove(waiting.projectId());
+                Deque<String> projects = projectsByOwner.get(waiting.ownerId());
+                projects.remove(waiting.projectId());
+                if (projects.isEmpty()) {
+                    projectsByOwner.remove(waiting.ownerId());
+                    ownerTurns.remove(waiting.ownerId());
+                }
+                deploymentRepository.findById(deploymentId).ifPresent(deployment -> {
+                    deployment.setStatus("CANCELLED");
+                    deploymentRepository.save(deployment);
+                });
+                System.out.println("🛑 [Scheduler] Deployment " + deploymentId + " cancelled before it started");
+                return true;
+            }
+        }
+        return buildEngine.cancel(deploymentId);
+    }
+
+    /**
+     * 1-based position in the round-robin order, 0 if the deployment is not waiting (running or done).
+     * Approximate: it doesn't account for projects that are blocked behind their own running build.
+     */
+    public synchronized int positionOf(String deploymentId) {
+        List<QueuedBuild> order = dispatchOrder();
+        for (int i = 0; i < order.size(); i++) {
+            if (order.get(i).deploymentId().equals(deploymentId)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    public synchronized QueueStats stats() {
+        Instant now = Instant.now();
+        long oldest = waitingByProject.values().stream()
+                .mapToLong(b -> Duration.between(b.enqueuedAt(), now).toMillis())
+                .max().orElse(0);
+        return new QueueStats(waitingByProject.size(), runningProjects.size(), maxConcurrent,
+                startedBuilds, startedBuilds == 0 ? 0 : totalWaitMillis / startedBuilds,
+                longestWaitMillis, oldest);
+    }
+
+    /**
+     * Starts as many waiting builds as there are free slots, taking turns between owners.
+     * A project whose previous build is still running is skipped until that build finishes.
+     */
+    private void dispatch() {
+        while (runningProjects.size() < maxConcurrent) {
+            QueuedBuild next = takeNext();
+            if (next == null) {
+                return;
+            }
+            start(next);
+        }
+    }
+
+    private QueuedBuild takeNext() {
+        for (int turn = 0, owners = ownerTurns.size(); turn < owners; turn++) {
+            String ownerId = ownerTurns.pollFirst();
+            Deque<String> projects = projectsByOwner.get(ownerId);
+
+            String projectId = projects.stream()
+                    .filter(p -> !runningProjects.contains(p))
+                    .findFirst()
+                    .orElse(null);
+
+            if (projectId == null) {
+                // Everything this owner has waiting is blocked behind a running build; try the next owner.
+                ownerTurns.addLast(ownerId);
+                continue;
+            }
+
+            projects.remove(projectId);
+            if (projects.isEmpty()) {
+                projectsByOwner.remove(ownerId);
+            } else {
+                ownerTurns.addLast(ownerId);
+            }
+            return waitingByProject.remove(projectId);
+        }
+        return null;
+    }
+
+    private void start(QueuedBuild build) {
+        long waitMillis = Duration.between(build.enqueuedAt(), Instant.now()).toMillis();
+        runningProjects.add(build.projectId());
+        startedBuilds++;
+        totalWaitMillis += waitMillis;
+        longestWaitMillis = Math.max(longestWaitMillis, waitMillis);
+        metrics.queueWait(waitMillis);
+
+        workers.execute(() -> {
+            try {
+                recordQueueWait(build.deploymentId(), waitMillis);
+                buildEngine.startBuild(build.deploymentId());
+            } catch (Exception e) {
+                System.err.println("❌ [Scheduler] Build " + build.deploymentId() + " crashed: " + e.getMessage());
+            } finally {
+                finished(build.projectId());
+            }
+        });
+    }
+
+    private synchronized void finished(String projectId) {
+        runningProjects.remove(projectId);
+        dispatch();
+    }
+
+    /**
+     * Replays {@link #takeNext()} on a copy of the queues, without touching the real ones.
+     */
+    private List<QueuedBuild> dispatchOrder() {
+        Map<String, Deque<String>> projects = new LinkedHashMap<>();
+        projectsByOwner.forEach((owner, queue) -> projects.put(owner, new ArrayDeque<>(queue)));
+        Deque<String> turns = new ArrayDeque<>(ownerTurns);
+
+        List<QueuedBuild> order = new ArrayList<>();
+        while (!turns.isEmpty()) {
+            String ownerId = turns.pollFirst();
+            Deque<String> queue = projects.get(ownerId);
+            order.add(waitingByProject.get(queue.pollFirst()));
+            if (!queue.isEmpty()) {
+                turns.addLast(ownerId);
+            }
+        }
+        return order;
+    }
+
+    private void markSuperseded(String oldDeploymentId, String newDeploymentId) {
+        deploymentRepository.findById(oldDeploymentId).ifPresent(old -> {
+            old.setStatus("SUPERSEDED");
+            deploymentRepository.save(old);
+        });
+        System.out.println("⏭️ [Scheduler] Deployment " + oldDeploymentId + " superseded by " + newDeploymentId);
+    }
+
+    private void recordQueueWait(String deploymentId, long waitMillis) {
+        deploymentRepository.findById(deploymentId).ifPresent(deployment -> {
+            deployment.setQueueWaitMillis(waitMillis);
+            deploymentRepository.save(deployment);
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+}
@@ -2,11 +2,10 @@ package io.kasion.control_plane;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
-
-@EnableAsync
+@EnableScheduling
 public class 	ControlPlaneApplication {
 
 	public static void main(String[] args) {
@@ -0,0 +1,132 @@
+package io.kasion.control_plane;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The control plane's own metrics, served at /actuator/prometheus next to the JVM ones.
+ *
+ * Meter names live here so the Grafana dashboard and alert rules have one place to match:
+ * - kasion_build_stage_duration_seconds{stage}: one sample per pipeline stage, as a histogram.
+ * - kasion_build_duration_seconds{outcome}: whole pipelines, LIVE / FAILED / CANCELLED.
+ * - kasion_builds_queued, kasion_builds_running, kasion_builds_max_concurrent, kasion_builds_queue_wait_seconds.
+ * - kasion_logs_sessions, kasion_logs_frames_sent_total, kasion_logs_frames_dropped_total, kasion_logs_send_seconds.
+ * - kasion_outbound_request_seconds{target,outcome}: calls to app actuators (stats, autoscale) and Jolokia (jmx).
+ */
+@Component
+public class ControlPlaneMetrics {
+
+    private final MeterRegistry registry;
+    private final Timer queueWait;
+    private final Timer logSend;
+    private final Counter logFramesSent;
+    private final Counter logFramesDropped;
+
+    public ControlPlaneMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.queueWait = Timer.builder("kasion.builds.queue.wait")
+                .description("Time a deployment waited in the build queue")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(10))
+                .maximumExpectedValue(Duration.ofMinutes(30))
+                .register(registry);
+        this.logSend = Timer.builder("kasion.logs.send")
+                .description("Time to write one log frame to a WebSocket subscriber")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(100_000))
+                .maximumExpectedValue(Duration.ofSeconds(5))
+                .register(registry);
+        this.logFramesSent = Counter.builder("kasion.logs.frames.sent")
+                .description("Log frames written to WebSocket subscribers")
+                .register(registry);
+        this.logFramesDropped = Counter.builder("kasion.logs.frames.dropped")
+                .description("Log frames discarded because a subscriber fell behind")
+                .register(registry);
+    }
+
+    /**
+     * Metrics that go nowhere, for components built outside Spring (tests, benchmarks).
+     */
+    public static ControlPlaneMetrics noop() {
+        return new ControlPlaneMetrics(new CompositeMeterRegistry());
+    }
+
+    public void stageFinished(String stage, long durationMillis) {
+        Timer.builder("kasion.build.stage.duration")
+                .description("Duration of one deployment pipeline stage")
+                .tag("stage", stage)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(50))
+                .maximumExpectedValue(Duration.ofMinutes(30))
+                .register(registry)
+                .record(durationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void buildFinished(String outcome, long durationMillis) {
+        Timer.builder("kasion.build.duration")
+                .description("Duration of a whole deployment pipeline")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofSeconds(1))
+                .maximumExpectedValue(Duration.ofHours(1))
+                .register(registry)
+                .record(durationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes the scheduler's queue as gauges; read at scrape time, so nothing is kept up to date in between.
+     */
+    public void bindBuildQueue(Supplier<BuildScheduler.QueueStats> stats) {
+        Gauge.builder("kasion.builds.queued", stats, s -> s.get().queued())
+                .description("Deployments waiting for a build slot")
+                .register(registry);
+        Gauge.builder("kasion.builds.running", stats, s -> s.get().running())
+                .description("Deployments currently building")
+                .register(registry);
+        Gauge.builder("kasion.builds.max.concurrent", stats, s -> s.get().maxConcurrent())
+                .description("Build slots (kasion.builds.max-concurrent)")
+                .register(registry);
+    }
+
+    public void queueWait(long waitMillis) {
+        queueWait.record(waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void bindLogSessions(Supplier<Integer> sessions) {
+        Gauge.builder("kasion.logs.sessions", sessions, s -> s.get())
+                .description("WebSocket subscribers across all build logs")
+                .register(registry);
+    }
+
+    public void logFrameSent(long nanos) {
+        logSend.record(nanos, TimeUnit.NANOSECONDS);
+        logFramesSent.increment();
+    }
+
+    public void logFrameDropped() {
+        logFramesDropped.increment();
+    }
+
+    /**
+     * Records one HTTP call the control plane made. {@code target} is stats, autoscale or jmx.
+     */
+    public void outboundRequest(String target, boolean success, long nanos) {
+        Timer.builder("kasion.outbound.request")
+                .description("Latency of HTTP calls from the control plane to apps")
+                .tag("target", target)
+                .tag("outcome", success ? "success" : "error")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
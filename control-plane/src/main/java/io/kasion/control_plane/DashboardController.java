@@ -1,9 +1,13 @@
 package io.kasion.control_plane;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 
 import java.util.List;
 
@@ -12,28 +16,37 @@ public class DashboardController {
 
     private final DeploymentRepository deploymentRepository;
     private final ProjectRepository projectRepository;
+    private final int pageSize;
 
-    public DashboardController(DeploymentRepository deploymentRepository, ProjectRepository projectRepository) {
+    public DashboardController(DeploymentRepository deploymentRepository, ProjectRepository projectRepository,
+                               @Value("${kasion.dashboard.page-size:50}") int pageSize) {
         this.deploymentRepository = deploymentRepository;
         this.projectRepository = projectRepository;
+        this.pageSize = pageSize;
     }
 
+    /**
+     * One page of deployments, newest first. {@code before} is the id of the last row of the
+     * previous page; the next page is read from the index instead of skipping rows.
+     */
     @GetMapping("/")
-    public String showDashboard(Model model) {
-        // Fetch all deployments
-        List<Deployment> deployments = deploymentRepository.findAll();
+    public String showDashboard(@RequestParam(required = false) String before, Model model) {
+        PageRequest limit = PageRequest.of(0, pageSize);
+        List<DeploymentSummary> deployments = before == null
+                ? deploymentRepository.findNewestSummaries(limit)
+                : deploymentRepository.findById(before)
+                        .map(last -> deploymentRepository.findSummariesBefore(last.getCreatedAt(), last.getId(), limit))
+                        .orElse(List.of());
 
-        // Add the list to the model so the HTML table can render it
         model.addAttribute("deployments", deployments);
+        if (deployments.size() == pageSize) {
+            model.addAttribute("nextCursor", deployments.get(deployments.size() - 1).id());
+        }
 
-        // FIXED: We calculate the unique project count by getting the Project object first
-        long uniqueProjects = deployments.stream()
-                .map(d -> d.getProject().getId()) // <--- The Fix
-                .distinct()
-                .count();
-
-        model.addAttribute("projectCount", uniqueProjects);
-        model.addAttribute("projects", projectRepository.findAll());
+        // Counted by the database, not by loading every row.
+        model.addAttribute("projectCount", deploymentRepository.countDeployedProjects());
+        model.addAttribute("deploymentCount", deploymentRepository.count());
+        model.addAttribute("projects", projectRepository.findAll(Sort.by("name")));
 
         return "dashboard";
     }
@@ -52,4 +65,4 @@ public class DashboardController {
         return "jmx"; // Looks for jmx.html
     }
 
-}
\ No newline at end of file
+}
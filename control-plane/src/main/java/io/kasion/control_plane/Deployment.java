@@ -4,7 +4,14 @@ import jakarta.persistence.*;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "deployments")
+@Table(name = "deployments", indexes = {
+        // Per-project history.
+        @Index(name = "idx_deployments_project_created", columnList = "project_id, created_at"),
+        // Dashboard listing, newest first; id breaks ties for keyset paging.
+        @Index(name = "idx_deployments_created", columnList = "created_at, id"),
+        // Newest LIVE deployment per project, see DeploymentRepository.findCurrentLive.
+        @Index(name = "idx_deployments_status_project_created", columnList = "status, project_id, created_at")
+})
 public class Deployment {
 
     @Id
@@ -15,9 +22,21 @@ public class Deployment {
     @JoinColumn(name = "project_id", nullable = false)
     private Project project;
 
-    private String status; // PENDING, BUILDING, LIVE, FAILED
+    private String status; // PENDING, BUILDING, LIVE, FAILED, SUPERSEDED, CANCELLED
     private String commitHash;
     private LocalDateTime createdAt;
+    private Long queueWaitMillis; // time spent waiting for a build slot
+    private String buildKey; // hash of commit + build inputs, see BuildKey
+    private String imageName;
+    private Long timeToLiveMillis; // build start until LIVE
+    private Long timeToFailMillis; // build start until FAILED
+
+    // What was actually built (NATIVE falls back to JVM) and what it cost at runtime, so modes can be compared.
+    @Enumerated(EnumType.STRING)
+    private DockerfileGenerator.StartupMode startupMode;
+    private Long imageSizeBytes;
+    private Long startupMillis; // container start until ready, slowest replica
+    private Long rssBytes; // resident memory of the first replica once ready
 
     public Deployment() {}
 
@@ -30,6 +49,15 @@ public class Deployment {
     public String getStatus() { return status; }
     public String getCommitHash() { return commitHash; }
     public LocalDateTime getCreatedAt() { return createdAt; }
+    public Long getQueueWaitMillis() { return queueWaitMillis; }
+    public String getBuildKey() { return buildKey; }
+    public String getImageName() { return imageName; }
+    public Long getTimeToLiveMillis() { return timeToLiveMillis; }
+    public Long getTimeToFailMillis() { return timeToFailMillis; }
+    public DockerfileGenerator.StartupMode getStartupMode() { return startupMode; }
+    public Long getImageSizeBytes() { return imageSizeBytes; }
+    public Long getStartupMillis() { return startupMillis; }
+    public Long getRssBytes() { return rssBytes; }
 
     // THIS is the specific one you need:
     public Project getProject() { return project; }
@@ -37,5 +65,14 @@ public class Deployment {
     // --- SETTERS ---
     public void setStatus(String status) { this.status = status; }
     public void setCommitHash(String commitHash) { this.commitHash = commitHash; }
+    public void setQueueWaitMillis(Long queueWaitMillis) { this.queueWaitMillis = queueWaitMillis; }
+    public void setBuildKey(String buildKey) { this.buildKey = buildKey; }
+    public void setImageName(String imageName) { this.imageName = imageName; }
+    public void setTimeToLiveMillis(Long timeToLiveMillis) { this.timeToLiveMillis = timeToLiveMillis; }
+    public void setTimeToFailMillis(Long timeToFailMillis) { this.timeToFailMillis = timeToFailMillis; }
+    public void setStartupMode(DockerfileGenerator.StartupMode startupMode) { this.startupMode = startupMode; }
+    public void setImageSizeBytes(Long imageSizeBytes) { this.imageSizeBytes = imageSizeBytes; }
+    public void setStartupMillis(Long startupMillis) { this.startupMillis = startupMillis; }
+    public void setRssBytes(Long rssBytes) { this.rssBytes = rssBytes; }
 
 }
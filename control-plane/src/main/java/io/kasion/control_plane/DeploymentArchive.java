@@ -0,0 +1,313 @@
+package io.kasion.control_plane;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cold storage for deployments that retention moved out of the {@code deployments} table, see
+ * {@link DeploymentHistory}.
+ *
+ * Layout: append-only segment files ({@code segment-000001.gz}, ...), each a run of gzip members holding
+ * one archived batch as JSON lines, and {@code index.tsv}, one line per deployment with its list fields
+ * and the member it lives in. The index is loaded into memory at startup, so listings never touch the
+ * segments and a point lookup inflates a single member. A segment is closed once it passes
+ * {@code kasion.deployments.archive.segment-bytes}.
+ *
+ * A batch is written to its segment and forced to disk before its index lines, so a crash leaves at
+ * worst an unindexed member (ignored) or rows that are both hot and archived (the hot row wins, and
+ * the next run archives it again).
+ */
+@Component
+public class DeploymentArchive {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String INDEX = "index.tsv";
+    private static final Comparator<Entry> NEWEST_FIRST =
+            Comparator.comparing(Entry::createdAt).thenComparing(Entry::id).reversed();
+
+    /**
+     * Everything the deployments table held about one deployment.
+     */
+    public record ArchivedDeployment(String id, String projectId, String projectName, String status, String commitHash,
+                                     LocalDateTime createdAt, Long queueWaitMillis, String buildKey, String imageName,
+                                     Long timeToLiveMillis, Long timeToFailMillis,
+                                     DockerfileGenerator.StartupMode startupMode, Long imageSizeBytes,
+                                     Long startupMillis, Long rssBytes) {
+
+        public static ArchivedDeployment of(Deployment deployment) {
+            Project project = deployment.getProject();
+            return new ArchivedDeployment(deployment.getId(), project.getId(), project.getName(), deployment.getStatus(),
+                    deployment.getCommitHash(), deployment.getCreatedAt(), deployment.getQueueWaitMillis(),
+                    deployment.getBuildKey(), deployment.getImageName(), deployment.getTimeToLiveMillis(),
+                    deployment.getTimeToFailMillis(), deployment.getStartupMode(), deployment.getImageSizeBytes(),
+                    deployment.getStartupMillis(), deployment.getRssBytes());
+        }
+    }
+
+    /**
+     * An index line: what a history listing shows, and where the full record is.
+     */
+    public record Entry(String id, String projectId, String projectName, LocalDateTime createdAt, String status,
+                        String commitHash, String segment, long offset, int length) {}
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final ConcurrentHashMap<String, Entry> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Entry, Entry>> byProject = new ConcurrentHashMap<>();
+
+    private String segment;
+    private long segmentSize;
+    private boolean indexTorn;
+
+    public DeploymentArchive(@Value("${kasion.deployments.archive.dir:${user.home}/.kasion/deployment-archive}") Path dir,
+                             @Value("${kasion.deployments.archive.segment-bytes:67108864}") long segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        loadIndex();
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.map(f -> f.getFileName().toString())
+                    .filter(name -> name.startsWith("segment-") && name.endsWith(".gz"))
+                    .max(Comparator.naturalOrder())
+                    .orElse(segmentName(1));
+        }
+        Path current = dir.resolve(segment);
+        segmentSize = Files.exists(current) ? Files.size(current) : 0;
+        if (!byId.isEmpty()) {
+            System.out.println("🧊 [Archive] " + byId.size() + " archived deployments in " + dir);
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        Path index = dir.resolve(INDEX);
+        if (!Files.exists(index)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            indexTorn = channel.size() > 0 && channel.read(last, channel.size() - 1) == 1 && last.get(0) != '\n';
+        }
+        Map<String, Long> segmentSizes = new ConcurrentHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 9) {
+                    continue; // torn by a crash mid-append
+                }
+                Entry entry = new Entry(fields[0], fields[1], fields[2], LocalDateTime.parse(fields[3]), fields[4],
+                        fields[5].isEmpty() ? null : fields[5], fields[6], Long.parseLong(fields[7]), Integer.parseInt(fields[8]));
+                long size = segmentSizes.computeIfAbsent(entry.segment(), name -> {
+                    try {
+                        Path file = dir.resolve(name);
+                        return Files.exists(file) ? Files.size(file) : -1L;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                if (entry.offset() + entry.length() <= size) {
+                    index(entry);
+                }
+            }
+        }
+    }
+
+    private void index(Entry entry) {
+        Entry previous = byId.put(entry.id(), entry);
+        if (previous != null) {
+            // Archived twice (a crash between archiving and deleting); the later copy wins.
+            byProject.get(previous.projectId()).remove(previous);
+        }
+        byProject.computeIfAbsent(entry.projectId(), p -> new ConcurrentSkipListMap<>(NEWEST_FIRST)).put(entry, entry);
+    }
+
+    /**
+     * Appends one batch as a single gzip member and indexes it. Returns once both are on disk.
+     */
+    public synchronized void append(List<ArchivedDeployment> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream member = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(member), StandardCharsets.UTF_8)) {
+            for (ArchivedDeployment deployment : batch) {
+                writer.write(JSON.writeValueAsString(toJson(deployment)));
+                writer.write('\n');
+            }
+        }
+        byte[] bytes = member.toByteArray();
+
+        if (segmentSize > 0 && segmentSize + bytes.length > segmentBytes) {
+            segment = segmentName(Integer.parseInt(segment.substring("segment-".length(), segment.length() - ".gz".length())) + 1);
+            segmentSize = 0;
+        }
+        long offset;
+        try (FileChannel channel = FileChannel.open(dir.resolve(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            offset = channel.size(); // not segmentSize: an earlier failed append may have left bytes behind
+            channel.write(ByteBuffer.wrap(bytes));
+            channel.force(false);
+        }
+        segmentSize = offset + bytes.length;
+
+        List<Entry> entries = new ArrayList<>(batch.size());
+        StringBuilder lines = new StringBuilder(indexTorn ? "\n" : "");
+        for (ArchivedDeployment deployment : batch) {
+            Entry entry = new Entry(deployment.id(), deployment.projectId(), deployment.projectName(), deployment.createdAt(),
+                    deployment.status(), deployment.commitHash(), segment, offset, bytes.length);
+            entries.add(entry);
+            lines.append(entry.id()).append('\t').append(entry.projectId()).append('\t').append(clean(entry.projectName()))
+                    .append('\t').append(entry.createdAt()).append('\t').append(clean(entry.status()))
+                    .append('\t').append(clean(entry.commitHash())).append('\t').append(entry.segment())
+                    .append('\t').append(entry.offset()).append('\t').append(entry.length()).append('\n');
+        }
+        try (FileChannel channel = FileChannel.open(dir.resolve(INDEX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8)));
+            channel.force(false);
+        }
+        indexTorn = false;
+        entries.forEach(this::index);
+    }
+
+    /**
+     * The full record of an archived deployment: one positional read and one inflated member.
+     */
+    public Optional<ArchivedDeployment> find(String id) throws IOException {
+        Entry entry = byId.get(id);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        ByteBuffer member = ByteBuffer.allocate(entry.length());
+        try (FileChannel channel = FileChannel.open(dir.resolve(entry.segment()), StandardOpenOption.READ)) {
+            while (member.hasRemaining() && channel.read(member, entry.offset() + member.position()) >= 0) {
+                // positional reads until the member is in
+            }
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(member.array())), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonNode record = JSON.readTree(line);
+                if (id.equals(record.path("id").asText())) {
+                    return Optional.of(fromJson(record));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    public Optional<Entry> entry(String id) {
+        return Optional.ofNullable(byId.get(id));
+    }
+
+    /**
+     * A project's archived deployments, newest first, strictly older than ({@code createdAt}, {@code id})
+     * when given.
+     */
+    public List<Entry> history(String projectId, LocalDateTime createdAt, String id, int limit) {
+        ConcurrentSkipListMap<Entry, Entry> entries = byProject.get(projectId);
+        if (entries == null) {
+            return List.of();
+        }
+        Map<Entry, Entry> older = createdAt == null ? entries
+                : entries.tailMap(new Entry(id, projectId, null, createdAt, null, null, null, 0, 0), false);
+        return older.keySet().stream().limit(limit).toList();
+    }
+
+    /**
+     * Ids of archived deployments that match, e.g. for scoping a log search.
+     */
+    public List<String> ids(Predicate<Entry> filter) {
+        return byId.values().stream().filter(filter).map(Entry::id).toList();
+    }
+
+    public int count() {
+        return byId.size();
+    }
+
+    public long sizeOnDisk() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
+    private static String segmentName(int number) {
+        return String.format("segment-%06d.gz", number);
+    }
+
+    /**
+     * Index fields are tab separated; nothing we store should contain tabs or newlines, but never let it break a line.
+     */
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ');
+    }
+
+    private static ObjectNode toJson(ArchivedDeployment d) {
+        ObjectNode node = JSON.createObjectNode();
+        node.put("id", d.id());
+        node.put("projectId", d.projectId());
+        node.put("projectName", d.projectName());
+        node.put("status", d.status());
+        node.put("commitHash", d.commitHash());
+        node.put("createdAt", d.createdAt().toString());
+        node.put("queueWaitMillis", d.queueWaitMillis());
+        node.put("buildKey", d.buildKey());
+        node.put("imageName", d.imageName());
+        node.put("timeToLiveMillis", d.timeToLiveMillis());
+        node.put("timeToFailMillis", d.timeToFailMillis());
+        node.put("startupMode", d.startupMode() != null ? d.startupMode().name() : null);
+        node.put("imageSizeBytes", d.imageSizeBytes());
+        node.put("startupMillis", d.startupMillis());
+        node.put("rssBytes", d.rssBytes());
+        return node;
+    }
+
+    private static ArchivedDeployment fromJson(JsonNode node) {
+        return new ArchivedDeployment(
+                text(node, "id"), text(node, "projectId"), text(node, "projectName"), text(node, "status"),
+                text(node, "commitHash"), LocalDateTime.parse(node.path("createdAt").asText()),
+                number(node, "queueWaitMillis"), text(node, "buildKey"), text(node, "imageName"),
+                number(node, "timeToLiveMillis"), number(node, "timeToFailMillis"),
+                node.hasNonNull("startupMode") ? DockerfileGenerator.StartupMode.valueOf(node.get("startupMode").asText()) : null,
+                number(node, "imageSizeBytes"), number(node, "startupMillis"), number(node, "rssBytes"));
+    }
+
+    private static String text(JsonNode node, String field) {
+        return node.hasNonNull(field) ? node.get(field).asText() : null;
+    }
+
+    private static Long number(JsonNode node, String field) {
+        return node.hasNonNull(field) ? node.get(field).asLong() : null;
+    }
+}
@@ -1,8 +1,13 @@
 package io.kasion.control_plane;
 
-import org.springframework.web.client.RestClient;
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.http.ResponseEntity;
 
@@ -12,16 +17,35 @@ public class DeploymentController {
 
     private final ProjectRepository projectRepository;
     private final DeploymentRepository deploymentRepository;
-    private final BuildEngine buildEngine;
+    private final BuildScheduler buildScheduler;
+    private final LogBroadcaster logBroadcaster;
+    private final DeploymentHistory deploymentHistory;
+    private final DeploymentArchive deploymentArchive;
 
-    public record DeployRequest(String repoUrl, boolean hasDatabase, String javaVersion) {}
+    /** {@code replicas} and {@code startupMode} are optional; when set they are kept on the project. */
+    public record DeployRequest(String repoUrl, boolean hasDatabase, String javaVersion, Integer replicas,
+                                DockerfileGenerator.StartupMode startupMode) {}
+
+    public record ReplicasRequest(int replicas) {}
+
+    /** Null fields fall back to the kasion.readiness.* defaults. */
+    public record ReadinessRequest(String path, String expect, Integer timeoutSeconds, Integer successes, Boolean dockerHealthy) {}
+
+    /** Null fields fall back to the kasion.deployments.retention.* defaults; 0 means no limit. */
+    public record RetentionRequest(Integer keepLast, Integer keepDays) {}
 
     public DeploymentController(ProjectRepository projectRepository,
                                 DeploymentRepository deploymentRepository,
-                                BuildEngine buildEngine) {
+                                BuildScheduler buildScheduler,
+                                LogBroadcaster logBroadcaster,
+                                DeploymentHistory deploymentHistory,
+                                DeploymentArchive deploymentArchive) {
         this.projectRepository = projectRepository;
         this.deploymentRepository = deploymentRepository;
-        this.buildEngine = buildEngine;
+        this.buildScheduler = buildScheduler;
+        this.logBroadcaster = logBroadcaster;
+        this.deploymentHistory = deploymentHistory;
+        this.deploymentArchive = deploymentArchive;
     }
 
     @PostMapping("/deploy")
@@ -47,6 +71,17 @@ public class DeploymentController {
             project.setJavaVersion(payload.javaVersion());
         }
 
+        if (payload.replicas() != null) {
+            if (payload.replicas() < 1) {
+                return ResponseEntity.badRequest().body(Map.of("error", "Replicas must be at least 1"));
+            }
+            project.setReplicas(payload.replicas());
+        }
+
+        if (payload.startupMode() != null) {
+            project.setStartupMode(payload.startupMode());
+        }
+
         if (!project.getGithubRepoUrl().equals(repoUrl)) {
             project.setGithubRepoUrl(repoUrl);
         }
@@ -56,47 +91,244 @@ public class DeploymentController {
         Deployment deployment = new Deployment(project, "PENDING");
         deploymentRepository.save(deployment);
 
-        buildEngine.startBuild(deployment.getId());
+        BuildScheduler.Ticket ticket = buildScheduler.submit(deployment.getId(), project.getId(), project.getOwnerId());
 
-        return ResponseEntity.ok(Map.of(
-                "status", "queued",
-                "deploymentId", deployment.getId(),
-                "project", projectName
-        ));
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", "queued");
+        response.put("deploymentId", deployment.getId());
+        response.put("project", projectName);
+        response.put("queuePosition", ticket.position());
+        response.put("queueDepth", ticket.queueDepth());
+        if (ticket.supersededDeploymentId() != null) {
+            response.put("supersedes", ticket.supersededDeploymentId());
+        }
+        return ResponseEntity.ok(response);
     }
 
+    /**
+     * Lists deployments newest first. With {@code before} (the id of the last row seen) the next
+     * page is read by keyset; otherwise {@code page} is used and the response includes totals.
+     */
+    @GetMapping("/deployments")
+    public ResponseEntity<?> listDeployments(@RequestParam(required = false) String before,
+                                             @RequestParam(defaultValue = "0") int page,
+                                             @RequestParam(defaultValue = "50") int size) {
+        PageRequest pageRequest = PageRequest.of(Math.max(page, 0), Math.min(Math.max(size, 1), 500));
+        if (before == null) {
+            Page<DeploymentSummary> result = deploymentRepository.findSummaries(pageRequest);
+            return ResponseEntity.ok(Map.of(
+                    "deployments", result.getContent(),
+                    "page", result.getNumber(),
+                    "totalElements", result.getTotalElements(),
+                    "totalPages", result.getTotalPages()));
+        }
+        return deploymentRepository.findById(before)
+                .map(last -> {
+                    List<DeploymentSummary> rows = deploymentRepository.findSummariesBefore(
+                            last.getCreatedAt(), last.getId(), PageRequest.of(0, pageRequest.getPageSize()));
+                    Map<String, Object> body = new HashMap<>();
+                    body.put("deployments", rows);
+                    if (rows.size() == pageRequest.getPageSize()) {
+                        body.put("nextCursor", rows.get(rows.size() - 1).id());
+                    }
+                    return ResponseEntity.ok(body);
+                })
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Falls back to the archive for deployments retention has moved out of the table.
+     */
     @GetMapping("/deployments/{id}")
-    public ResponseEntity<?> getStatus(@PathVariable String id) {
-        return deploymentRepository.findById(id)
-                .map(deployment -> ResponseEntity.ok(Map.of(
-                        "id", deployment.getId(),
-                        "status", deployment.getStatus()
-                )))
+    public ResponseEntity<?> getStatus(@PathVariable String id) throws IOException {
+        Optional<Deployment> hot = deploymentRepository.findById(id);
+        if (hot.isEmpty()) {
+            return deploymentArchive.find(id)
+                    .map(deployment -> {
+                        Map<String, Object> body = new HashMap<>();
+                        body.put("id", deployment.id());
+                        body.put("status", deployment.status());
+                        body.put("archived", true);
+                        body.put("projectId", deployment.projectId());
+                        body.put("createdAt", deployment.createdAt());
+                        if (deployment.commitHash() != null) {
+                            body.put("commitHash", deployment.commitHash());
+                        }
+                        if (deployment.queueWaitMillis() != null) {
+                            body.put("queueWaitMillis", deployment.queueWaitMillis());
+                        }
+                        if (deployment.timeToLiveMillis() != null) {
+                            body.put("timeToLiveMillis", deployment.timeToLiveMillis());
+                        }
+                        if (deployment.timeToFailMillis() != null) {
+                            body.put("timeToFailMillis", deployment.timeToFailMillis());
+                        }
+                        if (deployment.startupMode() != null) {
+                            body.put("startupMode", deployment.startupMode());
+                        }
+                        return ResponseEntity.ok(body);
+                    })
+                    .orElse(ResponseEntity.notFound().build());
+        }
+        return hot
+                .map(deployment -> {
+                    Map<String, Object> body = new HashMap<>();
+                    body.put("id", deployment.getId());
+                    body.put("status", deployment.getStatus());
+                    body.put("queuePosition", buildScheduler.positionOf(deployment.getId()));
+                    if (deployment.getQueueWaitMillis() != null) {
+                        body.put("queueWaitMillis", deployment.getQueueWaitMillis());
+                    }
+                    if (deployment.getTimeToLiveMillis() != null) {
+                        body.put("timeToLiveMillis", deployment.getTimeToLiveMillis());
+                    }
+                    if (deployment.getTimeToFailMillis() != null) {
+                        body.put("timeToFailMillis", deployment.getTimeToFailMillis());
+                    }
+                    if (deployment.getStartupMode() != null) {
+                        body.put("startupMode", deployment.getStartupMode());
+                    }
+                    if (deployment.getStartupMillis() != null) {
+                        body.put("footprint", footprintOf(deployment));
+                    }
+                    return ResponseEntity.ok(body);
+                })
                 .orElse(ResponseEntity.notFound().build());
     }
 
+    /**
+     * One project's deployments newest first, including archived ones ({@code "archived": true}).
+     * Pass the returned {@code nextCursor} as {@code before} for the next page.
+     */
+    @GetMapping("/projects/{id}/deployments")
+    public ResponseEntity<?> getHistory(@PathVariable String id,
+                                        @RequestParam(required = false) String before,
+                                        @RequestParam(defaultValue = "50") int size) {
+        if (!projectRepository.existsById(id)) {
+            return ResponseEntity.notFound().build();
+        }
+        return deploymentHistory.history(id, before, Math.min(Math.max(size, 1), 500))
+                .map(page -> {
+                    Map<String, Object> body = new HashMap<>();
+                    body.put("deployments", page.deployments());
+                    if (page.nextCursor() != null) {
+                        body.put("nextCursor", page.nextCursor());
+                    }
+                    return ResponseEntity.ok(body);
+                })
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * The newest measured deployment of each startup mode the project has run, e.g. NATIVE next to JVM.
+     */
+    @GetMapping("/projects/{id}/footprint")
+    public ResponseEntity<?> getFootprint(@PathVariable String id) {
+        if (!projectRepository.existsById(id)) {
+            return ResponseEntity.notFound().build();
+        }
+        Map<DockerfileGenerator.StartupMode, Map<String, Object>> newestByMode = new LinkedHashMap<>();
+        for (Deployment deployment : deploymentRepository.findTop50ByProjectIdAndStartupMillisNotNullOrderByCreatedAtDesc(id)) {
+            if (deployment.getStartupMode() != null) {
+                newestByMode.putIfAbsent(deployment.getStartupMode(), footprintOf(deployment));
+            }
+        }
+        return ResponseEntity.ok(Map.of("projectId", id, "footprints", newestByMode.values()));
+    }
+
+    private static Map<String, Object> footprintOf(Deployment deployment) {
+        Map<String, Object> footprint = new LinkedHashMap<>();
+        footprint.put("deploymentId", deployment.getId());
+        footprint.put("startupMode", deployment.getStartupMode());
+        footprint.put("createdAt", deployment.getCreatedAt());
+        footprint.put("startupMillis", deployment.getStartupMillis());
+        footprint.put("rssBytes", deployment.getRssBytes());
+        footprint.put("imageSizeBytes", deployment.getImageSizeBytes());
+        return footprint;
+    }
 
+    /**
+     * Sets what "ready" means for the project's next deployments.
+     */
+    @PutMapping("/projects/{id}/readiness")
+    public ResponseEntity<?> setReadiness(@PathVariable String id, @RequestBody ReadinessRequest payload) {
+        if (payload.path() != null && !payload.path().startsWith("/")) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Readiness path must start with /"));
+        }
+        return projectRepository.findById(id)
+                .map(project -> {
+                    project.setReadinessPath(payload.path());
+                    project.setReadinessExpect(payload.expect());
+                    project.setReadinessTimeoutSeconds(payload.timeoutSeconds());
+                    project.setReadinessSuccesses(payload.successes());
+                    project.setReadinessDockerHealthy(payload.dockerHealthy());
+                    projectRepository.save(project);
+                    return ResponseEntity.ok(Map.of("projectId", id, "readiness", payload));
+                })
+                .orElse(ResponseEntity.notFound().build());
+    }
 
-    // 🆕 The "X-Ray" Endpoint
-    @GetMapping("/stats/{id}")
-    public Map<String, Object> getAppStats(@PathVariable String id) {
-        String baseUrl = "http://localhost:8081/actuator";
-        Map<String, Object> stats = new HashMap<>();
-        RestClient client = RestClient.create();
+    /**
+     * Sets how many deployments of the project stay in the table before older ones are archived.
+     */
+    @PutMapping("/projects/{id}/retention")
+    public ResponseEntity<?> setRetention(@PathVariable String id, @RequestBody RetentionRequest payload) {
+        if ((payload.keepLast() != null && payload.keepLast() < 0) || (payload.keepDays() != null && payload.keepDays() < 0)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Retention limits must be 0 (no limit) or more"));
+        }
+        return projectRepository.findById(id)
+                .map(project -> {
+                    project.setRetentionKeepLast(payload.keepLast());
+                    project.setRetentionKeepDays(payload.keepDays());
+                    projectRepository.save(project);
+                    return ResponseEntity.ok(Map.of("projectId", id, "retention", deploymentHistory.retentionFor(project)));
+                })
+                .orElse(ResponseEntity.notFound().build());
+    }
 
-        try {
-            String healthJson = client.get().uri(baseUrl + "/health").retrieve().body(String.class);
-            stats.put("status", healthJson.contains("UP") ? "UP" : "DOWN");
+    /**
+     * What the last retention run archived and how much database space it reclaimed.
+     */
+    @GetMapping("/deployments/retention")
+    public ResponseEntity<?> getRetentionReport() {
+        return deploymentHistory.lastReport()
+                .<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElse(ResponseEntity.noContent().build());
+    }
 
-            Map<String, Object> memData = client.get().uri(baseUrl + "/metrics/jvm.memory.used").retrieve().body(Map.class);
-            var measurements = (java.util.List<Map<String, Object>>) memData.get("measurements");
-            Double bytes = (Double) measurements.get(0).get("value");
-            long mb = Math.round(bytes / 1024 / 1024);
-            stats.put("memory", mb + " MB");
-        } catch (Exception e) {
-            stats.put("status", "UNREACHABLE");
-            stats.put("memory", "0 MB");
+    /**
+     * Sets how many containers the project's next deployments start; each gets its own leased port.
+     */
+    @PutMapping("/projects/{id}/replicas")
+    public ResponseEntity<?> setReplicas(@PathVariable String id, @RequestBody ReplicasRequest payload) {
+        if (payload.replicas() < 1) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Replicas must be at least 1"));
         }
-        return stats;
+        return projectRepository.findById(id)
+                .map(project -> {
+                    project.setReplicas(payload.replicas());
+                    projectRepository.save(project);
+                    return ResponseEntity.ok(Map.of("projectId", id, "replicas", payload.replicas()));
+                })
+                .orElse(ResponseEntity.notFound().build());
     }
+
+    @PostMapping("/deployments/{id}/cancel")
+    public ResponseEntity<?> cancel(@PathVariable String id) {
+        if (!buildScheduler.cancel(id)) {
+            return ResponseEntity.status(409).body(Map.of("error", "Deployment is not queued or running"));
+        }
+        return ResponseEntity.accepted().body(Map.of("deploymentId", id, "status", "cancelling"));
+    }
+
+    @GetMapping("/deployments/{id}/log-subscribers")
+    public List<LogBroadcaster.SubscriberStats> getLogSubscribers(@PathVariable String id) {
+        return logBroadcaster.subscriberStats(id);
+    }
+
+    @GetMapping("/builds/queue")
+    public BuildScheduler.QueueStats getQueueStats() {
+        return buildScheduler.stats();
+    }
+
 }
@@ -0,0 +1,229 @@
+package io.kasion.control_plane;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the {@code deployments} table small. Every project keeps its newest {@code keep-last} deployments
+ * and everything from the last {@code keep-days} days (either can be 0 to turn it off); older finished
+ * deployments are moved to the {@link DeploymentArchive} in batches, never the one that is running.
+ * Afterwards the H2 store is checkpointed and the file size before and after is reported.
+ *
+ * {@link #history} reads both, so a project's list of deployments doesn't end where the table does.
+ */
+@Component
+public class DeploymentHistory {
+
+    public record Retention(int keepLast, int keepDays) {}
+
+    public record Report(LocalDateTime at, int archived, long databaseBytesBefore, long databaseBytesAfter,
+                         long reclaimedBytes, long archiveBytes, int archivedTotal, long tookMillis) {}
+
+    /** One deployment in a project's history; archived ones only carry what the archive index keeps. */
+    public record Row(String id, String status, String commitHash, LocalDateTime createdAt, boolean archived) {}
+
+    public record Page(List<Row> deployments, String nextCursor) {}
+
+    private static final Comparator<Row> NEWEST_FIRST =
+            Comparator.comparing(Row::createdAt).thenComparing(Row::id).reversed();
+
+    private final DeploymentRepository deploymentRepository;
+    private final ProjectRepository projectRepository;
+    private final DeploymentArchive archive;
+    private final JdbcTemplate jdbc;
+    private final Retention defaults;
+    private final int batchSize;
+
+    private volatile Report lastReport;
+
+    public DeploymentHistory(DeploymentRepository deploymentRepository,
+                             ProjectRepository projectRepository,
+                             DeploymentArchive archive,
+                             JdbcTemplate jdbc,
+                             @Value("${kasion.deployments.retention.keep-last:100}") int keepLast,
+                             @Value("${kasion.deployments.retention.keep-days:90}") int keepDays,
+                             @Value("${kasion.deployments.retention.batch-size:500}") int batchSize) {
+        this.deploymentRepository = deploymentRepository;
+        this.projectRepository = projectRepository;
+        this.archive = archive;
+        this.jdbc = jdbc;
+        this.defaults = new Retention(Math.max(0, keepLast), Math.max(0, keepDays));
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * The project's limits, falling back to the {@code kasion.deployments.retention.*} defaults.
+     */
+    public Retention retentionFor(Project project) {
+        return new Retention(
+                project.getRetentionKeepLast() != null ? Math.max(0, project.getRetentionKeepLast()) : defaults.keepLast(),
+                project.getRetentionKeepDays() != null ? Math.max(0, project.getRetentionKeepDays()) : defaults.keepDays());
+    }
+
+    public Optional<Report> lastReport() {
+        return Optional.ofNullable(lastReport);
+    }
+
+    @Scheduled(fixedDelayString = "${kasion.deployments.retention.interval-millis:3600000}",
+            initialDelayString = "${kasion.deployments.retention.initial-delay-millis:300000}")
+    public void scheduledCompact() {
+        try {
+            compact();
+        } catch (Exception e) {
+            System.err.println("⚠️ [Retention] Compaction failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Archives everything past retention, then checkpoints the database.
+     */
+    public synchronized Report compact() throws IOException {
+        long start = System.currentTimeMillis();
+        long before = databaseBytes();
+
+        Map<String, String> running = deploymentRepository.findCurrentLive().stream()
+                .collect(Collectors.toMap(d -> d.getProject().getId(), Deployment::getId, (a, b) -> a));
+        int archived = 0;
+        for (Project project : projectRepository.findAll()) {
+            archived += archive(project, running.getOrDefault(project.getId(), ""));
+        }
+        checkpoint();
+
+        long after = databaseBytes();
+        Report report = new Report(LocalDateTime.now(), archived, before, after,
+                before >= 0 && after >= 0 ? Math.max(0, before - after) : 0,
+                archive.sizeOnDisk(), archive.count(), System.currentTimeMillis() - start);
+        lastReport = report;
+        System.out.println("🧹 [Retention] Archived " + archived + " deployments (" + report.archivedTotal()
+                + " in archive, " + report.archiveBytes() / 1024 + " KB); database "
+                + (before >= 0 ? before / 1024 + " KB -> " + after / 1024 + " KB" : "size unknown")
+                + " in " + report.tookMillis() + "ms");
+        return report;
+    }
+
+    private int archive(Project project, String keepId) throws IOException {
+        Retention retention = retentionFor(project);
+        // Archive rows strictly older than (createdAt, id): the oldest row keep-last still covers,
+        // or the keep-days cutoff, whichever is older.
+        LocalDateTime createdAt = null;
+        String id = null;
+        if (retention.keepLast() > 0) {
+            List<DeploymentSummary> oldestKept = deploymentRepository.findNewestSummariesOfProject(
+                    project.getId(), PageRequest.of(retention.keepLast() - 1, 1));
+            if (oldestKept.isEmpty()) {
+                return 0;
+            }
+            createdAt = oldestKept.get(0).createdAt();
+            id = oldestKept.get(0).id();
+        }
+        if (retention.keepDays() > 0) {
+            LocalDateTime cutoff = LocalDateTime.now().minusDays(retention.keepDays());
+            if (createdAt == null || !cutoff.isAfter(createdAt)) {
+                createdAt = cutoff;
+                id = "";
+            }
+        }
+        if (createdAt == null) {
+            return 0; // no limits: keep everything
+        }
+
+        int archived = 0;
+        while (true) {
+            List<Deployment> batch = deploymentRepository.findArchivable(
+                    project.getId(), createdAt, id, keepId, PageRequest.of(0, batchSize));
+            if (batch.isEmpty()) {
+                break;
+            }
+            archive.append(batch.stream().map(DeploymentArchive.ArchivedDeployment::of).toList());
+            deploymentRepository.deleteAllByIdInBatch(batch.stream().map(Deployment::getId).toList());
+            archived += batch.size();
+            if (batch.size() < batchSize) {
+                break;
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * A project's deployments newest first, from the table and then the archive. {@code before} is the
+     * id of the last row seen, hot or archived; empty if it is neither.
+     */
+    public Optional<Page> history(String projectId, String before, int size) {
+        LocalDateTime createdAt = null;
+        String id = null;
+        if (before != null) {
+            Optional<Deployment> hot = deploymentRepository.findById(before);
+            Optional<DeploymentArchive.Entry> cold = archive.entry(before);
+            if (hot.isPresent()) {
+                createdAt = hot.get().getCreatedAt();
+            } else if (cold.isPresent()) {
+                createdAt = cold.get().createdAt();
+            } else {
+                return Optional.empty();
+            }
+            id = before;
+        }
+
+        List<DeploymentSummary> hot = createdAt == null
+                ? deploymentRepository.findNewestSummariesOfProject(projectId, PageRequest.of(0, size))
+                : deploymentRepository.findSummariesOfProjectBefore(projectId, createdAt, id, PageRequest.of(0, size));
+        List<Row> rows = new ArrayList<>(2 * size);
+        Set<String> seen = new HashSet<>();
+        for (DeploymentSummary summary : hot) {
+            seen.add(summary.id());
+            rows.add(new Row(summary.id(), summary.status(), summary.commitHash(), summary.createdAt(), false));
+        }
+        for (DeploymentArchive.Entry entry : archive.history(projectId, createdAt, id, size)) {
+            if (seen.add(entry.id())) { // archived but not yet deleted: the table wins
+                rows.add(new Row(entry.id(), entry.status(), entry.commitHash(), entry.createdAt(), true));
+            }
+        }
+        rows.sort(NEWEST_FIRST);
+        List<Row> page = rows.subList(0, Math.min(size, rows.size()));
+        return Optional.of(new Page(List.copyOf(page), page.size() == size ? page.get(size - 1).id() : null));
+    }
+
+    /**
+     * Size of the H2 file, or -1 when the database isn't a file-based H2.
+     */
+    private long databaseBytes() {
+        try {
+            String path = jdbc.queryForObject("SELECT DATABASE_PATH()", String.class);
+            if (path == null) {
+                return -1;
+            }
+            Path file = Path.of(path + ".mv.db");
+            return Files.exists(file) ? Files.size(file) : -1;
+        } catch (RuntimeException | IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes everything out and lets the store reuse the pages the deleted rows held. H2 can only
+     * shrink the file fully while closing (see MAX_COMPACT_TIME on the datasource URL).
+     */
+    private void checkpoint() {
+        try {
+            jdbc.execute("CHECKPOINT SYNC");
+        } catch (RuntimeException e) {
+            // not H2; nothing to do
+        }
+    }
+}
@@ -1,6 +1,83 @@
 package io.kasion.control_plane;
 
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
 
 public interface DeploymentRepository extends JpaRepository<Deployment, String> {
-}
\ No newline at end of file
+    List<Deployment> findByProjectName(String projectName);
+
+    List<Deployment> findByCreatedAtAfter(LocalDateTime since);
+
+    /**
+     * The project's most recent deployments that got as far as a measured startup, newest first.
+     */
+    List<Deployment> findTop50ByProjectIdAndStartupMillisNotNullOrderByCreatedAtDesc(String projectId);
+
+    /**
+     * Newest first, with a total count. Deep pages get slower (OFFSET); prefer {@link #findSummariesBefore}.
+     */
+    @Query(value = "select new io.kasion.control_plane.DeploymentSummary(d.id, d.status, d.commitHash, d.createdAt, p.id, p.name) "
+            + "from Deployment d join d.project p order by d.createdAt desc, d.id desc",
+            countQuery = "select count(d) from Deployment d")
+    Page<DeploymentSummary> findSummaries(Pageable pageable);
+
+    /**
+     * Newest first, starting after the row ({@code createdAt}, {@code id}). Walks the
+     * (created_at, id) index, so every page costs the same no matter how far back it is.
+     */
+    @Query("select new io.kasion.control_plane.DeploymentSummary(d.id, d.status, d.commitHash, d.createdAt, p.id, p.name) "
+            + "from Deployment d join d.project p "
+            + "where d.createdAt < :createdAt or (d.createdAt = :createdAt and d.id < :id) "
+            + "order by d.createdAt desc, d.id desc")
+    List<DeploymentSummary> findSummariesBefore(@Param("createdAt") LocalDateTime createdAt, @Param("id") String id,
+                                                Pageable limit);
+
+    @Query("select new io.kasion.control_plane.DeploymentSummary(d.id, d.status, d.commitHash, d.createdAt, p.id, p.name) "
+            + "from Deployment d join d.project p order by d.createdAt desc, d.id desc")
+    List<DeploymentSummary> findNewestSummaries(Pageable limit);
+
+    /**
+     * One project's deployments, newest first; {@link #findSummariesOfProjectBefore} continues by keyset.
+     */
+    @Query("select new io.kasion.control_plane.DeploymentSummary(d.id, d.status, d.commitHash, d.createdAt, p.id, p.name) "
+            + "from Deployment d join d.project p where p.id = :projectId order by d.createdAt desc, d.id desc")
+    List<DeploymentSummary> findNewestSummariesOfProject(@Param("projectId") String projectId, Pageable limit);
+
+    @Query("select new io.kasion.control_plane.DeploymentSummary(d.id, d.status, d.commitHash, d.createdAt, p.id, p.name) "
+            + "from Deployment d join d.project p where p.id = :projectId "
+            + "and (d.createdAt < :createdAt or (d.createdAt = :createdAt and d.id < :id)) "
+            + "order by d.createdAt desc, d.id desc")
+    List<DeploymentSummary> findSummariesOfProjectBefore(@Param("projectId") String projectId,
+                                                         @Param("createdAt") LocalDateTime createdAt,
+                                                         @Param("id") String id, Pageable limit);
+
+    /**
+     * Finished deployments of a project older than the row ({@code createdAt}, {@code id}), oldest first,
+     * for {@link DeploymentHistory} to archive. {@code keepId} (the running deployment) is never returned.
+     */
+    @Query("select d from Deployment d join fetch d.project p where p.id = :projectId "
+            + "and d.status not in ('PENDING', 'BUILDING') and d.id <> :keepId "
+            + "and (d.createdAt < :createdAt or (d.createdAt = :createdAt and d.id < :id)) "
+            + "order by d.createdAt asc, d.id asc")
+    List<Deployment> findArchivable(@Param("projectId") String projectId, @Param("createdAt") LocalDateTime createdAt,
+                                    @Param("id") String id, @Param("keepId") String keepId, Pageable limit);
+
+    /**
+     * Projects with at least one deployment: one index probe per project instead of a scan of every deployment.
+     */
+    @Query("select count(p) from Project p where exists (select 1 from Deployment d where d.project = p)")
+    long countDeployedProjects();
+
+    /**
+     * The newest LIVE deployment of every project, i.e. the ones with a running container.
+     */
+    @Query("select d from Deployment d join fetch d.project p where d.status = 'LIVE' and d.createdAt = "
+            + "(select max(d2.createdAt) from Deployment d2 where d2.project = p and d2.status = 'LIVE')")
+    List<Deployment> findCurrentLive();
+}
@@ -0,0 +1,10 @@
+package io.kasion.control_plane;
+
+import java.time.LocalDateTime;
+
+/**
+ * One row of the deployment list. Selected straight into this record so listing
+ * deployments never loads the Deployment and Project entities.
+ */
+public record DeploymentSummary(String id, String status, String commitHash, LocalDateTime createdAt,
+                                String projectId, String projectName) {}
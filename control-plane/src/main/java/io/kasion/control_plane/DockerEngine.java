@@ -0,0 +1,1217 @@
+package io.kasion.control_plane;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.URLEncoder;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Client for the Docker Engine API on its unix socket, so inspecting, starting and removing a container
+ * is one HTTP exchange on a kept-alive connection instead of a forked {@code docker} CLI (tens of
+ * milliseconds of process and Go runtime startup each), and the answer is JSON instead of screen-scraped text.
+ *
+ * Covers what the control plane does with Docker: containers (create + start, inspect, remove, logs,
+ * exec, copying a file out), images (inspect, pull, BuildKit builds with the context streamed up as a
+ * tar) and the event stream.
+ *
+ * With {@code kasion.docker.engine=AUTO} the socket is pinged; when nothing answers there (Docker on a
+ * remote host, the stand-ins of DeployThroughputHarness) {@link #enabled()} is false and callers go on
+ * forking {@code kasion.docker.command} as before. {@code API} and {@code CLI} force one or the other.
+ *
+ * Requests block the calling thread and can be cancelled by interrupting it, which closes the connection.
+ */
+@Component
+public class DockerEngine {
+
+    public enum Mode {
+        /** Use the socket when the daemon answers on it, otherwise the CLI. */
+        AUTO,
+        /** Always use the socket. */
+        API,
+        /** Always fork the CLI, as before. */
+        CLI
+    }
+
+    /**
+     * What {@code docker run -d} is given. {@code ports} maps host ports to container ports.
+     */
+    public record ContainerSpec(String name, String image, String network, Map<Integer, Integer> ports,
+                                List<String> env, Map<String, String> labels, List<String> capAdd,
+                                String restartPolicy, Long memoryBytes) {
+
+        /**
+         * The same container as a {@code docker run} command line, for the CLI fallback.
+         */
+        public List<String> runCommand(String docker) {
+            List<String> command = new ArrayList<>(List.of(docker, "run", "-d", "--name", name));
+            if (network != null) {
+                command.addAll(List.of("--network", network));
+            }
+            ports.forEach((hostPort, containerPort) -> command.addAll(List.of("-p", hostPort + ":" + containerPort)));
+            labels.forEach((key, value) -> command.addAll(List.of("--label", key + "=" + value)));
+            capAdd.forEach(capability -> command.addAll(List.of("--cap-add", capability)));
+            env.forEach(variable -> command.addAll(List.of("-e", variable)));
+            if (restartPolicy != null) {
+                command.addAll(List.of("--restart", restartPolicy));
+            }
+            if (memoryBytes != null) {
+                command.addAll(List.of("-m", String.valueOf(memoryBytes)));
+            }
+            command.add(image);
+            return command;
+        }
+    }
+
+    /**
+     * @param health  the HEALTHCHECK status, or null when the image has none
+     */
+    public record ContainerState(String id, String name, String status, boolean running, int exitCode, String health) {}
+
+    public record ImageInfo(String id, long sizeBytes) {}
+
+    /**
+     * @param exitCode  set on "die"
+     */
+    public record Event(String type, String action, String id, String name, Integer exitCode) {}
+
+    /**
+     * The daemon answered with an error status.
+     */
+    public static class DockerException extends IOException {
+        private final int status;
+
+        public DockerException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public int status() {
+            return status;
+        }
+    }
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String JSON_TYPE = "application/json";
+    /** How long an unreachable socket is believed before AUTO pings it again. */
+    private static final long RECHECK_NANOS = TimeUnit.SECONDS.toNanos(30);
+    /** Left of a response body when it is closed early; beyond this the connection is dropped instead. */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final BuildExecutors buildExecutors;
+    private final Mode mode;
+    private final Path socket;
+    private final String apiVersion;
+    private final int maxIdleConnections;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+    private volatile Boolean reachable;
+    private volatile long checkedAt;
+
+    public DockerEngine(BuildExecutors buildExecutors,
+                        @Value("${kasion.docker.engine:AUTO}") Mode mode,
+                        @Value("${kasion.docker.socket:/var/run/docker.sock}") Path socket,
+                        @Value("${kasion.docker.api-version:v1.41}") String apiVersion,
+                        @Value("${kasion.docker.max-idle-connections:8}") int maxIdleConnections) {
+        this.buildExecutors = buildExecutors;
+        this.mode = mode;
+        this.socket = socket;
+        this.apiVersion = apiVersion;
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    /**
+     * An engine that always leaves Docker to the CLI, for tests and tools that fake it.
+     */
+    public static DockerEngine cliOnly() {
+        return new DockerEngine(null, Mode.CLI, Path.of("/var/run/docker.sock"), "v1.41", 0);
+    }
+
+    /**
+     * Whether callers should use this client rather than the CLI.
+     */
+    public boolean enabled() {
+        return switch (mode) {
+            case API -> true;
+            case CLI -> false;
+            case AUTO -> reachable();
+        };
+    }
+
+    private boolean reachable() {
+        Boolean known = reachable;
+        if (known != null && (known || System.nanoTime() - checkedAt < RECHECK_NANOS)) {
+            return known;
+        }
+        boolean answered = ping();
+        if (!Boolean.valueOf(answered).equals(known)) {
+            System.out.println(answered
+                    ? "🐳 [Docker] Talking to the Engine API on " + socket
+                    : "🐳 [Docker] No Engine API on " + socket + ", using the docker CLI");
+        }
+        checkedAt = System.nanoTime();
+        reachable = answered;
+        return answered;
+    }
+
+    public boolean ping() {
+        try (Response response = exchange("GET", "/_ping", null, null, null)) {
+            return response.status == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // ---------------------------------------------------------------- containers
+
+    /**
+     * Creates and starts a container, like {@code docker run -d}, pulling the image first if it isn't
+     * there. Returns the container id.
+     */
+    public String run(ContainerSpec spec, Consumer<String> output) throws IOException {
+        byte[] body = JSON.writeValueAsBytes(createBody(spec));
+        String path = "/containers/create?name=" + query(spec.name());
+        Response created = exchange("POST", path, JSON_TYPE, body, null);
+        if (created.status == 404) {
+            created.close();
+            output.accept("Unable to find image '" + spec.image() + "' locally");
+            pull(spec.image(), output);
+            created = exchange("POST", path, JSON_TYPE, body, null);
+        }
+        String id;
+        try (Response response = created) {
+            id = json(response).path("Id").asText();
+        }
+        try (Response response = exchange("POST", "/containers/" + id + "/start", null, null, null)) {
+            check(response);
+        } catch (IOException e) {
+            // Don't leave a created-but-never-started container holding the name.
+            try {
+                remove(id, true);
+            } catch (IOException ignored) {}
+            throw e;
+        }
+        return id;
+    }
+
+    private static ObjectNode createBody(ContainerSpec spec) {
+        ObjectNode body = JSON.createObjectNode();
+        body.put("Image", spec.image());
+        ArrayNode env = body.putArray("Env");
+        spec.env().forEach(env::add);
+        ObjectNode labels = body.putObject("Labels");
+        spec.labels().forEach(labels::put);
+        ObjectNode exposedPorts = body.putObject("ExposedPorts");
+
+        ObjectNode hostConfig = body.putObject("HostConfig");
+        ObjectNode portBindings = hostConfig.putObject("PortBindings");
+        spec.ports().forEach((hostPort, containerPort) -> {
+            String key = containerPort + "/tcp";
+            exposedPorts.putObject(key);
+            ArrayNode bindings = portBindings.has(key) ? (ArrayNode) portBindings.get(key) : portBindings.putArray(key);
+            bindings.addObject().put("HostPort", String.valueOf(hostPort));
+        });
+        if (spec.network() != null) {
+            hostConfig.put("NetworkMode", spec.network());
+        }
+        ArrayNode capAdd = hostConfig.putArray("CapAdd");
+        spec.capAdd().forEach(capAdd::add);
+        if (spec.restartPolicy() != null) {
+            hostConfig.putObject("RestartPolicy").put("Name", spec.restartPolicy());
+        }
+        if (spec.memoryBytes() != null) {
+            hostConfig.put("Memory", spec.memoryBytes());
+        }
+        return body;
+    }
+
+    /**
+     * The container's state, or null if there is no such container.
+     */
+    public ContainerState inspectContainer(String container) throws IOException {
+        try (Response response = exchange("GET", "/containers/" + segment(container) + "/json", null, null, null)) {
+            if (response.status == 404) {
+                return null;
+            }
+            JsonNode inspected = json(response);
+            JsonNode state = inspected.path("State");
+            JsonNode health = state.path("Health");
+            return new ContainerState(
+                    inspected.path("Id").asText(),
+                    inspected.path("Name").asText().replaceFirst("^/", ""),
+                    state.path("Status").asText(),
+                    state.path("Running").asBoolean(),
+                    state.path("ExitCode").asInt(),
+                    health.isObject() ? health.path("Status").asText(null) : null);
+        }
+    }
+
+    /**
+     * Removes a container, killing it first when {@code force}. False if there was no such container.
+     */
+    public boolean remove(String container, boolean force) throws IOException {
+        try (Response response = exchange("DELETE", "/containers/" + segment(container) + "?force=" + force, null, null, null)) {
+            if (response.status == 404) {
+                return false;
+            }
+            check(response);
+            return true;
+        }
+    }
+
+    /**
+     * The last {@code tail} lines the container wrote to stdout and stderr.
+     */
+    public String logs(String container, int tail) throws IOException {
+        try (Response response = exchange("GET", "/containers/" + segment(container) + "/logs?stdout=1&stderr=1&tail=" + tail,
+                null, null, null)) {
+            check(response);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            demux(response.body, output, output);
+            return output.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Runs a command in the container and returns its stdout; fails with its stderr if it exits non-zero.
+     */
+    public String exec(String container, String... command) throws IOException {
+        ObjectNode create = JSON.createObjectNode();
+        create.put("AttachStdout", true);
+        create.put("AttachStderr", true);
+        ArrayNode cmd = create.putArray("Cmd");
+        Arrays.stream(command).forEach(cmd::add);
+        String execId;
+        try (Response response = exchange("POST", "/containers/" + segment(container) + "/exec", JSON_TYPE,
+                JSON.writeValueAsBytes(create), null)) {
+            execId = json(response).path("Id").asText();
+        }
+
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        byte[] start = "{\"Detach\":false,\"Tty\":false}".getBytes(StandardCharsets.UTF_8);
+        try (Response response = exchange("POST", "/exec/" + execId + "/start", JSON_TYPE, start, null)) {
+            check(response);
+            demux(response.body, stdout, stderr);
+        }
+        int exitCode;
+        try (Response response = exchange("GET", "/exec/" + execId + "/json", null, null, null)) {
+            exitCode = json(response).path("ExitCode").asInt(-1);
+        }
+        if (exitCode != 0) {
+            throw new IOException(String.join(" ", command) + " exited with " + exitCode + ": "
+                    + stderr.toString(StandardCharsets.UTF_8).trim());
+        }
+        return stdout.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies one file out of a container, like {@code docker cp container:path target}.
+     */
+    public void copyFrom(String container, String path, Path target) throws IOException {
+        try (Response response = exchange("GET", "/containers/" + segment(container) + "/archive?path=" + query(path),
+                null, null, null)) {
+            check(response);
+            Tar.Reader archive = new Tar.Reader(response.body);
+            Tar.Entry entry;
+            while ((entry = archive.next()) != null) {
+                if (entry.isFile()) {
+                    Files.copy(archive.content(), target, StandardCopyOption.REPLACE_EXISTING);
+                    return;
+                }
+            }
+            throw new IOException(container + ":" + path + " is not a file");
+        }
+    }
+
+    /**
+     * Demultiplexes a non-TTY attach stream: frames of an 8-byte header (stream, 0, 0, 0, big-endian
+     * length) followed by that many bytes.
+     */
+    private static void demux(InputStream in, OutputStream stdout, OutputStream stderr) throws IOException {
+        byte[] header = new byte[8];
+        byte[] buffer = new byte[16 * 1024];
+        while (true) {
+            int read = in.readNBytes(header, 0, header.length);
+            if (read == 0) {
+                return;
+            }
+            if (read < header.length) {
+                throw new EOFException("Stream ends inside a frame header");
+            }
+            OutputStream target = header[0] == 2 ? stderr : stdout;
+            long remaining = ((header[4] & 0xffL) << 24) | ((header[5] & 0xff) << 16) | ((header[6] & 0xff) << 8) | (header[7] & 0xff);
+            while (remaining > 0) {
+                int chunk = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (chunk < 0) {
+                    throw new EOFException("Stream ends inside a frame");
+                }
+                target.write(buffer, 0, chunk);
+                remaining -= chunk;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- images
+
+    /**
+     * The image's id and size, or null if there is no such image.
+     */
+    public ImageInfo inspectImage(String image) throws IOException {
+        try (Response response = exchange("GET", "/images/" + segment(image) + "/json", null, null, null)) {
+            if (response.status == 404) {
+                return null;
+            }
+            JsonNode inspected = json(response);
+            return new ImageInfo(inspected.path("Id").asText(), inspected.path("Size").asLong());
+        }
+    }
+
+    /**
+     * Pulls an image (":latest" unless the reference says otherwise), passing on the daemon's status lines.
+     */
+    public void pull(String image, Consumer<String> output) throws IOException {
+        boolean tagged = image.contains("@") || image.lastIndexOf(':') > image.lastIndexOf('/');
+        String reference = tagged ? image : image + ":latest";
+        try (Response response = exchange("POST", "/images/create?fromImage=" + query(reference), null, null, null)) {
+            check(response);
+            MappingIterator<JsonNode> messages = JSON.readerFor(JsonNode.class).readValues(response.body);
+            while (messages.hasNextValue()) {
+                JsonNode message = messages.nextValue();
+                if (message.hasNonNull("error")) {
+                    throw new DockerException(500, message.get("error").asText());
+                }
+                // Progress bars arrive many times a second; only the status changes are worth a line.
+                if (message.hasNonNull("status") && !message.has("progress")) {
+                    String id = message.path("id").asText("");
+                    output.accept((id.isEmpty() ? "" : id + ": ") + message.get("status").asText());
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds {@code contextDir} with BuildKit and tags the result, like {@code DOCKER_BUILDKIT=1 docker build -t tag .}.
+     * The context is tarred on the fly (honouring .dockerignore) on an io thread while this one reads the
+     * progress, which is turned into the lines {@code --progress=plain} would print. Returns the image id.
+     */
+    public String build(Path contextDir, String tag, Consumer<String> output) throws IOException {
+        Path ignoreFile = contextDir.resolve(".dockerignore");
+        List<String> ignoreLines = Files.exists(ignoreFile) ? Files.readAllLines(ignoreFile) : List.of();
+        Predicate<String> include = dockerignore(ignoreLines);
+        // With "!" exceptions an excluded directory may still hold files that go in.
+        boolean descendExcluded = ignoreLines.stream().anyMatch(line -> line.trim().startsWith("!"));
+
+        BuildProgress progress = new BuildProgress(output);
+        String imageId = null;
+        try (Response response = exchange("POST", "/build?version=2&rm=1&forcerm=1&t=" + query(tag), "application/x-tar", null,
+                out -> Tar.write(contextDir, include, descendExcluded, out))) {
+            check(response);
+            MappingIterator<JsonNode> messages = JSON.readerFor(JsonNode.class).readValues(response.body);
+            while (messages.hasNextValue()) {
+                JsonNode message = messages.nextValue();
+                if (message.hasNonNull("error")) {
+                    throw new DockerException(500, message.get("error").asText().trim());
+                }
+                String id = message.path("id").asText("");
+                JsonNode aux = message.get("aux");
+                if (id.equals("moby.buildkit.trace") && aux != null) {
+                    progress.trace(Base64.getDecoder().decode(aux.asText()));
+                } else if (id.equals("moby.image.id") && aux != null) {
+                    imageId = aux.path("ID").asText(null);
+                } else if (message.hasNonNull("stream")) {
+                    progress.text(message.get("stream").asText());
+                }
+            }
+            response.awaitUpload();
+        }
+        return imageId;
+    }
+
+    /**
+     * Which context paths a {@code .dockerignore} lets through, by the CLI's rules: the last matching
+     * pattern wins, "!" takes a path back in, a pattern matching a directory covers everything below it,
+     * and the Dockerfile and .dockerignore itself are always sent.
+     */
+    static Predicate<String> dockerignore(List<String> lines) {
+        record Rule(Pattern pattern, boolean exclude) {}
+        List<Rule> rules = new ArrayList<>();
+        for (String line : lines) {
+            String pattern = line.trim();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                continue;
+            }
+            boolean exclude = !pattern.startsWith("!");
+            if (!exclude) {
+                pattern = pattern.substring(1).trim();
+            }
+            pattern = pattern.replaceFirst("^(\\./|/)+", "").replaceFirst("/+$", "");
+            if (!pattern.isEmpty()) {
+                rules.add(new Rule(glob(pattern), exclude));
+            }
+        }
+        return path -> {
+            if (path.equals("Dockerfile") || path.equals(".dockerignore")) {
+                return true;
+            }
+            boolean excluded = false;
+            for (Rule rule : rules) {
+                for (String candidate = path; candidate != null;
+                     candidate = candidate.lastIndexOf('/') > 0 ? candidate.substring(0, candidate.lastIndexOf('/')) : null) {
+                    if (rule.pattern().matcher(candidate).matches()) {
+                        excluded = rule.exclude();
+                        break;
+                    }
+                }
+            }
+            return !excluded;
+        };
+    }
+
+    /**
+     * A Go filepath.Match pattern with Docker's "**" (any number of directories) as a regex.
+     */
+    private static Pattern glob(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                boolean slash = i + 2 < pattern.length() && pattern.charAt(i + 2) == '/';
+                regex.append(slash ? "(?:.*/)?" : ".*");
+                i += slash ? 2 : 1;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '[') {
+                int close = pattern.indexOf(']', i + 1);
+                if (close < 0) {
+                    regex.append("\\[");
+                } else {
+                    String set = pattern.substring(i + 1, close);
+                    regex.append('[').append(set.startsWith("^") || set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+                    i = close;
+                }
+            } else if (c == '\\' && i + 1 < pattern.length()) {
+                regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Turns the build stream into log lines. BuildKit's progress arrives as base64 control.StatusResponse
+     * protobufs in the "aux" field of "moby.buildkit.trace" messages; vertexes are numbered in the order
+     * they first appear, as the CLI does.
+     */
+    static final class BuildProgress {
+        private final Consumer<String> output;
+        private final Map<String, Integer> numbers = new HashMap<>();
+        private final Set<String> finished = new HashSet<>();
+
+        BuildProgress(Consumer<String> output) {
+            this.output = output;
+        }
+
+        void text(String stream) {
+            for (String line : stream.split("\n")) {
+                if (!line.isBlank()) {
+                    output.accept(line.stripTrailing());
+                }
+            }
+        }
+
+        void trace(byte[] statusResponse) {
+            try {
+                ProtoReader response = new ProtoReader(statusResponse, 0, statusResponse.length);
+                while (response.next()) {
+                    switch (response.field()) {
+                        case 1 -> vertex(response.message());
+                        case 3 -> log(response.message());
+                        default -> response.skip();
+                    }
+                }
+            } catch (RuntimeException e) {
+                // A message we can't read costs a few progress lines, not the build.
+            }
+        }
+
+        private void vertex(ProtoReader vertex) {
+            String digest = "";
+            String name = "";
+            String error = "";
+            boolean cached = false;
+            Long started = null;
+            Long completed = null;
+            while (vertex.next()) {
+                switch (vertex.field()) {
+                    case 1 -> digest = vertex.string();
+                    case 3 -> name = vertex.string();
+                    case 4 -> cached = vertex.varint() != 0;
+                    case 5 -> started = timestamp(vertex.message());
+                    case 6 -> completed = timestamp(vertex.message());
+                    case 7 -> error = vertex.string();
+                    default -> vertex.skip();
+                }
+            }
+            boolean announced = numbers.containsKey(digest);
+            int number = number(digest);
+            if (!announced && !name.isEmpty()) {
+                output.accept("#" + number + " " + name);
+            }
+            if (finished.contains(digest)) {
+                return;
+            }
+            if (!error.isEmpty()) {
+                finished.add(digest);
+                output.accept("#" + number + " ERROR: " + error);
+            } else if (cached) {
+                finished.add(digest);
+                output.accept("#" + number + " CACHED");
+            } else if (completed != null) {
+                finished.add(digest);
+                output.accept(started != null
+                        ? String.format(Locale.ROOT, "#%d DONE %.1fs", number, (completed - started) / 1e9)
+                        : "#" + number + " DONE");
+            }
+        }
+
+        private void log(ProtoReader log) {
+            String vertex = "";
+            byte[] message = new byte[0];
+            while (log.next()) {
+                switch (log.field()) {
+                    case 1 -> vertex = log.string();
+                    case 4 -> message = log.bytes();
+                    default -> log.skip();
+                }
+            }
+            int number = number(vertex);
+            for (String line : new String(message, StandardCharsets.UTF_8).split("\n")) {
+                if (!line.isBlank()) {
+                    output.accept("#" + number + " " + line.stripTrailing());
+                }
+            }
+        }
+
+        private int number(String digest) {
+            return numbers.computeIfAbsent(digest, d -> numbers.size() + 1);
+        }
+
+        /**
+         * A google.protobuf.Timestamp in nanoseconds.
+         */
+        private static long timestamp(ProtoReader timestamp) {
+            long seconds = 0;
+            long nanos = 0;
+            while (timestamp.next()) {
+                switch (timestamp.field()) {
+                    case 1 -> seconds = timestamp.varint();
+                    case 2 -> nanos = timestamp.varint();
+                    default -> timestamp.skip();
+                }
+            }
+            return seconds * 1_000_000_000L + nanos;
+        }
+    }
+
+    /**
+     * Reads protobuf wire format, one field at a time.
+     */
+    static final class ProtoReader {
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+        private int tag;
+
+        ProtoReader(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.position = start;
+            this.end = end;
+        }
+
+        boolean next() {
+            if (position >= end) {
+                return false;
+            }
+            tag = (int) varint();
+            return true;
+        }
+
+        int field() {
+            return tag >>> 3;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        byte[] bytes() {
+            int length = length();
+            byte[] value = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return value;
+        }
+
+        String string() {
+            return new String(bytes(), StandardCharsets.UTF_8);
+        }
+
+        ProtoReader message() {
+            int length = length();
+            ProtoReader message = new ProtoReader(bytes, position, position + length);
+            position += length;
+            return message;
+        }
+
+        void skip() {
+            switch (tag & 7) {
+                case 0 -> varint();
+                case 1 -> position += 8;
+                case 2 -> position += length();
+                case 5 -> position += 4;
+                default -> throw new IllegalArgumentException("Unsupported wire type " + (tag & 7));
+            }
+        }
+
+        private int length() {
+            long length = varint();
+            if (length < 0 || position + length > end) {
+                throw new IllegalArgumentException("Field runs past the end of the message");
+            }
+            return (int) length;
+        }
+    }
+
+    // ---------------------------------------------------------------- events
+
+    /**
+     * Follows {@code GET /events}; e.g. {@code {"container": ["shop-blue"], "event": ["die"]}}.
+     * Close the stream to stop.
+     */
+    public EventStream events(Map<String, List<String>> filters) throws IOException {
+        Response response = exchange("GET", "/events?filters=" + query(JSON.writeValueAsString(filters)), null, null, null);
+        try {
+            check(response);
+            return new EventStream(response);
+        } catch (IOException e) {
+            response.close();
+            throw e;
+        }
+    }
+
+    public static final class EventStream implements Closeable {
+        private final Response response;
+        private final MappingIterator<JsonNode> messages;
+        private volatile boolean closed;
+
+        private EventStream(Response response) throws IOException {
+            this.response = response;
+            this.messages = JSON.readerFor(JsonNode.class).readValues(response.body);
+        }
+
+        /**
+         * Blocks until the next event; null once the stream has ended or been closed.
+         */
+        public Event next() throws IOException {
+            try {
+                if (!messages.hasNextValue()) {
+                    return null;
+                }
+                JsonNode event = messages.nextValue();
+                JsonNode actor = event.path("Actor");
+                JsonNode attributes = actor.path("Attributes");
+                return new Event(
+                        event.path("Type").asText(null),
+                        event.path("Action").asText(event.path("status").asText(null)),
+                        actor.path("ID").asText(event.path("id").asText(null)),
+                        attributes.path("name").asText(null),
+                        attributes.hasNonNull("exitCode") ? attributes.get("exitCode").asInt() : null);
+            } catch (IOException e) {
+                if (closed) {
+                    return null;
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            response.abort();
+        }
+    }
+
+    // ---------------------------------------------------------------- HTTP/1.1 over the socket
+
+    @FunctionalInterface
+    private interface Upload {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Sends one request and reads the response head. {@code body} goes with a Content-Length;
+     * {@code upload} is streamed chunked from an io thread, so the daemon can answer (a build's
+     * progress) while it is still reading. Close the response to return the connection to the pool.
+     */
+    private Response exchange(String method, String path, String contentType, byte[] body, Upload upload) throws IOException {
+        String target = "/" + apiVersion + path;
+        while (true) {
+            Connection connection = idle.pollFirst();
+            boolean reused = connection != null;
+            if (!reused) {
+                connection = connect();
+            }
+            try {
+                StringBuilder head = new StringBuilder()
+                        .append(method).append(' ').append(target).append(" HTTP/1.1\r\n")
+                        .append("Host: docker\r\n")
+                        .append("User-Agent: kasion-control-plane\r\n");
+                if (contentType != null) {
+                    head.append("Content-Type: ").append(contentType).append("\r\n");
+                }
+                if (upload != null) {
+                    head.append("Transfer-Encoding: chunked\r\n");
+                } else if (body != null || method.equals("POST") || method.equals("PUT")) {
+                    head.append("Content-Length: ").append(body != null ? body.length : 0).append("\r\n");
+                }
+                connection.out.write(head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+                if (body != null) {
+                    connection.out.write(body);
+                }
+                connection.out.flush();
+
+                Future<?> uploading = null;
+                if (upload != null) {
+                    Connection uploadTo = connection;
+                    uploading = buildExecutors.io().submit(() -> {
+                        try {
+                            ChunkedOutputStream chunked = new ChunkedOutputStream(uploadTo.out);
+                            BufferedOutputStream buffered = new BufferedOutputStream(chunked, 64 * 1024);
+                            upload.writeTo(buffered);
+                            buffered.flush();
+                            chunked.finish();
+                        } catch (IOException | RuntimeException e) {
+                            uploadTo.close(); // the daemon would wait for the rest of the body forever
+                            throw e;
+                        }
+                        return null;
+                    });
+                }
+                Response response = readResponse(connection, method.equals("HEAD"));
+                response.upload = uploading;
+                return response;
+            } catch (IOException e) {
+                connection.close();
+                // The daemon drops idle connections; one that fails before any answer is retried on a fresh one.
+                if (reused && !connection.answered && upload == null) {
+                    continue;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private Connection connect() throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Connection(channel);
+    }
+
+    private void release(Connection connection) {
+        if (idle.size() < maxIdleConnections) {
+            idle.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    private Response readResponse(Connection connection, boolean head) throws IOException {
+        String statusLine = readLine(connection.in);
+        if (statusLine == null) {
+            throw new EOFException("Docker closed the connection");
+        }
+        connection.answered = true;
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Not an HTTP response: " + statusLine);
+        }
+        int status = Integer.parseInt(parts[1]);
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while ((line = readLine(connection.in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Docker closed the connection inside the response head");
+        }
+
+        boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+        BodyStream body;
+        if (head || status == 204 || status == 304 || status / 100 == 1) {
+            body = new FixedLengthStream(connection.in, 0);
+        } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            body = new ChunkedStream(connection.in);
+        } else if (headers.containsKey("content-length")) {
+            body = new FixedLengthStream(connection.in, Long.parseLong(headers.get("content-length")));
+        } else {
+            // Hijacked streams (exec) run until the daemon closes the connection.
+            body = new UntilClosedStream(connection.in);
+            keepAlive = false;
+        }
+        return new Response(status, body, connection, keepAlive);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    private static JsonNode json(Response response) throws IOException {
+        check(response);
+        return JSON.readTree(response.body);
+    }
+
+    private static void check(Response response) throws IOException {
+        if (response.status < 400) {
+            return;
+        }
+        String text = new String(response.body.readAllBytes(), StandardCharsets.UTF_8).trim();
+        String message = text;
+        try {
+            JsonNode error = JSON.readTree(text);
+            if (error != null && error.hasNonNull("message")) {
+                message = error.get("message").asText();
+            }
+        } catch (IOException ignored) {
+            // Not JSON; the text is the message.
+        }
+        throw new DockerException(response.status, message.isEmpty() ? "HTTP " + response.status : message);
+    }
+
+    private static String query(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A name or image reference as a path segment; the API routes take image references with '/' and ':' as they are.
+     */
+    private static String segment(String value) {
+        return query(value).replace("%2F", "/").replace("%3A", ":");
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final InputStream in;
+        final OutputStream out;
+        boolean answered;
+
+        /**
+         * Streams straight on the channel, so an upload on one thread and a read on another don't share a lock.
+         */
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.in = new BufferedInputStream(new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+                }
+            }, 16 * 1024);
+            this.out = new BufferedOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            }, 16 * 1024);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private final class Response implements Closeable {
+        final int status;
+        final BodyStream body;
+        final Connection connection;
+        final boolean keepAlive;
+        Future<?> upload;
+        private boolean closed;
+
+        Response(int status, BodyStream body, Connection connection, boolean keepAlive) {
+            this.status = status;
+            this.body = body;
+            this.connection = connection;
+            this.keepAlive = keepAlive;
+        }
+
+        /**
+         * Rethrows what went wrong sending the request body, once the response has been read.
+         */
+        void awaitUpload() throws IOException {
+            if (upload == null) {
+                return;
+            }
+            try {
+                upload.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending the request body", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+        }
+
+        /**
+         * Drops the connection, e.g. to stop an event stream from another thread.
+         */
+        void abort() {
+            closed = true;
+            connection.close();
+            if (upload != null) {
+                upload.cancel(true);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean reusable = keepAlive && (upload == null || upload.isDone());
+            if (reusable) {
+                try {
+                    byte[] buffer = new byte[8 * 1024];
+                    int drained = 0;
+                    int read;
+                    while (drained <= MAX_DRAIN_BYTES && (read = body.read(buffer)) >= 0) {
+                        drained += read;
+                    }
+                    reusable = body.finished() && (upload == null || upload.state() == Future.State.SUCCESS);
+                } catch (IOException e) {
+                    reusable = false;
+                }
+            }
+            if (reusable) {
+                release(connection);
+            } else {
+                abort();
+            }
+        }
+    }
+
+    private abstract static class BodyStream extends InputStream {
+        abstract boolean finished();
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+    }
+
+    private static final class FixedLengthStream extends BodyStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException("Docker closed the connection inside a response");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        boolean finished() {
+            return remaining == 0;
+        }
+    }
+
+    private static final class ChunkedStream extends BodyStream {
+        private final InputStream in;
+        private long chunkRemaining;
+        private boolean afterChunk;
+        private boolean done;
+
+        ChunkedStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (chunkRemaining == 0) {
+                if (afterChunk && readLine(in) == null) {
+                    throw new EOFException("Docker closed the connection inside a chunked response");
+                }
+                String sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    throw new EOFException("Docker closed the connection inside a chunked response");
+                }
+                int extension = sizeLine.indexOf(';');
+                chunkRemaining = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+                afterChunk = true;
+                if (chunkRemaining == 0) {
+                    String trailer;
+                    while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {
+                        // Trailers carry nothing the API uses.
+                    }
+                    done = true;
+                    return -1;
+                }
+            }
+            int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (read < 0) {
+                throw new EOFException("Docker closed the connection inside a chunk");
+            }
+            chunkRemaining -= read;
+            return read;
+        }
+
+        @Override
+        boolean finished() {
+            return done;
+        }
+    }
+
+    private static final class UntilClosedStream extends BodyStream {
+        private final InputStream in;
+
+        UntilClosedStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        boolean finished() {
+            return false;
+        }
+    }
+
+    private static final class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        void finish() throws IOException {
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+    }
+}
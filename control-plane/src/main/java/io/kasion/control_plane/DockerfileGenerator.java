@@ -2,15 +2,56 @@ package io.kasion.control_plane;
 
 import org.springframework.stereotype.Service;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 @Service
 public class DockerfileGenerator {
 
+    /**
+     * How the runtime image starts the app. Everything but JVM trades build time for startup time,
+     * which is paid on every blue/green rollout and rollback.
+     */
+    public enum StartupMode {
+        /** Layered jar and JarLauncher, as before. */
+        JVM,
+        /** A training run at build time writes an AppCDS archive that the container starts from. */
+        APPCDS,
+        /** Spring AOT-processed bean definitions ({@code -Dspring.aot.enabled}), plus the AppCDS archive. */
+        AOT,
+        /**
+         * A CRaC checkpoint of the started app, taken at build time and restored on start. Needs the
+         * org.crac dependency in the app, a BuildKit builder that allows {@code security.insecure}, and
+         * runs as root with CHECKPOINT_RESTORE. Falls back to a cold start if no checkpoint was taken.
+         */
+        CRAC,
+        /**
+         * A GraalVM native executable, see {@link #generateNativeBuild}. No JVM at runtime, so no JMX
+         * exporter or Jolokia agent; metrics come from the actuator. The engine falls back to JVM when
+         * the native build fails.
+         */
+        NATIVE
+    }
+
     /**
      * 🆕 OPTION A: Standard JVM Build (Reliable, Fast, Compatible)
      * This is our new Default.
-     * @param useWrapper If true, uses the project's 'mvnw'. If false, uses system 'mvn'.
      */
     public String generateStandardBuild(String javaVersion, BuildEngine.BuildTool buildTool) {
+        return generateStandardBuild(javaVersion, buildTool, StartupMode.JVM);
+    }
+
+    /**
+     * The builder stage is ordered so dependencies are their own layer: build descriptors and the
+     * wrapper are copied first, dependencies resolve into a BuildKit cache mount, and only then is the
+     * rest of the repository copied (module poms, buildSrc, lombok.config, ...). A change below the root
+     * build files reuses everything above the {@code COPY . .} line.
+     *
+     * The jar that ships is the first Spring Boot jar (one with BOOT-INF/) the build produced, in any
+     * module, so {@code -plain}, {@code -sources} and library jars next to it don't matter.
+     */
+    public String generateStandardBuild(String javaVersion, BuildEngine.BuildTool buildTool, StartupMode startupMode) {
+        boolean aot = startupMode == StartupMode.AOT;
         String buildStage;
 
         if (buildTool == BuildEngine.BuildTool.MAVEN) {
@@ -18,43 +59,88 @@ public class DockerfileGenerator {
             // 🏗️ STRATEGY 1: Maven Wrapper Build
             // ---------------------------------------------------------
             buildStage = String.format("""
+                # syntax=docker/dockerfile:1
                 FROM eclipse-temurin:%s-jdk-jammy as builder
                 WORKDIR /app
                 
-                # 1. Copy Project Files
-                COPY . .
+                # 1. Copy only what dependency resolution needs
+                COPY mvnw pom.xml ./
+                COPY .mvn .mvn
+                RUN chmod +x mvnw
                 
-                # 2. Build using the wrapper
-                # Ensure execution permissions and skip tests
-                RUN chmod +x mvnw && ./mvnw clean package -DskipTests
-                """, javaVersion);
+                # 2. Resolve dependencies into the shared ~/.m2 cache
+                #    (a multi-module build can't resolve without its modules; the build step does it then)
+                RUN --mount=type=cache,target=/root/.m2 ./mvnw dependency:go-offline -B -q \\
+                    || echo "Dependencies will resolve during the build"
+                
+                # 3. Copy the rest of the project and build against the same cache
+                COPY . .
+                RUN --mount=type=cache,target=/root/.m2 ./mvnw %s -B -DskipTests \\
+                    && %s
+                """, javaVersion, aot ? "compile spring-boot:process-aot package" : "package", copyBootJar("target"));
         } else if (buildTool == BuildEngine.BuildTool.GRADLE) {
             // ---------------------------------------------------------
             // 🏗️ STRATEGY 2: Gradle Wrapper Build
             // ---------------------------------------------------------
             buildStage = String.format("""
+                # syntax=docker/dockerfile:1
                 FROM gradle:8-jdk%s as builder
                 WORKDIR /app
+                ENV GRADLE_USER_HOME=/root/.gradle
                 
-                # 1. Copy Project Files
-                COPY . .
+                # 1. Copy only what dependency resolution needs
+                COPY gradlew settings.gradle* build.gradle* gradle.properties* ./
+                COPY gradle gradle
+                RUN chmod +x gradlew
+                
+                # 2. Resolve dependencies into the shared ~/.gradle cache
+                #    (subprojects and buildSrc aren't copied yet; if configuring needs them, the build step resolves)
+                RUN --mount=type=cache,target=/root/.gradle ./gradlew dependencies --no-daemon -q \\
+                    || echo "Dependencies will resolve during the build"
                 
-                # 2. Build using the wrapper
-                # Ensure execution permissions and skip tests
-                RUN chmod +x gradlew && ./gradlew bootJar --no-daemon
-                """, javaVersion);
+                # 3. Copy the rest of the project and build against the same cache
+                COPY . .
+                RUN --mount=type=cache,target=/root/.gradle %s \\
+                    && %s
+                """, javaVersion, aot
+                    // The AOT plugin ships with the Boot plugin; apply it without touching the app's build.
+                    ? "echo 'allprojects { plugins.withId(\"org.springframework.boot\") { apply plugin: \"org.springframework.boot.aot\" } }' > /tmp/aot.gradle \\\n    && ./gradlew bootJar --no-daemon --init-script /tmp/aot.gradle"
+                    : "./gradlew bootJar --no-daemon",
+                    copyBootJar("build/libs"));
         } else {
             throw new IllegalArgumentException("Unsupported build tool: " + buildTool);
         }
 
-        return buildStage + String.format("""
+        return switch (startupMode) {
+            case JVM -> buildStage + layeredRuntime(javaVersion);
+            case APPCDS, AOT -> buildStage + explodedClasspath(javaVersion) + cdsRuntime(javaVersion, aot);
+            case CRAC -> buildStage.replaceFirst("# syntax=docker/dockerfile:1\n", "# syntax=docker/dockerfile:1-labs\n")
+                    + explodedClasspath(javaVersion) + cracRuntime(javaVersion);
+            case NATIVE -> throw new IllegalArgumentException("Native builds need the artifact name, see generateNativeBuild");
+        };
+    }
+
+    /**
+     * Shell that copies the build's Spring Boot jar to /app/application.jar. Jars are looked for in every
+     * {@code outputDir} (target, build/libs) of the project; the first one with a BOOT-INF/ directory wins.
+     */
+    static String copyBootJar(String outputDir) {
+        return String.format("""
+                { for jar in $(find . -path '*/%s/*.jar' ! -name '*-plain.jar' ! -name '*-sources.jar' ! -name '*-javadoc.jar' ! -name '*-tests.jar' | sort); do \\
+                        if jar tf "$jar" | grep -q '^BOOT-INF/'; then cp "$jar" /app/application.jar; break; fi; \\
+                    done; \\
+                    test -f /app/application.jar || { echo "No Spring Boot jar found under %s/"; exit 1; }; }""", outputDir, outputDir);
+    }
+
+    private static String layeredRuntime(String javaVersion) {
+        return String.format("""
 
             # ---------------------------------------------------------
             # 🚀 STAGE 2: Extract Layers for Caching
             # ---------------------------------------------------------
             FROM eclipse-temurin:%s-jre-jammy as extractor
             WORKDIR /app
-            COPY --from=builder /app/build/libs/*.jar app.jar
+            COPY --from=builder /app/application.jar app.jar
             RUN java -Djarmode=layertools -jar app.jar extract
 
             # ---------------------------------------------------------
@@ -89,25 +175,223 @@ public class DockerfileGenerator {
     }
 
     /**
-     * 💎 OPTION B: Native Image Build (The "Pro" Feature)
-     * Saved for later use.
+     * CDS and CRaC need the app on a plain class path (CDS can't archive classes from nested jars).
+     * The jar is unpacked, the app's own classes go back into a jar of their own (the JVM refuses to
+     * dump an archive with a non-empty directory on the class path), and {@code /app/launch.args} gets
+     * the class path in Boot's own order (BOOT-INF/classpath.idx) plus the main class, for
+     * {@code java @/app/launch.args}.
      */
-    public String generateNativeBuild(String artifactId, String javaVersion) {
-        return """
-            FROM ghcr.io/graalvm/native-image-community:21 AS builder
+    private static String explodedClasspath(String javaVersion) {
+        return String.format("""
+
+            # ---------------------------------------------------------
+            # 🚀 STAGE 2: Unpack the Jar onto a Plain Class Path
+            # ---------------------------------------------------------
+            FROM eclipse-temurin:%s-jdk-jammy as extractor
+            WORKDIR /app
+            COPY --from=builder /app/application.jar app.jar
+            RUN mkdir exploded && cd exploded && jar -xf ../app.jar \\
+                && jar -cf /app/classes.jar -C BOOT-INF/classes . \\
+                && echo "-cp /app/classes.jar:$(sed -n 's|^- "BOOT-INF/lib/\\(.*\\)"$|/app/lib/\\1|p' BOOT-INF/classpath.idx | paste -sd: -)" > /app/launch.args \\
+                && sed -n 's/^Start-Class: *//p' META-INF/MANIFEST.MF | tr -d '\\r' >> /app/launch.args
+            """, javaVersion);
+    }
+
+    private static String cdsRuntime(String javaVersion, boolean aot) {
+        String aotFlag = aot ? " -Dspring.aot.enabled=true" : "";
+        String aotArg = aot ? " \"-Dspring.aot.enabled=true\"," : "";
+        return String.format("""
+
+            # ---------------------------------------------------------
+            # 🚀 STAGE 3: Runtime Image with an AppCDS Archive
+            # ---------------------------------------------------------
+            FROM eclipse-temurin:%s-jre-jammy
             WORKDIR /app
-            COPY mvnw .
-            COPY .mvn .mvn
-            COPY pom.xml .
-            COPY src src
-            RUN ./mvnw -Pnative native:compile -DskipTests
-            
-            FROM ubuntu:jammy
             RUN groupadd -r kasion && useradd -r -g kasion kasion
+
+            COPY control-plane/jmx_exporter/jmx_prometheus_javaagent.jar /app/jmx_prometheus_javaagent.jar
+            COPY control-plane/jmx_exporter/jmx_config.yml /app/jmx_config.yml
+            COPY control-plane/jolokia/jolokia-jvm-agent.jar /app/jolokia-jvm-agent.jar
+            COPY --from=extractor /app/exploded/BOOT-INF/lib/ /app/lib/
+            COPY --from=extractor /app/classes.jar /app/classes.jar
+            COPY --from=extractor /app/launch.args /app/launch.args
+
+            # Training run: start the app until its context is refreshed, then archive every class it loaded.
+            # Without the services it needs (e.g. its database) the archive is smaller but still valid.
+            RUN java -XX:ArchiveClassesAtExit=/app/application.jsa -Dspring.context.exit=onRefresh%s @/app/launch.args \\
+                || echo "Training run failed; the archive covers the classes loaded until then"
             USER kasion
+
+            EXPOSE 8080
+            EXPOSE 9404
+            EXPOSE 8778
+
+            HEALTHCHECK --interval=30s --timeout=3s --start-period=5s --retries=3 \
+              CMD curl -f http://localhost:8080/actuator/health || exit 1
+
+            # -Xshare:auto: a missing or mismatched archive means a normal start, not a failed one.
+            ENTRYPOINT ["java", "-XX:SharedArchiveFile=/app/application.jsa", "-Xshare:auto",%s "-XX:MaxRAMPercentage=80.0", "-javaagent:/app/jmx_prometheus_javaagent.jar=9404:/app/jmx_config.yml", "-javaagent:/app/jolokia-jvm-agent.jar=port=8778,host=0.0.0.0", "@/app/launch.args"]
+            """, javaVersion, aotFlag, aotArg);
+    }
+
+    private static String cracRuntime(String javaVersion) {
+        return String.format("""
+
+            # ---------------------------------------------------------
+            # 🚀 STAGE 3: Runtime Image with a CRaC Checkpoint
+            # ---------------------------------------------------------
+            FROM azul/zulu-openjdk:%s-jdk-crac
             WORKDIR /app
-            COPY --from=builder /app/target/%s /app/runner
-            ENTRYPOINT ["/app/runner"]
-            """.formatted(artifactId);
+
+            COPY control-plane/jmx_exporter/jmx_prometheus_javaagent.jar /app/jmx_prometheus_javaagent.jar
+            COPY control-plane/jmx_exporter/jmx_config.yml /app/jmx_config.yml
+            COPY control-plane/jolokia/jolokia-jvm-agent.jar /app/jolokia-jvm-agent.jar
+            COPY --from=extractor /app/exploded/BOOT-INF/lib/ /app/lib/
+            COPY --from=extractor /app/classes.jar /app/classes.jar
+            COPY --from=extractor /app/launch.args /app/launch.args
+
+            # Start the app and let Spring checkpoint it once the context is refreshed. Agents are left
+            # out: their open sockets would make the checkpoint fail. Taking it needs CHECKPOINT_RESTORE,
+            # hence --security=insecure (docker buildx build --allow security.insecure).
+            RUN --security=insecure java -XX:CRaCCheckpointTo=/app/crac -Dspring.context.checkpoint=onRefresh @/app/launch.args; \\
+                if [ -f /app/crac/core.img ]; then echo "CRaC checkpoint created"; \\
+                else rm -rf /app/crac; echo "CRaC checkpoint failed; the image will cold-start"; fi
+
+            EXPOSE 8080
+            EXPOSE 9404
+            EXPOSE 8778
+
+            HEALTHCHECK --interval=30s --timeout=3s --start-period=5s --retries=3 \
+              CMD curl -f http://localhost:8080/actuator/health || exit 1
+
+            # Restoring runs as root: criu needs the CHECKPOINT_RESTORE capability the container is given.
+            ENTRYPOINT ["/bin/sh", "-c", "if [ -f /app/crac/core.img ]; then exec java -XX:CRaCRestoreFrom=/app/crac; else exec java -XX:MaxRAMPercentage=80.0 -javaagent:/app/jmx_prometheus_javaagent.jar=9404:/app/jmx_config.yml -javaagent:/app/jolokia-jvm-agent.jar=port=8778,host=0.0.0.0 @/app/launch.args; fi"]
+            """, javaVersion);
+    }
+
+    /**
+     * 💎 OPTION B: Native Image Build (The "Pro" Feature)
+     * Compiles the app ahead of time with GraalVM for {@code javaVersion} (17 or later) and ships only the
+     * executable. {@code artifactName} is the name native-image gives it, see {@link #nativeArtifactName}.
+     *
+     * Maven uses the {@code native} profile that spring-boot-starter-parent declares. Gradle gets the
+     * GraalVM build tools plugin from an init script when the build doesn't apply it already.
+     */
+    public String generateNativeBuild(String javaVersion, BuildEngine.BuildTool buildTool, String artifactName) {
+        String buildStage;
+
+        if (buildTool == BuildEngine.BuildTool.MAVEN) {
+            buildStage = String.format("""
+                # syntax=docker/dockerfile:1
+                FROM ghcr.io/graalvm/native-image-community:%s AS builder
+                WORKDIR /app
+                
+                # 1. Copy only what dependency resolution needs
+                COPY mvnw pom.xml ./
+                COPY .mvn .mvn
+                RUN chmod +x mvnw
+                
+                # 2. Resolve dependencies into the shared ~/.m2 cache
+                RUN --mount=type=cache,target=/root/.m2 ./mvnw dependency:go-offline -B -q \\
+                    || echo "Dependencies will resolve during the build"
+                
+                # 3. Copy the rest of the project and compile the native executable against the same cache
+                COPY . .
+                RUN --mount=type=cache,target=/root/.m2 ./mvnw -Pnative native:compile -B -DskipTests \\
+                    && cp target/%s /app/application
+                """, javaVersion, artifactName);
+        } else if (buildTool == BuildEngine.BuildTool.GRADLE) {
+            buildStage = String.format("""
+                # syntax=docker/dockerfile:1
+                FROM ghcr.io/graalvm/native-image-community:%s AS builder
+                WORKDIR /app
+                ENV GRADLE_USER_HOME=/root/.gradle
+                
+                # 1. Copy only what dependency resolution needs
+                COPY gradlew settings.gradle* build.gradle* gradle.properties* ./
+                COPY gradle gradle
+                RUN chmod +x gradlew
+                
+                # 2. Resolve dependencies into the shared ~/.gradle cache
+                #    (subprojects and buildSrc aren't copied yet; if configuring needs them, the build step resolves)
+                RUN --mount=type=cache,target=/root/.gradle ./gradlew dependencies --no-daemon -q \\
+                    || echo "Dependencies will resolve during the build"
+                
+                # 3. Copy the rest of the project and compile the native executable against the same cache
+                COPY . .
+                RUN --mount=type=cache,target=/root/.gradle echo '%s' > /tmp/native.gradle \\
+                    && ./gradlew nativeCompile --no-daemon --init-script /tmp/native.gradle \\
+                    && cp build/native/nativeCompile/%s /app/application
+                """, javaVersion, GRADLE_NATIVE_INIT_SCRIPT, artifactName);
+        } else {
+            throw new IllegalArgumentException("Unsupported build tool: " + buildTool);
+        }
+
+        return buildStage + """
+
+            # ---------------------------------------------------------
+            # 🚀 STAGE 2: Runtime Image with Only the Executable
+            # ---------------------------------------------------------
+            FROM ubuntu:jammy
+            WORKDIR /app
+
+            # Security: Create a non-root user
+            RUN groupadd -r kasion && useradd -r -g kasion kasion
+            USER kasion
+
+            COPY --from=builder /app/application /app/application
+
+            EXPOSE 8080
+
+            ENTRYPOINT ["/app/application"]
+            """;
+    }
+
+    private static final String GRADLE_NATIVE_INIT_SCRIPT =
+            "initscript { repositories { gradlePluginPortal() } dependencies { classpath \"org.graalvm.buildtools:native-gradle-plugin:0.10.2\" } } "
+            + "allprojects { plugins.withId(\"org.springframework.boot\") { if (!plugins.hasPlugin(\"org.graalvm.buildtools.native\")) { apply plugin: org.graalvm.buildtools.gradle.NativeImagePlugin } } }";
+
+    private static final Pattern MAVEN_NON_PROJECT_SECTIONS = Pattern.compile(
+            "<!--.*?-->|<(parent|dependencyManagement|dependencies|build|profiles|reporting)>.*?</\\1>", Pattern.DOTALL);
+    private static final Pattern MAVEN_ARTIFACT_ID = Pattern.compile("<artifactId>\\s*([^<\\s]+)\\s*</artifactId>");
+    private static final Pattern GRADLE_ROOT_PROJECT_NAME = Pattern.compile("rootProject\\.name\\s*=\\s*['\"]([^'\"]+)['\"]");
+
+    /**
+     * The Java feature release a project's version setting names: 8 for "1.8", 21 for "21" or "21-ea".
+     * Throws NumberFormatException when it doesn't start with a number.
+     */
+    public static int javaFeatureVersion(String javaVersion) {
+        String version = javaVersion == null ? "" : javaVersion.trim();
+        if (version.startsWith("1.")) {
+            version = version.substring(2); // the pre-9 scheme: 1.8 is Java 8
+        }
+        int end = 0;
+        while (end < version.length() && Character.isDigit(version.charAt(end))) {
+            end++;
+        }
+        return Integer.parseInt(version.substring(0, end));
+    }
+
+    /**
+     * The file name native-image gives the executable: the project's own artifactId for Maven (not the
+     * parent's), {@code rootProject.name} for Gradle. {@code buildFile} is pom.xml or the settings script;
+     * a Gradle build without one is named after its directory, which is /app in the builder.
+     * Returns null when a pom has no artifactId of its own.
+     */
+    public static String nativeArtifactName(BuildEngine.BuildTool buildTool, String buildFile) {
+        if (buildTool == BuildEngine.BuildTool.MAVEN) {
+            if (buildFile == null) {
+                return null;
+            }
+            Matcher artifactId = MAVEN_ARTIFACT_ID.matcher(MAVEN_NON_PROJECT_SECTIONS.matcher(buildFile).replaceAll(""));
+            return artifactId.find() ? artifactId.group(1) : null;
+        }
+        if (buildFile != null) {
+            Matcher name = GRADLE_ROOT_PROJECT_NAME.matcher(buildFile);
+            if (name.find()) {
+                return name.group(1);
+            }
+        }
+        return "app";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,26 @@
+package io.kasion.control_plane;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/v1/edge")
+public class EdgeController {
+
+    private final EdgeRouter edgeRouter;
+
+    public EdgeController(EdgeRouter edgeRouter) {
+        this.edgeRouter = edgeRouter;
+    }
+
+    /**
+     * Where each project's traffic currently goes, with requests in flight and served so far.
+     */
+    @GetMapping("/routes")
+    public List<EdgeRouter.RouteInfo> routes() {
+        return edgeRouter.routes();
+    }
+}
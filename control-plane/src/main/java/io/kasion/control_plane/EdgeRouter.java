@@ -0,0 +1,411 @@
+package io.kasion.control_plane;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The HTTP entry point for deployed apps, running inside the control plane.
+ *
+ * Each project has one route to its live containers (one per replica); each request goes to the replica
+ * with the fewest requests in flight. A cutover swaps the route atomically, so new requests go to the
+ * new containers right away. The old route is retired, and {@link #swap} returns only after the requests
+ * still running against it have finished (or the drain timeout has passed). No config file gets
+ * rewritten, no process is forked and nothing is reloaded, so no connections are reset.
+ *
+ * Requests are matched to a project by the first label of the Host header ({@code shop.example.com}
+ * goes to project "shop"). Anything else goes to the most recently switched project, which is what
+ * nginx's single {@code location /} used to do. nginx still fronts port 80 for the management UIs and
+ * passes {@code /} through to this router without ever being reloaded.
+ *
+ * Each inbound request runs on its own virtual thread, so waiting on an upstream costs no platform
+ * thread. Upstream calls share one HttpClient, which keeps pooled keep-alive connections to each container.
+ */
+@Component
+public class EdgeRouter {
+
+    public enum Mode {
+        /** Route through this in-process proxy. */
+        EMBEDDED,
+        /** Rewrite nginx/default.conf from its template and reload nginx, as before. */
+        NGINX
+    }
+
+    public record RouteInfo(String project, List<UpstreamInfo> upstreams, int inFlight, long requests) {}
+
+    public record UpstreamInfo(String url, int inFlight, long requests) {}
+
+    /** Headers that describe one connection, not the message; never forwarded (RFC 9110 §7.6.1). */
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-authenticate",
+            "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade", "proxy-connection");
+    /** Set by HttpClient itself; it refuses them from callers. */
+    private static final Set<String> RESTRICTED = Set.of("host", "content-length", "expect", "date", "via");
+
+    private final Mode mode;
+    private final int port;
+    private final Duration drainTimeout;
+    private final Duration upstreamTimeout;
+    private final DeploymentRepository deploymentRepository;
+    private final PortLeaseRepository portLeaseRepository;
+    private final Path nginxDir;
+
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+    private final AtomicReference<String> defaultProject = new AtomicReference<>();
+    private final ExecutorService handlers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("kasion-edge-", 1).factory());
+    private final HttpClient upstream;
+    private HttpServer server;
+
+    public EdgeRouter(DeploymentRepository deploymentRepository,
+                      PortLeaseRepository portLeaseRepository,
+                      @Value("${kasion.edge.mode:EMBEDDED}") Mode mode,
+                      @Value("${kasion.edge.port:8090}") int port,
+                      @Value("${kasion.edge.drain-timeout-seconds:30}") int drainTimeoutSeconds,
+                      @Value("${kasion.edge.upstream-timeout-seconds:60}") int upstreamTimeoutSeconds,
+                      @Value("${kasion.edge.nginx-dir:control-plane/nginx}") Path nginxDir) {
+        this.deploymentRepository = deploymentRepository;
+        this.portLeaseRepository = portLeaseRepository;
+        this.nginxDir = nginxDir;
+        this.mode = mode;
+        this.port = port;
+        this.drainTimeout = Duration.ofSeconds(drainTimeoutSeconds);
+        this.upstreamTimeout = Duration.ofSeconds(upstreamTimeoutSeconds);
+        this.upstream = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1) // containers speak plain HTTP/1.1; no upgrade attempts
+                .connectTimeout(Duration.ofSeconds(5))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(handlers)
+                .build();
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (mode != Mode.EMBEDDED) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(handlers);
+        server.start();
+
+        // Routes live in memory; after a restart, point every project back at its running containers.
+        if (deploymentRepository != null) {
+            for (Deployment deployment : deploymentRepository.findCurrentLive()) {
+                Project project = deployment.getProject();
+                List<String> upstreams = portLeaseRepository.findByDeploymentIdOrderByReplica(deployment.getId()).stream()
+                        .map(lease -> "http://localhost:" + lease.getPort())
+                        .toList();
+                if (upstreams.isEmpty()) {
+                    upstreams = List.of("http://localhost:" + project.getActivePort()); // deployed before port leases
+                }
+                routes.put(key(project.getName()), new Route(upstreams));
+                defaultProject.set(key(project.getName()));
+            }
+        }
+        System.out.println("🌐 [Edge] Routing on port " + port() + " for " + routes.size() + " project(s)");
+    }
+
+    /**
+     * The port the router listens on (useful when configured as 0).
+     */
+    public int port() {
+        return server != null ? server.getAddress().getPort() : port;
+    }
+
+    public boolean swap(String project, String upstreamBaseUrl) throws InterruptedException {
+        return swap(project, List.of(upstreamBaseUrl));
+    }
+
+    /**
+     * Points {@code project} at {@code upstreamBaseUrls}. New requests use them as soon as this is called;
+     * the call returns once requests on the previous upstreams have finished, so those can be stopped.
+     *
+     * @return false if the drain timed out and requests were still running on the old upstreams
+     */
+    public boolean swap(String project, List<String> upstreamBaseUrls) throws InterruptedException {
+        if (upstreamBaseUrls.isEmpty()) {
+            throw new IllegalArgumentException("No upstreams for " + project);
+        }
+        Route next = new Route(upstreamBaseUrls);
+        Route previous = routes.put(key(project), next);
+        defaultProject.set(key(project));
+        if (previous == null) {
+            return true;
+        }
+        return previous.retire(drainTimeout);
+    }
+
+    public void remove(String project) throws InterruptedException {
+        Route previous = routes.remove(key(project));
+        defaultProject.compareAndSet(key(project), null);
+        if (previous != null) {
+            previous.retire(drainTimeout);
+        }
+    }
+
+    /**
+     * NGINX mode: renders default.conf from default.conf.template with one upstream server per app port.
+     * The template keeps the management locations, which the old string-built config dropped.
+     */
+    public void writeNginxConfig(List<Integer> appPorts) throws IOException {
+        StringBuilder servers = new StringBuilder();
+        for (int appPort : appPorts) {
+            servers.append("    server host.docker.internal:").append(appPort).append(";\n");
+        }
+        String template = Files.readString(nginxDir.resolve("default.conf.template"));
+        Files.writeString(nginxDir.resolve("default.conf"), template.replace("$APP_SERVERS\n", servers));
+    }
+
+    public List<RouteInfo> routes() {
+        return routes.entrySet().stream()
+                .map(e -> new RouteInfo(e.getKey(),
+                        e.getValue().upstreams.stream()
+                                .map(u -> new UpstreamInfo(u.baseUrl, u.inFlight.get(), u.requests.get()))
+                                .toList(),
+                        e.getValue().inFlight.get(), e.getValue().requests.get()))
+                .toList();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Route route = acquire(exchange.getRequestHeaders().getFirst("Host"));
+            if (route == null) {
+                sendError(exchange, 503, "No live deployment for this host");
+                return;
+            }
+            Upstream upstream = route.pick();
+            try {
+                forward(exchange, upstream.baseUrl);
+            } finally {
+                upstream.inFlight.decrementAndGet();
+                route.release();
+            }
+        }
+    }
+
+    /**
+     * Takes a slot on the current route. A route that got retired between the lookup and the
+     * increment is released and looked up again, so drain never misses a request.
+     */
+    private Route acquire(String host) {
+        while (true) {
+            Route route = lookup(host);
+            if (route == null) {
+                return null;
+            }
+            route.inFlight.incrementAndGet();
+            if (!route.retired) {
+                route.requests.incrementAndGet();
+                return route;
+            }
+            route.release();
+        }
+    }
+
+    private Route lookup(String host) {
+        if (host != null) {
+            int end = host.indexOf('.');
+            if (end <= 0) {
+                end = host.indexOf(':'); // "shop:8090"
+            }
+            String label = (end > 0 ? host.substring(0, end) : host).toLowerCase(Locale.ROOT);
+            Route route = routes.get(label);
+            if (route != null) {
+                return route;
+            }
+        }
+        String fallback = defaultProject.get();
+        return fallback != null ? routes.get(fallback) : null;
+    }
+
+    private void forward(HttpExchange exchange, String baseUrl) throws IOException {
+        URI requestUri = exchange.getRequestURI();
+        URI target = URI.create(baseUrl + requestUri.getRawPath()
+                + (requestUri.getRawQuery() != null ? "?" + requestUri.getRawQuery() : ""));
+
+        String method = exchange.getRequestMethod();
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        HttpRequest.BodyPublisher requestBody;
+        if (contentLength != null) {
+            long length = Long.parseLong(contentLength.trim());
+            requestBody = length == 0 ? HttpRequest.BodyPublishers.noBody()
+                    : HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(exchange::getRequestBody), length);
+        } else if (exchange.getRequestHeaders().containsKey("Transfer-Encoding")) {
+            requestBody = HttpRequest.BodyPublishers.ofInputStream(exchange::getRequestBody);
+        } else {
+            requestBody = HttpRequest.BodyPublishers.noBody();
+        }
+        HttpRequest.Builder request = HttpRequest.newBuilder(target)
+                .timeout(upstreamTimeout)
+                .method(method, requestBody);
+        copyHeaders(exchange.getRequestHeaders(), request);
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host != null) {
+            request.header("X-Forwarded-Host", host);
+        }
+        request.header("X-Forwarded-For", exchange.getRemoteAddress().getAddress().getHostAddress());
+        request.header("X-Forwarded-Proto", "http");
+
+        HttpResponse<InputStream> response;
+        try {
+            response = upstream.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (HttpTimeoutException e) {
+            sendError(exchange, 504, "Upstream timed out");
+            return;
+        } catch (IOException e) {
+            sendError(exchange, 502, "Upstream unavailable");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "Shutting down");
+            return;
+        }
+
+        Headers headers = exchange.getResponseHeaders();
+        for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (!HOP_BY_HOP.contains(name) && !name.equals("content-length") && !name.startsWith(":")) {
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        int status = response.statusCode();
+        boolean noBody = method.equals("HEAD") || status == 204 || status == 304 || status / 100 == 1 || length == 0;
+        exchange.sendResponseHeaders(status, noBody ? -1 : Math.max(length, 0)); // 0 = chunked
+
+        try (InputStream body = response.body(); OutputStream out = exchange.getResponseBody()) {
+            if (!noBody) {
+                body.transferTo(out);
+            }
+        }
+    }
+
+    private static void copyHeaders(Headers from, HttpRequest.Builder to) {
+        for (Map.Entry<String, List<String>> header : from.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (HOP_BY_HOP.contains(name) || RESTRICTED.contains(name)) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                to.header(header.getKey(), value);
+            }
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static String key(String project) {
+        return project.toLowerCase(Locale.ROOT);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (server != null) {
+            server.stop(1);
+        }
+        handlers.shutdownNow();
+    }
+
+    private static final class Upstream {
+        final String baseUrl;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong requests = new AtomicLong();
+
+        Upstream(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+    }
+
+    private static final class Route {
+        final List<Upstream> upstreams;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicInteger next = new AtomicInteger();
+        volatile boolean retired;
+
+        Route(List<String> baseUrls) {
+            this.upstreams = baseUrls.stream().map(Upstream::new).toList();
+        }
+
+        /**
+         * Least connections: the replica with the fewest requests in flight. The scan starts at a
+         * rotating offset so that ties (e.g. an idle app) are spread round-robin.
+         */
+        Upstream pick() {
+            int size = upstreams.size();
+            int start = Math.floorMod(next.getAndIncrement(), size);
+            Upstream best = upstreams.get(start);
+            for (int i = 1; i < size; i++) {
+                Upstream candidate = upstreams.get((start + i) % size);
+                if (candidate.inFlight.get() < best.inFlight.get()) {
+                    best = candidate;
+                }
+            }
+            best.inFlight.incrementAndGet();
+            best.requests.incrementAndGet();
+            return best;
+        }
+
+        void release() {
+            if (inFlight.decrementAndGet() == 0 && retired) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Stops new requests from taking this route and waits for the running ones to finish.
+         */
+        boolean retire(Duration timeout) throws InterruptedException {
+            retired = true;
+            long deadline = System.nanoTime() + timeout.toNanos();
+            synchronized (this) {
+                while (inFlight.get() > 0) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return false;
+                    }
+                    wait(Math.max(1, left / 1_000_000));
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package io.kasion.control_plane;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Keeps one bare mirror per {@link Project#getGithubRepoUrl()} so builds fetch deltas instead of cloning.
+ *
+ * - A fetch takes the repo's write lock; builds arriving while one is running wait for it and share the result.
+ * - Exports of a commit into a build workspace take the read lock, so they can run side by side.
+ * - When the cache grows past {@code kasion.git.cache-max-bytes}, least recently used mirrors are deleted.
+ *   A build whose mirror goes between its fetch and a later read (export in the image stage) fetches it again.
+ */
+@Component
+public class GitMirrorCache {
+
+    private final Path root;
+    private final long maxBytes;
+    private final ConcurrentHashMap<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> inFlightFetches = new ConcurrentHashMap<>();
+    private final AtomicLong fetchCount = new AtomicLong();
+
+    public GitMirrorCache(@Value("${kasion.git.cache-dir:${user.home}/.kasion/git-mirrors}") Path root,
+                          @Value("${kasion.git.cache-max-bytes:10737418240}") long maxBytes) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Brings the mirror up to date, then copies the files of {@code ref} (branch, tag, SHA or HEAD) into {@code target}.
+     * The workspace gets a plain file tree, no .git directory.
+     *
+     * @return the resolved commit SHA
+     */
+    public String checkout(String repoUrl, String ref, Path target) throws IOException {
+        String commitSha = fetch(repoUrl, ref);
+        export(repoUrl, commitSha, target);
+        return commitSha;
+    }
+
+    /**
+     * Clones or incrementally fetches the mirror and resolves {@code ref} to a full commit SHA.
+     */
+    public String fetch(String repoUrl, String ref) throws IOException {
+        sync(keyFor(repoUrl), repoUrl);
+        return read(repoUrl, repo -> {
+            ObjectId id = repo.resolve(ref + "^{commit}");
+            if (id == null) {
+                throw new IOException("Cannot resolve '" + ref + "' in " + repoUrl);
+            }
+            return id.name();
+        });
+    }
+
+    /**
+     * Brings the mirror up to date, sharing a fetch that is already running for the same repo.
+     */
+    private void sync(String key, String repoUrl) throws IOException {
+        CompletableFuture<Void> mine = new CompletableFuture<>();
+        CompletableFuture<Void> running = inFlightFetches.putIfAbsent(key, mine);
+        if (running != null) {
+            // Someone is already fetching this repo; their fetch is good enough for us.
+            try {
+                running.join();
+            } catch (CompletionException e) {
+                throw new IOException("Fetch of " + repoUrl + " failed", e.getCause());
+            }
+        } else {
+            try {
+                syncMirror(key, repoUrl);
+                mine.complete(null);
+            } catch (IOException | RuntimeException e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlightFetches.remove(key, mine);
+            }
+            evictIfNeeded(key);
+        }
+    }
+
+    /**
+     * @return whether {@code path} exists in the given commit, without exporting anything
+     */
+    public boolean hasPath(String repoUrl, String commitSha, String path) throws IOException {
+        return read(repoUrl, repo -> {
+            try (RevWalk walk = new RevWalk(repo)) {
+                RevCommit commit = walk.parseCommit(ObjectId.fromString(commitSha));
+                try (TreeWalk tree = TreeWalk.forPath(repo, path, commit.getTree())) {
+                    return tree != null;
+                }
+            }
+        });
+    }
+
+    /**
+     * The contents of {@code path} at {@code commitSha} as UTF-8, or null if the commit has no such file.
+     */
+    public String readFile(String repoUrl, String commitSha, String path) throws IOException {
+        return read(repoUrl, repo -> {
+            try (RevWalk walk = new RevWalk(repo)) {
+                RevCommit commit = walk.parseCommit(ObjectId.fromString(commitSha));
+                try (TreeWalk tree = TreeWalk.forPath(repo, path, commit.getTree())) {
+                    if (tree == null) {
+                        return null;
+                    }
+                    int mode = tree.getRawMode(0);
+                    if (!FileMode.REGULAR_FILE.equals(mode) && !FileMode.EXECUTABLE_FILE.equals(mode)) {
+                        return null; // a directory, symlink or submodule
+                    }
+                    return new String(repo.open(tree.getObjectId(0)).getBytes(), StandardCharsets.UTF_8);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the tree of {@code commitSha} into {@code target}, keeping executable bits and symlinks.
+     */
+    public void export(String repoUrl, String commitSha, Path target) throws IOException {
+        read(repoUrl, repo -> {
+            exportTree(repo, commitSha, target);
+            return null;
+        });
+    }
+
+    private static void exportTree(Repository repo, String commitSha, Path target) throws IOException {
+        try (RevWalk walk = new RevWalk(repo);
+             TreeWalk tree = new TreeWalk(repo)) {
+            RevCommit commit = walk.parseCommit(ObjectId.fromString(commitSha));
+            tree.addTree(commit.getTree());
+            tree.setRecursive(true);
+
+            while (tree.next()) {
+                int mode = tree.getRawMode(0);
+                if (FileMode.GITLINK.equals(mode)) {
+                    continue; // submodules are not supported
+                }
+                Path file = target.resolve(tree.getPathString());
+                Files.createDirectories(file.getParent());
+                ObjectLoader loader = repo.open(tree.getObjectId(0));
+
+                if (FileMode.SYMLINK.equals(mode)) {
+                    Files.createSymbolicLink(file, Path.of(new String(loader.getBytes(), StandardCharsets.UTF_8)));
+                    continue;
+                }
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    loader.copyTo(out);
+                }
+                if (FileMode.EXECUTABLE_FILE.equals(mode)) {
+                    file.toFile().setExecutable(true);
+                }
+            }
+        }
+    }
+
+    private interface MirrorRead<T> {
+        T apply(Repository repo) throws IOException;
+    }
+
+    /**
+     * Runs {@code action} on the mirror under its read lock. If the mirror has been evicted since the
+     * build fetched it, it is fetched again (once) instead of failing the build.
+     */
+    private <T> T read(String repoUrl, MirrorRead<T> action) throws IOException {
+        String key = keyFor(repoUrl);
+        ReadWriteLock lock = lockFor(key);
+        for (int attempt = 0; ; attempt++) {
+            lock.readLock().lock();
+            try (Repository repo = openMirror(key)) {
+                return action.apply(repo);
+            } catch (RepositoryNotFoundException e) {
+                if (attempt > 0) {
+                    throw e;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            System.out.println("♻️ [GitCache] Mirror " + key + " was evicted mid-build, fetching it again");
+            sync(key, repoUrl);
+        }
+    }
+
+    long fetchCount() {
+        return fetchCount.get();
+    }
+
+    Path mirrorDir(String repoUrl) {
+        return root.resolve(keyFor(repoUrl));
+    }
+
+    private void syncMirror(String key, String repoUrl) throws IOException {
+        ReadWriteLock lock = lockFor(key);
+        lock.writeLock().lock();
+        try {
+            Path dir = root.resolve(key);
+            fetchCount.incrementAndGet();
+            if (Files.exists(dir.resolve("HEAD"))) {
+                try (Git git = Git.open(dir.toFile())) {
+                    git.fetch().setRemote("origin").setRemoveDeletedRefs(true).call();
+                }
+            } else {
+                Files.createDirectories(root);
+                FileSystemUtils.deleteRecursively(dir);
+                Git.cloneRepository()
+                        .setURI(repoUrl)
+                        .setDirectory(dir.toFile())
+                        .setBare(true)
+                        .setMirror(true)
+                        .call()
+                        .close();
+            }
+            Files.setLastModifiedTime(dir, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (GitAPIException | JGitInternalException e) {
+            throw new IOException("Git fetch failed for " + repoUrl + ": " + e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes least recently fetched mirrors until the cache fits in {@code maxBytes}.
+     * Mirrors that are locked (being fetched or exported) are skipped, as is the one just used.
+     */
+    void evictIfNeeded(String justUsed) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        record Mirror(String key, Path dir, long lastUsed, long bytes) {}
+
+        List<Mirror> mirrors = new ArrayList<>();
+        try (Stream<Path> dirs = Files.list(root)) {
+            for (Path dir : dirs.filter(Files::isDirectory).toList()) {
+                mirrors.add(new Mirror(dir.getFileName().toString(), dir,
+                        Files.getLastModifiedTime(dir).toMillis(), sizeOf(dir)));
+            }
+        }
+
+        long total = mirrors.stream().mapToLong(Mirror::bytes).sum();
+        mirrors.sort(Comparator.comparingLong(Mirror::lastUsed));
+
+        for (Mirror mirror : mirrors) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (mirror.key().equals(justUsed)) {
+                continue;
+            }
+            ReadWriteLock lock = lockFor(mirror.key());
+            if (!lock.writeLock().tryLock()) {
+                continue;
+            }
+            try {
+                FileSystemUtils.deleteRecursively(mirror.dir());
+                total -= mirror.bytes();
+                System.out.println("🧹 [GitCache] Evicted mirror " + mirror.key() + " (" + mirror.bytes() / 1024 / 1024 + " MB)");
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private Repository openMirror(String key) throws IOException {
+        return new FileRepositoryBuilder()
+                .setGitDir(root.resolve(key).toFile())
+                .setMustExist(true)
+                .build();
+    }
+
+    private ReadWriteLock lockFor(String key) {
+        return locks.computeIfAbsent(key, k -> new ReentrantReadWriteLock());
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    /**
+     * Readable and collision-safe: {@code spring-petclinic-1a2b3c4d5e6f}.
+     */
+    static String keyFor(String repoUrl) {
+        String name = repoUrl.substring(repoUrl.lastIndexOf('/') + 1).replace(".git", "")
+                .replaceAll("[^A-Za-z0-9._-]", "_");
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(repoUrl.getBytes(StandardCharsets.UTF_8));
+            return name + "-" + HexFormat.of().formatHex(digest, 0, 6);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package io.kasion.control_plane;
+
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * Runs JDK Flight Recorder in a project's live container and summarises what it recorded.
+ *
+ * Recordings are driven through the DiagnosticCommand MBean (jfrStart, jfrStop, jfrDump, jfrCheck) that
+ * the app's Jolokia agent already exposes, so apps need no restart and no extra flags. The .jfr file is
+ * written inside the container, copied out ({@link DockerEngine#copyFrom}, or {@code docker cp}), and read with jdk.jfr.consumer into a
+ * {@link Summary}: hottest methods by CPU samples, allocation hot spots, contended monitors and GC pauses.
+ *
+ * - On demand: a recording with the chosen settings ('profile' by default) for a number of seconds.
+ * - Continuous: a recording with the 'default' settings (about 1% overhead) that the container's JFR
+ *   repository rolls over after {@code kasion.jfr.continuous.max-age} / {@code max-size}. Dumping it
+ *   shows the minutes before a regression was noticed. Projects that keep it on get it re-armed in
+ *   every new container.
+ *
+ * Summaries live in memory; the newest {@code kasion.jfr.keep-recordings} .jfr files are kept on disk.
+ */
+@Component
+public class JfrProfiler {
+
+    public enum Status { RECORDING, ANALYZING, DONE, FAILED }
+
+    public record HotMethod(String method, long samples, double percent) {}
+
+    public record AllocationSite(String method, String objectClass, long bytes, double percent) {}
+
+    public record ContendedLock(String monitorClass, String method, long events, double totalMillis, double maxMillis) {}
+
+    public record GcPause(String collector, String cause, Instant startedAt, double pauseMillis) {}
+
+    public record Summary(Instant from, Instant to,
+                          long executionSamples, List<HotMethod> hotMethods,
+                          long allocatedBytes, List<AllocationSite> allocations,
+                          List<ContendedLock> contendedLocks,
+                          long gcCount, double gcPauseMillis, List<GcPause> longestGcPauses) {}
+
+    public record Recording(String id, String projectId, String container, String kind, String settings,
+                            Instant startedAt, Status status, String error, Summary summary) {
+        Recording with(Status status, String error, Summary summary) {
+            return new Recording(id, projectId, container, kind, settings, startedAt, status, error, summary);
+        }
+    }
+
+    private static final String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+    private static final String STRING_ARRAY = "([Ljava.lang.String;)";
+    private static final String CONTINUOUS = "kasion-continuous";
+
+    private final DeploymentRepository deploymentRepository;
+    private final JolokiaProxy jolokiaProxy;
+    private final BuildExecutors buildExecutors;
+    private final DockerEngine dockerEngine;
+    private final String docker;
+    private final Path dir;
+    private final int keepRecordings;
+    private final int maxSeconds;
+    private final String continuousMaxAge;
+    private final String continuousMaxSize;
+    private final int top;
+
+    private final ConcurrentHashMap<String, Recording> recordings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CountDownLatch> stopSignals = new ConcurrentHashMap<>();
+
+    public JfrProfiler(DeploymentRepository deploymentRepository,
+                       JolokiaProxy jolokiaProxy,
+                       BuildExecutors buildExecutors,
+                       DockerEngine dockerEngine,
+                       @Value("${kasion.docker.command:docker}") String docker,
+                       @Value("${kasion.jfr.dir:${user.home}/.kasion/jfr}") String dir,
+                       @Value("${kasion.jfr.keep-recordings:20}") int keepRecordings,
+                       @Value("${kasion.jfr.max-seconds:600}") int maxSeconds,
+                       @Value("${kasion.jfr.continuous.max-age:30m}") String continuousMaxAge,
+                       @Value("${kasion.jfr.continuous.max-size:100m}") String continuousMaxSize,
+                       @Value("${kasion.jfr.top:20}") int top) throws IOException {
+        this.deploymentRepository = deploymentRepository;
+        this.jolokiaProxy = jolokiaProxy;
+        this.buildExecutors = buildExecutors;
+        this.dockerEngine = dockerEngine;
+        this.docker = docker;
+        this.dir = Path.of(dir);
+        this.keepRecordings = Math.max(1, keepRecordings);
+        this.maxSeconds = maxSeconds;
+        this.continuousMaxAge = continuousMaxAge;
+        this.continuousMaxSize = continuousMaxSize;
+        this.top = top;
+
+        // Files of a previous run have no summary left to show; don't let them pile up.
+        Files.createDirectories(this.dir);
+        try (Stream<Path> leftovers = Files.list(this.dir)) {
+            for (Path file : leftovers.filter(f -> f.toString().endsWith(".jfr")).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Starts a recording in the project's live container; it stops after {@code seconds} or on {@link #stop}.
+     */
+    public Recording start(Project project, int seconds, String settings) throws IOException, InterruptedException {
+        if (seconds < 1 || seconds > maxSeconds) {
+            throw new IllegalArgumentException("seconds must be between 1 and " + maxSeconds);
+        }
+        if (!settings.equals("default") && !settings.equals("profile")) {
+            throw new IllegalArgumentException("settings must be 'default' or 'profile'");
+        }
+        String id = UUID.randomUUID().toString().substring(0, 8);
+        String container = container(project);
+        jolokiaProxy.execute(container, DIAGNOSTIC_COMMAND, "jfrStart" + STRING_ARRAY,
+                List.of("name=kasion-" + id, "settings=" + settings));
+        Recording recording = new Recording(id, project.getId(), container, "ON_DEMAND", settings,
+                Instant.now(), Status.RECORDING, null, null);
+        recordings.put(id, recording);
+        System.out.println("🎥 [JFR] Recording " + id + " started in " + container + " for " + seconds + "s (" + settings + ")");
+
+        CountDownLatch stop = new CountDownLatch(1);
+        stopSignals.put(id, stop);
+        buildExecutors.io().execute(() -> {
+            try {
+                stop.await(seconds, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // shutting down; still try to stop it in the app
+            } finally {
+                stopSignals.remove(id);
+            }
+            collect(recording, "jfrStop", List.of("name=kasion-" + id, "filename=" + remotePath(id)));
+        });
+        return recording;
+    }
+
+    /**
+     * Ends an on-demand recording early. Returns false if it isn't recording.
+     */
+    public boolean stop(String recordingId) {
+        CountDownLatch stop = stopSignals.get(recordingId);
+        if (stop == null) {
+            return false;
+        }
+        stop.countDown();
+        return true;
+    }
+
+    /**
+     * Turns the continuous recording on or off in the live container, and remembers the choice.
+     */
+    public void setContinuous(Project project, boolean enabled) throws IOException, InterruptedException {
+        String container = container(project);
+        boolean running = continuousRunning(container);
+        if (enabled && !running) {
+            startContinuous(container);
+        } else if (!enabled && running) {
+            jolokiaProxy.execute(container, DIAGNOSTIC_COMMAND, "jfrStop" + STRING_ARRAY, List.of("name=" + CONTINUOUS));
+            System.out.println("🎥 [JFR] Continuous recording stopped in " + container);
+        }
+    }
+
+    public boolean isContinuousRunning(Project project) {
+        try {
+            return continuousRunning(container(project));
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes out the continuous recording, the last {@code minutes} or all of it when null, and analyses it.
+     */
+    public Recording dumpContinuous(Project project, Integer minutes) {
+        String id = UUID.randomUUID().toString().substring(0, 8);
+        List<String> arguments = new ArrayList<>(List.of("name=" + CONTINUOUS, "filename=" + remotePath(id)));
+        if (minutes != null) {
+            arguments.add("maxage=" + Math.max(1, minutes) + "m");
+        }
+        Recording recording = new Recording(id, project.getId(), container(project), "CONTINUOUS_DUMP", "default",
+                Instant.now(), Status.ANALYZING, null, null);
+        recordings.put(id, recording);
+        buildExecutors.io().execute(() -> collect(recording, "jfrDump", arguments));
+        return recording;
+    }
+
+    /**
+     * The project's recordings, newest first.
+     */
+    public List<Recording> recordings(String projectId) {
+        return recordings.values().stream()
+                .filter(r -> r.projectId().equals(projectId))
+                .sorted(Comparator.comparing(Recording::startedAt).reversed())
+                .toList();
+    }
+
+    public Recording recording(String recordingId) {
+        return recordings.get(recordingId);
+    }
+
+    /**
+     * The .jfr file of a finished recording, for JDK Mission Control; null once it has been rotated out.
+     */
+    public Path file(String recordingId) {
+        Path file = dir.resolve(recordingId + ".jfr");
+        return recordings.containsKey(recordingId) && Files.isRegularFile(file) ? file : null;
+    }
+
+    /**
+     * Re-arms the continuous recording in containers that don't have it yet, e.g. after a deploy.
+     */
+    @Scheduled(fixedDelayString = "${kasion.jfr.continuous.check-interval-millis:60000}",
+            initialDelayString = "${kasion.jfr.continuous.check-interval-millis:60000}")
+    public void reconcile() {
+        for (Deployment deployment : deploymentRepository.findCurrentLive()) {
+            Project project = deployment.getProject();
+            if (!project.isJfrContinuous()) {
+                continue;
+            }
+            String container = container(project);
+            try {
+                if (!continuousRunning(container)) {
+                    startContinuous(container);
+                }
+            } catch (IOException e) {
+                // Agent not reachable (yet); next round.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void startContinuous(String container) throws IOException, InterruptedException {
+        jolokiaProxy.execute(container, DIAGNOSTIC_COMMAND, "jfrStart" + STRING_ARRAY,
+                List.of("name=" + CONTINUOUS, "settings=default", "disk=true",
+                        "maxage=" + continuousMaxAge, "maxsize=" + continuousMaxSize));
+        System.out.println("🎥 [JFR] Continuous recording started in " + container
+                + " (keeps " + continuousMaxAge + " / " + continuousMaxSize + ")");
+    }
+
+    private boolean continuousRunning(String container) throws IOException, InterruptedException {
+        String recordings = jolokiaProxy.execute(container, DIAGNOSTIC_COMMAND, "jfrCheck" + STRING_ARRAY, List.of());
+        return recordings.contains("name=" + CONTINUOUS);
+    }
+
+    /**
+     * Has the app write the recording to a file, copies it out of the container and summarises it.
+     */
+    private void collect(Recording recording, String command, List<String> arguments) {
+        String id = recording.id();
+        recordings.put(id, recording.with(Status.ANALYZING, null, null));
+        Path file = dir.resolve(id + ".jfr");
+        try {
+            jolokiaProxy.execute(recording.container(), DIAGNOSTIC_COMMAND, command + STRING_ARRAY, arguments);
+            if (dockerEngine.enabled()) {
+                dockerEngine.copyFrom(recording.container(), remotePath(id), file);
+            } else {
+                dockerCommand(docker, "cp", recording.container() + ":" + remotePath(id), file.toString());
+            }
+            Summary summary = summarize(file, top);
+            recordings.put(id, recording.with(Status.DONE, null, summary));
+            System.out.println("🎥 [JFR] Recording " + id + " analysed: " + summary.executionSamples() + " CPU samples, "
+                    + summary.gcCount() + " GCs");
+        } catch (Exception e) {
+            recordings.put(id, recording.with(Status.FAILED, e.getMessage(), null));
+            System.err.println("❌ [JFR] Recording " + id + " failed: " + e.getMessage());
+        } finally {
+            try {
+                if (dockerEngine.enabled()) {
+                    dockerEngine.exec(recording.container(), "rm", "-f", remotePath(id));
+                } else {
+                    dockerCommand(docker, "exec", recording.container(), "rm", "-f", remotePath(id));
+                }
+            } catch (Exception ignored) {
+                // Container gone or has no rm; /tmp is discarded with it anyway.
+            }
+            retain();
+        }
+    }
+
+    private void retain() {
+        List<Recording> finished = recordings.values().stream()
+                .filter(r -> r.status() == Status.DONE || r.status() == Status.FAILED)
+                .sorted(Comparator.comparing(Recording::startedAt).reversed())
+                .toList();
+        for (Recording old : finished.subList(Math.min(keepRecordings, finished.size()), finished.size())) {
+            recordings.remove(old.id());
+            try {
+                Files.deleteIfExists(dir.resolve(old.id() + ".jfr"));
+            } catch (IOException ignored) {
+                // Retried with the next rotation.
+            }
+        }
+    }
+
+    private static String container(Project project) {
+        return PortAllocator.containerName(project, project.getCurrentColor(), 1);
+    }
+
+    private static String remotePath(String id) {
+        return "/tmp/kasion-" + id + ".jfr";
+    }
+
+    private void dockerCommand(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        // Read on another thread, so a command that never closes its output still hits the timeout.
+        Future<byte[]> output = buildExecutors.io().submit(() -> process.getInputStream().readAllBytes());
+        boolean exited = process.waitFor(60, TimeUnit.SECONDS);
+        if (!exited || process.exitValue() != 0) {
+            process.destroyForcibly();
+            String message;
+            try {
+                message = new String(output.get(1, TimeUnit.SECONDS), StandardCharsets.UTF_8).trim();
+            } catch (ExecutionException | TimeoutException e) {
+                output.cancel(true);
+                message = exited ? "no output" : "timed out";
+            }
+            throw new IOException(String.join(" ", command) + " failed: " + message);
+        }
+    }
+
+    /**
+     * Reads a recording and ranks what it saw. Allocation comes from jdk.ObjectAllocationSample (JDK 16+)
+     * and falls back to the TLAB events that older JDKs record instead.
+     */
+    static Summary summarize(Path file, int top) throws IOException {
+        Map<String, Long> cpu = new HashMap<>();
+        long samples = 0;
+        Map<String, long[]> sampledAllocations = new HashMap<>(); // method + class -> bytes
+        Map<String, long[]> tlabAllocations = new HashMap<>();
+        Map<String, long[]> locks = new HashMap<>(); // class + method -> events, total ns, max ns
+        List<GcPause> pauses = new ArrayList<>();
+        long gcPauseNanos = 0;
+        Instant from = null;
+        Instant to = null;
+
+        try (RecordingFile recording = new RecordingFile(file)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                if (from == null || event.getStartTime().isBefore(from)) {
+                    from = event.getStartTime();
+                }
+                if (to == null || event.getEndTime().isAfter(to)) {
+                    to = event.getEndTime();
+                }
+                switch (event.getEventType().getName()) {
+                    case "jdk.ExecutionSample" -> {
+                        String method = topFrame(event.getStackTrace());
+                        if (method != null) {
+                            cpu.merge(method, 1L, Long::sum);
+                            samples++;
+                        }
+                    }
+                    case "jdk.ObjectAllocationSample" ->
+                            addAllocation(sampledAllocations, event, event.getLong("weight"));
+                    case "jdk.ObjectAllocationInNewTLAB" ->
+                            addAllocation(tlabAllocations, event, event.getLong("tlabSize"));
+                    case "jdk.ObjectAllocationOutsideTLAB" ->
+                            addAllocation(tlabAllocations, event, event.getLong("allocationSize"));
+                    case "jdk.JavaMonitorEnter" -> {
+                        RecordedClass monitor = event.getClass("monitorClass");
+                        String key = (monitor != null ? monitor.getName() : "?") + "\n" + siteOf(event);
+                        long nanos = event.getDuration().toNanos();
+                        long[] lock = locks.computeIfAbsent(key, k -> new long[3]);
+                        lock[0]++;
+                        lock[1] += nanos;
+                        lock[2] = Math.max(lock[2], nanos);
+                    }
+                    case "jdk.GarbageCollection" -> {
+                        Duration pause = event.getDuration("sumOfPauses");
+                        gcPauseNanos += pause.toNanos();
+                        pauses.add(new GcPause(event.getString("name"), event.getString("cause"),
+                                event.getStartTime(), pause.toNanos() / 1e6));
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        long totalSamples = samples;
+        List<HotMethod> hotMethods = cpu.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(top)
+                .map(e -> new HotMethod(e.getKey(), e.getValue(), percent(e.getValue(), totalSamples)))
+                .toList();
+
+        Map<String, long[]> allocationSource = sampledAllocations.isEmpty() ? tlabAllocations : sampledAllocations;
+        long allocated = allocationSource.values().stream().mapToLong(a -> a[0]).sum();
+        List<AllocationSite> allocations = allocationSource.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, long[]> e) -> e.getValue()[0]).reversed())
+                .limit(top)
+                .map(e -> {
+                    String[] key = e.getKey().split("\n", 2);
+                    return new AllocationSite(key[0], key[1], e.getValue()[0], percent(e.getValue()[0], allocated));
+                })
+                .toList();
+
+        List<ContendedLock> contended = locks.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, long[]> e) -> e.getValue()[1]).reversed())
+                .limit(top)
+                .map(e -> {
+                    String[] key = e.getKey().split("\n", 2);
+                    long[] lock = e.getValue();
+                    return new ContendedLock(key[0], key[1], lock[0], lock[1] / 1e6, lock[2] / 1e6);
+                })
+                .toList();
+
+        List<GcPause> longest = pauses.stream()
+                .sorted(Comparator.comparingDouble(GcPause::pauseMillis).reversed())
+                .limit(top)
+                .toList();
+
+        return new Summary(from, to, samples, hotMethods, allocated, allocations, contended,
+                pauses.size(), gcPauseNanos / 1e6, longest);
+    }
+
+    private static void addAllocation(Map<String, long[]> allocations, RecordedEvent event, long bytes) {
+        RecordedClass type = event.getClass("objectClass");
+        String key = siteOf(event) + "\n" + (type != null ? type.getName() : "?");
+        allocations.computeIfAbsent(key, k -> new long[1])[0] += bytes;
+    }
+
+    private static String siteOf(RecordedEvent event) {
+        String method = topFrame(event.getStackTrace());
+        return method != null ? method : "?";
+    }
+
+    /**
+     * The innermost Java method of a stack trace, as {@code com.example.Type.method}.
+     */
+    private static String topFrame(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return null;
+        }
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            if (frame.isJavaFrame()) {
+                return frame.getMethod().getType().getName() + "." + frame.getMethod().getName();
+            }
+        }
+        return null;
+    }
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0 : Math.round(part * 1000.0 / total) / 10.0;
+    }
+}
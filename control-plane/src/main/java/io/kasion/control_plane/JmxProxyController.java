@@ -1,62 +1,119 @@
 package io.kasion.control_plane;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.client.RestClient;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Proxies the browser's JMX console to the Jolokia agent (port 8778) in the app's container.
+ *
+ * Plain attribute reads go through {@link JolokiaProxy}, which batches and caches them. Everything
+ * else, including thread dumps that run to megabytes, is streamed straight through. Responses are
+ * gzipped when the browser accepts it.
+ */
 @RestController
 @RequestMapping("/api/v1/jmx")
 public class JmxProxyController {
 
+    private static final String THREAD_DUMP =
+            "{\"type\":\"exec\",\"mbean\":\"java.lang:type=Threading\",\"operation\":\"dumpAllThreads\",\"arguments\":[false,false]}";
+
     private final ProjectRepository projectRepository;
-    private final RestClient restClient;
+    private final JolokiaProxy jolokiaProxy;
+    private final long timeoutMillis;
 
-    public JmxProxyController(ProjectRepository projectRepository) {
+    public JmxProxyController(ProjectRepository projectRepository, JolokiaProxy jolokiaProxy,
+                              @Value("${kasion.jmx.timeout-millis:5000}") long timeoutMillis) {
         this.projectRepository = projectRepository;
-        this.restClient = RestClient.create();
+        this.jolokiaProxy = jolokiaProxy;
+        this.timeoutMillis = timeoutMillis;
     }
 
     @GetMapping("/{projectId}/{*jolokiaPath}")
-    public ResponseEntity<String> proxyJmxRequest(@PathVariable String projectId,
-                                                  @PathVariable String jolokiaPath) {
+    public ResponseEntity<StreamingResponseBody> proxyJmxRequest(@PathVariable String projectId,
+                                                                 @PathVariable String jolokiaPath,
+                                                                 @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
         return projectRepository.findById(projectId)
                 .map(project -> {
-                    int port = project.getActivePort(); // This is the public port, not the internal Jolokia port.
-                    // The Jolokia agent exposes itself on port 8778 internally within the container.
-                    // We need to route to the *application container* (which has Jolokia) then internally to 8778.
-                    // For now, we'll assume the Jolokia agent is accessible directly on the application container's network interface.
-                    // The Jolokia agent is bound to 0.0.0.0, so it should be reachable.
-
-                    // Construct the internal URL to the Jolokia agent.
-                    // The application container name is <project_name>-app-<color>
-                    String appContainerName = project.getName().toLowerCase() + "-app-" + project.getCurrentColor();
-                    String jolokiaUrl = "http://" + appContainerName + ":8778/jolokia/" + jolokiaPath;
-
+                    String host = agentHost(project);
+                    JolokiaProxy.Read read = JolokiaProxy.parseRead(jolokiaPath);
                     try {
-                        String response = restClient.get().uri(jolokiaUrl).retrieve().body(String.class);
-                        return ResponseEntity.ok(response);
+                        if (read != null) {
+                            String json = jolokiaProxy.read(host, read).get(timeoutMillis * 2, TimeUnit.MILLISECONDS);
+                            return respond(200, MediaType.APPLICATION_JSON_VALUE, acceptEncoding,
+                                    out -> out.write(json.getBytes(StandardCharsets.UTF_8)));
+                        }
+                        return stream(jolokiaProxy.open(host, jolokiaPath, null), acceptEncoding);
                     } catch (Exception e) {
-                        return ResponseEntity.status(500).body("Error proxying JMX request: " + e.getMessage());
+                        return error("Error proxying JMX request: " + e.getMessage());
                     }
                 })
                 .orElse(ResponseEntity.notFound().build());
     }
 
     @PostMapping("/{projectId}/threaddump")
-    public ResponseEntity<String> generateThreadDump(@PathVariable String projectId) {
+    public ResponseEntity<StreamingResponseBody> generateThreadDump(@PathVariable String projectId,
+                                                                    @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
         return projectRepository.findById(projectId)
                 .map(project -> {
-                    String appContainerName = project.getName().toLowerCase() + "-app-" + project.getCurrentColor();
-                    String jolokiaUrl = "http://" + appContainerName + ":8778/jolokia/exec/java.lang:type=Threading/dumpAllThreads";
-
                     try {
-                        // Jolokia expects a POST request for execute operations
-                        String response = restClient.post().uri(jolokiaUrl).body("[]").retrieve().body(String.class);
-                        return ResponseEntity.ok(response);
+                        return stream(jolokiaProxy.open(agentHost(project), "", THREAD_DUMP), acceptEncoding);
                     } catch (Exception e) {
-                        return ResponseEntity.status(500).body("Error generating thread dump: " + e.getMessage());
+                        return error("Error generating thread dump: " + e.getMessage());
                     }
                 })
                 .orElse(ResponseEntity.notFound().build());
     }
+
+    /**
+     * The first replica of the live color, which has the Jolokia agent bound to 0.0.0.0:8778 on kasion-net.
+     */
+    private static String agentHost(Project project) {
+        return PortAllocator.containerName(project, project.getCurrentColor(), 1);
+    }
+
+    private interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static ResponseEntity<StreamingResponseBody> stream(HttpResponse<InputStream> upstream, String acceptEncoding) {
+        String contentType = upstream.headers().firstValue(HttpHeaders.CONTENT_TYPE).orElse(MediaType.APPLICATION_JSON_VALUE);
+        return respond(upstream.statusCode(), contentType, acceptEncoding, out -> {
+            try (InputStream in = upstream.body()) {
+                in.transferTo(out);
+            }
+        });
+    }
+
+    private static ResponseEntity<StreamingResponseBody> respond(int status, String contentType, String acceptEncoding, BodyWriter body) {
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(status)
+                .header(HttpHeaders.CONTENT_TYPE, contentType)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (!gzip) {
+            return response.body(body::writeTo);
+        }
+        return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(out -> {
+            GZIPOutputStream zipped = new GZIPOutputStream(out, 8192);
+            body.writeTo(zipped);
+            zipped.finish();
+        });
+    }
+
+    private static ResponseEntity<StreamingResponseBody> error(String message) {
+        return ResponseEntity.status(500)
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(out -> out.write(message.getBytes(StandardCharsets.UTF_8)));
+    }
 }
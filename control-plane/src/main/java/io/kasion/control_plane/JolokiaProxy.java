@@ -0,0 +1,378 @@
+package io.kasion.control_plane;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Talks to the Jolokia agent inside app containers for {@link JmxProxyController}.
+ *
+ * - One HTTP/1.1 client for every container. The JDK keeps a pool of keep-alive connections per
+ *   container address, so a busy JMX console reuses connections instead of opening one per request.
+ * - Reads for the same container that arrive within {@code kasion.jmx.batch-window-millis} go out
+ *   together as one Jolokia bulk request; identical reads in a batch are only sent once.
+ * - Read results are cached for {@code kasion.jmx.read-cache-ttl-millis}, so several people watching
+ *   the same app cost one read per TTL. Nothing else (exec, write, list...) is batched or cached.
+ * - Everything that isn't a plain read is handed back as a stream and never held in memory here,
+ *   except {@link #execute} for operations with short string results (the diagnostic commands).
+ */
+@Component
+public class JolokiaProxy {
+
+    /**
+     * One attribute read, as in {@code read/<mbean>/<attribute>/<path>}. Attribute and path may be null.
+     */
+    public record Read(String mbean, String attribute, String path) {}
+
+    private record Cached(String json, long expiresAt) {}
+
+    private static final class Batch {
+        final Map<Read, CompletableFuture<String>> reads = new LinkedHashMap<>();
+    }
+
+    private final ControlPlaneMetrics metrics;
+    private final HttpClient httpClient;
+    private final Executor flushes;
+    private final int agentPort;
+    private final int batchMaxReads;
+    private final long cacheTtlMillis;
+    private final Duration timeout;
+
+    // Guarded by 'this'.
+    private final Map<String, Batch> batches = new HashMap<>();
+    private final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<>();
+
+    public JolokiaProxy(BuildExecutors buildExecutors,
+                        ControlPlaneMetrics metrics,
+                        @Value("${kasion.jmx.agent-port:8778}") int agentPort,
+                        @Value("${kasion.jmx.batch-window-millis:5}") long batchWindowMillis,
+                        @Value("${kasion.jmx.batch-max-reads:50}") int batchMaxReads,
+                        @Value("${kasion.jmx.read-cache-ttl-millis:1000}") long cacheTtlMillis,
+                        @Value("${kasion.jmx.timeout-millis:5000}") long timeoutMillis) {
+        this.metrics = metrics;
+        this.agentPort = agentPort;
+        this.batchMaxReads = Math.max(1, batchMaxReads);
+        this.cacheTtlMillis = cacheTtlMillis;
+        this.timeout = Duration.ofMillis(timeoutMillis);
+        this.flushes = CompletableFuture.delayedExecutor(batchWindowMillis, TimeUnit.MILLISECONDS, buildExecutors.io());
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(timeout)
+                .executor(buildExecutors.io())
+                .build();
+    }
+
+    /**
+     * Reads one attribute through the container's next bulk request, or from the cache.
+     * Completes with the Jolokia response for that read, exactly as a single GET would return it.
+     */
+    public CompletableFuture<String> read(String host, Read read) {
+        String key = host + '\n' + read;
+        Cached cached = cache.get(key);
+        if (cached != null && cached.expiresAt() > System.currentTimeMillis()) {
+            return CompletableFuture.completedFuture(cached.json());
+        }
+
+        CompletableFuture<String> result;
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = batches.get(host);
+            if (batch == null) {
+                Batch opened = new Batch();
+                batches.put(host, opened);
+                flushes.execute(() -> flush(host, opened));
+                batch = opened;
+            }
+            result = batch.reads.computeIfAbsent(read, r -> new CompletableFuture<>());
+            if (batch.reads.size() >= batchMaxReads) {
+                batches.remove(host);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            send(host, full);
+        }
+        return result;
+    }
+
+    private void flush(String host, Batch batch) {
+        synchronized (this) {
+            if (!batches.remove(host, batch)) {
+                return; // already sent because it filled up
+            }
+        }
+        send(host, batch);
+    }
+
+    private void send(String host, Batch batch) {
+        List<Read> reads = new ArrayList<>(batch.reads.keySet());
+        StringBuilder body = new StringBuilder(64 * reads.size()).append('[');
+        for (int i = 0; i < reads.size(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            appendRead(body, reads.get(i));
+        }
+        body.append(']');
+
+        HttpRequest request = HttpRequest.newBuilder(agentUri(host, ""))
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        long start = System.nanoTime();
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+            List<String> results = null;
+            if (error == null && response.statusCode() == 200) {
+                results = splitArray(response.body());
+            }
+            boolean success = results != null && results.size() == reads.size();
+            metrics.outboundRequest("jmx", success, System.nanoTime() - start);
+
+            long expiresAt = System.currentTimeMillis() + cacheTtlMillis;
+            cache.values().removeIf(c -> c.expiresAt() <= System.currentTimeMillis());
+            for (int i = 0; i < reads.size(); i++) {
+                CompletableFuture<String> future = batch.reads.get(reads.get(i));
+                if (!success) {
+                    future.completeExceptionally(error != null ? error
+                            : new IOException("Jolokia bulk read failed (HTTP " + response.statusCode() + ")"));
+                    continue;
+                }
+                String json = results.get(i);
+                if (cacheTtlMillis > 0 && json.contains("\"status\":200")) {
+                    cache.put(host + '\n' + reads.get(i), new Cached(json, expiresAt));
+                }
+                future.complete(json);
+            }
+        });
+    }
+
+    /**
+     * Sends any other request and hands back the agent's response unread; the caller streams it on.
+     * {@code postBody} null means GET {@code jolokiaPath}, otherwise POST the body to the agent root.
+     */
+    public HttpResponse<InputStream> open(String host, String jolokiaPath, String postBody) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(agentUri(host, postBody == null ? jolokiaPath : ""))
+                .timeout(timeout); // until the headers arrive; the body may take as long as it needs
+        if (postBody != null) {
+            request.header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(postBody));
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            HttpResponse<InputStream> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            success = response.statusCode() == 200;
+            return response;
+        } finally {
+            metrics.outboundRequest("jmx", success, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Runs an MBean operation and returns its result, which must be a string (or void).
+     * {@code arguments} go over as one String[] argument, as DiagnosticCommand operations expect.
+     */
+    public String execute(String host, String mbean, String operation, List<String> arguments) throws IOException, InterruptedException {
+        StringBuilder body = new StringBuilder("{\"type\":\"exec\",\"mbean\":");
+        appendString(body, mbean);
+        body.append(",\"operation\":");
+        appendString(body, operation);
+        body.append(",\"arguments\":[[");
+        for (int i = 0; i < arguments.size(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            appendString(body, arguments.get(i));
+        }
+        body.append("]]}");
+
+        HttpRequest request = HttpRequest.newBuilder(agentUri(host, ""))
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            String json = response.body();
+            if (response.statusCode() != 200 || !json.contains("\"status\":200")) {
+                String error = stringField(json, "error");
+                throw new IOException(operation + " failed: " + (error != null ? error : "HTTP " + response.statusCode()));
+            }
+            success = true;
+            String value = stringField(json, "value");
+            return value != null ? value : "";
+        } finally {
+            metrics.outboundRequest("jmx", success, System.nanoTime() - start);
+        }
+    }
+
+    private URI agentUri(String host, String jolokiaPath) {
+        String path = jolokiaPath.startsWith("/") ? jolokiaPath.substring(1) : jolokiaPath;
+        return URI.create("http://" + host + ":" + agentPort + "/jolokia/" + path);
+    }
+
+    /**
+     * Recognises a single-attribute GET read ({@code read/<mbean>[/<attribute>[/<path>]]}, with Jolokia's
+     * {@code !} escapes) so it can be batched. Returns null for everything else, which is passed through.
+     */
+    static Read parseRead(String jolokiaPath) {
+        String path = jolokiaPath.startsWith("/") ? jolokiaPath.substring(1) : jolokiaPath;
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '!' && i + 1 < path.length()) {
+                part.append(path.charAt(++i));
+            } else if (c == '/') {
+                parts.add(part.toString());
+                part.setLength(0);
+            } else {
+                part.append(c);
+            }
+        }
+        parts.add(part.toString());
+        while (!parts.isEmpty() && parts.get(parts.size() - 1).isEmpty()) {
+            parts.remove(parts.size() - 1);
+        }
+
+        if (parts.size() < 2 || !parts.get(0).equals("read") || !parts.get(1).contains(":")) {
+            return null;
+        }
+        String attribute = parts.size() > 2 ? parts.get(2) : null;
+        if (attribute != null && attribute.contains(",")) {
+            return null; // several attributes come back in a different shape; let Jolokia handle it
+        }
+        String inner = parts.size() > 3 ? String.join("/", parts.subList(3, parts.size())) : null;
+        return new Read(parts.get(1), attribute, inner);
+    }
+
+    private static void appendRead(StringBuilder json, Read read) {
+        json.append("{\"type\":\"read\",\"mbean\":");
+        appendString(json, read.mbean());
+        if (read.attribute() != null) {
+            json.append(",\"attribute\":");
+            appendString(json, read.attribute());
+        }
+        if (read.path() != null) {
+            json.append(",\"path\":");
+            appendString(json, read.path());
+        }
+        json.append('}');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * The top-level string {@code field} of a flat JSON object, unescaped; null if it's missing or not a string.
+     */
+    static String stringField(String json, String field) {
+        String marker = "\"" + field + "\":\"";
+        int at = json.indexOf(marker);
+        if (at < 0) {
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        for (int i = at + marker.length(); i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\' || i + 1 == json.length()) {
+                value.append(c);
+                continue;
+            }
+            char escaped = json.charAt(++i);
+            switch (escaped) {
+                case 'n' -> value.append('\n');
+                case 't' -> value.append('\t');
+                case 'r' -> value.append('\r');
+                case 'b' -> value.append('\b');
+                case 'f' -> value.append('\f');
+                case 'u' -> {
+                    value.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                }
+                default -> value.append(escaped);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Splits a JSON array into the source text of its elements without parsing them.
+     * Returns null if {@code json} isn't an array.
+     */
+    static List<String> splitArray(String json) {
+        int start = 0;
+        int end = json.length();
+        while (start < end && Character.isWhitespace(json.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(json.charAt(end - 1))) {
+            end--;
+        }
+        if (start >= end || json.charAt(start) != '[' || json.charAt(end - 1) != ']') {
+            return null;
+        }
+
+        List<String> elements = new ArrayList<>();
+        int depth = 0;
+        boolean inString = false;
+        int elementStart = start + 1;
+        for (int i = start + 1; i < end - 1; i++) {
+            char c = json.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                elements.add(json.substring(elementStart, i).strip());
+                elementStart = i + 1;
+            }
+        }
+        String last = json.substring(elementStart, end - 1).strip();
+        if (!last.isEmpty() || !elements.isEmpty()) {
+            elements.add(last);
+        }
+        return elements;
+    }
+}
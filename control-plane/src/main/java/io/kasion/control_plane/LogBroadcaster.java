@@ -1,39 +1,465 @@
 package io.kasion.control_plane;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Fans build log lines out to WebSocket subscribers without ever blocking the build thread.
+ *
+ * Every session gets its own bounded outbox that is drained on a separate thread, one sender at a time
+ * (WebSocket sessions don't allow concurrent sends). Spring's ConcurrentWebSocketSessionDecorator
+ * would send on whichever thread gets the lock first, which is usually the build thread, so we queue
+ * and hand off instead. When a subscriber can't keep up, {@code kasion.logs.overflow-policy} decides
+ * what happens:
+ * - DROP_OLDEST: discard the oldest queued line and count it.
+ * - DISCONNECT: close the slow session; the browser can reconnect.
+ *
+ * Lines carry their offset in the build log. A subscriber that joins late first gets the history from
+ * {@link LogHistory} while live lines are held back, then switches to live without gaps or repeats.
+ *
+ * Lines travel in frames, one per {@link LogPipeline} batch: {@code {"offset":120,"lines":["...","..."]}}.
+ * A frame is encoded to UTF-8 once, straight from the pipeline's bytes, and those bytes go to every
+ * subscriber as a binary message, so no session encodes it again.
+ */
 @Component
-public class LogBroadcaster {
+public class LogBroadcaster implements LogPipeline.Sink {
 
-    private final ConcurrentHashMap<String, List<WebSocketSession>> sessions = new ConcurrentHashMap<>();
+    private static final int REPLAY_FRAME_LINES = 256;
 
+    public enum OverflowPolicy { DROP_OLDEST, DISCONNECT }
+
+    public record SubscriberStats(String sessionId, int queued, long dropped) {}
+
+    @FunctionalInterface
+    public interface LineConsumer {
+        void accept(long offset, String line) throws IOException;
+    }
+
+    /**
+     * Where already-logged lines come from when a subscriber asks for history.
+     */
+    public interface LogHistory {
+        /**
+         * Delivers every line from {@code fromOffset} up to the current end of the log.
+         *
+         * @return the offset after the last delivered line, or {@code fromOffset} if there was nothing
+         */
+        long replay(String deploymentId, long fromOffset, LineConsumer consumer) throws IOException;
+    }
+
+    private record Frame(long offset, long end, byte[] json) {}
+
+    private final ConcurrentHashMap<String, List<Outbox>> sessions = new ConcurrentHashMap<>();
+    // One per flusher thread, so each pipeline encodes into the same buffer every time.
+    private final ThreadLocal<FrameBuilder> frameBuilders = ThreadLocal.withInitial(FrameBuilder::new);
+    private final Executor senders;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long sendTimeoutNanos;
+    private final ControlPlaneMetrics metrics;
+
+    public LogBroadcaster(BuildExecutors buildExecutors,
+                          ControlPlaneMetrics metrics,
+                          @Value("${kasion.logs.session-queue-capacity:1024}") int queueCapacity,
+                          @Value("${kasion.logs.overflow-policy:DROP_OLDEST}") OverflowPolicy overflowPolicy,
+                          @Value("${kasion.logs.send-timeout-millis:10000}") long sendTimeoutMillis) {
+        this.senders = buildExecutors.io();
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+        this.metrics = metrics;
+        metrics.bindLogSessions(this::sessionCount);
+    }
+
+    /**
+     * Subscribes to live lines only.
+     */
     public void register(String deploymentId, WebSocketSession session) {
-        sessions.computeIfAbsent(deploymentId, k -> new CopyOnWriteArrayList<>()).add(session);
+        sessions.computeIfAbsent(deploymentId, k -> new CopyOnWriteArrayList<>()).add(new Outbox(deploymentId, session, false));
+    }
+
+    /**
+     * Subscribes starting at {@code fromOffset}: replays history first, then continues live.
+     *
+     * The outbox is registered before the history is read, so every line logged after that point is
+     * either in the replay or held for the switch-over; offsets sort out the overlap.
+     */
+    public void register(String deploymentId, WebSocketSession session, long fromOffset, LogHistory history) {
+        Outbox outbox = new Outbox(deploymentId, session, true);
+        sessions.computeIfAbsent(deploymentId, k -> new CopyOnWriteArrayList<>()).add(outbox);
+        senders.execute(() -> {
+            try {
+                long cursor = fromOffset;
+                FrameBuilder replayed = new FrameBuilder();
+                while (true) {
+                    cursor = history.replay(deploymentId, cursor, (offset, line) -> {
+                        replayed.add(offset, line);
+                        if (replayed.count == REPLAY_FRAME_LINES) {
+                            outbox.sendNow(replayed.build().json());
+                        }
+                    });
+                    if (replayed.count > 0) {
+                        outbox.sendNow(replayed.build().json());
+                    }
+                    long gapEnd = outbox.goLive(cursor);
+                    if (gapEnd < 0) {
+                        return;
+                    }
+                    // Live lines overflowed while we were replaying; they're in the history by now.
+                }
+            } catch (IOException | IllegalStateException e) {
+                if (outbox.fail()) {
+                    outbox.disconnect(CloseStatus.SERVER_ERROR);
+                }
+            }
+        });
     }
 
     public void unregister(String deploymentId, WebSocketSession session) {
-        if (sessions.containsKey(deploymentId)) {
-            sessions.get(deploymentId).remove(session);
+        List<Outbox> outboxes = sessions.get(deploymentId);
+        if (outboxes != null) {
+            outboxes.removeIf(outbox -> outbox.session.getId().equals(session.getId()));
+        }
+    }
+
+    /**
+     * Queues a single line for every subscriber of the deployment and returns immediately.
+     * Offsets must increase per deployment.
+     */
+    public void broadcast(String deploymentId, long offset, String message) {
+        List<Outbox> outboxes = sessions.get(deploymentId);
+        if (outboxes == null || outboxes.isEmpty()) {
+            return;
+        }
+        FrameBuilder frame = frameBuilders.get();
+        frame.add(offset, message);
+        offer(outboxes, frame.build());
+    }
+
+    /**
+     * Queues one frame with the whole batch for every subscriber. Called on the pipeline's flusher.
+     */
+    @Override
+    public void accept(LogPipeline.Batch batch) {
+        List<Outbox> outboxes = sessions.get(batch.deploymentId());
+        if (outboxes == null || outboxes.isEmpty()) {
+            return;
+        }
+        FrameBuilder frame = frameBuilders.get();
+        for (int i = 0; i < batch.size(); i++) {
+            frame.add(batch.firstOffset() + i, batch.buffer(), batch.start(i), batch.length(i));
+        }
+        offer(outboxes, frame.build());
+    }
+
+    private void offer(List<Outbox> outboxes, Frame frame) {
+        for (Outbox outbox : outboxes) {
+            outbox.offer(frame);
         }
     }
 
-    public void broadcast(String deploymentId, String message) {
-        if (sessions.containsKey(deploymentId)) {
-            TextMessage textMessage = new TextMessage(message);
-            for (WebSocketSession session : sessions.get(deploymentId)) {
+    /**
+     * Closes subscribers stuck in one send for longer than the send timeout. The blocking write has no
+     * deadline of its own, so without this a tab that stops reading holds its sender thread for good;
+     * closing the session fails the write and frees it.
+     */
+    @Scheduled(fixedDelayString = "${kasion.logs.send-timeout-check-millis:1000}",
+            initialDelayString = "${kasion.logs.send-timeout-check-millis:1000}")
+    public void closeStalledSessions() {
+        long now = System.nanoTime();
+        for (List<Outbox> outboxes : sessions.values()) {
+            for (Outbox outbox : outboxes) {
+                outbox.expireIfStalled(now);
+            }
+        }
+    }
+
+    private int sessionCount() {
+        int count = 0;
+        for (List<Outbox> outboxes : sessions.values()) {
+            count += outboxes.size();
+        }
+        return count;
+    }
+
+    public List<SubscriberStats> subscriberStats(String deploymentId) {
+        return sessions.getOrDefault(deploymentId, List.of()).stream()
+                .map(Outbox::stats)
+                .toList();
+    }
+
+    private final class Outbox {
+        private final String deploymentId;
+        private final WebSocketSession session;
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private final ArrayDeque<Frame> held = new ArrayDeque<>();
+        private boolean replaying;
+        private long nextOffset = Long.MIN_VALUE;
+        private boolean draining;
+        private boolean closed;
+        private long dropped;
+        private volatile long sendingSince; // System.nanoTime() when the current send started, 0 when idle
+
+        Outbox(String deploymentId, WebSocketSession session, boolean replaying) {
+            this.deploymentId = deploymentId;
+            this.session = session;
+            this.replaying = replaying;
+        }
+
+        void offer(Frame frame) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (replaying) {
+                    if (held.size() >= queueCapacity) {
+                        held.pollFirst(); // goLive() notices the gap and fills it from history
+                    }
+                    held.addLast(frame);
+                    return;
+                }
+                if (!enqueue(frame)) {
+                    return;
+                }
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            senders.execute(this::drain);
+        }
+
+        /**
+         * Sends a history frame straight away. Only called while replaying, when nothing is draining.
+         */
+        void sendNow(byte[] json) throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Subscriber " + session.getId() + " is closed");
+                }
+            }
+            send(json);
+        }
+
+        private void send(byte[] json) throws IOException {
+            sendingSince = System.nanoTime() | 1; // never 0 while a send is in flight
+            try {
+                // A message per send: the container consumes the payload buffer as it writes it.
+                session.sendMessage(new BinaryMessage(json));
+            } finally {
+                sendingSince = 0;
+            }
+        }
+
+        void expireIfStalled(long now) {
+            long since = sendingSince;
+            if (since == 0 || now - since < sendTimeoutNanos) {
+                return;
+            }
+            if (fail()) {
+                senders.execute(() -> disconnect(CloseStatus.SESSION_NOT_RELIABLE.withReason("Log send timed out")));
+            }
+        }
+
+        /**
+         * Ends the replay at {@code cursor}. Returns -1 once live, or the offset of the first held line
+         * if lines between the two were lost, in which case the caller replays up to it and retries.
+         */
+        long goLive(long cursor) {
+            synchronized (this) {
+                if (!held.isEmpty() && held.peekFirst().offset() > cursor) {
+                    return held.peekFirst().offset();
+                }
+                replaying = false;
+                nextOffset = cursor;
+                for (Frame frame : held) {
+                    enqueue(frame);
+                }
+                held.clear();
+                if (closed || draining || queue.isEmpty()) {
+                    return -1;
+                }
+                draining = true;
+            }
+            senders.execute(this::drain);
+            return -1;
+        }
+
+        /**
+         * Adds a frame to the send queue, skipping it if everything in it was already delivered.
+         * A frame that only partly overlaps is sent whole; clients skip offsets they already have.
+         * Returns false if nothing was queued.
+         */
+        private boolean enqueue(Frame frame) {
+            if (frame.end() <= nextOffset) {
+                return false;
+            }
+            nextOffset = frame.end();
+            if (queue.size() >= queueCapacity) {
+                dropped++;
+                metrics.logFrameDropped();
+                if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                    closed = true;
+                    queue.clear();
+                    senders.execute(() -> disconnect(CloseStatus.SESSION_NOT_RELIABLE.withReason("Log consumer too slow")));
+                    return false;
+                }
+                queue.pollFirst();
+            }
+            queue.addLast(frame.json());
+            return true;
+        }
+
+        private void drain() {
+            while (true) {
+                byte[] next;
+                synchronized (this) {
+                    next = closed ? null : queue.pollFirst();
+                    if (next == null) {
+                        draining = false;
+                        return;
+                    }
+                }
                 try {
-                    session.sendMessage(textMessage);
-                } catch (IOException e) {
-                    // Handle exception, e.g., log it
+                    long sendStart = System.nanoTime();
+                    send(next);
+                    metrics.logFrameSent(System.nanoTime() - sendStart);
+                } catch (IOException | IllegalStateException e) {
+                    if (fail()) {
+                        disconnect(CloseStatus.SERVER_ERROR);
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Closes the outbox after a failed or expired send. Returns false if it was already closed,
+         * in which case whoever closed it is disconnecting the session.
+         */
+        synchronized boolean fail() {
+            boolean first = !closed;
+            closed = true;
+            queue.clear();
+            held.clear();
+            draining = false;
+            return first;
+        }
+
+        private void disconnect(CloseStatus status) {
+            unregister(deploymentId, session);
+            try {
+                session.close(status);
+            } catch (IOException ignored) {
+                // Already gone.
+            }
+            System.out.println("🔌 [Logs] Dropped subscriber " + session.getId() + " of " + deploymentId
+                    + " after " + stats().dropped() + " dropped messages");
+        }
+
+        synchronized SubscriberStats stats() {
+            return new SubscriberStats(session.getId(), queue.size() + held.size(), dropped);
+        }
+    }
+
+    /**
+     * Encodes consecutive lines as one JSON frame into a byte buffer that is reused from frame to frame.
+     * Line bytes are copied as they are, since JSON allows raw UTF-8; only quotes, backslashes and
+     * control characters are escaped, from a table.
+     */
+    private static final class FrameBuilder {
+        private static final byte[][] ESCAPES = new byte[256][];
+
+        static {
+            byte[] hex = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+            for (int c = 0; c < 0x20; c++) {
+                ESCAPES[c] = new byte[]{'\\', 'u', '0', '0', hex[c >> 4], hex[c & 0xf]};
+            }
+            ESCAPES['"'] = new byte[]{'\\', '"'};
+            ESCAPES['\\'] = new byte[]{'\\', '\\'};
+            ESCAPES['\n'] = new byte[]{'\\', 'n'};
+            ESCAPES['\r'] = new byte[]{'\\', 'r'};
+            ESCAPES['\t'] = new byte[]{'\\', 't'};
+        }
+
+        private byte[] json = new byte[8192];
+        private int length;
+        private long first = -1;
+        private int count;
+
+        void add(long offset, String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            add(offset, bytes, 0, bytes.length);
+        }
+
+        void add(long offset, byte[] buf, int off, int len) {
+            start(offset);
+            ensure(6 * len + 2); // at worst every byte becomes a six-byte escape, plus the quotes
+            json[length++] = '"';
+            int end = off + len;
+            int run = off;
+            for (int i = off; i < end; i++) {
+                byte[] escape = ESCAPES[buf[i] & 0xff];
+                if (escape != null) {
+                    System.arraycopy(buf, run, json, length, i - run);
+                    length += i - run;
+                    System.arraycopy(escape, 0, json, length, escape.length);
+                    length += escape.length;
+                    run = i + 1;
                 }
             }
+            System.arraycopy(buf, run, json, length, end - run);
+            length += end - run;
+            json[length++] = '"';
+        }
+
+        private void start(long offset) {
+            if (count == 0) {
+                first = offset;
+                length = 0;
+                append("{\"offset\":" + offset + ",\"lines\":[");
+            } else {
+                ensure(1);
+                json[length++] = ',';
+            }
+            count++;
+        }
+
+        private void append(String ascii) {
+            ensure(ascii.length());
+            for (int i = 0; i < ascii.length(); i++) {
+                json[length++] = (byte) ascii.charAt(i);
+            }
+        }
+
+        private void ensure(int more) {
+            if (length + more > json.length) {
+                json = Arrays.copyOf(json, Math.max(json.length * 2, length + more));
+            }
+        }
+
+        /**
+         * The frame so far, which every subscriber shares. The builder can be reused after.
+         */
+        Frame build() {
+            append("]}");
+            Frame frame = new Frame(first, first + count, Arrays.copyOf(json, length));
+            count = 0;
+            return frame;
         }
     }
 }
@@ -0,0 +1,339 @@
+package io.kasion.control_plane;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves one deployment's log lines from producers (the build thread, process output pumps) to the sinks
+ * (log store, WebSocket subscribers, console) in batches.
+ *
+ * Producers copy line bytes into a preallocated ring; nothing is decoded or wrapped per line.
+ * A flusher hands everything pending to the sinks once {@code batchLines} lines are waiting or
+ * {@code flushMillis} has passed, whichever comes first. A {@link Batch} is a view over the ring that is
+ * only valid during {@link Sink#accept}, so sinks copy what they keep.
+ *
+ * Offsets are assigned here, in publish order, starting at the offset the pipeline was opened with.
+ * If the sinks fall behind and the ring fills up, producers wait, which slows the process output
+ * pump rather than losing lines.
+ */
+public final class LogPipeline implements AutoCloseable {
+
+    public interface Sink {
+        void accept(Batch batch);
+    }
+
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private final String deploymentId;
+    private final List<Sink> sinks;
+    private final int batchLines;
+    private final long flushNanos;
+
+    private final byte[] data;
+    private final int maxLineBytes;
+    private final int[] starts;
+    private final int[] lengths;
+    private final int[] occupied;
+    private long head; // next line sequence to publish
+    private long tail; // oldest line not yet handed to sinks
+    private int writePos;
+    private int usedBytes;
+    private long nextOffset;
+    private boolean closed;
+    private boolean flushRequested;
+    private boolean flusherDone;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition space = lock.newCondition();
+    private final Condition done = lock.newCondition();
+    private final Batch batch = new Batch();
+
+    public LogPipeline(String deploymentId, long firstOffset, int ringBytes, int batchLines, long flushMillis,
+                       Executor flusher, List<Sink> sinks) {
+        this.deploymentId = deploymentId;
+        this.nextOffset = firstOffset;
+        this.sinks = List.copyOf(sinks);
+        this.batchLines = batchLines;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.data = new byte[ringBytes];
+        this.maxLineBytes = Math.max(1, ringBytes / 4);
+        // A batch never exceeds the slot count, so producers can run ahead of one flush.
+        int slots = batchLines * 2;
+        this.starts = new int[slots];
+        this.lengths = new int[slots];
+        this.occupied = new int[slots];
+        flusher.execute(this::flushLoop);
+    }
+
+    public String deploymentId() {
+        return deploymentId;
+    }
+
+    public void publish(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        publish(NO_PREFIX, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Copies {@code prefix} followed by {@code buf[off, off+len)} into the ring as one line.
+     * Lines longer than a quarter of the ring are truncated.
+     */
+    public void publish(byte[] prefix, byte[] buf, int off, int len) {
+        int length = Math.min(prefix.length + len, maxLineBytes);
+        lock.lock();
+        try {
+            while (!closed && !fits(length)) {
+                space.awaitUninterruptibly();
+            }
+            if (closed) {
+                return;
+            }
+            int start = writePos;
+            int waste = 0;
+            if (start + length > data.length) {
+                waste = data.length - start;
+                start = 0;
+            }
+            int prefixLength = Math.min(prefix.length, length);
+            System.arraycopy(prefix, 0, data, start, prefixLength);
+            System.arraycopy(buf, off, data, start + prefixLength, length - prefixLength);
+
+            int slot = (int) (head % starts.length);
+            starts[slot] = start;
+            lengths[slot] = length;
+            occupied[slot] = waste + length;
+            usedBytes += waste + length;
+            writePos = start + length;
+            head++;
+            if (head - tail >= batchLines) {
+                pending.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(int length) {
+        if (head - tail >= starts.length) {
+            return false;
+        }
+        int free = data.length - usedBytes;
+        int waste = writePos + length > data.length ? data.length - writePos : 0;
+        return waste + length <= free;
+    }
+
+    /**
+     * Reads raw process output until EOF and publishes each line with {@code prefix}.
+     * Splits on '\n', drops a trailing '\r', and never decodes the bytes.
+     */
+    public void pump(InputStream in, byte[] prefix) throws IOException {
+        byte[] chunk = new byte[8192];
+        byte[] carry = new byte[8192];
+        int carried = 0;
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            int lineStart = 0;
+            for (int i = 0; i < n; i++) {
+                if (chunk[i] != '\n') {
+                    continue;
+                }
+                if (carried > 0) {
+                    carry = append(carry, carried, chunk, lineStart, i - lineStart);
+                    carried += i - lineStart;
+                    publish(prefix, carry, 0, trimCr(carry, 0, carried));
+                    carried = 0;
+                } else {
+                    publish(prefix, chunk, lineStart, trimCr(chunk, lineStart, i - lineStart));
+                }
+                lineStart = i + 1;
+            }
+            if (lineStart < n) {
+                carry = append(carry, carried, chunk, lineStart, n - lineStart);
+                carried += n - lineStart;
+                if (carried >= maxLineBytes) {
+                    publish(prefix, carry, 0, carried);
+                    carried = 0;
+                }
+            }
+        }
+        if (carried > 0) {
+            publish(prefix, carry, 0, trimCr(carry, 0, carried));
+        }
+    }
+
+    private static byte[] append(byte[] carry, int carried, byte[] src, int off, int len) {
+        if (carried + len > carry.length) {
+            byte[] grown = new byte[Math.max(carry.length * 2, carried + len)];
+            System.arraycopy(carry, 0, grown, 0, carried);
+            carry = grown;
+        }
+        System.arraycopy(src, off, carry, carried, len);
+        return carry;
+    }
+
+    private static int trimCr(byte[] buf, int off, int len) {
+        return len > 0 && buf[off + len - 1] == '\r' ? len - 1 : len;
+    }
+
+    /**
+     * Blocks until every line published so far has been handed to the sinks.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            long target = head;
+            flushRequested = true;
+            pending.signal();
+            while (tail < target && !flusherDone) {
+                done.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes what's left and stops the flusher.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            pending.signal();
+            space.signalAll();
+            while (!flusherDone) {
+                done.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                long from;
+                long to;
+                lock.lock();
+                try {
+                    long deadline = System.nanoTime() + flushNanos;
+                    while (!closed && !flushRequested && head - tail < batchLines) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            if (head > tail) {
+                                break;
+                            }
+                            deadline = System.nanoTime() + flushNanos;
+                            left = flushNanos;
+                        }
+                        pending.awaitNanos(left);
+                    }
+                    flushRequested = false;
+                    if (closed && head == tail) {
+                        return;
+                    }
+                    from = tail;
+                    to = head;
+                } finally {
+                    lock.unlock();
+                }
+                if (from == to) {
+                    continue;
+                }
+
+                // The ring region [from, to) is ours until tail moves; producers only write free space.
+                batch.reset(from, to);
+                for (Sink sink : sinks) {
+                    try {
+                        sink.accept(batch);
+                    } catch (RuntimeException e) {
+                        System.err.println("❌ [Logs] Sink failed for " + deploymentId + ": " + e.getMessage());
+                    }
+                }
+                nextOffset += to - from;
+
+                lock.lock();
+                try {
+                    for (long seq = from; seq < to; seq++) {
+                        usedBytes -= occupied[(int) (seq % starts.length)];
+                    }
+                    tail = to;
+                    if (usedBytes == 0) {
+                        writePos = 0;
+                    }
+                    space.signalAll();
+                    done.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.lock();
+            try {
+                flusherDone = true;
+                space.signalAll();
+                done.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The lines of one flush: a read-only view over the ring.
+     */
+    public final class Batch {
+        private long from;
+        private int size;
+
+        private void reset(long from, long to) {
+            this.from = from;
+            this.size = (int) (to - from);
+        }
+
+        public String deploymentId() {
+            return deploymentId;
+        }
+
+        public long firstOffset() {
+            return nextOffset;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Backing array for {@link #start} and {@link #length}. Do not keep a reference.
+         */
+        public byte[] buffer() {
+            return data;
+        }
+
+        public int start(int i) {
+            return starts[slot(i)];
+        }
+
+        public int length(int i) {
+            return lengths[slot(i)];
+        }
+
+        public String line(int i) {
+            return new String(data, start(i), length(i), StandardCharsets.UTF_8);
+        }
+
+        private int slot(int i) {
+            return (int) ((from + i) % starts.length);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package io.kasion.control_plane;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens one {@link LogPipeline} per running build or scale operation, wired to the log store, WebSocket subscribers,
+ * the console and the search index, and routes {@link BuildEngine} log lines to it.
+ */
+@Component
+public class LogPipelines {
+
+    private final ConcurrentHashMap<String, LogPipeline> open = new ConcurrentHashMap<>();
+    private final BuildLogStore buildLogStore;
+    private final List<LogPipeline.Sink> sinks;
+    private final BuildExecutors buildExecutors;
+    private final int ringBytes;
+    private final int batchLines;
+    private final long flushMillis;
+
+    public LogPipelines(BuildLogStore buildLogStore, LogBroadcaster logBroadcaster, LogSearchIndex logSearchIndex,
+                        BuildExecutors buildExecutors,
+                        @Value("${kasion.logs.pipeline.ring-bytes:1048576}") int ringBytes,
+                        @Value("${kasion.logs.pipeline.batch-lines:256}") int batchLines,
+                        @Value("${kasion.logs.pipeline.flush-millis:50}") long flushMillis) {
+        this.buildLogStore = buildLogStore;
+        // Store first: a frame must never reach a subscriber before it can be replayed.
+        // Indexing last, so it never delays what people are watching.
+        this.sinks = List.of(buildLogStore, logBroadcaster, consoleSink(System.out), logSearchIndex);
+        this.buildExecutors = buildExecutors;
+        this.ringBytes = ringBytes;
+        this.batchLines = batchLines;
+        this.flushMillis = flushMillis;
+    }
+
+    public LogPipeline open(String deploymentId) {
+        return open.computeIfAbsent(deploymentId, id -> new LogPipeline(id, buildLogStore.nextOffset(id),
+                ringBytes, batchLines, flushMillis, buildExecutors.io(), sinks));
+    }
+
+    /**
+     * Publishes a line to the deployment's open pipeline. Without one (the build or scale operation has
+     * ended) the line only goes to the console: it gets no offset and never reopens the stored log.
+     */
+    public void publish(String deploymentId, String line) {
+        LogPipeline pipeline = open.get(deploymentId);
+        if (pipeline != null) {
+            pipeline.publish(line);
+            return;
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * Pumps process output into the deployment's pipeline until EOF; to the console if none is open.
+     */
+    public void pump(String deploymentId, InputStream in, byte[] prefix) throws IOException {
+        LogPipeline pipeline = open.get(deploymentId);
+        if (pipeline != null) {
+            pipeline.pump(in, prefix);
+            return;
+        }
+        String linePrefix = new String(prefix, StandardCharsets.UTF_8);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                System.out.println(linePrefix + line);
+            }
+        }
+    }
+
+    /**
+     * Flushes the build's remaining lines and seals its log.
+     */
+    public void close(String deploymentId) {
+        LogPipeline pipeline = open.remove(deploymentId);
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        buildLogStore.seal(deploymentId);
+    }
+
+    /**
+     * Writes each batch to {@code out} as raw bytes with a single flush.
+     */
+    static LogPipeline.Sink consoleSink(PrintStream out) {
+        return batch -> {
+            byte[] buffer = batch.buffer();
+            synchronized (out) {
+                for (int i = 0; i < batch.size(); i++) {
+                    out.write(buffer, batch.start(i), batch.length(i));
+                    out.write('\n');
+                }
+                out.flush();
+            }
+        };
+    }
+}
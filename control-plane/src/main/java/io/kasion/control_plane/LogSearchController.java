@@ -0,0 +1,112 @@
+package io.kasion.control_plane;
+
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+@RestController
+@RequestMapping("/api/v1/logs")
+public class LogSearchController {
+
+    private final LogSearchIndex logSearchIndex;
+    private final BuildLogStore buildLogStore;
+    private final DeploymentRepository deploymentRepository;
+    private final DeploymentArchive deploymentArchive;
+
+    public record SearchHit(String deploymentId, String project, String status, LocalDateTime deployedAt,
+                            long offset, String line, List<String> before, List<String> after) {}
+
+    public record SearchResponse(String query, long candidates, long tookMillis, List<SearchHit> hits) {}
+
+    public LogSearchController(LogSearchIndex logSearchIndex, BuildLogStore buildLogStore,
+                               DeploymentRepository deploymentRepository, DeploymentArchive deploymentArchive) {
+        this.logSearchIndex = logSearchIndex;
+        this.buildLogStore = buildLogStore;
+        this.deploymentRepository = deploymentRepository;
+        this.deploymentArchive = deploymentArchive;
+    }
+
+    /**
+     * Searches every build log, e.g. {@code ?q=OutOfMemoryError&since=7d} or
+     * {@code ?q="Connection refused" project:shop}. Terms must all appear on the same line; quoted
+     * text must appear as a phrase. Results are newest deployment first, with {@code context} lines
+     * around each match.
+     */
+    @GetMapping("/search")
+    public ResponseEntity<?> search(@RequestParam String q,
+                                    @RequestParam(required = false) String project,
+                                    @RequestParam(required = false) String since,
+                                    @RequestParam(defaultValue = "2") int context,
+                                    @RequestParam(defaultValue = "50") int limit) throws IOException {
+        long start = System.currentTimeMillis();
+        LogSearchIndex.Query query = LogSearchIndex.Query.parse(q);
+        if (query.terms().isEmpty() && query.phrases().isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Query has no searchable terms"));
+        }
+
+        String projectName = project != null ? project : query.project();
+        LocalDateTime cutoff;
+        try {
+            cutoff = since == null ? null : LocalDateTime.now().minus(DurationStyle.detectAndParse(since));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Invalid 'since', use e.g. 7d, 12h or P7D"));
+        }
+        Predicate<String> scope = null;
+        if (projectName != null || cutoff != null) {
+            List<Deployment> scoped = projectName != null
+                    ? deploymentRepository.findByProjectName(projectName)
+                    : deploymentRepository.findByCreatedAtAfter(cutoff);
+            Set<String> ids = scoped.stream()
+                    .filter(d -> cutoff == null || (d.getCreatedAt() != null && d.getCreatedAt().isAfter(cutoff)))
+                    .map(Deployment::getId)
+                    .collect(Collectors.toCollection(HashSet::new));
+            // Logs outlive the table rows; archived deployments are still searchable.
+            ids.addAll(deploymentArchive.ids(e -> (projectName == null || projectName.equals(e.projectName()))
+                    && (cutoff == null || e.createdAt().isAfter(cutoff))));
+            scope = ids::contains;
+        }
+
+        int lines = Math.max(0, Math.min(context, 20));
+        LogSearchIndex.Result result = logSearchIndex.search(query, scope, Math.max(1, Math.min(limit, 500)));
+
+        Set<String> hitDeployments = result.matches().stream().map(LogSearchIndex.Match::deploymentId).collect(Collectors.toSet());
+        Map<String, Deployment> deployments = deploymentRepository.findAllById(hitDeployments).stream()
+                .collect(Collectors.toMap(Deployment::getId, Function.identity()));
+
+        List<SearchHit> hits = new ArrayList<>();
+        for (LogSearchIndex.Match match : result.matches()) {
+            long from = Math.max(0, match.offset() - lines);
+            List<String> window = buildLogStore.lines(match.deploymentId(), from, match.offset() + lines + 1);
+            int at = (int) (match.offset() - from);
+            Deployment deployment = deployments.get(match.deploymentId());
+            DeploymentArchive.Entry archived = deployment == null
+                    ? deploymentArchive.entry(match.deploymentId()).orElse(null) : null;
+            hits.add(new SearchHit(
+                    match.deploymentId(),
+                    deployment != null ? deployment.getProject().getName() : archived != null ? archived.projectName() : null,
+                    deployment != null ? deployment.getStatus() : archived != null ? archived.status() : null,
+                    deployment != null ? deployment.getCreatedAt() : archived != null ? archived.createdAt() : null,
+                    match.offset(),
+                    match.line(),
+                    window.subList(0, Math.min(at, window.size())),
+                    at + 1 < window.size() ? window.subList(at + 1, window.size()) : List.of()));
+        }
+        return ResponseEntity.ok(new SearchResponse(q, result.candidates(), System.currentTimeMillis() - start, hits));
+    }
+
+    @GetMapping("/search/stats")
+    public Map<String, Object> stats() {
+        return logSearchIndex.stats();
+    }
+}
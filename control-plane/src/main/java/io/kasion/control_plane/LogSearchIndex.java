@@ -0,0 +1,800 @@
+package io.kasion.control_plane;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Inverted index over every build log line: term -> (deployment, line offset) postings.
+ *
+ * Lines are tokenized as they pass through the {@link LogPipeline} (lowercased runs of letters, digits
+ * and '_'). New postings go into an in-memory segment; once it holds {@code kasion.logs.search.flush-postings}
+ * postings it is written out as an immutable segment file and a fresh one takes its place. Segment files
+ * keep postings sorted and delta + varint encoded, so a posting typically costs 2-3 bytes on disk, and are
+ * memory-mapped for reads. When there are more than {@value #MAX_SEGMENTS} files they are merged into one.
+ *
+ * Postings name lines, not positions, so phrases are matched on the candidate lines read back from the
+ * {@link BuildLogStore}. A manifest records which segments are live and how far each deployment has been
+ * indexed; on startup anything the store has beyond that is indexed again.
+ */
+@Component
+public class LogSearchIndex implements LogPipeline.Sink {
+
+    private static final int MAX_TERM_BYTES = 64;
+    private static final int MAX_SEGMENTS = 8;
+    private static final int SEGMENT_MAGIC = 0x4b4c5349; // "KLSI"
+    private static final String MANIFEST = "manifest";
+
+    public record Match(String deploymentId, long offset, String line) {}
+
+    /**
+     * @param candidates lines containing every term, before phrases and the limit were applied
+     */
+    public record Result(long candidates, List<Match> matches) {}
+
+    public record Query(List<String> terms, List<List<String>> phrases, String project) {
+
+        /**
+         * Parses {@code OutOfMemoryError "heap space" project:shop}. Words that tokenize into several terms
+         * ({@code java.lang.OutOfMemoryError}) count as phrases.
+         */
+        public static Query parse(String q) {
+            List<String> terms = new ArrayList<>();
+            List<List<String>> phrases = new ArrayList<>();
+            String project = null;
+            int i = 0;
+            while (i < q.length()) {
+                char c = q.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '"') {
+                    int end = q.indexOf('"', i + 1);
+                    end = end < 0 ? q.length() : end;
+                    addWords(tokens(q.substring(i + 1, end)), terms, phrases);
+                    i = end + 1;
+                } else {
+                    int end = i;
+                    while (end < q.length() && !Character.isWhitespace(q.charAt(end))) {
+                        end++;
+                    }
+                    String word = q.substring(i, end);
+                    if (word.startsWith("project:") && word.length() > "project:".length()) {
+                        project = word.substring("project:".length());
+                    } else {
+                        addWords(tokens(word), terms, phrases);
+                    }
+                    i = end;
+                }
+            }
+            return new Query(terms, phrases, project);
+        }
+
+        private static void addWords(List<String> tokens, List<String> terms, List<List<String>> phrases) {
+            if (tokens.size() == 1) {
+                terms.add(tokens.get(0));
+            } else if (tokens.size() > 1) {
+                phrases.add(tokens);
+            }
+        }
+
+        boolean isEmpty() {
+            return terms.isEmpty() && phrases.isEmpty();
+        }
+    }
+
+    private final Path dir;
+    private final long flushPostings;
+    private final Executor background;
+    private final BuildLogStore buildLogStore;
+
+    private final List<String> deploymentIds = new ArrayList<>();
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private long[] indexedUpTo = new long[64];
+    // Deployments the store had lines for at startup that haven't been caught up yet, each with its own lock.
+    private final ConcurrentHashMap<String, Object> behind = new ConcurrentHashMap<>();
+
+    private MemorySegment memory = new MemorySegment();
+    private MemorySegment flushing;
+    private List<DiskSegment> segments = List.of();
+    private int nextSegmentId;
+    // What the segments on disk cover, as last written to the manifest.
+    private List<String> persistedIds = List.of();
+    private long[] persistedUpTo = new long[0];
+
+    public LogSearchIndex(@Value("${kasion.logs.search.dir:${user.home}/.kasion/log-index}") Path dir,
+                          @Value("${kasion.logs.search.flush-postings:1000000}") long flushPostings,
+                          BuildExecutors buildExecutors,
+                          BuildLogStore buildLogStore) throws IOException {
+        this.dir = dir;
+        this.flushPostings = flushPostings;
+        this.background = buildExecutors.io();
+        this.buildLogStore = buildLogStore;
+        Files.createDirectories(dir);
+        loadManifest();
+        for (String deploymentId : buildLogStore.deploymentIds()) {
+            behind.put(deploymentId, new Object());
+        }
+        background.execute(this::catchUp);
+    }
+
+    @Override
+    public void accept(LogPipeline.Batch batch) {
+        catchUp(batch.deploymentId());
+        byte[] buffer = batch.buffer();
+        synchronized (this) {
+            int ordinal = ordinalFor(batch.deploymentId());
+            for (int i = 0; i < batch.size(); i++) {
+                long offset = batch.firstOffset() + i;
+                addLine(ordinal, offset, buffer, batch.start(i), batch.length(i));
+            }
+            maybeFlush();
+        }
+    }
+
+    /**
+     * Indexes one line the way a pipeline batch would.
+     */
+    void add(String deploymentId, long offset, String line) {
+        catchUp(deploymentId);
+        addReplayed(deploymentId, offset, line);
+    }
+
+    private synchronized void addReplayed(String deploymentId, long offset, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        addLine(ordinalFor(deploymentId), offset, bytes, 0, bytes.length);
+        maybeFlush();
+    }
+
+    private void addLine(int ordinal, long offset, byte[] buf, int off, int len) {
+        if (offset < indexedUpTo[ordinal]) {
+            return; // already indexed, e.g. replayed during catch-up
+        }
+        long key = key(ordinal, offset);
+        tokenize(buf, off, len, term -> memory.add(term, key));
+        indexedUpTo[ordinal] = offset + 1;
+    }
+
+    private int ordinalFor(String deploymentId) {
+        Integer ordinal = ordinals.get(deploymentId);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        int next = deploymentIds.size();
+        deploymentIds.add(deploymentId);
+        ordinals.put(deploymentId, next);
+        if (next == indexedUpTo.length) {
+            indexedUpTo = Arrays.copyOf(indexedUpTo, next * 2);
+        }
+        return next;
+    }
+
+    /**
+     * Finds lines containing every term and phrase, newest deployments first.
+     *
+     * Candidate lines are read back from the store, at most {@code 20 * limit} of them, each deployment's
+     * in one pass over its segments.
+     *
+     * @param deploymentFilter which deployments to consider, or null for all
+     * @param limit            maximum number of matches returned
+     */
+    public Result search(Query query, Predicate<String> deploymentFilter, int limit) throws IOException {
+        if (query.isEmpty()) {
+            return new Result(0, List.of());
+        }
+        TreeSet<String> required = new TreeSet<>(query.terms());
+        query.phrases().forEach(required::addAll);
+
+        long[] hits = null;
+        for (String term : required) {
+            long[] postings = postings(term);
+            hits = hits == null ? postings : intersect(hits, postings);
+            if (hits.length == 0) {
+                break;
+            }
+        }
+
+        String[] ids;
+        synchronized (this) {
+            ids = deploymentIds.toArray(String[]::new);
+        }
+        List<Match> matches = new ArrayList<>();
+        long count = 0;
+        int reads = 0;
+        // Walk deployments newest first, lines in order within each.
+        int end = hits.length;
+        while (end > 0) {
+            int ordinal = ordinal(hits[end - 1]);
+            int start = end - 1;
+            while (start > 0 && ordinal(hits[start - 1]) == ordinal) {
+                start--;
+            }
+            String deploymentId = ids[ordinal];
+            if (deploymentFilter == null || deploymentFilter.test(deploymentId)) {
+                count += end - start;
+                // Without phrases every candidate matches, so only read as many as are still needed.
+                int budget = query.phrases().isEmpty() ? limit - matches.size() : 20 * limit - reads;
+                int candidates = Math.max(0, Math.min(end - start, budget));
+                long[] offsets = new long[candidates];
+                for (int i = 0; i < candidates; i++) {
+                    offsets[i] = offset(hits[start + i]);
+                }
+                Map<Long, String> lines = buildLogStore.lines(deploymentId, offsets); // one pass per segment
+                reads += candidates;
+                for (int i = 0; i < candidates && matches.size() < limit; i++) {
+                    String line = lines.get(offsets[i]);
+                    if (line == null) {
+                        continue; // log removed by retention
+                    }
+                    if (containsPhrases(line, query.phrases())) {
+                        matches.add(new Match(deploymentId, offsets[i], line));
+                    }
+                }
+            }
+            end = start;
+        }
+        return new Result(count, matches);
+    }
+
+    private static boolean containsPhrases(String line, List<List<String>> phrases) {
+        if (phrases.isEmpty()) {
+            return true;
+        }
+        List<String> tokens = tokens(line);
+        for (List<String> phrase : phrases) {
+            if (Collections.indexOfSubList(tokens, phrase) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sorted, distinct postings of one term across all segments.
+     */
+    long[] postings(String term) throws IOException {
+        List<DiskSegment> disk;
+        long[] inMemory;
+        long[] inFlush;
+        synchronized (this) {
+            disk = segments;
+            inMemory = memory.postings(term);
+            inFlush = flushing == null ? new long[0] : flushing.postings(term);
+        }
+        long[] result = merge(inMemory, inFlush);
+        for (DiskSegment segment : disk) {
+            result = merge(result, segment.postings(term));
+        }
+        return result;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("deployments", deploymentIds.size());
+        stats.put("segments", segments.size());
+        stats.put("memoryPostings", memory.postingCount);
+        stats.put("segmentBytes", segments.stream().mapToLong(DiskSegment::sizeBytes).sum());
+        return stats;
+    }
+
+    // ------------------------------------------------------------------
+    // Flushing and merging
+    // ------------------------------------------------------------------
+
+    private void maybeFlush() {
+        if (memory.postingCount < flushPostings || flushing != null) {
+            return;
+        }
+        flushing = memory;
+        memory = new MemorySegment();
+        MemorySegment toWrite = flushing;
+        List<String> ids = List.copyOf(deploymentIds);
+        long[] upTo = Arrays.copyOf(indexedUpTo, ids.size());
+        background.execute(() -> writeFlush(toWrite, ids, upTo));
+    }
+
+    /**
+     * Writes the in-memory segment to disk. Blocks until done; used by tests and on shutdown.
+     */
+    synchronized void flush() {
+        while (flushing != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (memory.postingCount == 0) {
+            return;
+        }
+        flushing = memory;
+        memory = new MemorySegment();
+        MemorySegment toWrite = flushing;
+        List<String> ids = List.copyOf(deploymentIds);
+        long[] upTo = Arrays.copyOf(indexedUpTo, ids.size());
+        writeFlush(toWrite, ids, upTo);
+    }
+
+    private void writeFlush(MemorySegment toWrite, List<String> ids, long[] upTo) {
+        try {
+            DiskSegment written = DiskSegment.write(nextSegmentPath(), toWrite.sortedTerms());
+            List<DiskSegment> merged;
+            synchronized (this) {
+                List<DiskSegment> next = new ArrayList<>(segments);
+                next.add(written);
+                segments = List.copyOf(next);
+                flushing = null;
+                notifyAll();
+                persistedIds = ids;
+                persistedUpTo = upTo;
+                writeManifest();
+                merged = segments.size() > MAX_SEGMENTS ? segments : null;
+            }
+            if (merged != null) {
+                merge(merged);
+            }
+        } catch (IOException e) {
+            System.err.println("❌ [Search] Could not write index segment: " + e.getMessage());
+            synchronized (this) {
+                // Keep the postings searchable; they'll go out with the next flush.
+                toWrite.terms.forEach((term, postings) -> {
+                    for (int i = 0; i < postings.size; i++) {
+                        memory.add(term, postings.keys[i]);
+                    }
+                });
+                flushing = null;
+                notifyAll();
+            }
+        }
+    }
+
+    private void merge(List<DiskSegment> inputs) throws IOException {
+        TreeSet<String> terms = new TreeSet<>();
+        for (DiskSegment segment : inputs) {
+            terms.addAll(segment.terms());
+        }
+        DiskSegment merged = DiskSegment.write(nextSegmentPath(), consumer -> {
+            for (String term : terms) {
+                long[] postings = new long[0];
+                for (DiskSegment segment : inputs) {
+                    postings = merge(postings, segment.postings(term));
+                }
+                consumer.accept(term, postings);
+            }
+        });
+        synchronized (this) {
+            List<DiskSegment> next = new ArrayList<>(segments);
+            next.removeAll(inputs);
+            next.add(0, merged);
+            segments = List.copyOf(next);
+            writeManifest();
+        }
+        for (DiskSegment segment : inputs) {
+            segment.delete();
+        }
+        System.out.println("🗜️ [Search] Merged " + inputs.size() + " index segments into " + merged.path.getFileName());
+    }
+
+    private synchronized Path nextSegmentPath() {
+        return dir.resolve(String.format("seg-%08d.idx", nextSegmentId++));
+    }
+
+    private void writeManifest() throws IOException {
+        Path tmp = dir.resolve(MANIFEST + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp)) {
+            for (DiskSegment segment : segments) {
+                out.write("segment " + segment.path.getFileName() + "\n");
+            }
+            for (int i = 0; i < persistedIds.size(); i++) {
+                out.write("deployment " + persistedIds.get(i) + " " + persistedUpTo[i] + "\n");
+            }
+        }
+        Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void loadManifest() throws IOException {
+        Path manifest = dir.resolve(MANIFEST);
+        List<String> live = new ArrayList<>();
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest)) {
+                String[] parts = line.split(" ");
+                if (parts[0].equals("segment")) {
+                    live.add(parts[1]);
+                } else if (parts[0].equals("deployment")) {
+                    int ordinal = ordinalFor(parts[1]);
+                    indexedUpTo[ordinal] = Long.parseLong(parts[2]);
+                }
+            }
+        }
+        persistedIds = List.copyOf(deploymentIds);
+        persistedUpTo = Arrays.copyOf(indexedUpTo, persistedIds.size());
+        List<DiskSegment> opened = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.filter(p -> p.getFileName().toString().startsWith("seg-")).sorted().toList()) {
+                String name = file.getFileName().toString();
+                nextSegmentId = Math.max(nextSegmentId, Integer.parseInt(name.substring(4, 12)) + 1);
+                if (live.contains(name)) {
+                    opened.add(DiskSegment.open(file));
+                } else {
+                    Files.delete(file); // left over from an interrupted flush or merge
+                }
+            }
+        }
+        segments = List.copyOf(opened);
+    }
+
+    /**
+     * Indexes whatever the log store has that the manifest says we haven't seen.
+     */
+    private void catchUp() {
+        long lines = 0;
+        for (String deploymentId : List.copyOf(behind.keySet())) {
+            lines += catchUp(deploymentId);
+        }
+        if (lines > 0) {
+            System.out.println("🔎 [Search] Indexed " + lines + " log lines written while the index was offline");
+        }
+    }
+
+    /**
+     * Indexes what the store has for a deployment beyond the manifest, once. Live lines call this first:
+     * indexing one would move indexedUpTo past the backlog, which would then never be indexed.
+     *
+     * @return the number of lines replayed, 0 if the deployment was already caught up
+     */
+    private long catchUp(String deploymentId) {
+        Object lock = behind.get(deploymentId);
+        if (lock == null) {
+            return 0;
+        }
+        synchronized (lock) {
+            if (!behind.containsKey(deploymentId)) {
+                return 0; // the other caller got here first
+            }
+            try {
+                long from;
+                synchronized (this) {
+                    Integer ordinal = ordinals.get(deploymentId);
+                    from = ordinal == null ? 0 : indexedUpTo[ordinal];
+                }
+                long next = buildLogStore.replay(deploymentId, from, (offset, line) -> addReplayed(deploymentId, offset, line));
+                return next - from;
+            } catch (IOException e) {
+                System.err.println("❌ [Search] Catch-up indexing failed for " + deploymentId + ": " + e.getMessage());
+                return 0;
+            } finally {
+                behind.remove(deploymentId);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    // ------------------------------------------------------------------
+    // Tokenizing and posting arithmetic
+    // ------------------------------------------------------------------
+
+    /**
+     * Emits lowercased runs of ASCII letters, digits, '_' and non-ASCII bytes; everything else separates.
+     * Terms longer than {@value #MAX_TERM_BYTES} bytes are cut.
+     */
+    static void tokenize(byte[] buf, int off, int len, Consumer<String> terms) {
+        byte[] term = new byte[MAX_TERM_BYTES];
+        int n = 0;
+        for (int i = off; i <= off + len; i++) {
+            byte b = i < off + len ? buf[i] : (byte) ' ';
+            boolean word = b < 0 || b == '_' || (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+            if (word) {
+                if (n < MAX_TERM_BYTES) {
+                    term[n++] = b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+                }
+            } else if (n > 0) {
+                terms.accept(new String(term, 0, n, StandardCharsets.UTF_8));
+                n = 0;
+            }
+        }
+    }
+
+    static List<String> tokens(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        List<String> tokens = new ArrayList<>();
+        tokenize(bytes, 0, bytes.length, tokens::add);
+        return tokens;
+    }
+
+    private static long key(int ordinal, long offset) {
+        return ((long) ordinal << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int ordinal(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static long offset(long key) {
+        return key & 0xffffffffL;
+    }
+
+    static long[] merge(long[] a, long[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        long[] out = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            long next = j >= b.length || (i < a.length && a[i] <= b[j]) ? a[i++] : b[j++];
+            if (n == 0 || out[n - 1] != next) {
+                out[n++] = next;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    static long[] intersect(long[] a, long[] b) {
+        long[] out = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // ------------------------------------------------------------------
+    // Segments
+    // ------------------------------------------------------------------
+
+    private static final class Postings {
+        private long[] keys = new long[4];
+        private int size;
+
+        void add(long key) {
+            if (size > 0 && keys[size - 1] == key) {
+                return; // same term twice on one line
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            keys[size++] = key;
+        }
+    }
+
+    private static final class MemorySegment {
+        private final HashMap<String, Postings> terms = new HashMap<>();
+        private long postingCount;
+
+        void add(String term, long key) {
+            Postings postings = terms.computeIfAbsent(term, t -> new Postings());
+            int before = postings.size;
+            postings.add(key);
+            postingCount += postings.size - before;
+        }
+
+        long[] postings(String term) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                return new long[0];
+            }
+            // Concurrent builds interleave, so keys are only sorted per deployment.
+            long[] copy = Arrays.copyOf(postings.keys, postings.size);
+            Arrays.sort(copy);
+            return merge(copy, new long[0]);
+        }
+
+        DiskSegment.TermSource sortedTerms() {
+            return consumer -> {
+                for (String term : new TreeSet<>(terms.keySet())) {
+                    consumer.accept(term, postings(term));
+                }
+            };
+        }
+    }
+
+    /**
+     * Immutable segment file:
+     * {@code magic, termCount, then per term (length-prefixed UTF-8 term, postingCount, blobOffset, blobLength),
+     * then the postings blob}. Postings are (deployment delta, offset) varints where a deployment delta of 0
+     * means "same deployment" and the offset is then a delta too.
+     */
+    private static final class DiskSegment {
+
+        interface TermConsumer {
+            void accept(String term, long[] postings) throws IOException;
+        }
+
+        interface TermSource {
+            void forEach(TermConsumer consumer) throws IOException;
+        }
+
+        private record Entry(int count, long position, int length) {}
+
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final Map<String, Entry> dictionary;
+
+        private DiskSegment(Path path, FileChannel channel, MappedByteBuffer buffer, Map<String, Entry> dictionary) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.dictionary = dictionary;
+        }
+
+        static DiskSegment write(Path path, TermSource source) throws IOException {
+            ByteArrayOutputStream dict = new ByteArrayOutputStream();
+            DataOutputStream dictOut = new DataOutputStream(dict);
+            VarintBuffer blob = new VarintBuffer();
+            int[] termCount = {0};
+            source.forEach((term, postings) -> {
+                if (postings.length == 0) {
+                    return;
+                }
+                int start = blob.size;
+                long prevOrdinal = -1;
+                long prevOffset = 0;
+                for (long key : postings) {
+                    long ordinal = ordinal(key);
+                    long offset = offset(key);
+                    if (ordinal != prevOrdinal) {
+                        blob.writeVarLong(ordinal - prevOrdinal);
+                        blob.writeVarLong(offset);
+                    } else {
+                        blob.writeVarLong(0);
+                        blob.writeVarLong(offset - prevOffset);
+                    }
+                    prevOrdinal = ordinal;
+                    prevOffset = offset;
+                }
+                byte[] termBytes = term.getBytes(StandardCharsets.UTF_8);
+                dictOut.writeShort(termBytes.length);
+                dictOut.write(termBytes);
+                dictOut.writeInt(postings.length);
+                dictOut.writeLong(start);
+                dictOut.writeInt(blob.size - start);
+                termCount[0]++;
+            });
+
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(SEGMENT_MAGIC);
+                header.writeInt(termCount[0]);
+                header.writeInt(dict.size());
+                dict.writeTo(out);
+                out.write(blob.bytes, 0, blob.size);
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return open(path);
+        }
+
+        static DiskSegment open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != SEGMENT_MAGIC) {
+                channel.close();
+                throw new IOException("Not an index segment: " + path);
+            }
+            int termCount = buffer.getInt(4);
+            int dictSize = buffer.getInt(8);
+            long blobStart = 12L + dictSize;
+            Map<String, Entry> dictionary = new HashMap<>(termCount * 2);
+            ByteBuffer dict = buffer.duplicate().position(12).limit((int) blobStart);
+            for (int i = 0; i < termCount; i++) {
+                byte[] term = new byte[dict.getShort()];
+                dict.get(term);
+                int count = dict.getInt();
+                long position = blobStart + dict.getLong();
+                int length = dict.getInt();
+                dictionary.put(new String(term, StandardCharsets.UTF_8), new Entry(count, position, length));
+            }
+            return new DiskSegment(path, channel, buffer, dictionary);
+        }
+
+        Set<String> terms() {
+            return dictionary.keySet();
+        }
+
+        long[] postings(String term) {
+            Entry entry = dictionary.get(term);
+            if (entry == null) {
+                return new long[0];
+            }
+            ByteBuffer in = buffer.duplicate().position((int) entry.position()).limit((int) (entry.position() + entry.length()));
+            long[] keys = new long[entry.count()];
+            long ordinal = -1;
+            long offset = 0;
+            for (int i = 0; i < keys.length; i++) {
+                long ordinalDelta = readVarLong(in);
+                long value = readVarLong(in);
+                if (ordinalDelta > 0) {
+                    ordinal += ordinalDelta;
+                    offset = value;
+                } else {
+                    offset += value;
+                }
+                keys[i] = key((int) ordinal, offset);
+            }
+            return keys;
+        }
+
+        long sizeBytes() {
+            return buffer.capacity();
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("❌ [Search] Could not delete " + path + ": " + e.getMessage());
+            }
+        }
+
+        private static long readVarLong(ByteBuffer in) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = in.get();
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    private static final class VarintBuffer {
+        private byte[] bytes = new byte[4096];
+        private int size;
+
+        void writeVarLong(long value) {
+            if (size + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while ((value & ~0x7fL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+    }
+}
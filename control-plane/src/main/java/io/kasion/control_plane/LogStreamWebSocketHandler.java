@@ -3,39 +3,63 @@ package io.kasion.control_plane;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
 
+import java.net.URI;
 import java.util.Objects;
 
+/**
+ * Streams a deployment's build log. {@code ?offset=N} replays from line N first (default 0, the whole log),
+ * so late joiners and reconnecting tabs miss nothing; a negative offset subscribes to live lines only.
+ */
 public class LogStreamWebSocketHandler extends TextWebSocketHandler {
 
     private final LogBroadcaster logBroadcaster;
+    private final BuildLogStore buildLogStore;
 
-    public LogStreamWebSocketHandler(LogBroadcaster logBroadcaster) {
+    public LogStreamWebSocketHandler(LogBroadcaster logBroadcaster, BuildLogStore buildLogStore) {
         this.logBroadcaster = logBroadcaster;
+        this.buildLogStore = buildLogStore;
     }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) {
-        String deploymentId = getDeploymentId(session);
-        if (deploymentId != null) {
+        String deploymentId = deploymentIdOf(session.getUri());
+        if (deploymentId == null) {
+            return;
+        }
+        long offset = startOffsetOf(session.getUri());
+        if (offset < 0) {
             logBroadcaster.register(deploymentId, session);
+        } else {
+            logBroadcaster.register(deploymentId, session, offset, buildLogStore);
         }
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
-        String deploymentId = getDeploymentId(session);
+        String deploymentId = deploymentIdOf(session.getUri());
         if (deploymentId != null) {
             logBroadcaster.unregister(deploymentId, session);
         }
     }
 
-    private String getDeploymentId(WebSocketSession session) {
-        String path = Objects.requireNonNull(session.getUri()).getPath();
+    // Static and package-private so HotPathBenchmark can parse URIs without a session.
+    static String deploymentIdOf(URI sessionUri) {
+        String path = Objects.requireNonNull(sessionUri).getPath();
         String[] segments = path.split("/");
         if (segments.length > 0) {
             return segments[segments.length - 1];
         }
         return null;
     }
+
+    static long startOffsetOf(URI sessionUri) {
+        String offset = UriComponentsBuilder.fromUri(Objects.requireNonNull(sessionUri)).build().getQueryParams().getFirst("offset");
+        try {
+            return offset == null ? 0 : Long.parseLong(offset);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
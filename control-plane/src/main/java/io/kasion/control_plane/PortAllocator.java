@@ -0,0 +1,97 @@
+package io.kasion.control_plane;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hands out host ports for app containers from {@code kasion.ports.range-start..range-end}.
+ *
+ * Leases are rows in {@code port_leases} and outlive a restart of the control plane. A port is only
+ * leased if no lease holds it and nothing on the host is listening on it. The search continues after
+ * the last port handed out, so a port that was just released isn't reused while the old container
+ * may still be shutting down.
+ */
+@Component
+public class PortAllocator {
+
+    private final PortLeaseRepository portLeaseRepository;
+    private final int rangeStart;
+    private final int rangeEnd;
+    private int cursor;
+
+    public PortAllocator(PortLeaseRepository portLeaseRepository,
+                         @Value("${kasion.ports.range-start:8100}") int rangeStart,
+                         @Value("${kasion.ports.range-end:8999}") int rangeEnd) {
+        if (rangeStart < 1 || rangeEnd > 65535 || rangeStart > rangeEnd) {
+            throw new IllegalArgumentException("Invalid port range " + rangeStart + "-" + rangeEnd);
+        }
+        this.portLeaseRepository = portLeaseRepository;
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+    }
+
+    /**
+     * Leases {@code replicas} ports for the {@code color} containers of {@code project}, one per replica.
+     */
+    public List<PortLease> lease(Project project, String deploymentId, String color, int replicas) {
+        return lease(project, deploymentId, color, 1, replicas);
+    }
+
+    /**
+     * Leases ports for replicas {@code firstReplica .. firstReplica + replicas - 1}, e.g. when scaling out.
+     */
+    public synchronized List<PortLease> lease(Project project, String deploymentId, String color, int firstReplica, int replicas) {
+        Set<Integer> leased = new HashSet<>(portLeaseRepository.findLeasedPorts());
+        int size = rangeEnd - rangeStart + 1;
+        List<PortLease> leases = new ArrayList<>();
+        for (int i = 0; i < size && leases.size() < replicas; i++) {
+            int port = rangeStart + (cursor + i) % size;
+            if (!leased.contains(port) && isBindable(port)) {
+                int replica = firstReplica + leases.size();
+                leases.add(new PortLease(port, project.getId(), deploymentId, color, replica, containerName(project, color, replica)));
+            }
+        }
+        if (leases.size() < replicas) {
+            throw new IllegalStateException("Only " + leases.size() + " of " + replicas + " ports free in "
+                    + rangeStart + "-" + rangeEnd);
+        }
+        cursor = (leases.get(leases.size() - 1).getPort() - rangeStart + 1) % size;
+        return portLeaseRepository.saveAll(leases);
+    }
+
+    public List<PortLease> leases(String projectId, String color) {
+        return portLeaseRepository.findByProjectIdAndColorOrderByReplica(projectId, color);
+    }
+
+    public void release(Collection<PortLease> leases) {
+        portLeaseRepository.deleteAll(leases);
+    }
+
+    /**
+     * Replica 1 keeps the name {@code <project>-app-<color>} used before replicas existed, so JMX and the
+     * stats scraper still find it; further replicas get a {@code -<n>} suffix.
+     */
+    static String containerName(Project project, String color, int replica) {
+        String base = project.getName().toLowerCase() + "-app-" + color;
+        return replica == 1 ? base : base + "-" + replica;
+    }
+
+    private static boolean isBindable(int port) {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(false);
+            socket.bind(new InetSocketAddress(port));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
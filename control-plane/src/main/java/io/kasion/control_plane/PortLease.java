@@ -0,0 +1,67 @@
+package io.kasion.control_plane;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import org.springframework.data.domain.Persistable;
+import java.time.LocalDateTime;
+
+/**
+ * A host port held by one app container. The port is the primary key, so two containers can never
+ * be handed the same port, even by two control planes sharing the database: a new lease is always
+ * inserted (see {@link #isNew()}), never merged over an existing row.
+ */
+@Entity
+@Table(name = "port_leases", indexes = @Index(name = "idx_port_leases_project_color", columnList = "project_id, color"))
+public class PortLease implements Persistable<Integer> {
+
+    @Id
+    private Integer port;
+
+    @Column(name = "project_id", nullable = false)
+    private String projectId;
+
+    private String deploymentId;
+    private String color;
+    private int replica; // 1-based
+    private String containerName;
+    private LocalDateTime leasedAt;
+
+    @Transient
+    private boolean isNew = true;
+
+    public PortLease() {}
+
+    public PortLease(int port, String projectId, String deploymentId, String color, int replica, String containerName) {
+        this.port = port;
+        this.projectId = projectId;
+        this.deploymentId = deploymentId;
+        this.color = color;
+        this.replica = replica;
+        this.containerName = containerName;
+        this.leasedAt = LocalDateTime.now();
+    }
+
+    @Override
+    public Integer getId() { return port; }
+
+    @Override
+    public boolean isNew() { return isNew; }
+
+    @PostLoad
+    @PostPersist
+    void markPersisted() { this.isNew = false; }
+
+    public int getPort() { return port; }
+    public String getProjectId() { return projectId; }
+    public String getDeploymentId() { return deploymentId; }
+    public String getColor() { return color; }
+    public int getReplica() { return replica; }
+    public String getContainerName() { return containerName; }
+    public LocalDateTime getLeasedAt() { return leasedAt; }
+}
@@ -0,0 +1,16 @@
+package io.kasion.control_plane;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.List;
+
+public interface PortLeaseRepository extends JpaRepository<PortLease, Integer> {
+
+    List<PortLease> findByProjectIdAndColorOrderByReplica(String projectId, String color);
+
+    List<PortLease> findByDeploymentIdOrderByReplica(String deploymentId);
+
+    @Query("select l.port from PortLease l")
+    List<Integer> findLeasedPorts();
+}
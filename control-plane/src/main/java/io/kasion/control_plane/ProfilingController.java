@@ -0,0 +1,122 @@
+package io.kasion.control_plane;
+
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flight recordings of a project's live container, see {@link JfrProfiler}. Shown in the JMX console.
+ */
+@RestController
+@RequestMapping("/api/v1/jmx")
+public class ProfilingController {
+
+    private final ProjectRepository projectRepository;
+    private final JfrProfiler jfrProfiler;
+
+    public record ContinuousRequest(boolean enabled) {}
+
+    public ProfilingController(ProjectRepository projectRepository, JfrProfiler jfrProfiler) {
+        this.projectRepository = projectRepository;
+        this.jfrProfiler = jfrProfiler;
+    }
+
+    /**
+     * Starts an on-demand recording; poll {@code GET .../jfr/{recordingId}} for the summary.
+     */
+    @PostMapping("/{projectId}/jfr")
+    public ResponseEntity<?> start(@PathVariable String projectId,
+                                   @RequestParam(defaultValue = "30") int seconds,
+                                   @RequestParam(defaultValue = "profile") String settings) {
+        return projectRepository.findById(projectId)
+                .<ResponseEntity<?>>map(project -> {
+                    try {
+                        return ResponseEntity.accepted().body(jfrProfiler.start(project, seconds, settings));
+                    } catch (IllegalArgumentException e) {
+                        return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+                    } catch (Exception e) {
+                        return ResponseEntity.status(502).body(Map.of("error", "Could not start recording: " + e.getMessage()));
+                    }
+                })
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    @GetMapping("/{projectId}/jfr")
+    public Map<String, Object> list(@PathVariable String projectId) {
+        List<JfrProfiler.Recording> recordings = jfrProfiler.recordings(projectId);
+        boolean continuous = projectRepository.findById(projectId).map(Project::isJfrContinuous).orElse(false);
+        return Map.of("continuous", continuous, "recordings", recordings);
+    }
+
+    @GetMapping("/{projectId}/jfr/{recordingId}")
+    public ResponseEntity<JfrProfiler.Recording> get(@PathVariable String projectId, @PathVariable String recordingId) {
+        JfrProfiler.Recording recording = jfrProfiler.recording(recordingId);
+        if (recording == null || !recording.projectId().equals(projectId)) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(recording);
+    }
+
+    @PostMapping("/{projectId}/jfr/{recordingId}/stop")
+    public ResponseEntity<?> stop(@PathVariable String projectId, @PathVariable String recordingId) {
+        JfrProfiler.Recording recording = jfrProfiler.recording(recordingId);
+        if (recording == null || !recording.projectId().equals(projectId)) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!jfrProfiler.stop(recordingId)) {
+            return ResponseEntity.status(409).body(Map.of("error", "Recording is " + recording.status()));
+        }
+        return ResponseEntity.accepted().body(Map.of("recordingId", recordingId, "stopping", true));
+    }
+
+    /**
+     * The raw .jfr file, for JDK Mission Control.
+     */
+    @GetMapping("/{projectId}/jfr/{recordingId}/file")
+    public ResponseEntity<FileSystemResource> download(@PathVariable String projectId, @PathVariable String recordingId) {
+        JfrProfiler.Recording recording = jfrProfiler.recording(recordingId);
+        Path file = jfrProfiler.file(recordingId);
+        if (recording == null || !recording.projectId().equals(projectId) || file == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + recordingId + ".jfr\"")
+                .body(new FileSystemResource(file));
+    }
+
+    @PutMapping("/{projectId}/jfr/continuous")
+    public ResponseEntity<?> setContinuous(@PathVariable String projectId, @RequestBody ContinuousRequest payload) {
+        return projectRepository.findById(projectId)
+                .<ResponseEntity<?>>map(project -> {
+                    project.setJfrContinuous(payload.enabled());
+                    projectRepository.save(project);
+                    try {
+                        jfrProfiler.setContinuous(project, payload.enabled());
+                    } catch (Exception e) {
+                        // Saved anyway; the next reconcile round starts it once the container answers.
+                        return ResponseEntity.accepted().body(Map.of("continuous", payload.enabled(), "running", false,
+                                "error", e.getMessage()));
+                    }
+                    return ResponseEntity.ok(Map.of("continuous", payload.enabled(),
+                            "running", jfrProfiler.isContinuousRunning(project)));
+                })
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Analyses the continuous recording: the last {@code minutes}, or everything it still holds.
+     */
+    @PostMapping("/{projectId}/jfr/continuous/dump")
+    public ResponseEntity<?> dumpContinuous(@PathVariable String projectId, @RequestParam(required = false) Integer minutes) {
+        return projectRepository.findById(projectId)
+                .<ResponseEntity<?>>map(project -> ResponseEntity.accepted().body(jfrProfiler.dumpContinuous(project, minutes)))
+                .orElse(ResponseEntity.notFound().build());
+    }
+}
@@ -1,13 +1,16 @@
 package io.kasion.control_plane;
 
 import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
 import java.time.LocalDateTime;
 import java.util.UUID;
 
 @Entity
-@Table(name = "projects")
+@Table(name = "projects", indexes = @Index(name = "idx_projects_name", columnList = "name"))
 public class Project {
 
     @Id
@@ -28,6 +31,35 @@ public class Project {
     private String currentColor;
     private String javaVersion; // <-- New field
 
+    // How the runtime image starts, see DockerfileGenerator.StartupMode. Null means JVM.
+    @Enumerated(EnumType.STRING)
+    private DockerfileGenerator.StartupMode startupMode;
+
+    // Readiness criteria, see ReadinessProbe. Null means the kasion.readiness.* default.
+    private String readinessPath;
+    private String readinessExpect;
+    private Integer readinessTimeoutSeconds;
+    private Integer readinessSuccesses;
+    private Boolean readinessDockerHealthy;
+
+    // Containers per deployment, behind one least-connections route. Null means 1.
+    private Integer replicas;
+
+    // Autoscaling, see Autoscaler. Null bounds/targets mean the kasion.autoscale.* defaults.
+    private Boolean autoscale;
+    private Integer minReplicas;
+    private Integer maxReplicas;
+    private Double targetRequestsPerSecond; // per replica
+    private Double targetCpu; // 0..1
+    private Double targetHeap; // used/max, 0..1
+
+    // Continuous low-overhead flight recording in the live container, see JfrProfiler.
+    private Boolean jfrContinuous;
+
+    // Deployments kept in the table, see DeploymentHistory. Null means the kasion.deployments.retention.* default, 0 no limit.
+    private Integer retentionKeepLast;
+    private Integer retentionKeepDays;
+
     public Project() {}
 
     public Project(String name, String ownerId) {
@@ -68,4 +100,45 @@ public class Project {
 
     public String getCurrentColor() { return currentColor; }
     public void setCurrentColor(String currentColor) { this.currentColor = currentColor; }
-    public void setJavaVersion(String javaVersion) { this.javaVersion = javaVersion; } // <-- New setter}
\ No newline at end of file
+    public void setJavaVersion(String javaVersion) { this.javaVersion = javaVersion; } // <-- New setter
+
+    public DockerfileGenerator.StartupMode getStartupMode() {
+        return startupMode != null ? startupMode : DockerfileGenerator.StartupMode.JVM;
+    }
+    public void setStartupMode(DockerfileGenerator.StartupMode startupMode) { this.startupMode = startupMode; }
+
+    public String getReadinessPath() { return readinessPath; }
+    public void setReadinessPath(String readinessPath) { this.readinessPath = readinessPath; }
+    public String getReadinessExpect() { return readinessExpect; }
+    public void setReadinessExpect(String readinessExpect) { this.readinessExpect = readinessExpect; }
+    public Integer getReadinessTimeoutSeconds() { return readinessTimeoutSeconds; }
+    public void setReadinessTimeoutSeconds(Integer readinessTimeoutSeconds) { this.readinessTimeoutSeconds = readinessTimeoutSeconds; }
+    public Integer getReadinessSuccesses() { return readinessSuccesses; }
+    public void setReadinessSuccesses(Integer readinessSuccesses) { this.readinessSuccesses = readinessSuccesses; }
+    public Boolean getReadinessDockerHealthy() { return readinessDockerHealthy; }
+    public void setReadinessDockerHealthy(Boolean readinessDockerHealthy) { this.readinessDockerHealthy = readinessDockerHealthy; }
+
+    public Integer getReplicas() { return replicas; }
+    public void setReplicas(Integer replicas) { this.replicas = replicas; }
+
+    public boolean isAutoscale() { return Boolean.TRUE.equals(autoscale); }
+    public void setAutoscale(Boolean autoscale) { this.autoscale = autoscale; }
+    public Integer getMinReplicas() { return minReplicas; }
+    public void setMinReplicas(Integer minReplicas) { this.minReplicas = minReplicas; }
+    public Integer getMaxReplicas() { return maxReplicas; }
+    public void setMaxReplicas(Integer maxReplicas) { this.maxReplicas = maxReplicas; }
+    public Double getTargetRequestsPerSecond() { return targetRequestsPerSecond; }
+    public void setTargetRequestsPerSecond(Double targetRequestsPerSecond) { this.targetRequestsPerSecond = targetRequestsPerSecond; }
+    public Double getTargetCpu() { return targetCpu; }
+    public void setTargetCpu(Double targetCpu) { this.targetCpu = targetCpu; }
+    public Double getTargetHeap() { return targetHeap; }
+    public void setTargetHeap(Double targetHeap) { this.targetHeap = targetHeap; }
+
+    public boolean isJfrContinuous() { return Boolean.TRUE.equals(jfrContinuous); }
+    public void setJfrContinuous(Boolean jfrContinuous) { this.jfrContinuous = jfrContinuous; }
+
+    public Integer getRetentionKeepLast() { return retentionKeepLast; }
+    public void setRetentionKeepLast(Integer retentionKeepLast) { this.retentionKeepLast = retentionKeepLast; }
+    public Integer getRetentionKeepDays() { return retentionKeepDays; }
+    public void setRetentionKeepDays(Integer retentionKeepDays) { this.retentionKeepDays = retentionKeepDays; }
+}
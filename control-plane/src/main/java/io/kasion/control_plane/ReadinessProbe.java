@@ -0,0 +1,300 @@
+package io.kasion.control_plane;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Decides when a freshly started container can take traffic, or that it never will.
+ *
+ * Two sources are combined:
+ * - The container itself: a {@code docker events} stream reports when it dies, runs out of memory or
+ *   changes HEALTHCHECK status. A dead container fails the wait right away instead of after the timeout.
+ *   Events and inspect go through {@link DockerEngine} when the Engine API is reachable, else the CLI.
+ * - An HTTP probe of the readiness path. The probe starts tens of milliseconds after {@code docker run}
+ *   and backs off exponentially, so a fast app is seen within a few milliseconds of becoming ready
+ *   and a slow one isn't probed more than once per {@code max-backoff}.
+ *
+ * What counts as ready comes from the project ({@link #criteriaFor}), with the defaults below.
+ */
+@Component
+public class ReadinessProbe {
+
+    /**
+     * @param successes      consecutive good probes required, to ride out an app that flaps while warming up
+     * @param dockerHealthy  also wait for the image's HEALTHCHECK to report healthy
+     */
+    public record Criteria(String path, String expect, Duration timeout, int successes, boolean dockerHealthy) {}
+
+    public record Verdict(boolean ready, String reason, long elapsedMillis, int probes) {}
+
+    private final String dockerCommand;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Criteria defaults;
+    private final BuildExecutors buildExecutors;
+    private final DockerEngine dockerEngine;
+    private final HttpClient httpClient;
+
+    public ReadinessProbe(BuildExecutors buildExecutors,
+                          DockerEngine dockerEngine,
+                          @Value("${kasion.readiness.docker-command:${kasion.docker.command:docker}}") String dockerCommand,
+                          @Value("${kasion.readiness.initial-backoff-millis:25}") long initialBackoffMillis,
+                          @Value("${kasion.readiness.max-backoff-millis:1000}") long maxBackoffMillis,
+                          @Value("${kasion.readiness.path:/actuator/health}") String path,
+                          @Value("${kasion.readiness.expect:\"status\":\"UP\"}") String expect,
+                          @Value("${kasion.readiness.timeout-seconds:120}") int timeoutSeconds) {
+        this.buildExecutors = buildExecutors;
+        this.dockerEngine = dockerEngine;
+        this.dockerCommand = dockerCommand;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.defaults = new Criteria(path, expect, Duration.ofSeconds(timeoutSeconds), 1, false);
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(Math.max(maxBackoffMillis, 500)))
+                .executor(buildExecutors.io())
+                .build();
+    }
+
+    /**
+     * The project's readiness settings, falling back to the {@code kasion.readiness.*} defaults.
+     */
+    public Criteria criteriaFor(Project project) {
+        return new Criteria(
+                project.getReadinessPath() != null ? project.getReadinessPath() : defaults.path(),
+                project.getReadinessExpect() != null ? project.getReadinessExpect() : defaults.expect(),
+                project.getReadinessTimeoutSeconds() != null ? Duration.ofSeconds(project.getReadinessTimeoutSeconds()) : defaults.timeout(),
+                project.getReadinessSuccesses() != null ? Math.max(1, project.getReadinessSuccesses()) : defaults.successes(),
+                project.getReadinessDockerHealthy() != null ? project.getReadinessDockerHealthy() : defaults.dockerHealthy());
+    }
+
+    /**
+     * Blocks until the container at {@code baseUrl} meets {@code criteria}, has exited, or the timeout passes.
+     */
+    public Verdict await(String containerName, String baseUrl, Criteria criteria, Consumer<String> log) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + criteria.timeout().toNanos();
+        ContainerWatch watch = new ContainerWatch(containerName, criteria.dockerHealthy());
+        try {
+            // Events only cover what happens from now on; inspect catches a container that is already gone.
+            watch.start();
+            watch.inspect();
+
+            URI uri = URI.create(baseUrl + criteria.path());
+            log.accept("   [Health] Probing " + uri + (criteria.dockerHealthy() ? " and waiting for Docker HEALTHCHECK" : ""));
+            long backoff = initialBackoffMillis;
+            int probes = 0;
+            int successes = 0;
+            String lastFailure = null;
+            while (true) {
+                if (watch.exitReason() != null) {
+                    watch.inspect(); // picks up the exit code
+                    return new Verdict(false, watch.exitReason(), elapsedMillis(start), probes);
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return new Verdict(false, "not ready within " + criteria.timeout().toSeconds() + "s"
+                            + (lastFailure != null ? " (last probe: " + lastFailure + ")" : ""), elapsedMillis(start), probes);
+                }
+
+                probes++;
+                String failure = probe(uri, criteria.expect(), Math.min(TimeUnit.NANOSECONDS.toMillis(remaining), 5_000));
+                if (failure == null) {
+                    successes++;
+                    if (successes >= criteria.successes() && (!criteria.dockerHealthy() || watch.healthy())) {
+                        return new Verdict(true, "ready", elapsedMillis(start), probes);
+                    }
+                } else {
+                    successes = 0;
+                    if (!failure.equals(lastFailure)) {
+                        log.accept("   [Health] Not ready yet: " + failure);
+                    }
+                    lastFailure = failure;
+                }
+
+                // Sleep, but wake up at once if the container dies in the meantime.
+                watch.awaitChange(Math.min(backoff, TimeUnit.NANOSECONDS.toMillis(Math.max(remaining, 0)) + 1));
+                backoff = Math.min(backoff * 2, maxBackoffMillis);
+            }
+        } finally {
+            watch.close();
+        }
+    }
+
+    /**
+     * Returns null when the probe succeeded, otherwise why it didn't.
+     */
+    private String probe(URI uri, String expect, long timeoutMillis) throws InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(Duration.ofMillis(Math.max(timeoutMillis, 1))).GET().build();
+        try {
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() / 100 != 2) {
+                return "HTTP " + response.statusCode();
+            }
+            if (expect != null && !expect.isEmpty() && !response.body().contains(expect)) {
+                return "response does not contain " + expect;
+            }
+            return null;
+        } catch (IOException e) {
+            return e.getClass().getSimpleName() + (e.getMessage() != null ? ": " + e.getMessage() : "");
+        }
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Follows one container through {@code docker events} while we wait for it.
+     */
+    private final class ContainerWatch {
+        private final String containerName;
+        private final boolean failWhenUnhealthy;
+        private Process events;
+        private DockerEngine.EventStream eventStream;
+        private String exitReason;
+        private boolean healthy;
+
+        ContainerWatch(String containerName, boolean failWhenUnhealthy) {
+            this.containerName = containerName;
+            this.failWhenUnhealthy = failWhenUnhealthy;
+        }
+
+        void start() {
+            if (dockerEngine.enabled()) {
+                try {
+                    eventStream = dockerEngine.events(Map.of("container", List.of(containerName),
+                            "event", List.of("die", "oom", "health_status")));
+                } catch (IOException e) {
+                    return; // No event stream; the HTTP probe and the timeout still apply.
+                }
+                buildExecutors.io().execute(() -> {
+                    try {
+                        DockerEngine.Event event;
+                        while ((event = eventStream.next()) != null) {
+                            onEvent(event.action());
+                        }
+                    } catch (IOException ignored) {
+                        // Daemon went away; rely on the HTTP probe.
+                    }
+                });
+                return;
+            }
+            try {
+                events = new ProcessBuilder(dockerCommand, "events",
+                        "--filter", "container=" + containerName,
+                        "--filter", "event=die", "--filter", "event=oom", "--filter", "event=health_status",
+                        "--format", "{{.Action}}")
+                        .redirectErrorStream(true)
+                        .start();
+            } catch (IOException e) {
+                return; // No event stream; the HTTP probe and the timeout still apply.
+            }
+            buildExecutors.io().execute(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(events.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        onEvent(line.trim());
+                    }
+                } catch (IOException ignored) {
+                    // Closed by close().
+                }
+            });
+        }
+
+        void inspect() {
+            if (dockerEngine.enabled()) {
+                try {
+                    DockerEngine.ContainerState state = dockerEngine.inspectContainer(containerName);
+                    if (state != null) {
+                        onState(state.status(), String.valueOf(state.exitCode()), state.health());
+                    }
+                } catch (IOException e) {
+                    // Rely on the HTTP probe.
+                }
+                return;
+            }
+            try {
+                Process process = new ProcessBuilder(dockerCommand, "inspect", "--format",
+                        "{{.State.Status}} {{.State.ExitCode}} {{if .State.Health}}{{.State.Health.Status}}{{end}}", containerName)
+                        .redirectErrorStream(true)
+                        .start();
+                String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+                if (!process.waitFor(10, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                    process.destroyForcibly();
+                    return;
+                }
+                String[] state = output.split(" ");
+                onState(state[0], state.length > 1 ? state[1] : null, state.length > 2 ? state[2] : null);
+            } catch (IOException e) {
+                // Docker CLI not available; rely on the HTTP probe.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private synchronized void onState(String status, String exitCode, String health) {
+            if (status.equals("exited") || status.equals("dead")) {
+                exitReason = "container " + status + (exitCode != null ? " with code " + exitCode : "");
+            }
+            if ("healthy".equals(health)) {
+                healthy = true;
+            }
+            notifyAll();
+        }
+
+        private synchronized void onEvent(String action) {
+            switch (action) {
+                case "die" -> exitReason = exitReason != null ? exitReason : "container exited";
+                case "oom" -> exitReason = "container ran out of memory";
+                case "health_status: healthy" -> healthy = true;
+                case "health_status: unhealthy" -> {
+                    healthy = false;
+                    if (failWhenUnhealthy) {
+                        exitReason = "Docker HEALTHCHECK reported unhealthy";
+                    }
+                }
+                default -> {
+                    return;
+                }
+            }
+            notifyAll();
+        }
+
+        synchronized String exitReason() {
+            return exitReason;
+        }
+
+        synchronized boolean healthy() {
+            return healthy;
+        }
+
+        synchronized void awaitChange(long millis) throws InterruptedException {
+            if (exitReason == null && millis > 0) {
+                wait(millis);
+            }
+        }
+
+        void close() {
+            if (events != null) {
+                events.destroy();
+            }
+            if (eventStream != null) {
+                eventStream.close();
+            }
+        }
+    }
+}
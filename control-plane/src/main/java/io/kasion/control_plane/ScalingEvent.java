@@ -0,0 +1,60 @@
+package io.kasion.control_plane;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * One autoscaler decision: what it saw, what it wanted, and what happened. Written for every
+ * change the autoscaler attempts, including ones that could not be applied.
+ */
+@Entity
+@Table(name = "scaling_events", indexes = @Index(name = "idx_scaling_events_project_created", columnList = "project_id, created_at"))
+public class ScalingEvent {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private String id;
+
+    @Column(name = "project_id", nullable = false)
+    private String projectId;
+    private String projectName;
+    private LocalDateTime createdAt;
+
+    private int fromReplicas;
+    private int toReplicas;
+    private String reason;
+    private String outcome; // APPLIED, SKIPPED, FAILED
+
+    // The load the decision was based on; null when no replica reported it.
+    private Double requestsPerSecond;
+    private Double cpuUsage; // 0..1, average over replicas
+    private Double heapUsage; // used/max, average over replicas
+
+    public ScalingEvent() {}
+
+    public ScalingEvent(Project project, int fromReplicas, int toReplicas, String reason,
+                        double requestsPerSecond, double cpuUsage, double heapUsage) {
+        this.projectId = project.getId();
+        this.projectName = project.getName();
+        this.createdAt = LocalDateTime.now();
+        this.fromReplicas = fromReplicas;
+        this.toReplicas = toReplicas;
+        this.reason = reason;
+        this.requestsPerSecond = Double.isNaN(requestsPerSecond) ? null : requestsPerSecond;
+        this.cpuUsage = Double.isNaN(cpuUsage) ? null : cpuUsage;
+        this.heapUsage = Double.isNaN(heapUsage) ? null : heapUsage;
+    }
+
+    public String getId() { return id; }
+    public String getProjectId() { return projectId; }
+    public String getProjectName() { return projectName; }
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public int getFromReplicas() { return fromReplicas; }
+    public int getToReplicas() { return toReplicas; }
+    public String getReason() { return reason; }
+    public String getOutcome() { return outcome; }
+    public void setOutcome(String outcome) { this.outcome = outcome; }
+    public Double getRequestsPerSecond() { return requestsPerSecond; }
+    public Double getCpuUsage() { return cpuUsage; }
+    public Double getHeapUsage() { return heapUsage; }
+}
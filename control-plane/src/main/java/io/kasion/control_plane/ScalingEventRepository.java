@@ -0,0 +1,13 @@
+package io.kasion.control_plane;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.List;
+
+public interface ScalingEventRepository extends JpaRepository<ScalingEvent, String> {
+
+    List<ScalingEvent> findByOrderByCreatedAtDesc(Pageable pageable);
+
+    List<ScalingEvent> findByProjectIdOrderByCreatedAtDesc(String projectId, Pageable pageable);
+}
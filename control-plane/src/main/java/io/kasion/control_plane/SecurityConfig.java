@@ -1,5 +1,6 @@
 package io.kasion.control_plane;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
@@ -28,18 +29,24 @@ public class SecurityConfig {
         http
                 .csrf(csrf -> csrf.disable())
                 .authorizeHttpRequests(auth -> auth
+                        .requestMatchers("/actuator/health", "/actuator/prometheus").permitAll()
                         .anyRequest().authenticated()
                 )
                 .httpBasic(withDefaults());
         return http.build();
     }
 
+    /**
+     * The admin password comes from {@code kasion.admin.password} (e.g. for scripts and load tests);
+     * when that is empty a random one is generated and printed.
+     */
     @Bean
-    public UserDetailsService userDetailsService() {
-        adminPassword = UUID.randomUUID().toString();
+    public UserDetailsService userDetailsService(@Value("${kasion.admin.password:}") String configuredPassword) {
+        boolean configured = !configuredPassword.isBlank();
+        adminPassword = configured ? configuredPassword : UUID.randomUUID().toString();
         System.out.println("============================================================");
         System.out.println("Kasion Admin Username: " + ADMIN_USER);
-        System.out.println("Kasion Admin Password: " + adminPassword);
+        System.out.println("Kasion Admin Password: " + (configured ? "(set by kasion.admin.password)" : adminPassword));
         System.out.println("============================================================");
 
         UserDetails admin = User.builder()
@@ -0,0 +1,193 @@
+package io.kasion.control_plane;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A deployment pipeline as a graph: each stage names the stages it needs, and starts as soon as they
+ * have all finished. Independent stages run at the same time on the given executor.
+ *
+ * Every stage has its own timeout. When a stage fails or times out, or the graph is cancelled, every
+ * stage still running is interrupted and nothing new starts; {@link #run} then throws
+ * {@link StageFailedException} naming the stage that caused it. Stage actions are expected to stop on
+ * interrupt (runCommand destroys its process, sleeps and waits throw).
+ */
+public final class StageGraph {
+
+    @FunctionalInterface
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    public record Stage(String name, Duration timeout, List<String> dependsOn, Action action) {}
+
+    public record Timing(String stage, long startedAtMillis, long durationMillis) {}
+
+    public static class StageFailedException extends Exception {
+        private final String stage;
+
+        StageFailedException(String stage, String message, Throwable cause) {
+            super("Stage '" + stage + "' " + message, cause);
+            this.stage = stage;
+        }
+
+        public String stage() {
+            return stage;
+        }
+    }
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final List<Timing> timings = new ArrayList<>();
+    private volatile Thread runner;
+    private volatile boolean cancelled;
+
+    public StageGraph stage(String name, Duration timeout, Action action, String... dependsOn) {
+        for (String dependency : dependsOn) {
+            if (!stages.containsKey(dependency)) {
+                // Stages are declared in dependency order, which also rules out cycles.
+                throw new IllegalArgumentException("Stage '" + name + "' depends on unknown stage '" + dependency + "'");
+            }
+        }
+        if (stages.putIfAbsent(name, new Stage(name, timeout, List.of(dependsOn), action)) != null) {
+            throw new IllegalArgumentException("Duplicate stage '" + name + "'");
+        }
+        return this;
+    }
+
+    /**
+     * Stops a running graph from another thread: running stages are interrupted and {@link #run} throws.
+     */
+    public void cancel() {
+        cancelled = true;
+        Thread current = runner;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    /**
+     * When each stage started (relative to the start of the run) and how long it took, in completion order.
+     */
+    public synchronized List<Timing> timings() {
+        return List.copyOf(timings);
+    }
+
+    /**
+     * Runs every stage and returns once all have finished. {@code onFinish} is called on the calling
+     * thread as each stage completes.
+     */
+    public void run(ExecutorService executor, Consumer<Timing> onFinish) throws StageFailedException, InterruptedException {
+        runner = Thread.currentThread();
+        long origin = System.nanoTime();
+        ExecutorCompletionService<String> completions = new ExecutorCompletionService<>(executor);
+        Map<String, Future<String>> running = new HashMap<>();
+        Map<Future<String>, String> names = new HashMap<>();
+        Map<String, Long> startedAt = new HashMap<>();
+        Map<String, CountDownLatch> exited = new HashMap<>();
+        Set<String> done = new HashSet<>();
+
+        try {
+            while (done.size() < stages.size()) {
+                if (cancelled) {
+                    throw new StageFailedException(firstOf(running.keySet()), "was cancelled", null);
+                }
+                // Start everything whose dependencies are met.
+                for (Stage stage : stages.values()) {
+                    if (!done.contains(stage.name()) && !running.containsKey(stage.name()) && done.containsAll(stage.dependsOn())) {
+                        CountDownLatch stageExited = new CountDownLatch(1);
+                        exited.put(stage.name(), stageExited);
+                        Future<String> future = completions.submit(() -> {
+                            try {
+                                stage.action().run();
+                                return stage.name();
+                            } finally {
+                                stageExited.countDown();
+                            }
+                        });
+                        running.put(stage.name(), future);
+                        names.put(future, stage.name());
+                        startedAt.put(stage.name(), System.nanoTime());
+                    }
+                }
+
+                // Wait for the next completion, but no longer than the nearest stage deadline.
+                long now = System.nanoTime();
+                String overdue = null;
+                long wait = Long.MAX_VALUE;
+                for (String name : running.keySet()) {
+                    long left = startedAt.get(name) + stages.get(name).timeout().toNanos() - now;
+                    if (left <= 0) {
+                        overdue = name;
+                        break;
+                    }
+                    wait = Math.min(wait, left);
+                }
+                if (overdue != null) {
+                    throw new StageFailedException(overdue, "timed out after " + stages.get(overdue).timeout().toSeconds() + "s", null);
+                }
+
+                Future<String> finished = completions.poll(wait, TimeUnit.NANOSECONDS);
+                if (finished == null) {
+                    continue; // a deadline passed; the loop above reports it
+                }
+                String name = names.remove(finished);
+                running.remove(name);
+                try {
+                    finished.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw new StageFailedException(name, "failed: " + cause.getMessage(), cause);
+                } catch (CancellationException e) {
+                    throw new StageFailedException(name, "was cancelled", e);
+                }
+                done.add(name);
+                Timing timing = new Timing(name,
+                        TimeUnit.NANOSECONDS.toMillis(startedAt.get(name) - origin),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt.get(name)));
+                synchronized (this) {
+                    timings.add(timing);
+                }
+                onFinish.accept(timing);
+            }
+        } catch (InterruptedException e) {
+            if (!cancelled) {
+                throw e;
+            }
+            throw new StageFailedException(firstOf(running.keySet()), "was cancelled", null);
+        } finally {
+            // Abort the siblings of whatever went wrong (a no-op after success), and give them a moment
+            // to stop so they don't keep writing to a workspace or log the caller is about to clean up.
+            for (Future<String> future : running.values()) {
+                future.cancel(true);
+            }
+            long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            for (String name : running.keySet()) {
+                try {
+                    exited.get(name).await(Math.max(0, drainDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ignored) {
+                    break;
+                }
+            }
+            runner = null;
+            Thread.interrupted(); // a late cancel() must not leak into the caller
+        }
+    }
+
+    private static String firstOf(Set<String> names) {
+        return names.isEmpty() ? "pipeline" : names.iterator().next();
+    }
+}
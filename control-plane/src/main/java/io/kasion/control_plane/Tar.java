@@ -0,0 +1,300 @@
+package io.kasion.control_plane;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.Predicate;
+
+/**
+ * Just enough of the tar format for the Docker Engine API: build contexts go up as a tar stream and
+ * {@code GET /containers/{id}/archive} comes back as one.
+ *
+ * Writes POSIX ustar, with a PAX header for names and link targets that don't fit in 100 bytes.
+ * Reads ustar and PAX, which is what the daemon produces.
+ */
+final class Tar {
+
+    private static final int BLOCK = 512;
+
+    private Tar() {}
+
+    public record Entry(String name, char type, int mode, long size, String linkName) {
+        boolean isFile() {
+            return type == '0' || type == '\0';
+        }
+    }
+
+    /**
+     * Streams {@code root} as a tar; {@code include} sees paths relative to it, with '/' separators.
+     * Directories are skipped wholesale when excluded and {@code descendExcluded} is false.
+     */
+    static void write(Path root, Predicate<String> include, boolean descendExcluded, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (dir.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String name = relative(root, dir);
+                if (!include.test(name)) {
+                    return descendExcluded ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+                header(out, name + "/", '5', 0755, 0, attributes.lastModifiedTime().toMillis() / 1000, "");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String name = relative(root, file);
+                if (!include.test(name)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                long mtime = attributes.lastModifiedTime().toMillis() / 1000;
+                if (attributes.isSymbolicLink()) {
+                    header(out, name, '2', 0777, 0, mtime, Files.readSymbolicLink(file).toString());
+                } else if (attributes.isRegularFile()) {
+                    header(out, name, '0', Files.isExecutable(file) ? 0755 : 0644, attributes.size(), mtime, "");
+                    try (InputStream in = Files.newInputStream(file)) {
+                        long written = 0;
+                        int read;
+                        while (written < attributes.size() && (read = in.read(buffer, 0, (int) Math.min(buffer.length, attributes.size() - written))) > 0) {
+                            out.write(buffer, 0, read);
+                            written += read;
+                        }
+                        if (written != attributes.size()) {
+                            throw new IOException(name + " changed size while it was being sent");
+                        }
+                    }
+                    pad(out, attributes.size());
+                }
+                // Sockets, pipes and devices have no place in a build context.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        out.write(new byte[2 * BLOCK]);
+        out.flush();
+    }
+
+    private static String relative(Path root, Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static void header(OutputStream out, String name, char type, int mode, long size, long mtime, String linkName) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] linkBytes = linkName.getBytes(StandardCharsets.UTF_8);
+        boolean bigSize = size > 077777777777L;
+        if (nameBytes.length > 100 || linkBytes.length > 100 || bigSize) {
+            StringBuilder pax = new StringBuilder();
+            if (nameBytes.length > 100) {
+                pax.append(paxRecord("path", name));
+            }
+            if (linkBytes.length > 100) {
+                pax.append(paxRecord("linkpath", linkName));
+            }
+            if (bigSize) {
+                pax.append(paxRecord("size", Long.toString(size)));
+            }
+            byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(block("PaxHeader", 'x', 0644, records.length, mtime, ""));
+            out.write(records);
+            pad(out, records.length);
+        }
+        out.write(block(name, type, mode, bigSize ? 0 : size, mtime, linkName));
+    }
+
+    /**
+     * "{@code <length> key=value\n}", where the length counts itself.
+     */
+    private static String paxRecord(String key, String value) {
+        int body = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int length = body + String.valueOf(body).length();
+        if (String.valueOf(length).length() != String.valueOf(body).length()) {
+            length++;
+        }
+        return length + " " + key + "=" + value + "\n";
+    }
+
+    private static byte[] block(String name, char type, int mode, long size, long mtime, String linkName) {
+        byte[] header = new byte[BLOCK];
+        put(header, 0, 100, name);
+        octal(header, 100, 8, mode);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, Math.max(mtime, 0));
+        header[156] = (byte) type;
+        put(header, 157, 100, linkName);
+        put(header, 257, 6, "ustar");
+        put(header, 263, 2, "00");
+        int checksum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            checksum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        header[155] = ' ';
+        return header;
+    }
+
+    /**
+     * Copies what fits; long values have already gone into a PAX record.
+     */
+    private static void put(byte[] header, int offset, int length, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+
+    /**
+     * Zero-padded octal digits followed by a NUL, filling {@code length} bytes.
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        String padded = "0".repeat(Math.max(0, length - 1 - digits.length())) + digits;
+        put(header, offset, length - 1, padded);
+        header[offset + length - 1] = 0;
+    }
+
+    private static void pad(OutputStream out, long size) throws IOException {
+        int remainder = (int) (size % BLOCK);
+        if (remainder != 0) {
+            out.write(new byte[BLOCK - remainder]);
+        }
+    }
+
+    /**
+     * Reads entries one at a time; the content of the current entry is available until the next call.
+     */
+    static final class Reader {
+        private final InputStream in;
+        private long remaining;
+        private long padding;
+
+        Reader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * The next entry, or null at the end of the archive.
+         */
+        Entry next() throws IOException {
+            in.skipNBytes(remaining + padding);
+            remaining = 0;
+            padding = 0;
+            String paxPath = null;
+            String paxLink = null;
+            Long paxSize = null;
+            while (true) {
+                byte[] header = in.readNBytes(BLOCK);
+                if (header.length < BLOCK || isZero(header)) {
+                    return null;
+                }
+                char type = (char) header[156];
+                long size = parseOctal(header, 124, 12);
+                if (type == 'x' || type == 'g') {
+                    String records = new String(in.readNBytes((int) size), StandardCharsets.UTF_8);
+                    in.skipNBytes(padding(size));
+                    if (type == 'x') {
+                        for (String record : records.split("\n")) {
+                            int space = record.indexOf(' ');
+                            int equals = record.indexOf('=');
+                            if (space < 0 || equals < space) {
+                                continue;
+                            }
+                            String key = record.substring(space + 1, equals);
+                            String value = record.substring(equals + 1);
+                            switch (key) {
+                                case "path" -> paxPath = value;
+                                case "linkpath" -> paxLink = value;
+                                case "size" -> paxSize = Long.parseLong(value);
+                                default -> { }
+                            }
+                        }
+                    }
+                    continue;
+                }
+                String name = paxPath != null ? paxPath : ustarName(header);
+                String linkName = paxLink != null ? paxLink : string(header, 157, 100);
+                if (paxSize != null) {
+                    size = paxSize;
+                }
+                boolean hasContent = type == '0' || type == '\0' || type == '7';
+                remaining = hasContent ? size : 0;
+                padding = hasContent ? padding(size) : 0;
+                return new Entry(name, type, (int) parseOctal(header, 100, 8), size, linkName);
+            }
+        }
+
+        /**
+         * The current entry's content; reads stop at its end.
+         */
+        InputStream content() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int read = in.read(b, off, (int) Math.min(len, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Archive ends inside an entry");
+                    }
+                    remaining -= read;
+                    return read;
+                }
+            };
+        }
+
+        private static long padding(long size) {
+            return (BLOCK - size % BLOCK) % BLOCK;
+        }
+
+        private static String ustarName(byte[] header) {
+            String name = string(header, 0, 100);
+            String prefix = string(header, 345, 155);
+            return prefix.isEmpty() ? name : prefix + "/" + name;
+        }
+
+        private static String string(byte[] header, int offset, int length) {
+            int end = offset;
+            while (end < offset + length && header[end] != 0) {
+                end++;
+            }
+            return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+        }
+
+        private static long parseOctal(byte[] header, int offset, int length) {
+            long value = 0;
+            for (int i = offset; i < offset + length; i++) {
+                byte b = header[i];
+                if (b >= '0' && b <= '7') {
+                    value = value * 8 + (b - '0');
+                } else if (b == 0 || value > 0) {
+                    break; // leading spaces are allowed, anything after the digits ends the field
+                }
+            }
+            return value;
+        }
+
+        private static boolean isZero(byte[] block) {
+            for (byte b : block) {
+                if (b != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -11,14 +11,16 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 public class WebSocketConfig implements WebSocketConfigurer {
 
     private final LogBroadcaster logBroadcaster;
+    private final BuildLogStore buildLogStore;
 
-    public WebSocketConfig(LogBroadcaster logBroadcaster) {
+    public WebSocketConfig(LogBroadcaster logBroadcaster, BuildLogStore buildLogStore) {
         this.logBroadcaster = logBroadcaster;
+        this.buildLogStore = buildLogStore;
     }
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
-        registry.addHandler(new LogStreamWebSocketHandler(logBroadcaster), "/ws/logs/{deploymentId}")
+        registry.addHandler(new LogStreamWebSocketHandler(logBroadcaster, buildLogStore), "/ws/logs/{deploymentId}")
                 .setAllowedOrigins("*");
     }
 }
@@ -0,0 +1,153 @@
+package io.kasion.control_plane;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+class AppStatsScraperTest {
+
+    @Test
+    void sumsEveryMemoryPoolFromPrometheusText() {
+        String metrics = """
+                # HELP jvm_memory_used_bytes The amount of used memory
+                # TYPE jvm_memory_used_bytes gauge
+                jvm_memory_used_bytes{area="heap",id="G1 Eden Space",} 2.097152E7
+                jvm_memory_used_bytes{area="heap",id="G1 Old Gen",} 1.048576E7
+                jvm_memory_used_bytes{area="nonheap",id="Metaspace",} 5242880.0
+                jvm_memory_used_bytes_max{area="heap",} 9.9E9
+                jvm_memory_committed_bytes{area="heap",id="G1 Old Gen",} 6.7108864E7
+                """;
+
+        assertEquals(36_700_160, AppStatsScraper.sumSamples(metrics, "jvm_memory_used_bytes"), 0.5);
+        assertEquals(0.0, AppStatsScraper.sumSamples(null, "jvm_memory_used_bytes"));
+    }
+
+    @Test
+    void addressesTheRunningContainer() {
+        Project project = new Project("Shop", "web-user");
+        project.setActivePort(8082);
+        project.setCurrentColor("green");
+
+        AppStatsScraper host = new AppStatsScraper(null, new BuildExecutors(false, 0), ControlPlaneMetrics.noop(), 1000, AppStatsScraper.AddressMode.HOST);
+        AppStatsScraper container = new AppStatsScraper(null, new BuildExecutors(false, 0), ControlPlaneMetrics.noop(), 1000, AppStatsScraper.AddressMode.CONTAINER);
+
+        assertEquals("http://localhost:8082", host.baseUrl(project));
+        assertEquals("http://shop-app-green:8080", container.baseUrl(project));
+    }
+
+    /**
+     * An app's actuator that counts health probes and reports {@code memoryBytes} of heap.
+     */
+    private static HttpServer actuator(AtomicInteger probes, double memoryBytes) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/actuator/health", exchange -> {
+            probes.incrementAndGet();
+            byte[] body = "{\"status\":\"UP\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.createContext("/actuator/prometheus", exchange -> {
+            byte[] body = ("jvm_memory_used_bytes{area=\"heap\",id=\"G1 Old Gen\",} " + memoryBytes + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    private static Deployment live(String id, String name, HttpServer actuator) {
+        Project project = new Project(name, "owner");
+        project.setActivePort(actuator.getAddress().getPort());
+        Deployment deployment = mock(Deployment.class);
+        when(deployment.getId()).thenReturn(id);
+        when(deployment.getProject()).thenReturn(project);
+        return deployment;
+    }
+
+    private static void awaitEvents(MvcResult stream, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (events(stream).size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, events(stream).size());
+    }
+
+    private static List<String> events(MvcResult stream) throws Exception {
+        return List.of(stream.getResponse().getContentAsString().split("event:stats\n")).stream()
+                .filter(event -> event.startsWith("data:"))
+                .toList();
+    }
+
+    @Test
+    void probesEachLiveAppOncePerScrapeAndServesReadsFromTheSnapshot() throws Exception {
+        AtomicInteger shopProbes = new AtomicInteger();
+        AtomicInteger blogProbes = new AtomicInteger();
+        HttpServer shopActuator = actuator(shopProbes, 1.048576E8);
+        HttpServer blogActuator = actuator(blogProbes, 5.24288E7);
+        BuildExecutors executors = new BuildExecutors(false, 0);
+        try {
+            Deployment shop = live("d-shop", "Shop", shopActuator);
+            Deployment blog = live("d-blog", "Blog", blogActuator);
+            DeploymentRepository repository = mock(DeploymentRepository.class);
+            // Blog is undeployed between the first and second scrape.
+            when(repository.findCurrentLive()).thenReturn(List.of(shop, blog), List.of(shop));
+
+            AppStatsScraper scraper = new AppStatsScraper(repository, executors, ControlPlaneMetrics.noop(), 1000, AppStatsScraper.AddressMode.HOST);
+            MockMvc mvc = MockMvcBuilders.standaloneSetup(new AppStatsController(scraper)).build();
+            MvcResult stream = mvc.perform(get("/api/v1/stats/stream")).andExpect(request().asyncStarted()).andReturn();
+            awaitEvents(stream, 1); // the snapshot right away, still empty
+
+            scraper.scrape();
+            assertEquals(1, shopProbes.get());
+            assertEquals(1, blogProbes.get());
+
+            // Dashboard reads come from the snapshot, however many there are.
+            for (int i = 0; i < 20; i++) {
+                mvc.perform(get("/api/v1/stats/d-shop"))
+                        .andExpect(jsonPath("$.status").value("UP"))
+                        .andExpect(jsonPath("$.memory").value("100 MB"));
+                mvc.perform(get("/api/v1/stats")).andExpect(jsonPath("$.length()").value(2));
+            }
+            assertEquals(1, shopProbes.get());
+            assertEquals(1, blogProbes.get());
+
+            awaitEvents(stream, 2);
+            assertTrue(events(stream).get(1).contains("\"project\":\"Blog\""), events(stream).get(1));
+            assertTrue(events(stream).get(1).contains("\"memory\":\"50 MB\""), events(stream).get(1));
+
+            scraper.scrape();
+            assertEquals(2, shopProbes.get());
+            assertEquals(1, blogProbes.get(), "an app that is no longer live is not probed");
+            assertNull(scraper.get("d-blog"));
+            assertEquals(List.of("d-shop"), scraper.snapshot().stream().map(AppStatsScraper.AppStats::deploymentId).toList());
+
+            awaitEvents(stream, 3);
+            assertTrue(events(stream).get(2).contains("\"project\":\"Shop\""), events(stream).get(2));
+            assertFalse(events(stream).get(2).contains("Blog"), events(stream).get(2));
+        } finally {
+            shopActuator.stop(0);
+            blogActuator.stop(0);
+            executors.shutdown();
+        }
+    }
+}
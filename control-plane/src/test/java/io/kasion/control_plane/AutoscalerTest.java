@@ -0,0 +1,133 @@
+package io.kasion.control_plane;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AutoscalerTest {
+
+    private static final long MINUTE = 60_000;
+
+    private final Autoscaler autoscaler = new Autoscaler(null, null, null, null, new BuildExecutors(false, 0), ControlPlaneMetrics.noop(),
+            AppStatsScraper.AddressMode.HOST, 1000, 1, 5, 50, 0.7, 0.8, 0.1, 60, 300, 3);
+    private final Autoscaler.Policy policy = new Autoscaler.Policy(1, 6, 50, 0.7, 0.8);
+
+    @Test
+    void samplesRequestRateCpuAndHeapFromTheMetricsEndpoint() throws Exception {
+        AtomicLong requests = new AtomicLong(1000);
+        HttpServer metrics = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        metrics.createContext("/actuator/prometheus", exchange -> {
+            byte[] body = ("""
+                    http_server_requests_seconds_count{method="GET",status="200",uri="/",} %d.0
+                    http_server_requests_seconds_count{method="GET",status="404",uri="UNKNOWN",} 10.0
+                    process_cpu_usage 0.35
+                    jvm_memory_used_bytes{area="heap",id="G1 Eden Space",} 1.0E8
+                    jvm_memory_used_bytes{area="heap",id="G1 Old Gen",} 1.0E8
+                    jvm_memory_used_bytes{area="nonheap",id="Metaspace",} 9.0E9
+                    jvm_memory_max_bytes{area="heap",id="G1 Eden Space",} -1.0
+                    jvm_memory_max_bytes{area="heap",id="G1 Old Gen",} 4.0E8
+                    """.formatted(requests.get())).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        metrics.start();
+        try {
+            Project project = new Project("Shop", "owner");
+            List<PortLease> replicas = List.of(new PortLease(metrics.getAddress().getPort(), project.getId(), "d1", "blue", 1, "shop-app-blue"));
+            Autoscaler.History history = new Autoscaler.History();
+
+            Autoscaler.Load first = autoscaler.sample(replicas, history);
+            assertTrue(Double.isNaN(first.requestsPerSecond()), "no rate from a single sample");
+            assertEquals(0.35, first.cpu(), 1e-9);
+            assertEquals(0.5, first.heap(), 1e-9);
+
+            Thread.sleep(200);
+            requests.addAndGet(100);
+            Autoscaler.Load second = autoscaler.sample(replicas, history);
+            assertTrue(second.requestsPerSecond() > 100 && second.requestsPerSecond() < 600, "rate " + second.requestsPerSecond());
+        } finally {
+            metrics.stop(0);
+        }
+    }
+
+    @Test
+    void countsReplicasWithoutAPreviousSampleAtTheAverageRate() throws Exception {
+        HttpServer metrics = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        metrics.createContext("/actuator/prometheus", exchange -> {
+            byte[] body = "http_server_requests_seconds_count{method=\"GET\",status=\"200\",uri=\"/\",} 1000.0\n"
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        metrics.start();
+        try {
+            Project project = new Project("Shop", "owner");
+            int port = metrics.getAddress().getPort();
+            List<PortLease> replicas = List.of(
+                    new PortLease(port, project.getId(), "d1", "blue", 1, "shop-app-blue"),
+                    new PortLease(port, project.getId(), "d1", "blue", 2, "shop-app-blue-2")); // just scaled up
+            Autoscaler.History history = new Autoscaler.History();
+            history.counters = Map.of("shop-app-blue", new double[]{900, System.nanoTime() - 1e9});
+
+            Autoscaler.Load load = autoscaler.sample(replicas, history);
+            // ~100/s from the first replica, and the same assumed for the second.
+            assertTrue(load.requestsPerSecond() > 150 && load.requestsPerSecond() <= 200, "rate " + load.requestsPerSecond());
+        } finally {
+            metrics.stop(0);
+        }
+    }
+
+    @Test
+    void scalesUpAtOnceButRespectsTheCooldown() {
+        Autoscaler.History history = new Autoscaler.History();
+        long now = 10 * MINUTE;
+
+        Autoscaler.Decision up = autoscaler.decide(policy, new Autoscaler.Load(2, 40, 1.4, 0.3), history, now);
+        assertEquals(4, up.replicas());
+        assertTrue(up.reason().startsWith("cpu"), up.reason());
+
+        history.lastScaledAtMillis = now;
+        assertEquals(4, autoscaler.decide(policy, new Autoscaler.Load(4, 40, 1.0, 0.3), history, now + 30_000).replicas());
+        assertEquals(6, autoscaler.decide(policy, new Autoscaler.Load(4, 40, 1.4, 0.3), history, now + 2 * MINUTE).replicas(),
+                "clamped to max");
+    }
+
+    @Test
+    void scalesDownOnlyAfterSteadyLowLoadAndTheLongerCooldown() {
+        Autoscaler.History history = new Autoscaler.History();
+        history.lastScaledAtMillis = 0;
+        long now = 2 * MINUTE; // past the scale-up cooldown, within the scale-down one
+
+        Autoscaler.Load idle = new Autoscaler.Load(4, 10, 0.1, 0.2);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(4, autoscaler.decide(policy, idle, history, now).replicas());
+        }
+
+        now = 10 * MINUTE;
+        // One busy sample in the window keeps the count up...
+        autoscaler.decide(policy, new Autoscaler.Load(4, 10, 0.7, 0.2), history, now);
+        assertEquals(4, autoscaler.decide(policy, idle, history, now).replicas());
+        assertEquals(4, autoscaler.decide(policy, idle, history, now).replicas());
+        // ...until it has left the window.
+        assertEquals(1, autoscaler.decide(policy, idle, history, now).replicas());
+    }
+
+    @Test
+    void loadWithinToleranceHolds() {
+        Autoscaler.History history = new Autoscaler.History();
+
+        Autoscaler.Decision decision = autoscaler.decide(policy, new Autoscaler.Load(3, 160, 0.75, Double.NaN), history, 10 * MINUTE);
+
+        assertEquals(3, decision.replicas());
+    }
+}
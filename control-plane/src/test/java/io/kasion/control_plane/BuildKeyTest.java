@@ -0,0 +1,38 @@
+package io.kasion.control_plane;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BuildKeyTest {
+
+    private static final String SHA = "4f1c2d9e8b7a6f5e4d3c2b1a0f9e8d7c6b5a4f3e";
+
+    @Test
+    void sameInputsGiveTheSameKey() {
+        BuildKey a = BuildKey.of(SHA, "21", BuildEngine.BuildTool.MAVEN, "FROM x");
+        BuildKey b = BuildKey.of(SHA, "21", BuildEngine.BuildTool.MAVEN, "FROM x");
+
+        assertEquals(a, b);
+        assertEquals("kasion/petclinic:" + a.value(), a.imageName("PetClinic"));
+    }
+
+    @Test
+    void anyInputChangesTheKey() {
+        BuildKey base = BuildKey.of(SHA, "21", BuildEngine.BuildTool.MAVEN, "FROM x");
+
+        assertNotEquals(base, BuildKey.of(SHA.replace('4', '5'), "21", BuildEngine.BuildTool.MAVEN, "FROM x"));
+        assertNotEquals(base, BuildKey.of(SHA, "17", BuildEngine.BuildTool.MAVEN, "FROM x"));
+        assertNotEquals(base, BuildKey.of(SHA, "21", BuildEngine.BuildTool.GRADLE, "FROM x"));
+        assertNotEquals(base, BuildKey.of(SHA, "21", BuildEngine.BuildTool.MAVEN, "FROM y"));
+    }
+
+    @Test
+    void keyIsAValidDockerTag() {
+        String tag = BuildKey.of(SHA, "21", BuildEngine.BuildTool.MAVEN, "FROM x").value();
+
+        assertTrue(tag.matches("[0-9a-f]{24}"), tag);
+    }
+}
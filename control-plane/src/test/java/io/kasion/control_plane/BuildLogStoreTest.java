@@ -0,0 +1,188 @@
+package io.kasion.control_plane;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.management.UnixOperatingSystemMXBean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BuildLogStoreTest {
+
+    @TempDir
+    Path tmp;
+
+    private final List<BuildLogStore> stores = new ArrayList<>();
+    private final BuildExecutors executors = new BuildExecutors(true, 0);
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (BuildLogStore store : stores) {
+            store.shutdown();
+        }
+        executors.shutdown();
+    }
+
+    private BuildLogStore store(int segmentBytes, long maxBytes) {
+        BuildLogStore store = new BuildLogStore(tmp.resolve("logs"), segmentBytes, maxBytes);
+        stores.add(store);
+        return store;
+    }
+
+    private List<String> readAll(BuildLogStore store, String deploymentId, long from) throws Exception {
+        List<String> lines = new ArrayList<>();
+        store.replay(deploymentId, from, (offset, line) -> lines.add(offset + ":" + line));
+        return lines;
+    }
+
+    @Test
+    void replaysFromAnyOffsetAcrossSealedAndActiveSegments() throws Exception {
+        BuildLogStore store = store(1024, Long.MAX_VALUE);
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, store.append("d1", "line " + i));
+        }
+
+        List<String> all = readAll(store, "d1", 0);
+        assertEquals(500, all.size());
+        assertEquals("0:line 0", all.get(0));
+        assertEquals("499:line 499", all.get(499));
+        assertEquals(List.of("498:line 498", "499:line 499"), readAll(store, "d1", 498));
+        assertEquals(List.of(), readAll(store, "d1", 500));
+        assertEquals(Map.of(3L, "line 3", 250L, "line 250", 499L, "line 499"),
+                store.lines("d1", new long[]{3, 250, 499, 600}));
+
+        try (Stream<Path> files = Files.list(tmp.resolve("logs/d1"))) {
+            assertTrue(files.anyMatch(p -> p.toString().endsWith(".seg.gz")), "full segments are compressed");
+        }
+    }
+
+    @Test
+    void survivesRestartAndContinuesOffsets() throws Exception {
+        BuildLogStore first = store(1024, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            first.append("d1", "before " + i);
+        }
+        readAll(first, "d1", 0); // wait for the writer
+        first.shutdown();
+        stores.remove(first);
+
+        BuildLogStore second = store(1024, Long.MAX_VALUE);
+        assertEquals(100, second.nextOffset("d1"));
+        assertEquals(100, second.append("d1", "after"));
+        List<String> lines = readAll(second, "d1", 99);
+        assertEquals(List.of("99:before 99", "100:after"), lines);
+    }
+
+    @Test
+    void retentionDropsTheOldestFinishedBuilds() throws Exception {
+        BuildLogStore store = store(4096, 20_000);
+        for (String id : List.of("old", "mid", "new")) {
+            for (int i = 0; i < 200; i++) {
+                store.append(id, UUID.randomUUID() + " " + UUID.randomUUID()); // doesn't compress away
+            }
+            store.seal(id);
+            readAll(store, id, 0);
+            Thread.sleep(20); // distinct directory mtimes
+        }
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (store.sizeOnDisk() > 20_000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(store.sizeOnDisk() <= 20_000, "size: " + store.sizeOnDisk());
+        assertFalse(Files.exists(tmp.resolve("logs/old")));
+        assertTrue(Files.exists(tmp.resolve("logs/new")));
+    }
+
+    @Test
+    void lateJoinerGetsHistoryThenLiveLinesWithoutGapsOrRepeats() throws Exception {
+        BuildLogStore store = store(1024, Long.MAX_VALUE);
+        LogBroadcaster broadcaster = new LogBroadcaster(executors, ControlPlaneMetrics.noop(), 64, LogBroadcaster.OverflowPolicy.DROP_OLDEST, 10_000);
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        ObjectMapper json = new ObjectMapper();
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("late");
+        doAnswer(invocation -> {
+            // Frames: {"offset": n, "lines": [...]}; a frame may repeat lines the client already has.
+            JsonNode frame = json.readTree(StandardCharsets.UTF_8.decode(((BinaryMessage) invocation.getArgument(0)).getPayload()).toString());
+            long offset = frame.get("offset").asLong();
+            for (JsonNode line : frame.get("lines")) {
+                if (offset++ == 10 + received.size()) {
+                    received.add(line.asText());
+                }
+            }
+            return null;
+        }).when(session).sendMessage(any(WebSocketMessage.class));
+
+        int total = 3_000;
+        for (int i = 0; i < total; i++) {
+            long offset = store.append("d1", "line " + i);
+            broadcaster.broadcast("d1", offset, "line " + i);
+            if (i == 1_000) {
+                broadcaster.register("d1", session, 10, store);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (received.size() < total - 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        List<String> expected = LongStream.range(10, total).mapToObj(i -> "line " + i).toList();
+        assertEquals(expected, received);
+    }
+
+    @Test
+    void readsASegmentLeftByACrashInPlaceIncludingEmptyLines() throws Exception {
+        BuildLogStore crashed = store(4096, Long.MAX_VALUE);
+        List<String> logged = List.of("Building", "", "", "[INFO] done", "");
+        for (String line : logged) {
+            crashed.append("d1", line);
+        }
+        readAll(crashed, "d1", 0); // on disk, never sealed: the raw .seg is all a restart finds
+
+        BuildLogStore restarted = new BuildLogStore(tmp.resolve("logs"), 4096, Long.MAX_VALUE);
+        try {
+            List<String> expected = List.of("0:Building", "1:", "2:", "3:[INFO] done", "4:");
+            assertEquals(expected, readAll(restarted, "d1", 0));
+            assertEquals(5, restarted.nextOffset("d1"));
+            assertEquals(List.of("", "[INFO] done"), restarted.lines("d1", 2, 4));
+
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            assumeTrue(os instanceof UnixOperatingSystemMXBean);
+            long openBefore = ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+            for (int i = 0; i < 200; i++) {
+                restarted.lines("d1", 0, 5);
+                restarted.nextOffset("d1");
+            }
+            long openAfter = ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+            assertTrue(openAfter - openBefore < 10, "reads leaked " + (openAfter - openBefore) + " file descriptors");
+        } finally {
+            restarted.shutdown();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.kasion.control_plane;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BuildSchedulerTest {
+
+    private final BuildEngine buildEngine = mock(BuildEngine.class);
+    private final DeploymentRepository deploymentRepository = mock(DeploymentRepository.class);
+    private final BuildExecutors buildExecutors = new BuildExecutors(false, 0);
+    private final List<String> started = new CopyOnWriteArrayList<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private BuildScheduler scheduler;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        scheduler.shutdown();
+        buildExecutors.shutdown();
+    }
+
+    private void blockingBuilds(CountDownLatch startedLatch) {
+        doAnswer(invocation -> {
+            started.add(invocation.getArgument(0));
+            startedLatch.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(buildEngine).startBuild(anyString());
+    }
+
+    @Test
+    void neverRunsMoreThanTheConfiguredLimit() throws Exception {
+        CountDownLatch twoStarted = new CountDownLatch(2);
+        blockingBuilds(twoStarted);
+        scheduler = new BuildScheduler(buildEngine, deploymentRepository, buildExecutors, ControlPlaneMetrics.noop(), 2);
+
+        for (int i = 0; i < 6; i++) {
+            scheduler.submit("d" + i, "p" + i, "owner");
+        }
+
+        assertTrue(twoStarted.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(2, started.size());
+        assertEquals(2, scheduler.stats().running());
+        assertEquals(4, scheduler.stats().queued());
+    }
+
+    @Test
+    void queueIsPublishedAsGauges() throws Exception {
+        CountDownLatch oneStarted = new CountDownLatch(1);
+        blockingBuilds(oneStarted);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        scheduler = new BuildScheduler(buildEngine, deploymentRepository, buildExecutors, new ControlPlaneMetrics(registry), 1);
+
+        scheduler.submit("d0", "p0", "owner");
+        scheduler.submit("d1", "p1", "owner");
+        scheduler.submit("d2", "p2", "owner");
+        assertTrue(oneStarted.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, registry.get("kasion.builds.running").gauge().value());
+        assertEquals(2, registry.get("kasion.builds.queued").gauge().value());
+        assertEquals(1, registry.get("kasion.builds.max.concurrent").gauge().value());
+        assertEquals(1, registry.get("kasion.builds.queue.wait").timer().count());
+    }
+
+    @Test
+    void newerDeploymentReplacesTheOneStillWaiting() throws Exception {
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        blockingBuilds(firstStarted);
+        Deployment waiting = new Deployment(new Project("app", "owner"), "PENDING");
+        when(deploymentRepository.findById("b1")).thenReturn(Optional.of(waiting));
+        scheduler = new BuildScheduler(buildEngine, deploymentRepository, buildExecutors, ControlPlaneMetrics.noop(), 4);
+
+        scheduler.submit("a", "app", "owner");
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+
+        // Same project is already building, so these wait; the second one wins.
+        scheduler.submit("b1", "app", "owner");
+        BuildScheduler.Ticket ticket = scheduler.submit("b2", "app", "owner");
+
+        assertEquals("b1", ticket.supersededDeploymentId());
+        assertEquals(1, ticket.queueDepth());
+        assertEquals("SUPERSEDED", waiting.getStatus());
+        assertEquals(0, scheduler.positionOf("b1"));
+        assertEquals(1, scheduler.positionOf("b2"));
+    }
+
+    @Test
+    void ownersTakeTurns() throws Exception {
+        CountDownLatch allStarted = new CountDownLatch(5);
+        doAnswer(invocation -> {
+            started.add(invocation.getArgument(0));
+            allStarted.countDown();
+            if (invocation.getArgument(0).equals("blocker")) {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            return null;
+        }).when(buildEngine).startBuild(anyString());
+        scheduler = new BuildScheduler(buildEngine, deploymentRepository, buildExecutors, ControlPlaneMetrics.noop(), 1);
+
+        scheduler.submit("blocker", "z", "team-z");
+        scheduler.submit("x1", "x1", "team-x");
+        scheduler.submit("x2", "x2", "team-x");
+        scheduler.submit("x3", "x3", "team-x");
+        scheduler.submit("y1", "y1", "team-y");
+        release.countDown();
+
+        assertTrue(allStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("blocker", "x1", "y1", "x2", "x3"), started);
+    }
+}
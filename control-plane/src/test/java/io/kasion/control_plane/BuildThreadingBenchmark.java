@@ -0,0 +1,166 @@
+package io.kasion.control_plane;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares platform vs virtual thread execution for N in-flight deployments.
+ *
+ * Each simulated deployment does what a real one spends its time on: pumps the output of a slow,
+ * chatty process and then polls a health endpoint with sleeps in between. No docker needed.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=BuildThreadingBenchmark [-Dkasion.bench.deployments=500]
+ */
+@Tag("benchmark")
+class BuildThreadingBenchmark {
+
+    private static final int DEPLOYMENTS = Integer.getInteger("kasion.bench.deployments", 200);
+
+    record Result(String mode, int deployments, long wallMillis, int peakThreads,
+                  double threadsPerDeployment, long heapBytesPerDeployment, long rssBytesPerDeployment) {}
+
+    @Test
+    void compareThreadModes() throws Exception {
+        HttpServer health = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        health.createContext("/actuator/health", exchange -> {
+            byte[] body = "{\"status\":\"UP\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        health.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        health.start();
+        String healthUrl = "http://localhost:" + health.getAddress().getPort() + "/actuator/health";
+
+        try {
+            // Warm up both paths so JIT and class loading don't land on whichever mode runs first.
+            run(false, 10, healthUrl);
+            run(true, 10, healthUrl);
+
+            List<Result> results = List.of(run(false, DEPLOYMENTS, healthUrl), run(true, DEPLOYMENTS, healthUrl));
+
+            StringBuilder json = new StringBuilder("[\n");
+            for (Result r : results) {
+                System.out.printf("🧵 %-8s deployments=%d wall=%dms peakThreads=%d threads/deploy=%.2f heap/deploy=%dKB rss/deploy=%dKB%n",
+                        r.mode(), r.deployments(), r.wallMillis(), r.peakThreads(), r.threadsPerDeployment(),
+                        r.heapBytesPerDeployment() / 1024, r.rssBytesPerDeployment() / 1024);
+                json.append(String.format(java.util.Locale.ROOT,
+                        "  {\"mode\":\"%s\",\"deployments\":%d,\"wallMillis\":%d,\"peakThreads\":%d,\"threadsPerDeployment\":%.3f,\"heapBytesPerDeployment\":%d,\"rssBytesPerDeployment\":%d}%s%n",
+                        r.mode(), r.deployments(), r.wallMillis(), r.peakThreads(), r.threadsPerDeployment(),
+                        r.heapBytesPerDeployment(), r.rssBytesPerDeployment(), r == results.get(results.size() - 1) ? "" : ","));
+            }
+            json.append("]\n");
+            Path out = Path.of("target", "benchmarks", "build-threading.json");
+            Files.createDirectories(out.getParent());
+            Files.writeString(out, json);
+        } finally {
+            health.stop(0);
+        }
+    }
+
+    private Result run(boolean virtual, int deployments, String healthUrl) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        System.gc();
+        int baselineThreads = threads.getThreadCount();
+        long baselineHeap = memory.getHeapMemoryUsage().getUsed();
+        long baselineRss = rssBytes();
+        threads.resetPeakThreadCount();
+
+        BuildExecutors executors = new BuildExecutors(virtual, 0);
+        ExecutorService builds = executors.newBuildExecutor(deployments);
+
+        AtomicLong peakHeap = new AtomicLong();
+        AtomicLong peakRss = new AtomicLong();
+        Thread sampler = Thread.ofPlatform().daemon().start(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                peakRss.accumulateAndGet(rssBytes(), Math::max);
+                try { Thread.sleep(50); } catch (InterruptedException e) { return; }
+            }
+        });
+
+        long start = System.nanoTime();
+        List<Future<?>> inFlight = new ArrayList<>();
+        for (int i = 0; i < deployments; i++) {
+            inFlight.add(builds.submit(() -> simulatedDeployment(executors, healthUrl)));
+        }
+        for (Future<?> f : inFlight) {
+            f.get();
+        }
+        long wallMillis = (System.nanoTime() - start) / 1_000_000;
+
+        sampler.interrupt();
+        sampler.join();
+        int peakThreads = threads.getPeakThreadCount();
+        builds.shutdown();
+        executors.shutdown();
+
+        return new Result(virtual ? "virtual" : "platform", deployments, wallMillis, peakThreads,
+                (double) (peakThreads - baselineThreads) / deployments,
+                Math.max(0, peakHeap.get() - baselineHeap) / deployments,
+                Math.max(0, peakRss.get() - baselineRss) / deployments);
+    }
+
+    /**
+     * Roughly the shape of BuildEngine.startBuild: a chatty process, then health polling.
+     */
+    private Void simulatedDeployment(BuildExecutors executors, String healthUrl) throws Exception {
+        Process process = new ProcessBuilder("sh", "-c", "for i in $(seq 1 20); do echo \"[INFO] step $i\"; sleep 0.1; done")
+                .redirectErrorStream(true)
+                .start();
+        Future<?> pump = executors.io().submit(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                while (reader.readLine() != null) {
+                    // drain
+                }
+            }
+            return null;
+        });
+        process.waitFor();
+        pump.get();
+
+        for (int attempt = 0; attempt < 3; attempt++) {
+            executors.io().submit(() -> {
+                HttpURLConnection connection = (HttpURLConnection) URI.create(healthUrl).toURL().openConnection();
+                try (var in = connection.getInputStream()) {
+                    return in.readAllBytes().length;
+                }
+            }).get();
+            Thread.sleep(200);
+        }
+        return null;
+    }
+
+    private static long rssBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D+", "")) * 1024;
+                }
+            }
+        } catch (Exception ignored) {
+            // Not Linux; report heap only.
+        }
+        return 0;
+    }
+}
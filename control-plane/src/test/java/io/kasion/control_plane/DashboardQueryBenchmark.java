@@ -0,0 +1,130 @@
+package io.kasion.control_plane;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * Dashboard query latency against a file-based H2 store (like production) as the deployments table grows
+ * to 1M rows, comparing the old "load everything" path with the paged projection queries.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=DashboardQueryBenchmark [-Dkasion.bench.max-deployments=1000000]
+ */
+@Tag("benchmark")
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@TestPropertySource(properties = {
+        "spring.datasource.url=jdbc:h2:file:./target/benchmarks/dashboard-db",
+        "spring.jpa.hibernate.ddl-auto=create-drop"
+})
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // seed in our own batches, not one huge transaction
+class DashboardQueryBenchmark {
+
+    private static final int MAX_DEPLOYMENTS = Integer.getInteger("kasion.bench.max-deployments", 1_000_000);
+    private static final int PROJECTS = 200;
+    private static final int PAGE = 50;
+    // findAll() materialises every entity; beyond this it is minutes and gigabytes, which is the point.
+    private static final int LEGACY_LIMIT = 100_000;
+
+    record Result(int deployments, double legacyMillis, double firstPageMillis, double keysetDeepMillis,
+                  double offsetDeepMillis, double currentLiveMillis) {}
+
+    @Autowired
+    private JdbcTemplate jdbc;
+    @Autowired
+    private DeploymentRepository deploymentRepository;
+    @Autowired
+    private ProjectRepository projectRepository;
+
+    @Test
+    void dashboardLatencyByTableSize() throws Exception {
+        jdbc.update("insert into projects (id, name, owner_id, build_status, has_database, active_port, current_color, java_version) "
+                + "select 'p' || x, 'app-' || x, 'bench', 'IDLE', false, 8081, 'blue', '21' from system_range(1, ?)", PROJECTS);
+
+        List<Result> results = new ArrayList<>();
+        int seeded = 0;
+        for (int size = 10_000; size <= MAX_DEPLOYMENTS; size *= 10) {
+            seed(seeded, size);
+            seeded = size;
+            results.add(measure(size));
+        }
+
+        StringBuilder json = new StringBuilder("[\n");
+        for (Result r : results) {
+            System.out.printf(Locale.ROOT, "🗄️ deployments=%d legacy=%.1fms firstPage=%.1fms keysetDeep=%.1fms offsetDeep=%.1fms currentLive=%.1fms%n",
+                    r.deployments(), r.legacyMillis(), r.firstPageMillis(), r.keysetDeepMillis(), r.offsetDeepMillis(), r.currentLiveMillis());
+            json.append(String.format(Locale.ROOT,
+                    "  {\"deployments\":%d,\"legacyMillis\":%.2f,\"firstPageMillis\":%.2f,\"keysetDeepMillis\":%.2f,\"offsetDeepMillis\":%.2f,\"currentLiveMillis\":%.2f}%s%n",
+                    r.deployments(), r.legacyMillis(), r.firstPageMillis(), r.keysetDeepMillis(), r.offsetDeepMillis(), r.currentLiveMillis(),
+                    r == results.get(results.size() - 1) ? "" : ","));
+        }
+        json.append("]\n");
+        Path out = Path.of("target", "benchmarks", "dashboard-queries.json");
+        Files.createDirectories(out.getParent());
+        Files.writeString(out, json);
+    }
+
+    /**
+     * Rows {@code (from, to]}, one second apart, spread over the projects; every tenth one is LIVE.
+     */
+    private void seed(int from, int to) {
+        long start = System.currentTimeMillis();
+        for (int batchStart = from; batchStart < to; batchStart += 100_000) {
+            jdbc.update("insert into deployments (id, project_id, status, commit_hash, created_at) "
+                    + "select random_uuid(), 'p' || (mod(x, ?) + 1), case when mod(x, 10) = 0 then 'LIVE' else 'FAILED' end, "
+                    + "'0123abcd', timestamp '2024-01-01 00:00:00' + x * interval '1' second "
+                    + "from system_range(?, ?)", PROJECTS, batchStart + 1, Math.min(batchStart + 100_000, to));
+        }
+        jdbc.execute("analyze");
+        System.out.println("🌱 Seeded " + to + " deployments in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private Result measure(int size) {
+        double legacy = size <= LEGACY_LIMIT ? median(() -> {
+            // What showDashboard did before: every deployment and its project, counted in Java.
+            List<Deployment> all = deploymentRepository.findAll();
+            long projects = all.stream().map(d -> d.getProject().getId()).distinct().count();
+            return all.size() + projects + projectRepository.findAll().size();
+        }) : -1;
+
+        double firstPage = median(() -> deploymentRepository.findNewestSummaries(PageRequest.of(0, PAGE)).size()
+                + deploymentRepository.countDeployedProjects() + deploymentRepository.count());
+
+        // The page 90% of the way back: where the cursor and OFFSET differ most.
+        int deepPage = size / PAGE * 9 / 10;
+        DeploymentSummary cursor = deploymentRepository.findSummaries(PageRequest.of(deepPage - 1, PAGE)).getContent().get(PAGE - 1);
+        double keysetDeep = median(() -> deploymentRepository.findSummariesBefore(cursor.createdAt(), cursor.id(), PageRequest.of(0, PAGE)).size());
+        double offsetDeep = median(() -> deploymentRepository.findSummaries(PageRequest.of(deepPage, PAGE)).getContent().size());
+
+        double currentLive = median(() -> deploymentRepository.findCurrentLive().size());
+
+        return new Result(size, legacy, firstPage, keysetDeep, offsetDeep, currentLive);
+    }
+
+    private static double median(Supplier<Object> query) {
+        query.get(); // warm-up: statement cache, JIT
+        double[] millis = new double[5];
+        for (int i = 0; i < millis.length; i++) {
+            long start = System.nanoTime();
+            query.get();
+            millis[i] = (System.nanoTime() - start) / 1_000_000.0;
+        }
+        Arrays.sort(millis);
+        return millis[millis.length / 2];
+    }
+}
@@ -0,0 +1,289 @@
+package io.kasion.control_plane;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How many deployments one control plane gets to LIVE, with {@link FakeToolchain} standing in for
+ * Docker: thousands of {@code POST /api/v1/deploy} requests spread over a set of projects, each
+ * pointing at its own local git repository, while thread count and heap are sampled.
+ *
+ * Reports deploys/minute, queue wait, time to LIVE (build start until LIVE) and request-to-LIVE
+ * percentiles, outcomes by status, and the peak thread count and heap of this JVM. The harness adds
+ * one selector thread for the stub actuator; its HTTP clients run on virtual threads.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=DeployThroughputHarness
+ *   [-Dkasion.bench.deploys=1000] [-Dkasion.bench.projects=50] [-Dkasion.bench.concurrency=64]
+ *   [-Dkasion.bench.first-port=18100] [-Dkasion.bench.timeout-minutes=30]
+ *   [-Dkasion.bench.fake.build-seconds=2 ... see FakeToolchain.Settings]
+ *   [-Dkasion.builds.max-concurrent=16 -Dkasion.builds.virtual-threads=true ... any control plane setting]
+ * Results go to target/benchmarks/deploy-throughput.json.
+ */
+@Tag("benchmark")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.datasource.url=jdbc:h2:mem:throughput;DB_CLOSE_DELAY=-1",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "kasion.admin.password=harness",
+        "kasion.edge.port=0",
+        "kasion.readiness.timeout-seconds=30"
+})
+class DeployThroughputHarness {
+
+    private static final int DEPLOYS = Integer.getInteger("kasion.bench.deploys", 1_000);
+    private static final int PROJECTS = Integer.getInteger("kasion.bench.projects", 50);
+    private static final int CONCURRENCY = Integer.getInteger("kasion.bench.concurrency", 64);
+    private static final int FIRST_PORT = Integer.getInteger("kasion.bench.first-port", 18_100);
+    private static final int TIMEOUT_MINUTES = Integer.getInteger("kasion.bench.timeout-minutes", 30);
+    private static final List<String> TERMINAL = List.of("LIVE", "FAILED", "SUPERSEDED", "CANCELLED");
+
+    private static FakeToolchain toolchain;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private DeploymentRepository deploymentRepository;
+
+    @DynamicPropertySource
+    static void fakeToolchain(DynamicPropertyRegistry registry) throws Exception {
+        // Blue and green for every project, plus room for ports the stub actuator couldn't bind.
+        int lastPort = FIRST_PORT + PROJECTS * 2 + 50;
+        toolchain = FakeToolchain.create(FakeToolchain.Settings.fromSystemProperties(), FIRST_PORT, lastPort);
+        if (!toolchain.unavailablePorts().isEmpty()) {
+            System.out.println("⚠️ [Harness] Ports already in use, containers leased them won't become ready: " + toolchain.unavailablePorts());
+        }
+        Path dir = toolchain.dir();
+        registry.add("kasion.docker.engine", () -> "CLI"); // the fake toolchain stands in for the daemon too
+        registry.add("kasion.docker.command", () -> toolchain.docker().toString());
+        registry.add("kasion.docker.compose-command", () -> toolchain.dockerCompose().toString());
+        registry.add("kasion.ports.range-start", () -> FIRST_PORT);
+        registry.add("kasion.ports.range-end", () -> lastPort);
+        registry.add("kasion.git.cache-dir", () -> dir.resolve("git-mirrors").toString());
+        registry.add("kasion.logs.store.dir", () -> dir.resolve("build-logs").toString());
+        registry.add("kasion.logs.search.dir", () -> dir.resolve("log-index").toString());
+    }
+
+    @AfterAll
+    static void removeToolchain() throws Exception {
+        toolchain.close();
+    }
+
+    record Result(int requested, int accepted, double httpP50Millis, double httpP99Millis, Map<String, Integer> outcomes,
+                  double wallSeconds, double deploysPerMinute,
+                  double queueP50Millis, double queueP99Millis,
+                  double timeToLiveP50Millis, double timeToLiveP90Millis, double timeToLiveP99Millis,
+                  double requestToLiveP50Millis, double requestToLiveP99Millis,
+                  int peakThreads, long peakHeapBytes) {}
+
+    @Test
+    void deployThroughput() throws Exception {
+        List<String> repoUrls = new ArrayList<>();
+        for (int i = 0; i < PROJECTS; i++) {
+            repoUrls.add(fixtureRepo(toolchain.dir().resolve("repos").resolve("app-" + i)));
+        }
+
+        Sampler sampler = new Sampler();
+        Thread sampling = Thread.ofPlatform().name("kasion-harness-sampler").daemon().start(sampler);
+
+        // Fire the requests, at most CONCURRENCY in flight.
+        HttpClient http = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+        String auth = "Basic " + Base64.getEncoder().encodeToString("kasionadmin:harness".getBytes(StandardCharsets.UTF_8));
+        Semaphore inFlight = new Semaphore(CONCURRENCY);
+        List<String> deploymentIds = Collections.synchronizedList(new ArrayList<>());
+        List<Long> httpMillis = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger rejected = new AtomicInteger();
+        Pattern idPattern = Pattern.compile("\"deploymentId\"\\s*:\\s*\"([^\"]+)\"");
+
+        long start = System.nanoTime();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < DEPLOYS; i++) {
+                String body = "{\"repoUrl\":\"" + repoUrls.get(i % PROJECTS) + "\",\"hasDatabase\":false,\"javaVersion\":\"21\"}";
+                inFlight.acquire();
+                clients.execute(() -> {
+                    try {
+                        long sent = System.nanoTime();
+                        HttpResponse<String> response = http.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/v1/deploy"))
+                                .header("Authorization", auth)
+                                .header("Content-Type", "application/json")
+                                .timeout(Duration.ofSeconds(60))
+                                .POST(HttpRequest.BodyPublishers.ofString(body))
+                                .build(), HttpResponse.BodyHandlers.ofString());
+                        httpMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent));
+                        Matcher id = idPattern.matcher(response.body());
+                        if (response.statusCode() == 200 && id.find()) {
+                            deploymentIds.add(id.group(1));
+                        } else {
+                            rejected.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        rejected.incrementAndGet();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        System.out.println("📨 [Harness] " + DEPLOYS + " deploy requests sent in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms (" + rejected.get() + " rejected)");
+
+        // Wait for every accepted deployment to end up LIVE, FAILED, SUPERSEDED or CANCELLED.
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(TIMEOUT_MINUTES);
+        List<Deployment> finished;
+        while (true) {
+            finished = deploymentRepository.findAllById(deploymentIds);
+            long pending = finished.stream().filter(d -> !TERMINAL.contains(d.getStatus())).count();
+            if (pending == 0 || System.nanoTime() > deadline) {
+                break;
+            }
+            System.out.println("⏳ [Harness] " + pending + " deployments still queued or running");
+            Thread.sleep(1_000);
+        }
+        double wallSeconds = (System.nanoTime() - start) / 1e9;
+        sampler.stop();
+        sampling.join();
+
+        Map<String, Integer> outcomes = new TreeMap<>();
+        List<Long> queue = new ArrayList<>();
+        List<Long> timeToLive = new ArrayList<>();
+        List<Long> requestToLive = new ArrayList<>();
+        for (Deployment deployment : finished) {
+            outcomes.merge(deployment.getStatus(), 1, Integer::sum);
+            if (deployment.getQueueWaitMillis() != null) {
+                queue.add(deployment.getQueueWaitMillis());
+            }
+            if ("LIVE".equals(deployment.getStatus()) && deployment.getTimeToLiveMillis() != null) {
+                timeToLive.add(deployment.getTimeToLiveMillis());
+                requestToLive.add(deployment.getTimeToLiveMillis() + (deployment.getQueueWaitMillis() != null ? deployment.getQueueWaitMillis() : 0));
+            }
+        }
+        int live = outcomes.getOrDefault("LIVE", 0);
+        Result r = new Result(DEPLOYS, deploymentIds.size(), percentile(httpMillis, 50), percentile(httpMillis, 99), outcomes,
+                wallSeconds, live / (wallSeconds / 60),
+                percentile(queue, 50), percentile(queue, 99),
+                percentile(timeToLive, 50), percentile(timeToLive, 90), percentile(timeToLive, 99),
+                percentile(requestToLive, 50), percentile(requestToLive, 99),
+                sampler.peakThreads, sampler.peakHeapBytes.get());
+
+        System.out.printf(Locale.ROOT, "🚚 [Harness] %d requested, %d accepted (http p50=%.0fms p99=%.0fms), outcomes %s%n",
+                r.requested(), r.accepted(), r.httpP50Millis(), r.httpP99Millis(), r.outcomes());
+        System.out.printf(Locale.ROOT, "🚚 [Harness] %.1f deploys/minute over %.1fs; queue p50=%.0fms p99=%.0fms; "
+                        + "time to LIVE p50=%.0fms p90=%.0fms p99=%.0fms; request to LIVE p50=%.0fms p99=%.0fms%n",
+                r.deploysPerMinute(), r.wallSeconds(), r.queueP50Millis(), r.queueP99Millis(),
+                r.timeToLiveP50Millis(), r.timeToLiveP90Millis(), r.timeToLiveP99Millis(),
+                r.requestToLiveP50Millis(), r.requestToLiveP99Millis());
+        System.out.printf(Locale.ROOT, "🚚 [Harness] peak threads=%d peak heap=%.1f MiB%n", r.peakThreads(), r.peakHeapBytes() / 1048576.0);
+
+        StringBuilder outcomesJson = new StringBuilder("{");
+        r.outcomes().forEach((status, count) -> outcomesJson.append(outcomesJson.length() > 1 ? "," : "").append('"').append(status).append("\":").append(count));
+        outcomesJson.append('}');
+        String json = String.format(Locale.ROOT, """
+                {"requested":%d,"accepted":%d,"httpP50Millis":%.1f,"httpP99Millis":%.1f,"outcomes":%s,
+                 "wallSeconds":%.2f,"deploysPerMinute":%.2f,"queueP50Millis":%.1f,"queueP99Millis":%.1f,
+                 "timeToLiveP50Millis":%.1f,"timeToLiveP90Millis":%.1f,"timeToLiveP99Millis":%.1f,
+                 "requestToLiveP50Millis":%.1f,"requestToLiveP99Millis":%.1f,"peakThreads":%d,"peakHeapBytes":%d,
+                 "projects":%d,"concurrency":%d}
+                """, r.requested(), r.accepted(), r.httpP50Millis(), r.httpP99Millis(), outcomesJson,
+                r.wallSeconds(), r.deploysPerMinute(), r.queueP50Millis(), r.queueP99Millis(),
+                r.timeToLiveP50Millis(), r.timeToLiveP90Millis(), r.timeToLiveP99Millis(),
+                r.requestToLiveP50Millis(), r.requestToLiveP99Millis(), r.peakThreads(), r.peakHeapBytes(),
+                PROJECTS, CONCURRENCY);
+        Path out = Path.of("target", "benchmarks", "deploy-throughput.json");
+        Files.createDirectories(out.getParent());
+        Files.writeString(out, json);
+    }
+
+    /**
+     * A repository that looks like a Maven wrapper project, as a path URL so the project is named after it.
+     */
+    private static String fixtureRepo(Path dir) throws Exception {
+        try (Git git = Git.init().setDirectory(dir.toFile()).setInitialBranch("main").call()) {
+            Files.writeString(dir.resolve("pom.xml"), "<project><artifactId>" + dir.getFileName() + "</artifactId></project>\n");
+            Files.writeString(dir.resolve("mvnw"), "#!/bin/sh\n");
+            dir.resolve("mvnw").toFile().setExecutable(true);
+            Files.createDirectories(dir.resolve("src/main/java"));
+            Files.writeString(dir.resolve("src/main/java/App.java"), "class App {}\n");
+            git.add().addFilepattern(".").call();
+            git.commit().setMessage("fixture")
+                    .setAuthor("kasion", "kasion@example.com")
+                    .setCommitter("kasion", "kasion@example.com")
+                    .setSign(false)
+                    .call();
+        }
+        return "file://" + dir.toAbsolutePath();
+    }
+
+    private static double percentile(List<Long> values, double percentile) {
+        List<Long> sorted;
+        synchronized (values) {
+            sorted = new ArrayList<>(values);
+        }
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    /**
+     * Samples this JVM's live platform threads and used heap every 250ms until stopped.
+     */
+    private static final class Sampler implements Runnable {
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final AtomicLong peakHeapBytes = new AtomicLong();
+        private volatile boolean stopped;
+        private volatile int peakThreads;
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                peakThreads = Math.max(peakThreads, threads.getThreadCount());
+                peakHeapBytes.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(250);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void stop() {
+            stopped = true;
+        }
+    }
+}
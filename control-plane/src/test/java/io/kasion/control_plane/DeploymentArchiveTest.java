@@ -0,0 +1,90 @@
+package io.kasion.control_plane;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeploymentArchiveTest {
+
+    @TempDir
+    Path dir;
+
+    private static final LocalDateTime T0 = LocalDateTime.of(2026, 1, 1, 12, 0);
+
+    private static DeploymentArchive.ArchivedDeployment deployment(String id, String projectId, int minutes, String status) {
+        return new DeploymentArchive.ArchivedDeployment(id, projectId, "shop-" + projectId, status, "abc" + id,
+                T0.plusMinutes(minutes), 1200L, "key-" + id, "kasion/" + id, 45_000L, null,
+                DockerfileGenerator.StartupMode.JVM, 180_000_000L, 2300L, null);
+    }
+
+    @Test
+    void findsFullRecordsAfterReopening() throws Exception {
+        DeploymentArchive archive = new DeploymentArchive(dir, 1 << 20);
+        archive.append(List.of(deployment("a", "p1", 0, "SUPERSEDED"), deployment("b", "p1", 1, "FAILED")));
+        archive.append(List.of(deployment("c", "p2", 2, "LIVE")));
+
+        DeploymentArchive reopened = new DeploymentArchive(dir, 1 << 20);
+
+        assertEquals(3, reopened.count());
+        assertEquals(deployment("b", "p1", 1, "FAILED"), reopened.find("b").orElseThrow());
+        assertEquals(deployment("c", "p2", 2, "LIVE"), reopened.find("c").orElseThrow());
+        assertTrue(reopened.find("missing").isEmpty());
+    }
+
+    @Test
+    void pagesProjectHistoryNewestFirst() throws Exception {
+        DeploymentArchive archive = new DeploymentArchive(dir, 1 << 20);
+        List<DeploymentArchive.ArchivedDeployment> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(deployment("d" + i, "p1", i, "SUPERSEDED"));
+        }
+        batch.add(deployment("same-time", "p1", 5, "FAILED"));
+        batch.add(deployment("other", "p2", 3, "FAILED"));
+        archive.append(batch);
+
+        List<DeploymentArchive.Entry> first = archive.history("p1", null, null, 4);
+        assertEquals(List.of("d9", "d8", "d7", "d6"), first.stream().map(DeploymentArchive.Entry::id).toList());
+
+        DeploymentArchive.Entry last = first.get(3);
+        List<DeploymentArchive.Entry> next = archive.history("p1", last.createdAt(), last.id(), 4);
+        assertEquals(List.of("same-time", "d5", "d4", "d3"), next.stream().map(DeploymentArchive.Entry::id).toList());
+
+        assertEquals(List.of("other"), archive.ids(e -> e.projectId().equals("p2")));
+    }
+
+    @Test
+    void rotatesSegmentsAndKeepsTheLatestCopyOfAnId() throws Exception {
+        DeploymentArchive archive = new DeploymentArchive(dir, 1);
+        archive.append(List.of(deployment("a", "p1", 0, "LIVE")));
+        archive.append(List.of(deployment("b", "p1", 1, "FAILED")));
+        archive.append(List.of(deployment("a", "p1", 0, "SUPERSEDED")));
+
+        DeploymentArchive reopened = new DeploymentArchive(dir, 1);
+
+        assertTrue(Files.exists(dir.resolve("segment-000003.gz")));
+        assertEquals(2, reopened.count());
+        assertEquals("SUPERSEDED", reopened.find("a").orElseThrow().status());
+        assertEquals(2, reopened.history("p1", null, null, 10).size());
+    }
+
+    @Test
+    void ignoresATornIndexLine() throws Exception {
+        DeploymentArchive archive = new DeploymentArchive(dir, 1 << 20);
+        archive.append(List.of(deployment("a", "p1", 0, "FAILED")));
+        Files.writeString(dir.resolve("index.tsv"), "b\tp1\tshop", StandardOpenOption.APPEND);
+
+        DeploymentArchive reopened = new DeploymentArchive(dir, 1 << 20);
+        reopened.append(List.of(deployment("c", "p1", 1, "FAILED")));
+
+        assertEquals(2, new DeploymentArchive(dir, 1 << 20).count());
+    }
+}
@@ -0,0 +1,310 @@
+package io.kasion.control_plane;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.URLDecoder;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs against a stub daemon on a unix socket in a temp dir.
+ */
+class DockerEngineTest {
+
+    @TempDir
+    Path dir;
+
+    private final BuildExecutors executors = new BuildExecutors(false, 0);
+    private final ObjectMapper json = new ObjectMapper();
+    private final Map<String, Function<Request, Reply>> routes = new ConcurrentHashMap<>();
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private ServerSocketChannel server;
+
+    record Request(String method, String target, Map<String, String> headers, byte[] body) {}
+
+    /**
+     * {@code chunks} go out with chunked encoding when there is more than one.
+     */
+    record Reply(int status, List<String> chunks) {
+        static Reply of(int status, String body) {
+            return new Reply(status, List.of(body));
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+        executors.shutdown();
+    }
+
+    private DockerEngine engine() throws IOException {
+        Path socket = dir.resolve("docker.sock");
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        Thread.ofVirtual().start(() -> {
+            while (server.isOpen()) {
+                try {
+                    SocketChannel client = server.accept();
+                    connections.incrementAndGet();
+                    Thread.ofVirtual().start(() -> serve(client));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        return new DockerEngine(executors, DockerEngine.Mode.API, socket, "v1.41", 4);
+    }
+
+    private void serve(SocketChannel client) {
+        try (client) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(client));
+            OutputStream out = Channels.newOutputStream(client);
+            String requestLine;
+            while ((requestLine = line(in)) != null) {
+                Map<String, String> headers = new LinkedHashMap<>();
+                String header;
+                while (!(header = line(in)).isEmpty()) {
+                    headers.put(header.substring(0, header.indexOf(':')).toLowerCase(), header.substring(header.indexOf(':') + 1).trim());
+                }
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                if ("chunked".equals(headers.get("transfer-encoding"))) {
+                    int size;
+                    while ((size = Integer.parseInt(line(in), 16)) > 0) {
+                        body.write(in.readNBytes(size));
+                        line(in);
+                    }
+                    line(in);
+                } else if (headers.containsKey("content-length")) {
+                    body.write(in.readNBytes(Integer.parseInt(headers.get("content-length"))));
+                }
+                String[] parts = requestLine.split(" ");
+                Request request = new Request(parts[0], parts[1], headers, body.toByteArray());
+                requests.add(request);
+
+                Function<Request, Reply> route = routes.get(parts[0] + " " + parts[1].replaceFirst("\\?.*", ""));
+                Reply reply = route != null ? route.apply(request) : Reply.of(404, "{\"message\":\"page not found\"}");
+                StringBuilder response = new StringBuilder("HTTP/1.1 " + reply.status() + " X\r\nContent-Type: application/json\r\n");
+                if (reply.chunks().size() > 1) {
+                    response.append("Transfer-Encoding: chunked\r\n\r\n");
+                    for (String chunk : reply.chunks()) {
+                        byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+                        response.append(Integer.toHexString(bytes.length)).append("\r\n").append(chunk).append("\r\n");
+                    }
+                    response.append("0\r\n\r\n");
+                } else {
+                    String text = reply.chunks().isEmpty() ? "" : reply.chunks().get(0);
+                    response.append("Content-Length: ").append(text.getBytes(StandardCharsets.UTF_8).length).append("\r\n\r\n").append(text);
+                }
+                out.write(response.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException ignored) {
+            // Client went away.
+        }
+    }
+
+    private static String line(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void containerCallsShareOneKeptAliveConnection() throws Exception {
+        DockerEngine engine = engine();
+        routes.put("POST /v1.41/containers/create", request -> Reply.of(201, "{\"Id\":\"abc123\",\"Warnings\":[]}\n"));
+        routes.put("POST /v1.41/containers/abc123/start", request -> new Reply(204, List.of()));
+        routes.put("GET /v1.41/containers/shop-blue-1/json", request -> Reply.of(200, """
+                {"Id":"abc123","Name":"/shop-blue-1","State":{"Status":"running","Running":true,"ExitCode":0,
+                 "Health":{"Status":"starting","FailingStreak":0}}}
+                """));
+        routes.put("DELETE /v1.41/containers/shop-blue-1", request -> new Reply(204, List.of()));
+        routes.put("DELETE /v1.41/containers/gone", request -> Reply.of(404, "{\"message\":\"No such container: gone\"}"));
+
+        DockerEngine.ContainerSpec spec = new DockerEngine.ContainerSpec("shop-blue-1", "kasion/shop:abc", "kasion-net",
+                Map.of(8101, 8080), List.of("MANAGEMENT_ENDPOINTS_WEB_EXPOSURE_INCLUDE=health,prometheus"),
+                Map.of("kasion.scrape", "true"), List.of(), null, null);
+        assertEquals("abc123", engine.run(spec, line -> {}));
+        assertEquals(new DockerEngine.ContainerState("abc123", "shop-blue-1", "running", true, 0, "starting"),
+                engine.inspectContainer("shop-blue-1"));
+        assertNull(engine.inspectContainer("gone"));
+        assertTrue(engine.remove("shop-blue-1", true));
+        assertFalse(engine.remove("gone", true));
+
+        Request create = requests.get(0);
+        assertEquals("/v1.41/containers/create?name=shop-blue-1", create.target());
+        JsonNode body = json.readTree(create.body());
+        assertEquals("kasion/shop:abc", body.path("Image").asText());
+        assertEquals("8101", body.at("/HostConfig/PortBindings/8080~1tcp/0/HostPort").asText());
+        assertEquals("kasion-net", body.at("/HostConfig/NetworkMode").asText());
+        assertEquals("true", body.at("/Labels/kasion.scrape").asText());
+        assertEquals("/v1.41/containers/shop-blue-1?force=true", requests.get(4).target());
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    void buildStreamsTheContextAsATarAndPrintsBuildkitProgress() throws Exception {
+        DockerEngine engine = engine();
+        Path context = Files.createDirectories(dir.resolve("workspace"));
+        Files.writeString(context.resolve("Dockerfile"), "FROM eclipse-temurin:21\n");
+        Files.writeString(context.resolve(".dockerignore"), "target\n**/*.log\n");
+        Path mvnw = Files.writeString(context.resolve("mvnw"), "#!/bin/sh\n");
+        mvnw.toFile().setExecutable(true);
+        String deep = "src/main/java/io/example/" + "very-long-package-name/".repeat(4) + "App.java";
+        Files.createDirectories(context.resolve(deep).getParent());
+        Files.writeString(context.resolve(deep), "class App {}");
+        Files.createDirectories(context.resolve("target"));
+        Files.writeString(context.resolve("target/app.jar"), "jar");
+        Files.writeString(context.resolve("src/debug.log"), "log");
+
+        byte[] from = concat(field(1, "sha256:1"), field(3, "[1/2] FROM eclipse-temurin:21"), field(4, 1));
+        byte[] runStarted = concat(field(1, "sha256:2"), field(3, "[2/2] RUN ./mvnw package"), field(5, timestamp(10, 0)));
+        byte[] runDone = concat(runStarted, field(6, timestamp(12, 500_000_000)));
+        byte[] log = concat(field(1, "sha256:2"), field(4, "BUILD SUCCESS\n"));
+        routes.put("POST /v1.41/build", request -> new Reply(200, List.of(
+                trace(concat(field(1, from), field(1, runStarted))),
+                trace(field(3, log)),
+                trace(field(1, runDone)),
+                "{\"id\":\"moby.image.id\",\"aux\":{\"ID\":\"sha256:feed\"}}\n")));
+
+        List<String> output = new ArrayList<>();
+        assertEquals("sha256:feed", engine.build(context, "kasion/shop:abc", output::add));
+
+        assertEquals(List.of("#1 [1/2] FROM eclipse-temurin:21", "#1 CACHED", "#2 [2/2] RUN ./mvnw package",
+                "#2 BUILD SUCCESS", "#2 DONE 2.5s"), output);
+        Request build = requests.get(0);
+        assertEquals("/v1.41/build?version=2&rm=1&forcerm=1&t=kasion%2Fshop%3Aabc", build.target());
+        assertEquals("chunked", build.headers().get("transfer-encoding"));
+
+        Tar.Reader archive = new Tar.Reader(new ByteArrayInputStream(build.body()));
+        Map<String, Tar.Entry> entries = new LinkedHashMap<>();
+        Map<String, String> contents = new LinkedHashMap<>();
+        Tar.Entry entry;
+        while ((entry = archive.next()) != null) {
+            entries.put(entry.name(), entry);
+            contents.put(entry.name(), new String(archive.content().readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertEquals("FROM eclipse-temurin:21\n", contents.get("Dockerfile"));
+        assertEquals(0755, entries.get("mvnw").mode());
+        assertEquals("class App {}", contents.get(deep));
+        assertTrue(entries.containsKey("src/main/"));
+        assertFalse(entries.containsKey("target/"));
+        assertFalse(entries.containsKey("target/app.jar"));
+        assertFalse(entries.containsKey("src/debug.log"));
+    }
+
+    @Test
+    void eventsArriveTyped() throws Exception {
+        DockerEngine engine = engine();
+        routes.put("GET /v1.41/events", request -> new Reply(200, List.of(
+                "{\"Type\":\"container\",\"Action\":\"health_status: healthy\",\"Actor\":{\"ID\":\"abc\",\"Attributes\":{\"name\":\"shop-blue-1\"}}}\n",
+                "{\"Type\":\"container\",\"Action\":\"die\",\"Actor\":{\"ID\":\"abc\",\"Attributes\":{\"name\":\"shop-blue-1\",\"exitCode\":\"137\"}}}\n")));
+
+        try (DockerEngine.EventStream events = engine.events(Map.of("container", List.of("shop-blue-1")))) {
+            assertEquals(new DockerEngine.Event("container", "health_status: healthy", "abc", "shop-blue-1", null), events.next());
+            assertEquals(new DockerEngine.Event("container", "die", "abc", "shop-blue-1", 137), events.next());
+            assertNull(events.next());
+        }
+        String target = requests.get(0).target();
+        assertEquals("{\"container\":[\"shop-blue-1\"]}",
+                URLDecoder.decode(target.substring(target.indexOf("filters=") + 8), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void autoFallsBackToTheCliWhenNothingListens() {
+        DockerEngine engine = new DockerEngine(executors, DockerEngine.Mode.AUTO, dir.resolve("missing.sock"), "v1.41", 4);
+        assertFalse(engine.enabled());
+        assertFalse(DockerEngine.cliOnly().enabled());
+    }
+
+    @Test
+    void dockerignoreFollowsTheCliRules() {
+        Predicate<String> include = DockerEngine.dockerignore(List.of(
+                "# build output", "target", "**/*.log", "!target/app.jar", "/secrets/"));
+
+        assertTrue(include.test("src/main/App.java"));
+        assertFalse(include.test("target"));
+        assertFalse(include.test("target/classes/App.class"));
+        assertTrue(include.test("target/app.jar"));
+        assertFalse(include.test("debug.log"));
+        assertFalse(include.test("src/deep/debug.log"));
+        assertFalse(include.test("secrets/key.pem"));
+        assertTrue(include.test("Dockerfile"));
+    }
+
+    private static String trace(byte[] statusResponse) {
+        return "{\"id\":\"moby.buildkit.trace\",\"aux\":\"" + Base64.getEncoder().encodeToString(statusResponse) + "\"}\n";
+    }
+
+    private static byte[] timestamp(long seconds, long nanos) {
+        return concat(field(1, seconds), field(2, nanos));
+    }
+
+    private static byte[] field(int number, String value) {
+        return field(number, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] field(int number, byte[] value) {
+        return concat(varint(number << 3 | 2), varint(value.length), value);
+    }
+
+    private static byte[] field(int number, long value) {
+        return concat(varint(number << 3), varint(value));
+    }
+
+    private static byte[] varint(long value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
@@ -1,35 +1,196 @@
 package io.kasion.control_plane;
 
 import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class DockerfileGeneratorTest {
 
     private final DockerfileGenerator generator = new DockerfileGenerator();
 
+    /**
+     * Asserts each snippet appears, and after the previous one.
+     */
+    private static void assertInOrder(String dockerfile, String... snippets) {
+        int from = 0;
+        for (String snippet : snippets) {
+            int at = dockerfile.indexOf(snippet, from);
+            assertTrue(at >= 0, "Expected '" + snippet + "' after position " + from + " in:\n" + dockerfile);
+            from = at + snippet.length();
+        }
+    }
+
     @Test
-    void testStandardBuild_WithWrapper() {
-        String dockerfile = generator.generateStandardBuild("21", true);
-        System.out.println("Generated Dockerfile (Wrapper):\n" + dockerfile);
+    void testStandardBuild_Maven() {
+        String dockerfile = generator.generateStandardBuild("21", BuildEngine.BuildTool.MAVEN);
+        System.out.println("Generated Dockerfile (Maven):\n" + dockerfile);
 
         assertTrue(dockerfile.contains("FROM eclipse-temurin:21-jdk-jammy as builder"),
                 "Should use JDK base image for wrapper build");
-        assertTrue(dockerfile.contains("COPY . ."),
-                "Should copy all files for wrapper build");
-        assertTrue(dockerfile.contains("./mvnw clean package"),
-                "Should execute mvnw");
         assertTrue(dockerfile.contains("chmod +x mvnw"),
                 "Should make mvnw executable");
+        assertFalse(dockerfile.contains("cp target/*.jar"),
+                "A build can produce more than one jar (-plain, -sources)");
+    }
+
+    @Test
+    void testStandardBuild_Maven_DependenciesBeforeSources() {
+        String dockerfile = generator.generateStandardBuild("21", BuildEngine.BuildTool.MAVEN);
+
+        assertTrue(dockerfile.startsWith("# syntax=docker/dockerfile:1"),
+                "Cache mounts need the BuildKit Dockerfile frontend");
+        assertInOrder(dockerfile,
+                "COPY mvnw pom.xml ./",
+                "COPY .mvn .mvn",
+                "RUN --mount=type=cache,target=/root/.m2 ./mvnw dependency:go-offline",
+                "COPY . .",
+                "RUN --mount=type=cache,target=/root/.m2 ./mvnw package",
+                "find . -path '*/target/*.jar' ! -name '*-plain.jar'",
+                "grep -q '^BOOT-INF/'",
+                "COPY --from=builder /app/application.jar app.jar");
+        assertFalse(dockerfile.contains("COPY src src"),
+                "Module poms and sources outside src/ are build inputs too");
+    }
+
+    @Test
+    void testStandardBuild_Gradle_DependenciesBeforeSources() {
+        String dockerfile = generator.generateStandardBuild("17", BuildEngine.BuildTool.GRADLE);
+        System.out.println("Generated Dockerfile (Gradle):\n" + dockerfile);
+
+        assertTrue(dockerfile.contains("FROM gradle:8-jdk17 as builder"),
+                "Should use Gradle base image for the requested Java version");
+        assertInOrder(dockerfile,
+                "COPY gradlew settings.gradle* build.gradle* gradle.properties* ./",
+                "COPY gradle gradle",
+                "RUN --mount=type=cache,target=/root/.gradle ./gradlew dependencies",
+                "COPY . .",
+                "RUN --mount=type=cache,target=/root/.gradle ./gradlew bootJar",
+                "find . -path '*/build/libs/*.jar' ! -name '*-plain.jar'",
+                "COPY --from=builder /app/application.jar app.jar");
+        assertFalse(dockerfile.contains("COPY src src"),
+                "buildSrc/ and subprojects are build inputs too");
+        assertTrue(dockerfile.contains("./gradlew dependencies --no-daemon -q \\\n    || echo"),
+                "A build that can't configure without its sources must still get to the build step");
+    }
+
+    @Test
+    void testAppCdsBuild_TrainsArchiveAndStartsFromIt() {
+        String dockerfile = generator.generateStandardBuild("21", BuildEngine.BuildTool.MAVEN, DockerfileGenerator.StartupMode.APPCDS);
+
+        assertInOrder(dockerfile,
+                "./mvnw package -B -DskipTests",
+                "jar -xf ../app.jar",
+                "jar -cf /app/classes.jar -C BOOT-INF/classes .",
+                "-cp /app/classes.jar:",
+                "BOOT-INF/classpath.idx",
+                "Start-Class",
+                "FROM eclipse-temurin:21-jre-jammy",
+                "COPY --from=extractor /app/exploded/BOOT-INF/lib/ /app/lib/",
+                "COPY --from=extractor /app/classes.jar /app/classes.jar",
+                "RUN java -XX:ArchiveClassesAtExit=/app/application.jsa -Dspring.context.exit=onRefresh @/app/launch.args",
+                "USER kasion",
+                "ENTRYPOINT [\"java\", \"-XX:SharedArchiveFile=/app/application.jsa\", \"-Xshare:auto\"");
+        assertTrue(dockerfile.contains("\"@/app/launch.args\"]"), "Should launch from the plain class path");
+        assertFalse(dockerfile.contains("JarLauncher"), "CDS can't archive classes from nested jars");
+        assertFalse(dockerfile.contains("/app/classes/"), "CDS won't dump with a non-empty directory on the class path");
+        assertFalse(dockerfile.contains("spring.aot.enabled"));
+    }
+
+    @Test
+    void testAotBuild_Maven_ProcessesAotAndEnablesIt() {
+        String dockerfile = generator.generateStandardBuild("21", BuildEngine.BuildTool.MAVEN, DockerfileGenerator.StartupMode.AOT);
+
+        assertInOrder(dockerfile,
+                "./mvnw compile spring-boot:process-aot package -B -DskipTests",
+                "-XX:ArchiveClassesAtExit=/app/application.jsa -Dspring.context.exit=onRefresh -Dspring.aot.enabled=true",
+                "\"-Dspring.aot.enabled=true\"",
+                "\"@/app/launch.args\"]");
     }
 
     @Test
-    void testStandardBuild_WithoutWrapper() {
-        String dockerfile = generator.generateStandardBuild("21", false);
-        System.out.println("Generated Dockerfile (No Wrapper):\n" + dockerfile);
+    void testAotBuild_Gradle_AppliesAotPluginWithoutEditingTheBuild() {
+        String dockerfile = generator.generateStandardBuild("17", BuildEngine.BuildTool.GRADLE, DockerfileGenerator.StartupMode.AOT);
 
-        assertTrue(dockerfile.contains("FROM maven:3.9-eclipse-temurin-21 as builder"),
-                "Should use Maven base image for fallback build");
-        assertTrue(dockerfile.contains("RUN mvn clean package"),
-                "Should execute system mvn");
+        assertInOrder(dockerfile,
+                "apply plugin: \"org.springframework.boot.aot\"",
+                "./gradlew bootJar --no-daemon --init-script /tmp/aot.gradle",
+                "FROM eclipse-temurin:17-jre-jammy",
+                "\"-Dspring.aot.enabled=true\"");
+    }
+
+    @Test
+    void testCracBuild_CheckpointsAtBuildTimeAndRestores() {
+        String dockerfile = generator.generateStandardBuild("21", BuildEngine.BuildTool.MAVEN, DockerfileGenerator.StartupMode.CRAC);
+
+        assertTrue(dockerfile.startsWith("# syntax=docker/dockerfile:1-labs\n"),
+                "RUN --security=insecure needs the labs frontend");
+        assertInOrder(dockerfile,
+                "FROM azul/zulu-openjdk:21-jdk-crac",
+                "RUN --security=insecure java -XX:CRaCCheckpointTo=/app/crac -Dspring.context.checkpoint=onRefresh @/app/launch.args",
+                "-XX:CRaCRestoreFrom=/app/crac",
+                "else exec java");
+    }
+
+    @Test
+    void testNativeBuild_Maven_UsesGraalVmForTheJavaVersion() {
+        String dockerfile = generator.generateNativeBuild("17", BuildEngine.BuildTool.MAVEN, "orders");
+
+        assertInOrder(dockerfile,
+                "FROM ghcr.io/graalvm/native-image-community:17 AS builder",
+                "dependency:go-offline",
+                "COPY . .",
+                "./mvnw -Pnative native:compile",
+                "cp target/orders /app/application",
+                "FROM ubuntu:jammy",
+                "ENTRYPOINT [\"/app/application\"]");
+        assertFalse(dockerfile.contains("javaagent"), "A native executable can't load Java agents");
+    }
+
+    @Test
+    void testNativeBuild_Gradle_AppliesNativePluginWithoutEditingTheBuild() {
+        String dockerfile = generator.generateNativeBuild("21", BuildEngine.BuildTool.GRADLE, "orders");
+
+        assertInOrder(dockerfile,
+                "FROM ghcr.io/graalvm/native-image-community:21 AS builder",
+                "apply plugin: org.graalvm.buildtools.gradle.NativeImagePlugin",
+                "./gradlew nativeCompile --no-daemon --init-script /tmp/native.gradle",
+                "cp build/native/nativeCompile/orders /app/application");
+    }
+
+    @Test
+    void testNativeArtifactName() {
+        String pom = """
+                <project>
+                  <!-- <artifactId>commented-out</artifactId> -->
+                  <parent>
+                    <groupId>org.springframework.boot</groupId>
+                    <artifactId>spring-boot-starter-parent</artifactId>
+                  </parent>
+                  <groupId>com.example</groupId>
+                  <artifactId> orders </artifactId>
+                  <dependencies>
+                    <dependency><artifactId>spring-boot-starter-web</artifactId></dependency>
+                  </dependencies>
+                </project>
+                """;
+        assertEquals("orders", DockerfileGenerator.nativeArtifactName(BuildEngine.BuildTool.MAVEN, pom));
+        assertNull(DockerfileGenerator.nativeArtifactName(BuildEngine.BuildTool.MAVEN, "<project><parent><artifactId>p</artifactId></parent></project>"));
+        assertEquals("billing", DockerfileGenerator.nativeArtifactName(BuildEngine.BuildTool.GRADLE, "rootProject.name = 'billing'\n"));
+        assertEquals("billing", DockerfileGenerator.nativeArtifactName(BuildEngine.BuildTool.GRADLE, "rootProject.name = \"billing\"\n"));
+        // Without a settings script Gradle names the project after the builder's working directory.
+        assertEquals("app", DockerfileGenerator.nativeArtifactName(BuildEngine.BuildTool.GRADLE, null));
+    }
+
+    @Test
+    void testJavaFeatureVersion_AcceptsOldAndPreReleaseSchemes() {
+        assertEquals(21, DockerfileGenerator.javaFeatureVersion("21"));
+        assertEquals(8, DockerfileGenerator.javaFeatureVersion("1.8"));
+        assertEquals(21, DockerfileGenerator.javaFeatureVersion("21-ea"));
+        assertEquals(17, DockerfileGenerator.javaFeatureVersion(" 17.0.2 "));
+        assertThrows(NumberFormatException.class, () -> DockerfileGenerator.javaFeatureVersion("latest"));
+        assertThrows(NumberFormatException.class, () -> DockerfileGenerator.javaFeatureVersion(null));
     }
-}
\ No newline at end of file
+}
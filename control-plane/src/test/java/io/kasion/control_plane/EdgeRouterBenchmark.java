@@ -0,0 +1,165 @@
+package io.kasion.control_plane;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and latency of the embedded edge router against calling the app directly, and how many
+ * requests fail while the route is swapped back and forth between two upstreams under load.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=EdgeRouterBenchmark [-Dkasion.bench.clients=64 -Dkasion.bench.seconds=10]
+ */
+@Tag("benchmark")
+class EdgeRouterBenchmark {
+
+    private static final int CLIENTS = Integer.getInteger("kasion.bench.clients", 64);
+    private static final int SECONDS = Integer.getInteger("kasion.bench.seconds", 10);
+    private static final int CUTOVERS = Integer.getInteger("kasion.bench.cutovers", 100);
+
+    record Result(String scenario, long requests, long failed, double requestsPerSecond,
+                  double p50Millis, double p99Millis, int cutovers) {}
+
+    @Test
+    void proxyThroughputAndCutoverDrops() throws Exception {
+        HttpServer blue = upstream("blue");
+        HttpServer green = upstream("green");
+        EdgeRouter router = new EdgeRouter(null, null, EdgeRouter.Mode.EMBEDDED, 0, 30, 60, Path.of("nginx"));
+        router.start();
+        String blueUrl = "http://127.0.0.1:" + blue.getAddress().getPort();
+        String greenUrl = "http://127.0.0.1:" + green.getAddress().getPort();
+        URI viaRouter = URI.create("http://127.0.0.1:" + router.port() + "/");
+        router.swap("bench", blueUrl);
+
+        try {
+            load(URI.create(blueUrl + "/"), 2, null); // warm-up
+            load(viaRouter, 2, null);
+
+            List<Result> results = List.of(
+                    load(URI.create(blueUrl + "/"), SECONDS, null).named("direct"),
+                    load(viaRouter, SECONDS, null).named("edge-router"),
+                    load(viaRouter, SECONDS, () -> {
+                        // Swap evenly over the run; each swap drains the previous upstream before returning.
+                        for (int i = 0; i < CUTOVERS; i++) {
+                            Thread.sleep(SECONDS * 1000L / CUTOVERS);
+                            router.swap("bench", i % 2 == 0 ? greenUrl : blueUrl);
+                        }
+                        return CUTOVERS;
+                    }).named("edge-router-cutovers"));
+
+            StringBuilder json = new StringBuilder("[\n");
+            for (Result r : results) {
+                System.out.printf(Locale.ROOT, "🌐 %s: %d requests, %d failed, %.0f req/s, p50=%.2fms p99=%.2fms, cutovers=%d%n",
+                        r.scenario(), r.requests(), r.failed(), r.requestsPerSecond(), r.p50Millis(), r.p99Millis(), r.cutovers());
+                json.append(String.format(Locale.ROOT,
+                        "  {\"scenario\":\"%s\",\"requests\":%d,\"failed\":%d,\"requestsPerSecond\":%.1f,\"p50Millis\":%.3f,\"p99Millis\":%.3f,\"cutovers\":%d}%s%n",
+                        r.scenario(), r.requests(), r.failed(), r.requestsPerSecond(), r.p50Millis(), r.p99Millis(), r.cutovers(),
+                        r == results.get(results.size() - 1) ? "" : ","));
+            }
+            json.append("]\n");
+            Path out = Path.of("target", "benchmarks", "edge-router.json");
+            Files.createDirectories(out.getParent());
+            Files.writeString(out, json);
+        } finally {
+            router.shutdown();
+            blue.stop(0);
+            green.stop(0);
+        }
+    }
+
+    private interface Cutovers {
+        int run() throws Exception;
+    }
+
+    private record Run(long requests, long failed, double seconds, double[] latenciesMillis, int cutovers) {
+        Result named(String scenario) {
+            Arrays.sort(latenciesMillis);
+            return new Result(scenario, requests, failed, requests / seconds,
+                    percentile(0.50), percentile(0.99), cutovers);
+        }
+
+        private double percentile(double p) {
+            return latenciesMillis.length == 0 ? 0 : latenciesMillis[(int) Math.min(latenciesMillis.length - 1, p * latenciesMillis.length)];
+        }
+    }
+
+    /**
+     * {@link #CLIENTS} closed-loop clients, each with its own keep-alive connection, for {@code seconds}.
+     */
+    private Run load(URI uri, int seconds, Cutovers cutovers) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong failed = new AtomicLong();
+        List<Future<List<Double>>> clients = new ArrayList<>();
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CLIENTS; i++) {
+                clients.add(executor.submit(() -> {
+                    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+                    HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+                    List<Double> latencies = new ArrayList<>();
+                    while (running.get()) {
+                        long sent = System.nanoTime();
+                        try {
+                            if (client.send(request, HttpResponse.BodyHandlers.ofString()).statusCode() != 200) {
+                                failed.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                        latencies.add((System.nanoTime() - sent) / 1_000_000.0);
+                    }
+                    return latencies;
+                }));
+            }
+            int swaps = 0;
+            if (cutovers != null) {
+                swaps = cutovers.run();
+            } else {
+                Thread.sleep(seconds * 1000L);
+            }
+            running.set(false);
+
+            List<Double> all = new ArrayList<>();
+            for (Future<List<Double>> client : clients) {
+                all.addAll(client.get());
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            return new Run(all.size(), failed.get(), elapsed, all.stream().mapToDouble(Double::doubleValue).toArray(), swaps);
+        }
+    }
+
+    private static HttpServer upstream(String name) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        byte[] body = ("{\"color\":\"" + name + "\"}").getBytes(StandardCharsets.UTF_8);
+        server.createContext("/", exchange -> {
+            try (exchange) {
+                exchange.getRequestBody().readAllBytes();
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,165 @@
+package io.kasion.control_plane;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EdgeRouterTest {
+
+    private final List<HttpServer> upstreams = new ArrayList<>();
+    private final ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final EdgeRouter router = new EdgeRouter(null, null, EdgeRouter.Mode.EMBEDDED, 0, 5, 10, Path.of("nginx"));
+
+    @AfterEach
+    void tearDown() {
+        router.shutdown();
+        upstreams.forEach(server -> server.stop(0));
+        clients.shutdownNow();
+    }
+
+    @Test
+    void forwardsMethodPathQueryAndBody() throws Exception {
+        router.start();
+        router.swap("shop", upstream("blue", 0));
+
+        HttpResponse<String> response = send(HttpRequest.newBuilder(uri("/orders?id=7"))
+                .POST(HttpRequest.BodyPublishers.ofString("hello")));
+
+        assertEquals(200, response.statusCode());
+        assertEquals("blue POST /orders?id=7 hello 127.0.0.1:" + router.port(), response.body());
+    }
+
+    @Test
+    void unknownHostWithoutDefaultIsUnavailable() throws Exception {
+        router.start();
+
+        assertEquals(503, send(HttpRequest.newBuilder(uri("/")).GET()).statusCode());
+    }
+
+    @Test
+    void swapWaitsForRequestsOnTheOldUpstream() throws Exception {
+        router.start();
+        router.swap("shop", upstream("blue", 600));
+        Future<HttpResponse<String>> slow = clients.submit(() -> send(HttpRequest.newBuilder(uri("/")).GET()));
+        while (router.routes().get(0).inFlight() == 0) {
+            Thread.sleep(5);
+        }
+
+        long start = System.nanoTime();
+        boolean drained = router.swap("shop", upstream("green", 0));
+        long waitedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(drained);
+        assertTrue(waitedMillis >= 300, "swap returned after " + waitedMillis + "ms");
+        assertTrue(slow.get().body().startsWith("blue"));
+        assertTrue(send(HttpRequest.newBuilder(uri("/")).GET()).body().startsWith("green"));
+    }
+
+    @Test
+    void busyReplicaGetsNoNewRequests() throws Exception {
+        router.start();
+        router.swap("shop", List.of(upstream("slow", 800), upstream("fast", 0)));
+        // Both idle: the first request goes to the first replica and keeps it busy.
+        Future<HttpResponse<String>> slow = clients.submit(() -> send(HttpRequest.newBuilder(uri("/")).GET()));
+        while (router.routes().get(0).upstreams().get(0).inFlight() == 0) {
+            Thread.sleep(5);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(send(HttpRequest.newBuilder(uri("/")).GET()).body().startsWith("fast"));
+        }
+        assertTrue(slow.get().body().startsWith("slow"));
+        assertEquals(10, router.routes().get(0).upstreams().get(1).requests());
+    }
+
+    @Test
+    void noRequestFailsAcrossRepeatedSwaps() throws Exception {
+        router.start();
+        String blue = upstream("blue", 2);
+        String green = upstream("green", 2);
+        router.swap("shop", blue);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger served = new AtomicInteger();
+        ConcurrentHashMap<Integer, AtomicInteger> failures = new ConcurrentHashMap<>();
+        List<Future<?>> load = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            load.add(clients.submit(() -> {
+                while (running.get()) {
+                    int status = send(HttpRequest.newBuilder(uri("/")).GET()).statusCode();
+                    if (status == 200) {
+                        served.incrementAndGet();
+                    } else {
+                        failures.computeIfAbsent(status, s -> new AtomicInteger()).incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(20);
+            assertTrue(router.swap("shop", i % 2 == 0 ? green : blue));
+        }
+        running.set(false);
+        for (Future<?> future : load) {
+            future.get();
+        }
+
+        assertTrue(failures.isEmpty(), "failed responses by status: " + failures);
+        assertTrue(served.get() > 100, "only " + served.get() + " requests served");
+    }
+
+    /**
+     * An upstream that answers "{name} {method} {path?query} {body} {host}" after {@code delayMillis}.
+     */
+    private String upstream(String name, long delayMillis) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (exchange) {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                byte[] reply = (name + " " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + " " + body
+                        + " " + exchange.getRequestHeaders().getFirst("X-Forwarded-Host")).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, reply.length);
+                exchange.getResponseBody().write(reply);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        upstreams.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://127.0.0.1:" + router.port() + path);
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
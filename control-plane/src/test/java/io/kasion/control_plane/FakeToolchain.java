@@ -0,0 +1,358 @@
+package io.kasion.control_plane;
+
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Stand-ins for the {@code docker} and {@code docker-compose} CLIs, plus one stub actuator that answers
+ * on every port a fake container could be given. Nothing real is built or started, so a control plane
+ * pointed at {@link #docker()} and {@link #dockerCompose()} can be load-tested without Docker.
+ *
+ * The scripts keep their state in files: {@code images/<image>} once built, {@code containers/<name>}
+ * (holding its port) while it runs and {@code ports/<port>} (holding when it turns ready). The stub
+ * actuator reports DOWN until that time and UP after it. Latency, output volume and failure rates come
+ * from {@link Settings}, written to {@code bin/fake.env} for the scripts to source.
+ */
+final class FakeToolchain implements AutoCloseable {
+
+    /**
+     * Seconds are a base plus a uniformly random jitter. Failure rates are between 0 and 1.
+     *
+     * @param buildFailureRate   share of image builds that fail
+     * @param runFailureRate     share of {@code docker run}s that fail outright
+     * @param crashRate          share of started containers that exit before they are ready
+     * @param reuseImages        report images built earlier as present, so redeploys skip the build
+     */
+    record Settings(double buildSeconds, double buildJitterSeconds, int buildOutputLines, double buildFailureRate,
+                    double runSeconds, double runFailureRate, double crashRate,
+                    long startupMillis, long rssKilobytes, boolean reuseImages) {
+
+        /**
+         * Reads {@code -Dkasion.bench.fake.*}, with defaults that look like a small Spring Boot app.
+         */
+        static Settings fromSystemProperties() {
+            return new Settings(
+                    Double.parseDouble(System.getProperty("kasion.bench.fake.build-seconds", "2")),
+                    Double.parseDouble(System.getProperty("kasion.bench.fake.build-jitter-seconds", "1")),
+                    Integer.getInteger("kasion.bench.fake.build-output-lines", 2_000),
+                    Double.parseDouble(System.getProperty("kasion.bench.fake.build-failure-rate", "0.02")),
+                    Double.parseDouble(System.getProperty("kasion.bench.fake.run-seconds", "0.2")),
+                    Double.parseDouble(System.getProperty("kasion.bench.fake.run-failure-rate", "0.01")),
+                    Double.parseDouble(System.getProperty("kasion.bench.fake.crash-rate", "0.01")),
+                    Long.getLong("kasion.bench.fake.startup-millis", 3_000),
+                    Long.getLong("kasion.bench.fake.rss-kilobytes", 250_000),
+                    Boolean.getBoolean("kasion.bench.fake.reuse-images"));
+        }
+    }
+
+    private static final String DOCKER = """
+            #!/usr/bin/env bash
+            # docker stand-in, see FakeToolchain. Settings are in fake.env next to this script.
+            DIR="$(cd "$(dirname "$0")" && pwd)"
+            . "$DIR/fake.env"
+
+            chance() { [ $((RANDOM % 10000)) -lt "$1" ]; }
+            pause() { sleep "$(awk -v b="$1" -v j="$2" -v r="$RANDOM" 'BEGIN { printf "%.3f", b + j * r / 32767 }')"; }
+            key() { echo "$1" | tr '/:' '__'; }
+
+            case "$1" in
+              build|buildx)
+                image=""
+                while [ $# -gt 0 ]; do [ "$1" = "-t" ] && image="$2"; shift; done
+                yes "#7 [builder 5/6] RUN ./mvnw package -B -DskipTests: Downloaded from central: https://repo.maven.apache.org/maven2/org/example/lib/1.0/lib-1.0.jar (48 kB at 1.2 MB/s)" | head -n "$BUILD_OUTPUT_LINES"
+                pause "$BUILD_SECONDS" "$BUILD_JITTER_SECONDS"
+                if chance "$BUILD_FAILURES_PER_10000"; then
+                  echo "ERROR: failed to solve: process \\"/bin/sh -c ./mvnw package\\" did not complete successfully: exit code: 1"
+                  exit 1
+                fi
+                touch "$STATE/images/$(key "$image")"
+                ;;
+              image)
+                # image inspect --format <format> <image>
+                format="$4"; image="$5"
+                if [ ! -f "$STATE/images/$(key "$image")" ] || { [ "$format" = "{{.Id}}" ] && [ "$REUSE_IMAGES" != 1 ]; }; then
+                  echo "Error: No such image: $image"
+                  exit 1
+                fi
+                if [ "$format" = "{{.Size}}" ]; then echo 187000000; else echo "sha256:$(key "$image")"; fi
+                ;;
+              run)
+                name=""; port=""
+                while [ $# -gt 0 ]; do
+                  case "$1" in
+                    --name) name="$2"; shift ;;
+                    -p) port="${2%%:*}"; shift ;;
+                  esac
+                  shift
+                done
+                pause "$RUN_SECONDS" 0
+                if chance "$RUN_FAILURES_PER_10000"; then
+                  echo "docker: Error response from daemon: driver failed programming external connectivity on endpoint $name"
+                  exit 125
+                fi
+                echo "$port" > "$STATE/containers/$name"
+                if chance "$CRASHES_PER_10000"; then
+                  touch "$STATE/containers/$name.crashed"
+                else
+                  echo $(( $(date +%s%3N) + STARTUP_MILLIS )) > "$STATE/ports/$port"
+                fi
+                echo "$(key "$name")0123456789abcdef"
+                ;;
+              rm)
+                name="${@: -1}"
+                port="$(cat "$STATE/containers/$name" 2>/dev/null)"
+                rm -f "$STATE/containers/$name" "$STATE/containers/$name.crashed"
+                [ -n "$port" ] && rm -f "$STATE/ports/$port"
+                echo "$name"
+                ;;
+              inspect)
+                name="${@: -1}"
+                if [ ! -f "$STATE/containers/$name" ]; then echo "Error: No such object: $name"; exit 1; fi
+                if [ -f "$STATE/containers/$name.crashed" ]; then echo "exited 1 "; else echo "running 0 "; fi
+                ;;
+              events)
+                name=""
+                for arg in "$@"; do case "$arg" in container=*) name="${arg#container=}" ;; esac; done
+                while [ ! -f "$STATE/containers/$name.crashed" ]; do sleep 1; done
+                echo die
+                ;;
+              logs)
+                echo "Exception in thread \\"main\\" java.lang.IllegalStateException: fake crash"
+                ;;
+              exec)
+                printf 'Name:\\tjava\\nVmRSS:\\t  %s kB\\n' "$RSS_KILOBYTES"
+                ;;
+            esac
+            """;
+
+    private final Path dir;
+    private final Path bin;
+    private final StubActuator actuator;
+
+    private FakeToolchain(Path dir, StubActuator actuator) {
+        this.dir = dir;
+        this.bin = dir.resolve("bin");
+        this.actuator = actuator;
+    }
+
+    /**
+     * Writes the scripts into a fresh directory and starts the stub actuator on every port of the range.
+     */
+    static FakeToolchain create(Settings settings, int firstPort, int lastPort) throws IOException {
+        Path dir = Files.createTempDirectory("kasion-fake-toolchain");
+        Path bin = Files.createDirectories(dir.resolve("bin"));
+        Path state = dir.resolve("state");
+        for (String sub : List.of("images", "containers", "ports")) {
+            Files.createDirectories(state.resolve(sub));
+        }
+
+        Files.writeString(bin.resolve("fake.env"), String.format(Locale.ROOT, """
+                STATE='%s'
+                BUILD_SECONDS=%.3f
+                BUILD_JITTER_SECONDS=%.3f
+                BUILD_OUTPUT_LINES=%d
+                BUILD_FAILURES_PER_10000=%d
+                RUN_SECONDS=%.3f
+                RUN_FAILURES_PER_10000=%d
+                CRASHES_PER_10000=%d
+                STARTUP_MILLIS=%d
+                RSS_KILOBYTES=%d
+                REUSE_IMAGES=%d
+                """, state, settings.buildSeconds(), settings.buildJitterSeconds(), settings.buildOutputLines(),
+                perTenThousand(settings.buildFailureRate()), settings.runSeconds(), perTenThousand(settings.runFailureRate()),
+                perTenThousand(settings.crashRate()), settings.startupMillis(), settings.rssKilobytes(), settings.reuseImages() ? 1 : 0));
+        Files.writeString(bin.resolve("docker"), DOCKER);
+        // Only used to reload nginx, which the embedded edge router never does.
+        Files.writeString(bin.resolve("docker-compose"), "#!/usr/bin/env bash\nexit 0\n");
+        bin.resolve("docker").toFile().setExecutable(true);
+        bin.resolve("docker-compose").toFile().setExecutable(true);
+
+        return new FakeToolchain(dir, new StubActuator(state.resolve("ports"), firstPort, lastPort));
+    }
+
+    private static int perTenThousand(double rate) {
+        return (int) Math.round(Math.max(0, Math.min(1, rate)) * 10_000);
+    }
+
+    Path docker() {
+        return bin.resolve("docker");
+    }
+
+    Path dockerCompose() {
+        return bin.resolve("docker-compose");
+    }
+
+    Path dir() {
+        return dir;
+    }
+
+    /**
+     * Ports of the range that something else was already listening on; a container leased one of them
+     * never becomes ready.
+     */
+    List<Integer> unavailablePorts() {
+        return actuator.unavailable;
+    }
+
+    @Override
+    public void close() throws IOException {
+        actuator.close();
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    /**
+     * {@code /actuator/health} on a range of ports, all served by one selector thread so the control
+     * plane's thread count stays what it would be in production. Each request gets its answer and the
+     * connection is closed.
+     */
+    static final class StubActuator implements AutoCloseable {
+        private final Path readyAt;
+        private final Selector selector;
+        private final Thread loop;
+        private final List<ServerSocketChannel> servers = new ArrayList<>();
+        final List<Integer> unavailable = new ArrayList<>();
+
+        StubActuator(Path readyAt, int firstPort, int lastPort) throws IOException {
+            this.readyAt = readyAt;
+            this.selector = Selector.open();
+            for (int port = firstPort; port <= lastPort; port++) {
+                ServerSocketChannel server = ServerSocketChannel.open();
+                try {
+                    server.bind(new InetSocketAddress(port));
+                } catch (IOException e) {
+                    server.close();
+                    unavailable.add(port);
+                    continue;
+                }
+                server.configureBlocking(false);
+                server.register(selector, SelectionKey.OP_ACCEPT, port);
+                servers.add(server);
+            }
+            this.loop = Thread.ofPlatform().name("kasion-stub-actuator").daemon().start(this::serve);
+        }
+
+        private void serve() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                } catch (IOException | ClosedSelectorException e) {
+                    return;
+                }
+                if (!selector.isOpen()) {
+                    return;
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+                            if (client != null) {
+                                client.configureBlocking(false);
+                                client.register(selector, SelectionKey.OP_READ, new Request((Integer) key.attachment()));
+                            }
+                        } else if (key.isReadable()) {
+                            read(key);
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        closeQuietly(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel client = (SocketChannel) key.channel();
+            Request request = (Request) key.attachment();
+            int read = client.read(request.buffer);
+            if (request.complete()) {
+                // A response this small fits in the socket's send buffer.
+                ByteBuffer response = ByteBuffer.wrap(respond(request.port, request.path()).getBytes(StandardCharsets.US_ASCII));
+                while (response.hasRemaining()) {
+                    if (client.write(response) == 0) {
+                        Thread.onSpinWait();
+                    }
+                }
+                client.close();
+            } else if (read < 0 || !request.buffer.hasRemaining()) {
+                client.close();
+            }
+        }
+
+        private static void closeQuietly(SelectionKey key) {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private String respond(int port, String path) {
+            if (!path.startsWith("/actuator/health")) {
+                return http(404, "{}");
+            }
+            try {
+                long ready = Long.parseLong(Files.readString(readyAt.resolve(String.valueOf(port))).trim());
+                return System.currentTimeMillis() >= ready ? http(200, "{\"status\":\"UP\"}") : http(503, "{\"status\":\"DOWN\"}");
+            } catch (IOException | NumberFormatException e) {
+                return http(503, "{\"status\":\"DOWN\"}"); // no container on this port (yet)
+            }
+        }
+
+        private static String http(int status, String body) {
+            return "HTTP/1.1 " + status + (status == 200 ? " OK" : " Error") + "\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + body.length() + "\r\n"
+                    + "Connection: close\r\n\r\n" + body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (ServerSocketChannel server : servers) {
+                server.close();
+            }
+            selector.close();
+            try {
+                loop.join(1_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static final class Request {
+            final int port;
+            final ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+            Request(int port) {
+                this.port = port;
+            }
+
+            boolean complete() {
+                String head = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+                return head.contains("\r\n\r\n");
+            }
+
+            String path() {
+                String head = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+                String[] requestLine = head.substring(0, head.indexOf("\r\n")).split(" ");
+                return requestLine.length > 1 ? requestLine[1] : "/";
+            }
+        }
+    }
+}
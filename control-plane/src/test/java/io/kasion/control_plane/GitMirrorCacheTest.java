@@ -0,0 +1,140 @@
+package io.kasion.control_plane;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GitMirrorCacheTest {
+
+    @TempDir
+    Path tmp;
+
+    private String commit(Git git, String file, String content) throws Exception {
+        Path path = git.getRepository().getWorkTree().toPath().resolve(file);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+        git.add().addFilepattern(".").call();
+        return git.commit().setMessage("update " + file)
+                .setAuthor("kasion", "kasion@example.com")
+                .setCommitter("kasion", "kasion@example.com")
+                .setSign(false)
+                .call().name();
+    }
+
+    private Git fixtureRepo(String name) throws Exception {
+        return Git.init().setDirectory(tmp.resolve(name).toFile()).setInitialBranch("main").call();
+    }
+
+    @Test
+    void checksOutHeadAndPicksUpNewCommitsIncrementally() throws Exception {
+        GitMirrorCache cache = new GitMirrorCache(tmp.resolve("cache"), Long.MAX_VALUE);
+        try (Git upstream = fixtureRepo("app")) {
+            String first = commit(upstream, "pom.xml", "<project/>");
+            Files.writeString(upstream.getRepository().getWorkTree().toPath().resolve("mvnw"), "#!/bin/sh\necho hi\n");
+            upstream.getRepository().getWorkTree().toPath().resolve("mvnw").toFile().setExecutable(true);
+            String second = commit(upstream, "src/main/java/App.java", "class App {}");
+            String url = tmp.resolve("app").toUri().toString();
+
+            Path ws1 = tmp.resolve("ws1");
+            assertEquals(second, cache.checkout(url, "HEAD", ws1));
+            assertEquals("class App {}", Files.readString(ws1.resolve("src/main/java/App.java")));
+            assertTrue(Files.isExecutable(ws1.resolve("mvnw")));
+            assertFalse(Files.exists(ws1.resolve(".git")));
+
+            String third = commit(upstream, "README.md", "hello");
+            Path ws2 = tmp.resolve("ws2");
+            assertEquals(third, cache.checkout(url, "main", ws2));
+            assertTrue(Files.exists(ws2.resolve("README.md")));
+            assertEquals(2, cache.fetchCount());
+
+            // Older commits stay reachable from the mirror.
+            Path ws3 = tmp.resolve("ws3");
+            cache.export(url, first, ws3);
+            assertTrue(Files.exists(ws3.resolve("pom.xml")));
+            assertFalse(Files.exists(ws3.resolve("README.md")));
+            assertTrue(cache.hasPath(url, second, "mvnw"));
+            assertFalse(cache.hasPath(url, first, "mvnw"));
+            assertEquals("<project/>", cache.readFile(url, first, "pom.xml"));
+            assertNull(cache.readFile(url, first, "mvnw"));
+            assertNull(cache.readFile(url, second, "src"));
+        }
+    }
+
+    @Test
+    void concurrentBuildsOfTheSameRepoShareFetches() throws Exception {
+        GitMirrorCache cache = new GitMirrorCache(tmp.resolve("cache"), Long.MAX_VALUE);
+        try (Git upstream = fixtureRepo("shared")) {
+            String head = commit(upstream, "pom.xml", "<project/>");
+            String url = tmp.resolve("shared").toUri().toString();
+
+            int builds = 8;
+            CountDownLatch go = new CountDownLatch(1);
+            ExecutorService pool = Executors.newFixedThreadPool(builds);
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < builds; i++) {
+                Path ws = tmp.resolve("ws-" + i);
+                results.add(pool.submit(() -> {
+                    go.await();
+                    return cache.checkout(url, "HEAD", ws);
+                }));
+            }
+            go.countDown();
+            for (Future<String> result : results) {
+                assertEquals(head, result.get());
+            }
+            pool.shutdown();
+
+            assertTrue(cache.fetchCount() < builds, "fetches: " + cache.fetchCount());
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedMirrorWhenOverBudget() throws Exception {
+        GitMirrorCache cache = new GitMirrorCache(tmp.resolve("cache"), 1);
+        try (Git a = fixtureRepo("a"); Git b = fixtureRepo("b")) {
+            commit(a, "a.txt", "a");
+            commit(b, "b.txt", "b");
+            String urlA = tmp.resolve("a").toUri().toString();
+            String urlB = tmp.resolve("b").toUri().toString();
+
+            cache.checkout(urlA, "HEAD", tmp.resolve("wsa"));
+            assertTrue(Files.exists(cache.mirrorDir(urlA)));
+
+            cache.checkout(urlB, "HEAD", tmp.resolve("wsb"));
+            assertFalse(Files.exists(cache.mirrorDir(urlA)), "older mirror should be evicted");
+            assertTrue(Files.exists(cache.mirrorDir(urlB)), "mirror in use is kept");
+        }
+    }
+
+    @Test
+    void refetchesAMirrorEvictedBetweenFetchAndExport() throws Exception {
+        GitMirrorCache cache = new GitMirrorCache(tmp.resolve("cache"), Long.MAX_VALUE);
+        try (Git upstream = fixtureRepo("evicted")) {
+            String head = commit(upstream, "pom.xml", "<project/>");
+            String url = tmp.resolve("evicted").toUri().toString();
+
+            assertEquals(head, cache.fetch(url, "HEAD"));
+            FileSystemUtils.deleteRecursively(cache.mirrorDir(url)); // what eviction does
+
+            Path ws = tmp.resolve("ws");
+            cache.export(url, head, ws);
+            assertEquals("<project/>", Files.readString(ws.resolve("pom.xml")));
+            assertEquals(2, cache.fetchCount());
+        }
+    }
+}
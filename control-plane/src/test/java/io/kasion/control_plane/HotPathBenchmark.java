@@ -0,0 +1,335 @@
+package io.kasion.control_plane;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Throughput of the control plane's hot paths, checked against a saved baseline:
+ * - {@link LogBroadcaster#broadcast} with 1 to 128 subscribers (lines/s);
+ * - {@link BuildEngine#runCommand} pumping a chatty process's output into the log pipeline (lines/s);
+ * - {@link DockerfileGenerator} for every startup mode and build tool (Dockerfiles/s);
+ * - {@link LogStreamWebSocketHandler}'s URI parsing (connections/s);
+ * - the dashboard's repository queries against an in-memory H2 with 10k and 100k deployments (queries/s).
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=HotPathBenchmark
+ *   [-Dkasion.bench.baseline=benchmarks/hot-paths-baseline.json] [-Dkasion.bench.tolerance=0.2]
+ *   [-Dkasion.bench.update-baseline=true]
+ *
+ * Results go to target/benchmarks/hot-paths.json (JMH format). A run with update-baseline writes the
+ * baseline; other runs fail when a score falls more than the tolerance below it, or when there is no
+ * baseline to compare with. Baselines are machine-specific, so keep one per machine that runs them;
+ * the committed benchmarks/hot-paths-baseline.json keeps the lower score of two runs on JDK 21 with one
+ * CPU, where runs of the same code differed by up to a third.
+ */
+@Tag("benchmark")
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotPathBenchmark {
+
+    private static final int PUMP_LINES = 20_000;
+    private static final String LINE = "#12 [builder 4/7] RUN ./mvnw dependency:go-offline -B: Downloaded from central: "
+            + "https://repo.maven.apache.org/maven2/org/example/artifact-1.0.jar (12 kB at 480 kB/s)";
+
+    @State(Scope.Benchmark)
+    public static class Broadcast {
+        @Param({"1", "16", "128"})
+        public int subscribers;
+
+        BuildExecutors executors;
+        LogBroadcaster broadcaster;
+        long offset;
+
+        @Setup
+        public void setUp() {
+            executors = new BuildExecutors(true, 0);
+            broadcaster = new LogBroadcaster(executors, ControlPlaneMetrics.noop(), 1024, LogBroadcaster.OverflowPolicy.DROP_OLDEST, 10_000);
+            for (int i = 0; i < subscribers; i++) {
+                broadcaster.register("bench", new LogPipelineBenchmark.NullSession("s" + i));
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            executors.shutdown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Pump {
+        Path dir;
+        PrintStream stdout;
+        BuildExecutors executors;
+        BuildLogStore store;
+        LogSearchIndex index;
+        LogPipelines pipelines;
+        BuildEngine engine;
+        String[] command;
+
+        @Setup
+        public void setUp() throws Exception {
+            // The pipeline echoes every line to System.out; keep that out of the benchmark's output.
+            stdout = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            dir = Files.createTempDirectory("kasion-hotpath-bench");
+            executors = new BuildExecutors(true, 0);
+            store = new BuildLogStore(dir.resolve("logs"), 4 << 20, Long.MAX_VALUE);
+            index = new LogSearchIndex(dir.resolve("index"), 1_000_000, executors, store);
+            LogBroadcaster broadcaster = new LogBroadcaster(executors, ControlPlaneMetrics.noop(), 1024, LogBroadcaster.OverflowPolicy.DROP_OLDEST, 10_000);
+            broadcaster.register("bench", new LogPipelineBenchmark.NullSession("s0"));
+            pipelines = new LogPipelines(store, broadcaster, index, executors, 1 << 20, 256, 50);
+            pipelines.open("bench");
+            engine = new BuildEngine(null, null, null, executors, null, pipelines, null, null, null, null, ControlPlaneMetrics.noop(), DockerEngine.cliOnly(), "docker", "docker-compose");
+            command = new String[]{"sh", "-c", "yes '" + LINE + "' | head -n " + PUMP_LINES};
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            pipelines.close("bench");
+            index.shutdown();
+            store.shutdown();
+            executors.shutdown();
+            System.setOut(stdout);
+            FileSystemUtils.deleteRecursively(dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Dockerfiles {
+        @Param({"JVM", "APPCDS", "AOT", "CRAC", "NATIVE"})
+        public DockerfileGenerator.StartupMode mode;
+
+        @Param({"MAVEN", "GRADLE"})
+        public BuildEngine.BuildTool tool;
+
+        final DockerfileGenerator generator = new DockerfileGenerator();
+    }
+
+    @State(Scope.Benchmark)
+    public static class SessionUris {
+        final URI live = URI.create("ws://localhost:8080/ws/logs/3f2b8c1e-5d4a-4e7b-9c0d-1a2b3c4d5e6f?offset=-1");
+        final URI replay = URI.create("ws://localhost:8080/ws/logs/3f2b8c1e-5d4a-4e7b-9c0d-1a2b3c4d5e6f?offset=18250");
+    }
+
+    /**
+     * Only what the repositories need: data source, JPA and the entities and repositories of this package.
+     * Deliberately not a @Configuration, so component scans and @SpringBootTest never pick it up.
+     */
+    @EnableAutoConfiguration
+    static class RepositoriesOnly {
+    }
+
+    @State(Scope.Benchmark)
+    public static class Dashboard {
+        private static final int PROJECTS = 200;
+        private static final int PAGE = 50;
+
+        @Param({"10000", "100000"})
+        public int deployments;
+
+        ConfigurableApplicationContext context;
+        DeploymentRepository repository;
+        DeploymentSummary deepCursor;
+
+        @Setup
+        public void setUp() {
+            // Command-line arguments, so they win over application.properties and its file database.
+            context = new SpringApplicationBuilder(RepositoriesOnly.class)
+                    .web(WebApplicationType.NONE)
+                    .run(
+                            "--spring.datasource.url=jdbc:h2:mem:hotpaths;DB_CLOSE_DELAY=-1",
+                            "--spring.jpa.hibernate.ddl-auto=create-drop",
+                            "--spring.jpa.show-sql=false",
+                            "--spring.docker.compose.enabled=false",
+                            "--spring.devtools.restart.enabled=false",
+                            "--spring.main.banner-mode=off",
+                            "--logging.level.root=WARN");
+            repository = context.getBean(DeploymentRepository.class);
+
+            // Same shape as DashboardQueryBenchmark: one second apart, spread over the projects, every tenth LIVE.
+            JdbcTemplate jdbc = context.getBean(JdbcTemplate.class);
+            jdbc.update("insert into projects (id, name, owner_id, build_status, has_database, active_port, current_color, java_version) "
+                    + "select 'p' || x, 'app-' || x, 'bench', 'IDLE', false, 8081, 'blue', '21' from system_range(1, ?)", PROJECTS);
+            jdbc.update("insert into deployments (id, project_id, status, commit_hash, created_at) "
+                    + "select random_uuid(), 'p' || (mod(x, ?) + 1), case when mod(x, 10) = 0 then 'LIVE' else 'FAILED' end, "
+                    + "'0123abcd', timestamp '2024-01-01 00:00:00' + x * interval '1' second "
+                    + "from system_range(1, ?)", PROJECTS, deployments);
+            jdbc.execute("analyze");
+
+            // The page 90% of the way back.
+            int deepPage = deployments / PAGE * 9 / 10;
+            deepCursor = repository.findSummaries(PageRequest.of(deepPage - 1, PAGE)).getContent().get(PAGE - 1);
+        }
+
+        @TearDown
+        public void tearDown() {
+            context.close();
+        }
+    }
+
+    @Benchmark
+    public void broadcast(Broadcast state) {
+        state.broadcaster.broadcast("bench", state.offset++, LINE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PUMP_LINES)
+    public void runCommandPump(Pump state) throws Exception {
+        state.engine.runCommand(new File("."), "bench", state.command);
+    }
+
+    @Benchmark
+    public String dockerfile(Dockerfiles state) {
+        return state.mode == DockerfileGenerator.StartupMode.NATIVE
+                ? state.generator.generateNativeBuild("21", state.tool, "app")
+                : state.generator.generateStandardBuild("21", state.tool, state.mode);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public long sessionUriParsing(SessionUris state) {
+        return LogStreamWebSocketHandler.deploymentIdOf(state.live).length() + LogStreamWebSocketHandler.startOffsetOf(state.live)
+                + LogStreamWebSocketHandler.deploymentIdOf(state.replay).length() + LogStreamWebSocketHandler.startOffsetOf(state.replay);
+    }
+
+    @Benchmark
+    public long dashboardFirstPage(Dashboard state) {
+        return state.repository.findNewestSummaries(PageRequest.of(0, Dashboard.PAGE)).size()
+                + state.repository.countDeployedProjects() + state.repository.count();
+    }
+
+    @Benchmark
+    public int dashboardKeysetDeep(Dashboard state) {
+        return state.repository.findSummariesBefore(state.deepCursor.createdAt(), state.deepCursor.id(),
+                PageRequest.of(0, Dashboard.PAGE)).size();
+    }
+
+    @Benchmark
+    public int dashboardCurrentLive(Dashboard state) {
+        return state.repository.findCurrentLive().size();
+    }
+
+    @Test
+    void run() throws Exception {
+        Path results = Path.of("target", "benchmarks", "hot-paths.json");
+        Files.createDirectories(results.getParent());
+        Collection<RunResult> runs = new Runner(new OptionsBuilder()
+                .include(HotPathBenchmark.class.getName() + "\\.")
+                .resultFormat(ResultFormatType.JSON)
+                .result(results.toString())
+                .build()).run();
+        System.out.println("📈 [Benchmark] Results written to " + results.toAbsolutePath());
+
+        Map<String, Double> scores = new TreeMap<>();
+        for (RunResult run : runs) {
+            scores.put(nameOf(run), run.getPrimaryResult().getScore());
+        }
+
+        Path baseline = Path.of(System.getProperty("kasion.bench.baseline", "benchmarks/hot-paths-baseline.json"));
+        if (Boolean.getBoolean("kasion.bench.update-baseline")) {
+            writeScores(baseline, scores);
+            System.out.println("📌 [Benchmark] Baseline written to " + baseline.toAbsolutePath());
+            return;
+        }
+        assertTrue(Files.exists(baseline), "No baseline at " + baseline.toAbsolutePath()
+                + "; record one on this machine with -Dkasion.bench.update-baseline=true");
+
+        double tolerance = Double.parseDouble(System.getProperty("kasion.bench.tolerance", "0.2"));
+        Map<String, Double> expected = readScores(baseline);
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Double> score : scores.entrySet()) {
+            Double before = expected.get(score.getKey());
+            if (before == null) {
+                continue; // new benchmark; it gets a baseline with the next update
+            }
+            double change = score.getValue() / before - 1;
+            String line = String.format(Locale.ROOT, "%s: %.1f ops/s (baseline %.1f, %+.1f%%)", score.getKey(), score.getValue(), before, change * 100);
+            System.out.println((change < -tolerance ? "🐢 " : "✅ ") + line);
+            if (change < -tolerance) {
+                regressions.add(line);
+            }
+        }
+        assertTrue(regressions.isEmpty(), "Slower than the baseline by more than " + Math.round(tolerance * 100) + "%:\n"
+                + String.join("\n", regressions));
+    }
+
+    /**
+     * The benchmark method and its parameters, e.g. {@code broadcast subscribers=16}.
+     */
+    private static String nameOf(RunResult run) {
+        String benchmark = run.getParams().getBenchmark();
+        StringBuilder name = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.') + 1));
+        for (String key : run.getParams().getParamsKeys()) {
+            name.append(' ').append(key).append('=').append(run.getParams().getParam(key));
+        }
+        return name.toString();
+    }
+
+    private static void writeScores(Path file, Map<String, Double> scores) throws Exception {
+        StringBuilder json = new StringBuilder("{\n");
+        int i = 0;
+        for (Map.Entry<String, Double> score : scores.entrySet()) {
+            json.append(String.format(Locale.ROOT, "  \"%s\": %.3f%s%n", score.getKey(), score.getValue(), ++i < scores.size() ? "," : ""));
+        }
+        json.append("}\n");
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Files.writeString(file, json);
+    }
+
+    private static Map<String, Double> readScores(Path file) throws Exception {
+        Map<String, Double> scores = new LinkedHashMap<>();
+        Matcher entry = Pattern.compile("\"([^\"]+)\"\\s*:\\s*([-+0-9.eE]+)").matcher(Files.readString(file));
+        while (entry.find()) {
+            scores.put(entry.group(1), Double.parseDouble(entry.group(2)));
+        }
+        return scores;
+    }
+}
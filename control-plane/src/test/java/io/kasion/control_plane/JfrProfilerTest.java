@@ -0,0 +1,65 @@
+package io.kasion.control_plane;
+
+import jdk.jfr.Recording;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JfrProfilerTest {
+
+    @TempDir
+    Path dir;
+
+    private static volatile long sink;
+
+    @Test
+    void summarisesCpuAllocationAndGc() throws Exception {
+        Path file = dir.resolve("app.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.ExecutionSample").withPeriod(Duration.ofMillis(10)).withStackTrace();
+            recording.enable("jdk.ObjectAllocationSample").withStackTrace();
+            recording.enable("jdk.GarbageCollection");
+            recording.start();
+            spin(800);
+            allocate();
+            System.gc();
+            recording.stop();
+            recording.dump(file);
+        }
+
+        JfrProfiler.Summary summary = JfrProfiler.summarize(file, 5);
+
+        assertTrue(summary.executionSamples() > 0);
+        assertEquals(JfrProfilerTest.class.getName() + ".spin", summary.hotMethods().get(0).method());
+        assertTrue(summary.hotMethods().size() <= 5);
+        assertTrue(summary.allocatedBytes() > 0);
+        assertTrue(summary.gcCount() >= 1);
+        assertTrue(summary.longestGcPauses().stream().anyMatch(p -> "System.gc()".equals(p.cause())));
+    }
+
+    private static void spin(long millis) {
+        long end = System.nanoTime() + millis * 1_000_000;
+        long x = 0;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 10_000; i++) {
+                x += i * 31L ^ x;
+            }
+        }
+        sink = x;
+    }
+
+    private static void allocate() {
+        List<byte[]> chunks = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            chunks.add(new byte[16 * 1024]);
+        }
+        sink = chunks.size();
+    }
+}
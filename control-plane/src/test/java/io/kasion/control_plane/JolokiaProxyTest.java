@@ -0,0 +1,107 @@
+package io.kasion.control_plane;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JolokiaProxyTest {
+
+    private final BuildExecutors executors = new BuildExecutors(false, 0);
+    private final List<List<String>> bulkRequests = new CopyOnWriteArrayList<>();
+    private HttpServer agent;
+
+    /**
+     * A Jolokia agent that answers every bulk read with the request's position in the batch.
+     */
+    @BeforeEach
+    void startAgent() throws Exception {
+        agent = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        agent.createContext("/jolokia/", exchange -> {
+            List<String> reads = JolokiaProxy.splitArray(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            bulkRequests.add(reads);
+            StringBuilder body = new StringBuilder("[");
+            for (int i = 0; i < reads.size(); i++) {
+                body.append(i > 0 ? "," : "").append("{\"request\":").append(reads.get(i))
+                        .append(",\"value\":").append(i).append(",\"status\":200}");
+            }
+            byte[] bytes = body.append(']').toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+        agent.start();
+    }
+
+    @AfterEach
+    void stopAgent() {
+        agent.stop(0);
+        executors.shutdown();
+    }
+
+    private JolokiaProxy proxy(long windowMillis, long cacheTtlMillis) {
+        return new JolokiaProxy(executors, ControlPlaneMetrics.noop(), agent.getAddress().getPort(),
+                windowMillis, 50, cacheTtlMillis, 2000);
+    }
+
+    @Test
+    void concurrentReadsGoOutAsOneBulkRequest() throws Exception {
+        JolokiaProxy proxy = proxy(100, 0);
+        JolokiaProxy.Read heap = new JolokiaProxy.Read("java.lang:type=Memory", "HeapMemoryUsage", "used");
+        JolokiaProxy.Read threads = new JolokiaProxy.Read("java.lang:type=Threading", "ThreadCount", null);
+
+        CompletableFuture<String> first = proxy.read("localhost", heap);
+        CompletableFuture<String> second = proxy.read("localhost", threads);
+        CompletableFuture<String> same = proxy.read("localhost", heap);
+
+        assertTrue(first.get(5, TimeUnit.SECONDS).contains("\"value\":0"));
+        assertTrue(second.get(5, TimeUnit.SECONDS).contains("\"value\":1"));
+        assertSame(first, same);
+        assertEquals(1, bulkRequests.size());
+        assertEquals("{\"type\":\"read\",\"mbean\":\"java.lang:type=Memory\",\"attribute\":\"HeapMemoryUsage\",\"path\":\"used\"}",
+                bulkRequests.get(0).get(0));
+    }
+
+    @Test
+    void repeatedReadsAreServedFromTheCache() throws Exception {
+        JolokiaProxy proxy = proxy(1, 60_000);
+        JolokiaProxy.Read uptime = new JolokiaProxy.Read("java.lang:type=Runtime", "Uptime", null);
+
+        String fetched = proxy.read("localhost", uptime).get(5, TimeUnit.SECONDS);
+        String cached = proxy.read("localhost", uptime).get(5, TimeUnit.SECONDS);
+
+        assertEquals(fetched, cached);
+        assertEquals(1, bulkRequests.size());
+    }
+
+    @Test
+    void recognisesSingleAttributeReads() {
+        assertEquals(new JolokiaProxy.Read("java.lang:type=Memory", "HeapMemoryUsage", "used"),
+                JolokiaProxy.parseRead("/read/java.lang:type=Memory/HeapMemoryUsage/used"));
+        assertEquals(new JolokiaProxy.Read("app:name=a/b", "Count", null),
+                JolokiaProxy.parseRead("read/app:name=a!/b/Count/"));
+        assertNull(JolokiaProxy.parseRead("/read/java.lang:type=Memory/HeapMemoryUsage,NonHeapMemoryUsage"));
+        assertNull(JolokiaProxy.parseRead("/exec/java.lang:type=Memory/gc"));
+        assertNull(JolokiaProxy.parseRead("/version"));
+    }
+
+    @Test
+    void splitsBulkResponsesWithoutParsingThem() {
+        assertEquals(List.of("{\"value\":\"a,]\"}", "[1,{\"b\":2}]", "3"),
+                JolokiaProxy.splitArray(" [{\"value\":\"a,]\"}, [1,{\"b\":2}] ,3]\n"));
+        assertEquals(List.of(), JolokiaProxy.splitArray("[]"));
+        assertNull(JolokiaProxy.splitArray("{\"error\":\"not a bulk response\"}"));
+    }
+}
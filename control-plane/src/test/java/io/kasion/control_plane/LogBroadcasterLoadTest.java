@@ -0,0 +1,219 @@
+package io.kasion.control_plane;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * 1,000 subscribers on one deployment, a handful of them stalled forever, fed line by line and by
+ * pipeline batches. The build thread must not notice. Nothing here is timed: a broadcast that blocked
+ * on a stalled tab would never return, and {@link Timeout} turns that hang into a failure.
+ */
+@Timeout(120)
+class LogBroadcasterLoadTest {
+
+    private static final int SUBSCRIBERS = 1_000;
+    private static final int STALLED = 10;
+    private static final int LINES = 2_000;
+    private static final int QUEUE = 64;
+    private static final int BATCH = 8;
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final BuildExecutors executors = new BuildExecutors(true, 0);
+    private final CountDownLatch unstall = new CountDownLatch(1);
+    private final CountDownLatch stalledSending = new CountDownLatch(STALLED);
+
+    @AfterEach
+    void tearDown() {
+        unstall.countDown();
+        executors.shutdown();
+    }
+
+    private WebSocketSession session(String id, AtomicInteger received, boolean stalled) throws Exception {
+        // stubOnly: millions of sends, don't let Mockito record each one
+        WebSocketSession session = mock(WebSocketSession.class, withSettings().stubOnly());
+        when(session.getId()).thenReturn(id);
+        doAnswer(invocation -> {
+            if (stalled) {
+                stalledSending.countDown();
+                unstall.await(); // a browser tab that stopped reading
+            }
+            received.incrementAndGet();
+            return null;
+        }).when(session).sendMessage(any(WebSocketMessage.class));
+        return session;
+    }
+
+    /**
+     * A session that remembers where the last frame it received ends.
+     */
+    private WebSocketSession frameSession(String id, AtomicLong end, boolean stalled) throws Exception {
+        WebSocketSession session = mock(WebSocketSession.class, withSettings().stubOnly());
+        when(session.getId()).thenReturn(id);
+        doAnswer(invocation -> {
+            if (stalled) {
+                unstall.await();
+            }
+            JsonNode frame = JSON.readTree(StandardCharsets.UTF_8.decode(((BinaryMessage) invocation.getArgument(0)).getPayload()).toString());
+            end.set(frame.get("offset").asLong() + frame.get("lines").size());
+            return null;
+        }).when(session).sendMessage(any(WebSocketMessage.class));
+        return session;
+    }
+
+    private static boolean isStalled(LogBroadcaster.SubscriberStats stats) {
+        return Integer.parseInt(stats.sessionId().substring(1)) < STALLED;
+    }
+
+    @Test
+    void slowSubscribersDoNotSlowDownTheBuild() throws Exception {
+        LogBroadcaster broadcaster = new LogBroadcaster(executors, ControlPlaneMetrics.noop(), QUEUE, LogBroadcaster.OverflowPolicy.DROP_OLDEST, 10_000);
+        AtomicInteger fastReceived = new AtomicInteger();
+        AtomicInteger stalledReceived = new AtomicInteger();
+
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            boolean stalled = i < STALLED;
+            broadcaster.register("deploy-1", session("s" + i, stalled ? stalledReceived : fastReceived, stalled));
+        }
+
+        broadcaster.broadcast("deploy-1", 0, "   [Cmd] [INFO] Downloading artifact 0");
+        stalledSending.await(); // every stalled tab is now stuck inside a send
+        for (int i = 1; i < LINES; i++) {
+            broadcaster.broadcast("deploy-1", i, "   [Cmd] [INFO] Downloading artifact " + i);
+        }
+
+        // The build thread got through every line while the stalled sends were still blocked.
+        assertEquals(0, stalledReceived.get());
+
+        // Fast subscribers drain; every frame is either sent or (if one fell behind) dropped.
+        long expected = (long) (SUBSCRIBERS - STALLED) * LINES;
+        while (fastReceived.get() + broadcaster.subscriberStats("deploy-1").stream()
+                .filter(s -> !isStalled(s)).mapToLong(LogBroadcaster.SubscriberStats::dropped).sum() < expected) {
+            Thread.sleep(10);
+        }
+
+        List<LogBroadcaster.SubscriberStats> stats = broadcaster.subscriberStats("deploy-1");
+        assertEquals(SUBSCRIBERS, stats.size());
+        for (LogBroadcaster.SubscriberStats stalled : stats.stream().filter(LogBroadcasterLoadTest::isStalled).toList()) {
+            // One frame is stuck in the send, QUEUE wait behind it, the rest are dropped.
+            assertEquals(LINES - 1 - QUEUE, stalled.dropped(), stalled.sessionId());
+        }
+        assertTrue(stats.stream().allMatch(s -> s.queued() <= QUEUE), "queues must stay bounded");
+    }
+
+    @Test
+    void pipelineBatchesReachEverySubscriberWithoutWaitingForStalledOnes() throws Exception {
+        LogBroadcaster broadcaster = new LogBroadcaster(executors, ControlPlaneMetrics.noop(), QUEUE, LogBroadcaster.OverflowPolicy.DROP_OLDEST, 10_000);
+        List<AtomicLong> ends = new ArrayList<>();
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            AtomicLong end = new AtomicLong();
+            ends.add(end);
+            broadcaster.register("deploy-3", frameSession("s" + i, end, i < STALLED));
+        }
+
+        // The build thread publishes into the ring; the flusher hands each batch to the broadcaster.
+        // If accept() waited on a stalled tab the ring would fill up and publish() would hang.
+        try (LogPipeline pipeline = new LogPipeline("deploy-3", 0, 1 << 16, BATCH, 10, executors.io(), List.of(broadcaster))) {
+            for (int i = 0; i < LINES; i++) {
+                pipeline.publish("   [Cmd] [INFO] Downloading artifact " + i);
+            }
+        }
+
+        // Older frames may be dropped for a subscriber that fell behind, but never the last one.
+        for (int i = STALLED; i < SUBSCRIBERS; i++) {
+            while (ends.get(i).get() < LINES) {
+                Thread.sleep(10);
+            }
+        }
+
+        List<LogBroadcaster.SubscriberStats> stats = broadcaster.subscriberStats("deploy-3");
+        assertEquals(SUBSCRIBERS, stats.size());
+        for (int i = 0; i < STALLED; i++) {
+            assertEquals(0, ends.get(i).get());
+        }
+        for (LogBroadcaster.SubscriberStats stalled : stats.stream().filter(LogBroadcasterLoadTest::isStalled).toList()) {
+            // A flush carries at most 2 * BATCH lines, so at least LINES / (2 * BATCH) frames: one is stuck
+            // in the send, QUEUE wait behind it, the rest are dropped.
+            assertTrue(stalled.dropped() >= LINES / (2 * BATCH) - 1 - QUEUE, stalled.sessionId() + " dropped " + stalled.dropped());
+        }
+        assertTrue(stats.stream().allMatch(s -> s.queued() <= QUEUE), "queues must stay bounded");
+    }
+
+    @Test
+    void aSendThatNeverFinishesClosesTheSubscriber() throws Exception {
+        LogBroadcaster broadcaster = new LogBroadcaster(executors, ControlPlaneMetrics.noop(), QUEUE, LogBroadcaster.OverflowPolicy.DROP_OLDEST, 50);
+        AtomicInteger received = new AtomicInteger();
+        WebSocketSession stuck = mock(WebSocketSession.class);
+        when(stuck.getId()).thenReturn("s0");
+        doAnswer(invocation -> {
+            unstall.await();
+            return null;
+        }).when(stuck).sendMessage(any(WebSocketMessage.class));
+        broadcaster.register("deploy-4", stuck);
+        broadcaster.register("deploy-4", session("s1", received, false));
+
+        broadcaster.broadcast("deploy-4", 0, "line 0");
+        while (broadcaster.subscriberStats("deploy-4").size() > 1) {
+            Thread.sleep(20);
+            broadcaster.closeStalledSessions();
+        }
+
+        verify(stuck, timeout(10_000)).close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Log send timed out"));
+        broadcaster.broadcast("deploy-4", 1, "line 1");
+        while (received.get() < 2) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of("s1"), broadcaster.subscriberStats("deploy-4").stream().map(LogBroadcaster.SubscriberStats::sessionId).toList());
+    }
+
+    @Test
+    void disconnectPolicyClosesTheSlowSubscriber() throws Exception {
+        LogBroadcaster broadcaster = new LogBroadcaster(executors, ControlPlaneMetrics.noop(), 16, LogBroadcaster.OverflowPolicy.DISCONNECT, 10_000);
+        AtomicInteger received = new AtomicInteger();
+        WebSocketSession slow = mock(WebSocketSession.class);
+        when(slow.getId()).thenReturn("slow");
+        doAnswer(invocation -> {
+            unstall.await();
+            return null;
+        }).when(slow).sendMessage(any(WebSocketMessage.class));
+        broadcaster.register("deploy-2", slow);
+        broadcaster.register("deploy-2", session("fast", received, false));
+
+        for (int i = 0; i < 100; i++) {
+            broadcaster.broadcast("deploy-2", i, "line " + i);
+            while (received.get() < i + 1) {
+                Thread.sleep(1); // a tab that keeps up: it has every line before the next one is logged
+            }
+        }
+
+        while (broadcaster.subscriberStats("deploy-2").size() > 1) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of("fast"), broadcaster.subscriberStats("deploy-2").stream().map(LogBroadcaster.SubscriberStats::sessionId).toList());
+        verify(slow, timeout(10_000)).close(any(CloseStatus.class));
+        assertEquals(100, received.get());
+    }
+}
@@ -0,0 +1,234 @@
+package io.kasion.control_plane;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lines/sec and allocation rate of build output on its way to the console and WebSocket subscribers:
+ * the old path (BufferedReader, string concat, println, a one-line JSON frame sent as a TextMessage
+ * to each session) against {@link LogPipeline} (raw bytes, ring buffer, one UTF-8 frame per batch
+ * shared by all sessions). Both sides build the same frame JSON and pay for the bytes on the wire:
+ * the null session encodes text messages the way the container would.
+ *
+ * Scores are lines per second; look at {@code gc.alloc.rate.norm} for bytes allocated per line.
+ * The durable store is left out of both sides since the old path didn't have one.
+ *
+ * Run with: ./mvnw test -Pbenchmark -Dtest=LogPipelineBenchmark
+ * Results go to target/benchmarks/log-pipeline.json.
+ *
+ * Last recorded run, on JDK 21 with one CPU, is in benchmarks/log-pipeline.json. The old path did
+ * 543K lines/s at 1240 B/line with 1 subscriber and 132K lines/s at 1632 B/line with 8; the pipeline
+ * 1.85M and 2.02M lines/s at 181-186 B/line, with a sixth to a tenth of the GC time per line.
+ */
+@Tag("benchmark")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogPipelineBenchmark {
+
+    private static final int LINES = 10_000;
+    private static final byte[] CMD_PREFIX = "   [Cmd] ".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"1", "8"})
+    public int subscribers;
+
+    private byte[] output;
+    private PrintStream console;
+    private List<WebSocketSession> sessions;
+    private BuildExecutors executors;
+    private LogBroadcaster broadcaster;
+    private LogPipeline pipeline;
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            text.append("#").append(i % 40).append(" [builder 4/7] RUN ./mvnw dependency:go-offline -B: Downloaded from central: ")
+                    .append("https://repo.maven.apache.org/maven2/org/example/artifact-").append(i).append(".jar (12 kB at 480 kB/s)\n");
+        }
+        output = text.toString().getBytes(StandardCharsets.UTF_8);
+        console = new PrintStream(OutputStream.nullOutputStream());
+
+        sessions = new ArrayList<>();
+        executors = new BuildExecutors(true, 0);
+        broadcaster = new LogBroadcaster(executors, ControlPlaneMetrics.noop(), 1024, LogBroadcaster.OverflowPolicy.DROP_OLDEST, 10_000);
+        for (int i = 0; i < subscribers; i++) {
+            NullSession session = new NullSession("s" + i);
+            sessions.add(session);
+            broadcaster.register("bench", session);
+        }
+        pipeline = new LogPipeline("bench", 0, 1 << 20, 256, 50, executors.io(),
+                List.of(broadcaster, LogPipelines.consoleSink(console)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.close();
+        executors.shutdown();
+    }
+
+    /**
+     * What runCommand and BuildEngine.log did before the pipeline, minus the sleeping, sending what
+     * clients need now: every line as its own {"offset":n,"lines":[...]} message to every session.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void legacy() throws Exception {
+        long offset = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(output)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String message = "   [Cmd] " + line;
+                console.println(message);
+                String frame = "{\"offset\":" + offset++ + ",\"lines\":[" + quote(message) + "]}";
+                for (WebSocketSession session : sessions) {
+                    session.sendMessage(new TextMessage(frame));
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends once every session has been sent everything, like the legacy path.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void pipeline() throws Exception {
+        pipeline.pump(new ByteArrayInputStream(output), CMD_PREFIX);
+        pipeline.flush();
+        while (broadcaster.subscriberStats("bench").stream().anyMatch(stats -> stats.queued() > 0)) {
+            LockSupport.parkNanos(50_000); // leave the CPU to the senders we are waiting for
+        }
+    }
+
+    private static String quote(String line) {
+        StringBuilder json = new StringBuilder(line.length() + 2).append('"');
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    @Test
+    void run() throws Exception {
+        Path results = Path.of("target", "benchmarks", "log-pipeline.json");
+        Files.createDirectories(results.getParent());
+        new Runner(new OptionsBuilder()
+                .include(LogPipelineBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(results.toString())
+                .build()).run();
+        System.out.println("📈 [Benchmark] Results written to " + results.toAbsolutePath());
+    }
+
+    /**
+     * An open session that discards every message after encoding it to UTF-8, as a container's
+     * WebSocket session does for each send, into a reused buffer.
+     */
+    static final class NullSession implements WebSocketSession {
+        private final String id;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private final ByteBuffer wire = ByteBuffer.allocate(8192);
+        long bytesSent;
+
+        NullSession(String id) {
+            this.id = id;
+        }
+
+        @Override public String getId() { return id; }
+        @Override public URI getUri() { return URI.create("ws://localhost/ws/logs/bench"); }
+        @Override public HttpHeaders getHandshakeHeaders() { return new HttpHeaders(); }
+        @Override public Map<String, Object> getAttributes() { return Map.of(); }
+        @Override public Principal getPrincipal() { return null; }
+        @Override public InetSocketAddress getLocalAddress() { return null; }
+        @Override public InetSocketAddress getRemoteAddress() { return null; }
+        @Override public String getAcceptedProtocol() { return null; }
+        @Override public void setTextMessageSizeLimit(int messageSizeLimit) { }
+        @Override public int getTextMessageSizeLimit() { return Integer.MAX_VALUE; }
+        @Override public void setBinaryMessageSizeLimit(int messageSizeLimit) { }
+        @Override public int getBinaryMessageSizeLimit() { return Integer.MAX_VALUE; }
+        @Override public List<WebSocketExtension> getExtensions() { return List.of(); }
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            if (!(message instanceof TextMessage text)) {
+                bytesSent += message.getPayloadLength();
+                return;
+            }
+            CharBuffer payload = CharBuffer.wrap(text.getPayload());
+            encoder.reset();
+            while (true) {
+                CoderResult result = encoder.encode(payload, wire, true);
+                bytesSent += wire.position();
+                wire.clear();
+                if (result.isUnderflow()) {
+                    return;
+                }
+            }
+        }
+        @Override public boolean isOpen() { return true; }
+        @Override public void close() { }
+        @Override public void close(CloseStatus status) { }
+    }
+}
@@ -0,0 +1,178 @@
+package io.kasion.control_plane;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LogPipelineTest {
+
+    private final BuildExecutors executors = new BuildExecutors(true, 0);
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+    private final LogPipeline.Sink collect = batch -> {
+        batchSizes.add(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            received.add(batch.firstOffset() + i + ":" + batch.line(i));
+        }
+    };
+
+    @AfterEach
+    void tearDown() {
+        executors.shutdown();
+    }
+
+    private void awaitReceived(int lines) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (received.size() < lines && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void pumpSplitsRawOutputIntoPrefixedLines() throws Exception {
+        byte[] output = "first\r\nsecond ünïcode\n\nlast without newline".getBytes(StandardCharsets.UTF_8);
+        // Hand the bytes over three at a time so lines straddle reads.
+        InputStream trickle = new ByteArrayInputStream(output) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+
+        try (LogPipeline pipeline = new LogPipeline("d1", 5, 4096, 16, 10, executors.io(), List.of(collect))) {
+            pipeline.pump(trickle, "> ".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(List.of("5:> first", "6:> second ünïcode", "7:> ", "8:> last without newline"), received);
+    }
+
+    @Test
+    void flushesWhenTheBatchIsFullOrOnRequest() throws Exception {
+        try (LogPipeline pipeline = new LogPipeline("d1", 0, 4096, 10, 60_000, executors.io(), List.of(collect))) {
+            IntStream.range(0, 5).forEach(i -> pipeline.publish("line " + i));
+            Thread.sleep(100);
+            assertEquals(0, received.size(), "half a batch waits for the timer");
+
+            IntStream.range(5, 10).forEach(i -> pipeline.publish("line " + i));
+            awaitReceived(10);
+            assertEquals(10, received.size());
+
+            pipeline.publish("line 10");
+            pipeline.flush();
+            assertEquals(11, received.size());
+        }
+        assertEquals(List.of(10, 1), batchSizes);
+    }
+
+    @Test
+    void flushesPartialBatchesAfterTheInterval() throws Exception {
+        try (LogPipeline pipeline = new LogPipeline("d1", 0, 4096, 1_000, 20, executors.io(), List.of(collect))) {
+            pipeline.publish("lonely line");
+            awaitReceived(1);
+            assertEquals(List.of("0:lonely line"), received);
+        }
+    }
+
+    @Test
+    void fullRingMakesProducersWaitInsteadOfDroppingLines() throws Exception {
+        LogPipeline.Sink slow = batch -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        int lines = 2_000;
+        try (LogPipeline pipeline = new LogPipeline("d1", 0, 1024, 8, 5, executors.io(), List.of(slow, collect))) {
+            for (int i = 0; i < lines; i++) {
+                pipeline.publish("[INFO] Downloading artifact number " + i);
+            }
+        }
+
+        assertEquals(lines, received.size());
+        for (int i = 0; i < lines; i++) {
+            assertEquals(i + ":[INFO] Downloading artifact number " + i, received.get(i));
+        }
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 16), "batches are bounded by the slot ring");
+    }
+
+    @Test
+    void truncatesLinesLongerThanAQuarterOfTheRing() throws Exception {
+        try (LogPipeline pipeline = new LogPipeline("d1", 0, 1024, 8, 5, executors.io(), List.of(collect))) {
+            pipeline.publish("x".repeat(5_000));
+        }
+        assertEquals("0:" + "x".repeat(256), received.get(0));
+    }
+
+    @Test
+    void linesWithoutAnOpenPipelineNeverReachTheStore(@TempDir Path dir) throws Exception {
+        BuildLogStore store = new BuildLogStore(dir.resolve("logs"), 1 << 16, Long.MAX_VALUE);
+        LogSearchIndex index = new LogSearchIndex(dir.resolve("index"), 1_000, executors, store);
+        LogBroadcaster broadcaster = new LogBroadcaster(executors, ControlPlaneMetrics.noop(), 64, LogBroadcaster.OverflowPolicy.DROP_OLDEST, 10_000);
+        LogPipelines pipelines = new LogPipelines(store, broadcaster, index, executors, 4096, 16, 10);
+        try {
+            pipelines.open("d1");
+            pipelines.publish("d1", "build");
+            pipelines.close("d1");
+
+            pipelines.publish("d1", "late probe result");
+            pipelines.pump("d1", new ByteArrayInputStream("stray\noutput\n".getBytes(StandardCharsets.UTF_8)), new byte[0]);
+
+            pipelines.open("d1"); // a later scale operation
+            pipelines.publish("d1", "scaled");
+            pipelines.close("d1");
+
+            assertEquals(2, store.nextOffset("d1"));
+            assertEquals(List.of("build", "scaled"), store.lines("d1", 0, 10));
+        } finally {
+            index.shutdown();
+            store.shutdown();
+        }
+    }
+
+    @Test
+    void framesAreValidJsonWhateverTheLinesContain() throws Exception {
+        LogBroadcaster broadcaster = new LogBroadcaster(executors, ControlPlaneMetrics.noop(), 64, LogBroadcaster.OverflowPolicy.DROP_OLDEST, 10_000);
+        List<String> frames = Collections.synchronizedList(new ArrayList<>());
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("s1");
+        doAnswer(invocation -> frames.add(StandardCharsets.UTF_8.decode(((BinaryMessage) invocation.getArgument(0)).getPayload()).toString()))
+                .when(session).sendMessage(any());
+        broadcaster.register("d1", session);
+
+        List<String> lines = List.of("say \"hi\" to C:\\build", "tab\there", "bell\u0007 and nul\u0000", "ünïcode ✓ 日本", "");
+        try (LogPipeline pipeline = new LogPipeline("d1", 40, 4096, 16, 10, executors.io(), List.of(broadcaster))) {
+            lines.forEach(pipeline::publish);
+        }
+        verify(session, timeout(5_000)).sendMessage(any());
+
+        JsonNode frame = new ObjectMapper().readTree(frames.get(0));
+        assertEquals(40, frame.get("offset").asLong());
+        List<String> decoded = new ArrayList<>();
+        frame.get("lines").forEach(line -> decoded.add(line.asText()));
+        assertEquals(lines, decoded);
+    }
+}
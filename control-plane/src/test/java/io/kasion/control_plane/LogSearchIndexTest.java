@@ -0,0 +1,165 @@
+package io.kasion.control_plane;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class LogSearchIndexTest {
+
+    @TempDir
+    Path tmp;
+
+    private final BuildExecutors executors = new BuildExecutors(true, 0);
+    private final List<BuildLogStore> stores = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (BuildLogStore store : stores) {
+            store.shutdown();
+        }
+        executors.shutdown();
+    }
+
+    private BuildLogStore store() {
+        BuildLogStore store = new BuildLogStore(tmp.resolve("logs"), 1 << 16, Long.MAX_VALUE);
+        stores.add(store);
+        return store;
+    }
+
+    private LogSearchIndex index(BuildLogStore store, long flushPostings) throws Exception {
+        return new LogSearchIndex(tmp.resolve("index"), flushPostings, executors, store);
+    }
+
+    /**
+     * Logs through the store and the index, the way a pipeline batch would.
+     */
+    private void log(BuildLogStore store, LogSearchIndex index, String deploymentId, String line) {
+        long offset = store.append(deploymentId, line);
+        index.add(deploymentId, offset, line);
+    }
+
+    private List<String> search(LogSearchIndex index, String q) throws Exception {
+        return index.search(LogSearchIndex.Query.parse(q), null, 100).matches().stream()
+                .map(m -> m.deploymentId() + "@" + m.offset())
+                .toList();
+    }
+
+    @Test
+    void findsTermsAndPhrasesNewestDeploymentFirst() throws Exception {
+        BuildLogStore store = store();
+        LogSearchIndex index = index(store, Long.MAX_VALUE);
+        log(store, index, "old", "[INFO] Building shop 1.0");
+        log(store, index, "old", "Exception in thread \"main\" java.lang.OutOfMemoryError: Java heap space");
+        log(store, index, "new", "[INFO] BUILD SUCCESS");
+        log(store, index, "new", "WARN heap space is low, not an OutOfMemoryError yet");
+        log(store, index, "new", "space heap OutOfMemoryError");
+
+        assertEquals(List.of("new@1", "new@2", "old@1"), search(index, "outofmemoryerror"));
+        assertEquals(List.of("new@1", "old@1"), search(index, "OutOfMemoryError \"heap space\""));
+        assertEquals(List.of("old@1"), search(index, "java.lang.OutOfMemoryError"));
+        assertEquals(List.of(), search(index, "OutOfMemoryError success"));
+
+        LogSearchIndex.Result scoped = index.search(LogSearchIndex.Query.parse("OutOfMemoryError"), "old"::equals, 100);
+        assertEquals(1, scoped.candidates());
+        assertEquals("old", scoped.matches().get(0).deploymentId());
+        assertTrue(scoped.matches().get(0).line().contains("Java heap space"));
+    }
+
+    @Test
+    void parsesProjectFilterAndPhrases() {
+        LogSearchIndex.Query query = LogSearchIndex.Query.parse("error \"Connection refused\" project:shop org.postgresql.Driver");
+        assertEquals(List.of("error"), query.terms());
+        assertEquals(List.of(List.of("connection", "refused"), List.of("org", "postgresql", "driver")), query.phrases());
+        assertEquals("shop", query.project());
+    }
+
+    @Test
+    void flushesCompactSegmentsMergesThemAndReloads() throws Exception {
+        BuildLogStore store = store();
+        LogSearchIndex index = index(store, 500);
+        for (int d = 0; d < 20; d++) {
+            for (int i = 0; i < 200; i++) {
+                log(store, index, "deploy-" + d, "[INFO] Downloaded artifact-" + (i % 50) + " from central");
+            }
+        }
+        index.flush();
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while ((int) index.stats().get("segments") > 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue((int) index.stats().get("segments") <= 8, "segments should have been merged: " + index.stats());
+        long postings = 20 * 200 * 5L;
+        long bytes = (long) index.stats().get("segmentBytes");
+        assertTrue(bytes < postings * 4, bytes + " bytes for " + postings + " postings");
+
+        assertEquals(100, search(index, "artifact").size(), "limit applies");
+        assertEquals(20 * 4, index.search(LogSearchIndex.Query.parse("artifact 7"), null, 1_000).matches().size());
+
+        LogSearchIndex reopened = index(store, 500);
+        assertEquals(search(index, "\"artifact 7\""), search(reopened, "\"artifact 7\""));
+    }
+
+    @Test
+    void indexesWhatTheStoreGotWhileTheIndexWasDown() throws Exception {
+        BuildLogStore store = store();
+        for (int i = 0; i < 100; i++) {
+            store.append("offline", i == 42 ? "Caused by: java.net.ConnectException: Connection refused" : "line " + i);
+        }
+
+        LogSearchIndex index = index(store, Long.MAX_VALUE);
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (search(index, "connectexception").isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(List.of("offline@42"), search(index, "\"connection refused\""));
+        try (Stream<Path> files = Files.list(tmp.resolve("index"))) {
+            assertTrue(files.noneMatch(p -> p.getFileName().toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    void liveLinesDoNotSkipTheBacklogOfAScaledDeployment() throws Exception {
+        BuildLogStore store = store();
+        for (int i = 0; i < 100; i++) {
+            store.append("scaled", i == 7 ? "Caused by: java.net.ConnectException: Connection refused" : "line " + i);
+        }
+
+        // The background catch-up is stuck behind other work when a scale operation logs.
+        CountDownLatch busy = new CountDownLatch(1);
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        background.execute(() -> {
+            try {
+                busy.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        BuildExecutors held = mock(BuildExecutors.class);
+        when(held.io()).thenReturn(background);
+        try {
+            LogSearchIndex index = new LogSearchIndex(tmp.resolve("index"), Long.MAX_VALUE, held, store);
+            log(store, index, "scaled", "Scaling to 3 replicas");
+
+            assertEquals(List.of("scaled@7"), search(index, "connectexception"));
+            assertEquals(List.of("scaled@100"), search(index, "replicas"));
+        } finally {
+            busy.countDown();
+            background.shutdown();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package io.kasion.control_plane;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PortAllocatorTest {
+
+    private final Map<Integer, PortLease> table = new TreeMap<>();
+    private final Project shop = new Project("Shop", "owner");
+    private final Project blog = new Project("Blog", "owner");
+
+    @Test
+    void leasesDistinctPortsAcrossProjects() {
+        int start = freeRangeStart(6);
+        PortAllocator allocator = new PortAllocator(repository(), start, start + 5);
+
+        List<PortLease> shopLeases = allocator.lease(shop, "d1", "green", 3);
+        List<PortLease> blogLeases = allocator.lease(blog, "d2", "green", 2);
+
+        assertEquals(List.of(start, start + 1, start + 2), shopLeases.stream().map(PortLease::getPort).toList());
+        assertEquals(List.of(start + 3, start + 4), blogLeases.stream().map(PortLease::getPort).toList());
+        assertEquals(List.of("shop-app-green", "shop-app-green-2", "shop-app-green-3"),
+                shopLeases.stream().map(PortLease::getContainerName).toList());
+        assertEquals(5, table.size());
+    }
+
+    @Test
+    void releasedPortsAreReusedOnlyAfterTheRestOfTheRange() {
+        int start = freeRangeStart(3);
+        PortAllocator allocator = new PortAllocator(repository(), start, start + 2);
+
+        List<PortLease> blue = allocator.lease(shop, "d1", "blue", 1);
+        allocator.release(blue);
+        List<PortLease> green = allocator.lease(shop, "d2", "green", 1);
+        List<PortLease> nextBlue = allocator.lease(shop, "d3", "blue", 2);
+
+        assertEquals(start + 1, green.get(0).getPort());
+        assertEquals(List.of(start + 2, start), nextBlue.stream().map(PortLease::getPort).toList());
+    }
+
+    @Test
+    void skipsPortsInUseOnTheHostAndFailsWhenTheRangeIsFull() throws IOException {
+        int start = freeRangeStart(2);
+        PortAllocator allocator = new PortAllocator(repository(), start, start + 1);
+        try (ServerSocket squatter = new ServerSocket()) {
+            squatter.bind(new InetSocketAddress(start));
+
+            assertEquals(start + 1, allocator.lease(shop, "d1", "blue", 1).get(0).getPort());
+            assertThrows(IllegalStateException.class, () -> allocator.lease(blog, "d2", "blue", 1));
+        }
+    }
+
+    /**
+     * An in-memory {@link PortLeaseRepository} covering the calls PortAllocator makes.
+     */
+    @SuppressWarnings("unchecked")
+    private PortLeaseRepository repository() {
+        return (PortLeaseRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PortLeaseRepository.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "findLeasedPorts" -> new ArrayList<>(table.keySet());
+                    case "saveAll" -> {
+                        List<PortLease> saved = new ArrayList<>();
+                        for (PortLease lease : (Iterable<PortLease>) args[0]) {
+                            if (table.putIfAbsent(lease.getPort(), lease) != null) {
+                                throw new IllegalStateException("duplicate port " + lease.getPort());
+                            }
+                            saved.add(lease);
+                        }
+                        yield saved;
+                    }
+                    case "deleteAll" -> {
+                        ((Iterable<PortLease>) args[0]).forEach(lease -> table.remove(lease.getPort()));
+                        yield null;
+                    }
+                    case "findByProjectIdAndColorOrderByReplica" -> table.values().stream()
+                            .filter(l -> l.getProjectId().equals(args[0]) && l.getColor().equals(args[1]))
+                            .sorted(Comparator.comparingInt(PortLease::getReplica))
+                            .toList();
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    /**
+     * The start of {@code size} consecutive ports that nothing on this machine listens on.
+     */
+    private static int freeRangeStart(int size) {
+        for (int start = 20000; start < 60000; start += size) {
+            boolean free = true;
+            for (int port = start; port < start + size && free; port++) {
+                try (ServerSocket socket = new ServerSocket()) {
+                    socket.bind(new InetSocketAddress(port));
+                } catch (IOException e) {
+                    free = false;
+                }
+            }
+            if (free) {
+                return start;
+            }
+        }
+        throw new IllegalStateException("no free port range");
+    }
+}
@@ -0,0 +1,113 @@
+package io.kasion.control_plane;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs against a local HTTP server and a shell script standing in for the docker CLI.
+ */
+class ReadinessProbeTest {
+
+    @TempDir
+    Path dir;
+
+    private final BuildExecutors executors = new BuildExecutors(false, 0);
+    private HttpServer server;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+        executors.shutdown();
+    }
+
+    /**
+     * A fake docker: {@code inspect} reports "running" until the container "dies" {@code dieAfter} into
+     * {@code events}; never dies when that's empty.
+     */
+    private String fakeDocker(String dieAfter) throws Exception {
+        Path script = dir.resolve("docker");
+        Files.writeString(script, """
+                #!/bin/sh
+                case "$1" in
+                  inspect) if [ -f "%1$s/dead" ]; then echo "exited 1 "; else echo "running 0 "; fi ;;
+                  events) if [ -n "%2$s" ]; then sleep %2$s; touch "%1$s/dead"; echo die; fi; sleep 30 ;;
+                esac
+                """.formatted(dir, dieAfter));
+        script.toFile().setExecutable(true);
+        return script.toString();
+    }
+
+    private ReadinessProbe probe(String docker) {
+        return new ReadinessProbe(executors, DockerEngine.cliOnly(), docker, 10, 200, "/actuator/health", "\"status\":\"UP\"", 60);
+    }
+
+    @Test
+    void seesAFastAppWithinMillisecondsOfItBecomingReady() throws Exception {
+        long[] readyAt = {Long.MAX_VALUE};
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/actuator/health", exchange -> {
+            boolean up = System.currentTimeMillis() >= readyAt[0];
+            byte[] body = (up ? "{\"status\":\"UP\"}" : "{\"status\":\"DOWN\"}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(up ? 200 : 503, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        ReadinessProbe probe = probe(fakeDocker(""));
+        List<String> log = new ArrayList<>();
+        readyAt[0] = System.currentTimeMillis() + 500;
+        ReadinessProbe.Verdict verdict = probe.await("shop-app-green", "http://localhost:" + server.getAddress().getPort(),
+                new ReadinessProbe.Criteria("/actuator/health", "\"status\":\"UP\"", Duration.ofSeconds(60), 1, false), log::add);
+
+        assertTrue(verdict.ready(), verdict.reason());
+        // Backoff is capped at 200ms here, so we're never more than one interval late.
+        assertTrue(verdict.elapsedMillis() < 500 + 250, "took " + verdict.elapsedMillis() + "ms");
+        assertTrue(log.stream().anyMatch(line -> line.contains("HTTP 503")), log.toString());
+    }
+
+    @Test
+    void failsFastWhenTheContainerExits() throws Exception {
+        ReadinessProbe probe = probe(fakeDocker("0.3"));
+
+        // Nothing listens on the port: connection refused until the container dies.
+        ReadinessProbe.Verdict verdict = probe.await("shop-app-green", "http://localhost:1",
+                new ReadinessProbe.Criteria("/actuator/health", "UP", Duration.ofSeconds(60), 1, false), line -> {});
+
+        assertFalse(verdict.ready());
+        assertEquals("container exited with code 1", verdict.reason());
+        assertTrue(verdict.elapsedMillis() < 5_000, "took " + verdict.elapsedMillis() + "ms");
+    }
+
+    @Test
+    void projectSettingsOverrideTheDefaults() throws Exception {
+        ReadinessProbe probe = probe(fakeDocker(""));
+        Project project = new Project("shop", "web-user");
+
+        assertEquals(new ReadinessProbe.Criteria("/actuator/health", "\"status\":\"UP\"", Duration.ofSeconds(60), 1, false),
+                probe.criteriaFor(project));
+
+        project.setReadinessPath("/ready");
+        project.setReadinessTimeoutSeconds(10);
+        project.setReadinessSuccesses(3);
+        project.setReadinessDockerHealthy(true);
+        assertEquals(new ReadinessProbe.Criteria("/ready", "\"status\":\"UP\"", Duration.ofSeconds(10), 3, true),
+                probe.criteriaFor(project));
+    }
+}
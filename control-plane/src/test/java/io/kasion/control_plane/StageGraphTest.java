@@ -0,0 +1,104 @@
+package io.kasion.control_plane;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StageGraphTest {
+
+    private static final Duration MINUTE = Duration.ofMinutes(1);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void independentStagesOverlap() throws Exception {
+        List<String> order = new CopyOnWriteArrayList<>();
+        StageGraph graph = new StageGraph()
+                .stage("resolve", MINUTE, () -> order.add("resolve"))
+                .stage("image", MINUTE, () -> { Thread.sleep(400); order.add("image"); }, "resolve")
+                .stage("database", MINUTE, () -> { Thread.sleep(400); order.add("database"); })
+                .stage("container", MINUTE, () -> order.add("container"), "image", "database");
+
+        long start = System.nanoTime();
+        graph.run(executor, timing -> {});
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // max(image, database), not the sum
+        assertTrue(millis < 750, "took " + millis + "ms");
+        assertEquals("container", order.get(order.size() - 1));
+        assertEquals(4, graph.timings().size());
+    }
+
+    @Test
+    void aFailingBranchAbortsItsSiblings() {
+        AtomicBoolean siblingInterrupted = new AtomicBoolean();
+        AtomicBoolean dependentRan = new AtomicBoolean();
+        StageGraph graph = new StageGraph()
+                .stage("image", MINUTE, () -> {
+                    try {
+                        Thread.sleep(30_000);
+                    } catch (InterruptedException e) {
+                        siblingInterrupted.set(true);
+                        throw e;
+                    }
+                })
+                .stage("database", MINUTE, () -> { throw new IllegalStateException("port 5432 taken"); })
+                .stage("container", MINUTE, () -> dependentRan.set(true), "image", "database");
+
+        StageGraph.StageFailedException e = assertThrows(StageGraph.StageFailedException.class, () -> graph.run(executor, timing -> {}));
+
+        assertEquals("database", e.stage());
+        assertEquals("Stage 'database' failed: port 5432 taken", e.getMessage());
+        assertTrue(siblingInterrupted.get(), "image stage should have been interrupted before run() returned");
+        assertFalse(dependentRan.get());
+    }
+
+    @Test
+    void aStageThatOverrunsItsTimeoutFailsThePipeline() {
+        StageGraph graph = new StageGraph()
+                .stage("ready", Duration.ofMillis(200), () -> Thread.sleep(30_000));
+
+        long start = System.nanoTime();
+        StageGraph.StageFailedException e = assertThrows(StageGraph.StageFailedException.class, () -> graph.run(executor, timing -> {}));
+
+        assertEquals("ready", e.stage());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2_000);
+    }
+
+    @Test
+    void cancelStopsARunningPipeline() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        StageGraph graph = new StageGraph()
+                .stage("image", MINUTE, () -> { started.countDown(); Thread.sleep(30_000); });
+
+        executor.execute(() -> {
+            try {
+                started.await();
+                graph.cancel();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        StageGraph.StageFailedException e = assertThrows(StageGraph.StageFailedException.class, () -> graph.run(executor, timing -> {}));
+
+        assertEquals("Stage 'image' was cancelled", e.getMessage());
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+}
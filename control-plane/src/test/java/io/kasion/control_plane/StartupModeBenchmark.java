@@ -0,0 +1,393 @@
+package io.kasion.control_plane;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Builds a Spring Boot app in every startup mode and measures how long a container takes from
+ * {@code docker run} to a healthy {@code /actuator/health}, which is what a rollout waits for.
+ *
+ * Needs Docker and a Maven- or Gradle-wrapper app with actuator:
+ * ./mvnw test -Pbenchmark -Dtest=StartupModeBenchmark -Dkasion.bench.app=/path/to/app
+ *   [-Dkasion.bench.starts=5] [-Dkasion.bench.crac=true  (needs a buildx builder allowing security.insecure)]
+ *   [-Dkasion.bench.native=true  (a GraalVM build takes minutes)]
+ *
+ * Without Docker, {@code -Dkasion.bench.runtime=host} runs the same recipes as the runtime stages on this
+ * machine's JVM, for Maven apps: the unpacked jar with JarLauncher (JVM), a trained AppCDS archive (APPCDS),
+ * the same plus process-aot (AOT), and a checkpoint restore (CRAC) when {@code -Dkasion.bench.crac-java}
+ * points at a CRaC JDK's java. The agents are left out.
+ *   [-Dkasion.bench.mvn="./mvnw"] [-Dkasion.bench.app-args="--spring.docker.compose.enabled=false ..."]
+ * Where the app can't be packaged (an offline repository without the jar plugin), pass its runtime class path
+ * and main class instead: the app is only compiled, every mode launches the main class on that class path
+ * (JVM mode without JarLauncher), and AOT runs SpringApplicationAotProcessor directly, as process-aot does.
+ *   [-Dkasion.bench.classpath=a.jar:b.jar... -Dkasion.bench.main-class=com.example.App]
+ *
+ * Results go to target/benchmarks/startup-modes.json. The last recorded run is in benchmarks/startup-modes.json:
+ * the control plane itself on the host runtime (class path mode, one CPU, 5 starts), ready in a median of 15.8s
+ * on the JVM, 10.1s with AppCDS and 8.7s with AOT plus AppCDS. CRaC isn't in it: that machine had no CRaC JDK.
+ */
+@Tag("benchmark")
+class StartupModeBenchmark {
+
+    private static final String APP = System.getProperty("kasion.bench.app");
+    private static final int STARTS = Integer.getInteger("kasion.bench.starts", 5);
+    private static final boolean CRAC = Boolean.getBoolean("kasion.bench.crac");
+    private static final boolean NATIVE = Boolean.getBoolean("kasion.bench.native");
+    private static final boolean HOST = "host".equals(System.getProperty("kasion.bench.runtime", "docker"));
+    private static final String MVN = System.getProperty("kasion.bench.mvn", "./mvnw");
+    private static final String CRAC_JAVA = System.getProperty("kasion.bench.crac-java");
+    private static final String APP_ARGS = System.getProperty("kasion.bench.app-args", "");
+    private static final String CLASSPATH = System.getProperty("kasion.bench.classpath");
+    private static final String MAIN_CLASS = System.getProperty("kasion.bench.main-class");
+
+    record Result(String mode, String runtime, long buildMillis, long medianReadyMillis, long minReadyMillis, long maxReadyMillis) {}
+
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(200)).build();
+
+    @Test
+    void startupTimeByMode() throws Exception {
+        assumeTrue(APP != null, "set -Dkasion.bench.app to a Spring Boot project");
+        Path app = Path.of(APP);
+        BuildEngine.BuildTool tool = Files.exists(app.resolve("mvnw")) ? BuildEngine.BuildTool.MAVEN : BuildEngine.BuildTool.GRADLE;
+
+        // The generated Dockerfile copies the agents from control-plane/, like a real build context.
+        Path context = Files.createTempDirectory("kasion-startup-bench");
+        try {
+            copy(app, context);
+            for (String agents : List.of("jmx_exporter", "jolokia")) {
+                if (Files.isDirectory(Path.of(agents))) {
+                    copy(Path.of(agents), context.resolve("control-plane").resolve(agents));
+                }
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (DockerfileGenerator.StartupMode mode : DockerfileGenerator.StartupMode.values()) {
+                if (HOST) {
+                    assumeTrue(tool == BuildEngine.BuildTool.MAVEN, "the host runtime builds Maven apps only");
+                    if (mode == DockerfileGenerator.StartupMode.NATIVE || (mode == DockerfileGenerator.StartupMode.CRAC && CRAC_JAVA == null)) {
+                        System.out.println("⏭️ " + mode + ": skipped on the host runtime"
+                                + (mode == DockerfileGenerator.StartupMode.CRAC ? " (no -Dkasion.bench.crac-java)" : ""));
+                        continue;
+                    }
+                    results.add(measureOnHost(context, mode));
+                    continue;
+                }
+                if ((mode == DockerfileGenerator.StartupMode.CRAC && !CRAC) || (mode == DockerfileGenerator.StartupMode.NATIVE && !NATIVE)) {
+                    continue;
+                }
+                results.add(measure(context, tool, mode));
+            }
+
+            StringBuilder json = new StringBuilder("[\n");
+            for (Result r : results) {
+                System.out.printf(Locale.ROOT, "⚡ %s (%s): build=%dms ready median=%dms min=%dms max=%dms%n",
+                        r.mode(), r.runtime(), r.buildMillis(), r.medianReadyMillis(), r.minReadyMillis(), r.maxReadyMillis());
+                json.append(String.format(Locale.ROOT,
+                        "  {\"mode\":\"%s\",\"runtime\":\"%s\",\"buildMillis\":%d,\"medianReadyMillis\":%d,\"minReadyMillis\":%d,\"maxReadyMillis\":%d}%s%n",
+                        r.mode(), r.runtime(), r.buildMillis(), r.medianReadyMillis(), r.minReadyMillis(), r.maxReadyMillis(),
+                        r == results.get(results.size() - 1) ? "" : ","));
+            }
+            json.append("]\n");
+            Path out = Path.of("target", "benchmarks", "startup-modes.json");
+            Files.createDirectories(out.getParent());
+            Files.writeString(out, json);
+        } finally {
+            FileSystemUtils.deleteRecursively(context);
+        }
+    }
+
+    private Result measure(Path context, BuildEngine.BuildTool tool, DockerfileGenerator.StartupMode mode) throws Exception {
+        String image = "kasion/startup-bench:" + mode.name().toLowerCase(Locale.ROOT);
+        Files.writeString(context.resolve("Dockerfile"), mode == DockerfileGenerator.StartupMode.NATIVE
+                ? new DockerfileGenerator().generateNativeBuild("21", tool, nativeArtifactName(context, tool))
+                : new DockerfileGenerator().generateStandardBuild("21", tool, mode));
+
+        long buildStart = System.nanoTime();
+        if (mode == DockerfileGenerator.StartupMode.CRAC) {
+            docker(context, "buildx", "build", "--allow", "security.insecure", "--load", "-t", image, ".");
+        } else {
+            docker(context, "build", "-t", image, ".");
+        }
+        long buildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - buildStart);
+
+        long[] ready = new long[STARTS];
+        for (int i = 0; i < STARTS; i++) {
+            int port = freePort();
+            String container = "kasion-startup-bench-" + mode.name().toLowerCase(Locale.ROOT);
+            List<String> run = new ArrayList<>(List.of("run", "-d", "--name", container, "-p", port + ":8080"));
+            if (mode == DockerfileGenerator.StartupMode.CRAC) {
+                run.addAll(List.of("--cap-add", "CHECKPOINT_RESTORE", "--cap-add", "SYS_PTRACE"));
+            }
+            run.add(image);
+            long start = System.nanoTime();
+            docker(context, run.toArray(new String[0]));
+            try {
+                awaitHealthy(port);
+                ready[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            } finally {
+                docker(context, "rm", "-f", container);
+            }
+        }
+        Arrays.sort(ready);
+        return new Result(mode.name(), "docker", buildMillis, ready[ready.length / 2], ready[0], ready[ready.length - 1]);
+    }
+
+    /**
+     * The runtime stage's recipe for {@code mode}, run directly on this machine: package, unpack the Boot jar,
+     * train an archive or take a checkpoint as the Dockerfile would, then time each start. With
+     * {@code kasion.bench.classpath} the app is compiled rather than packaged.
+     */
+    private Result measureOnHost(Path context, DockerfileGenerator.StartupMode mode) throws Exception {
+        boolean aot = mode == DockerfileGenerator.StartupMode.AOT;
+        boolean packaged = CLASSPATH == null;
+        Path work = Files.createDirectories(context.resolve("host-" + mode.name().toLowerCase(Locale.ROOT)));
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+
+        long buildStart = System.nanoTime();
+        List<String> build = new ArrayList<>(List.of(MVN.split(" ")));
+        if (packaged) {
+            build.addAll(aot ? List.of("compile", "spring-boot:process-aot", "package") : List.of("package"));
+        } else {
+            build.add("compile");
+        }
+        build.addAll(List.of("-B", "-q", "-DskipTests"));
+        exec(context, build);
+        Path exploded = work.resolve("exploded");
+        List<String> launch;
+        if (packaged) {
+            Files.createDirectories(exploded);
+            exec(exploded, List.of(Path.of(System.getProperty("java.home"), "bin", "jar").toString(), "-xf", bootJar(context.resolve("target")).toString()));
+            launch = launchArgs(exploded, work);
+        } else {
+            if (MAIN_CLASS == null) {
+                throw new IllegalStateException("-Dkasion.bench.classpath needs -Dkasion.bench.main-class");
+            }
+            String classPath = jar(work.resolve("classes.jar"), context.resolve("target").resolve("classes")) + File.pathSeparator + CLASSPATH;
+            if (aot) {
+                classPath = processAot(work, classPath) + File.pathSeparator + classPath;
+            }
+            launch = List.of("-cp", classPath, MAIN_CLASS);
+        }
+
+        List<String> command = new ArrayList<>();
+        int checkpointPort = 0;
+        switch (mode) {
+            case JVM -> {
+                command.addAll(List.of(java, "-XX:MaxRAMPercentage=80.0"));
+                command.addAll(packaged ? List.of("-cp", exploded.toString(), "org.springframework.boot.loader.JarLauncher") : launch);
+            }
+            case APPCDS, AOT -> {
+                Path archive = work.resolve("application.jsa");
+                List<String> aotFlag = aot ? List.of("-Dspring.aot.enabled=true") : List.of();
+                List<String> training = new ArrayList<>(List.of(java, "-XX:ArchiveClassesAtExit=" + archive, "-Dspring.context.exit=onRefresh"));
+                training.addAll(aotFlag);
+                training.addAll(launch);
+                training.addAll(appArgs(freePort()));
+                exec(work, training);
+                command.addAll(List.of(java, "-XX:SharedArchiveFile=" + archive, "-Xshare:auto"));
+                command.addAll(aotFlag);
+                command.add("-XX:MaxRAMPercentage=80.0");
+                command.addAll(launch);
+            }
+            case CRAC -> {
+                Path checkpoint = work.resolve("crac");
+                checkpointPort = freePort();
+                List<String> checkpointRun = new ArrayList<>(List.of(CRAC_JAVA, "-XX:CRaCCheckpointTo=" + checkpoint, "-Dspring.context.checkpoint=onRefresh"));
+                checkpointRun.addAll(launch);
+                checkpointRun.addAll(appArgs(checkpointPort));
+                new ProcessBuilder(checkpointRun).directory(work.toFile()).inheritIO().start().waitFor(); // exits non-zero once checkpointed
+                if (!Files.exists(checkpoint.resolve("core.img"))) {
+                    throw new IllegalStateException("CRaC checkpoint failed");
+                }
+                command.addAll(List.of(CRAC_JAVA, "-XX:CRaCRestoreFrom=" + checkpoint));
+            }
+            default -> throw new IllegalArgumentException(mode + " has no host recipe");
+        }
+        long buildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - buildStart);
+
+        long[] ready = new long[STARTS];
+        for (int i = 0; i < STARTS; i++) {
+            // A restored checkpoint keeps the port it was taken with.
+            int port = mode == DockerfileGenerator.StartupMode.CRAC ? checkpointPort : freePort();
+            List<String> start = new ArrayList<>(command);
+            if (mode != DockerfileGenerator.StartupMode.CRAC) {
+                start.addAll(appArgs(port));
+            }
+            long begin = System.nanoTime();
+            Process app = new ProcessBuilder(start).directory(work.toFile())
+                    .redirectErrorStream(true).redirectOutput(work.resolve("app-" + i + ".log").toFile()).start();
+            try {
+                awaitHealthy(port);
+                ready[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+            } finally {
+                app.destroy();
+                if (!app.waitFor(30, TimeUnit.SECONDS)) {
+                    app.destroyForcibly().waitFor();
+                }
+            }
+        }
+        Arrays.sort(ready);
+        return new Result(mode.name(), "host", buildMillis, ready[ready.length / 2], ready[0], ready[ready.length - 1]);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static List<String> appArgs(int port) {
+        List<String> args = new ArrayList<>(List.of("--server.port=" + port));
+        for (String arg : APP_ARGS.trim().split("\\s+")) {
+            if (!arg.isEmpty()) {
+                args.add(arg);
+            }
+        }
+        return args;
+    }
+
+    /**
+     * What the Dockerfile writes to /app/launch.args: the app's classes as a jar, the class path in Boot's
+     * order, then the main class.
+     */
+    private static List<String> launchArgs(Path exploded, Path work) throws Exception {
+        Path bootInf = exploded.resolve("BOOT-INF");
+        List<String> classPath = new ArrayList<>(List.of(jar(work.resolve("classes.jar"), bootInf.resolve("classes")).toString()));
+        for (String line : Files.readAllLines(bootInf.resolve("classpath.idx"))) {
+            if (line.startsWith("- \"BOOT-INF/lib/")) {
+                classPath.add(exploded.resolve(line.substring(3, line.length() - 1)).toString());
+            }
+        }
+        String startClass;
+        try (var in = Files.newInputStream(exploded.resolve("META-INF").resolve("MANIFEST.MF"))) {
+            startClass = new Manifest(in).getMainAttributes().getValue("Start-Class");
+        }
+        return List.of("-cp", String.join(File.pathSeparator, classPath), startClass);
+    }
+
+    /**
+     * What spring-boot:process-aot does: generate the bean factory initializers, compile them, and return a
+     * jar of them to go in front of the app's own classes.
+     */
+    private static Path processAot(Path work, String classPath) throws Exception {
+        Path aot = work.resolve("spring-aot");
+        Path sources = aot.resolve("sources");
+        Path resources = aot.resolve("resources");
+        Path classes = aot.resolve("classes");
+        String javaHome = System.getProperty("java.home");
+        exec(work, List.of(Path.of(javaHome, "bin", "java").toString(), "-cp", classPath,
+                "org.springframework.boot.SpringApplicationAotProcessor", MAIN_CLASS,
+                sources.toString(), resources.toString(), classes.toString(), "kasion.bench", "app"));
+        List<String> javac = new ArrayList<>(List.of(Path.of(javaHome, "bin", "javac").toString(),
+                "-nowarn", "-d", classes.toString(), "-cp", classes + File.pathSeparator + classPath)); // with the generated proxies
+        try (var files = Files.walk(sources)) {
+            files.filter(p -> p.toString().endsWith(".java")).forEach(p -> javac.add(p.toString()));
+        }
+        exec(work, javac);
+        return jar(work.resolve("aot.jar"), classes, resources);
+    }
+
+    /**
+     * AppCDS won't dump an archive with a non-empty directory on the class path, so directories go in a jar.
+     */
+    private static Path jar(Path jar, Path... dirs) throws Exception {
+        List<String> command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "jar").toString(), "-cf", jar.toString()));
+        for (Path dir : dirs) {
+            if (Files.isDirectory(dir)) {
+                command.addAll(List.of("-C", dir.toString(), "."));
+            }
+        }
+        exec(jar.getParent(), command);
+        return jar;
+    }
+
+    private static Path bootJar(Path target) throws IOException {
+        try (var jars = Files.list(target)) {
+            for (Path jar : jars.filter(p -> p.toString().endsWith(".jar")).sorted().toList()) {
+                try (JarFile file = new JarFile(jar.toFile())) {
+                    if (file.getEntry("BOOT-INF/") != null || file.getEntry("BOOT-INF/classpath.idx") != null) {
+                        return jar;
+                    }
+                }
+            }
+        }
+        throw new IllegalStateException("No Spring Boot jar found under " + target);
+    }
+
+    private static void exec(Path dir, List<String> command) throws Exception {
+        Process process = new ProcessBuilder(command).directory(dir.toFile()).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException(String.join(" ", command) + " failed");
+        }
+    }
+
+    private static String nativeArtifactName(Path context, BuildEngine.BuildTool tool) throws IOException {
+        for (String buildFile : tool == BuildEngine.BuildTool.MAVEN ? List.of("pom.xml") : List.of("settings.gradle", "settings.gradle.kts")) {
+            if (Files.exists(context.resolve(buildFile))) {
+                return DockerfileGenerator.nativeArtifactName(tool, Files.readString(context.resolve(buildFile)));
+            }
+        }
+        return DockerfileGenerator.nativeArtifactName(tool, null);
+    }
+
+    private void awaitHealthy(int port) throws InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/actuator/health"))
+                .timeout(Duration.ofSeconds(1)).GET().build();
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(3);
+        while (System.nanoTime() < deadline) {
+            try {
+                HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() == 200 && response.body().contains("\"UP\"")) {
+                    return;
+                }
+            } catch (IOException ignored) {
+                // not listening yet
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("Not healthy within 3 minutes on port " + port);
+    }
+
+    private static void docker(Path dir, String... args) throws Exception {
+        List<String> command = new ArrayList<>(List.of("docker"));
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).directory(dir.toFile()).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException(String.join(" ", command) + " failed");
+        }
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        try (var paths = Files.walk(from)) {
+            for (Path source : (Iterable<Path>) paths::iterator) {
+                Path target = to.resolve(from.relativize(source).toString());
+                if (Files.isDirectory(source)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(source, target);
+                }
+            }
+        }
+    }
+}